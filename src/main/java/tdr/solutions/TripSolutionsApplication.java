@@ -2,9 +2,11 @@ package tdr.solutions;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration;
 import org.springframework.cache.annotation.EnableCaching;
 
-@SpringBootApplication
+// The reactive connections of the shards are derived from their data sources, see ReactiveShards
+@SpringBootApplication(exclude = R2dbcAutoConfiguration.class)
 @EnableCaching
 public class TripSolutionsApplication {
 
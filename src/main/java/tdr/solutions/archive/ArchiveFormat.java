@@ -0,0 +1,57 @@
+package tdr.solutions.archive;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of an archived year shard.
+ *
+ * <p>An archive is a directory holding immutable files:</p>
+ * <ul>
+ *     <li>{@value #MANIFEST}: format version, year and counts; written last, so a directory without
+ *     it is an incomplete export.</li>
+ *     <li>{@value #DATA}: the trips ordered by vehicle ID and start time, in blocks of
+ *     {@code blockRows} rows. Each block is Deflater-compressed and stores its columns one after
+ *     another: start time deltas, durations, total costs and session IDs.</li>
+ *     <li>{@value #BLOCKS}: the sparse index, giving offset and compressed length of each block.</li>
+ *     <li>{@value #VEHICLES}: for each vehicle, the first row and the number of rows of its trips.</li>
+ *     <li>{@value #SESSIONS}: the session ID lookup table, one {@code long} per row holding the
+ *     session ID hash in the upper and the row in the lower 32 bits, sorted.</li>
+ * </ul>
+ */
+final class ArchiveFormat {
+
+    static final int VERSION = 1;
+
+    static final String MANIFEST = "manifest.properties";
+    static final String DATA = "data.bin";
+    static final String BLOCKS = "blocks.idx";
+    static final String VEHICLES = "vehicles.idx";
+    static final String SESSIONS = "sessions.idx";
+
+    static final int DEFAULT_BLOCK_ROWS = 1024;
+
+    private ArchiveFormat() {
+    }
+
+    /**
+     * Hashes a session ID for the lookup table with FNV-1a over its UTF-8 bytes.
+     *
+     * @param sessionId the session ID
+     * @return the 32-bit hash
+     */
+    static int hash(String sessionId) {
+        int hash = 0x811c9dc5;
+        for (byte b : sessionId.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * Packs a session ID hash and a row into one entry of the lookup table.
+     */
+    static long sessionEntry(int hash, int row) {
+        return ((long) hash << 32) | (row & 0xffffffffL);
+    }
+}
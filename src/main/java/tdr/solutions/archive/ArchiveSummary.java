@@ -0,0 +1,12 @@
+package tdr.solutions.archive;
+
+/**
+ * Summary of an archived year shard.
+ *
+ * @param year     the year of the archived shard
+ * @param trips    the number of archived trips
+ * @param vehicles the number of vehicles with archived trips
+ * @param dataSize the compressed size of the trip data in bytes
+ */
+public record ArchiveSummary(int year, int trips, int vehicles, long dataSize) {
+}
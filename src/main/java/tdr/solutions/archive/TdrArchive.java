@@ -0,0 +1,425 @@
+package tdr.solutions.archive;
+
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordReader;
+import tdr.solutions.service.TdrService;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only shard backed by an archive written by {@link TdrArchiveWriter}.
+ *
+ * <p>The trip data and the session ID lookup table are memory-mapped, so an opened archive costs
+ * little heap and the operating system keeps the hot parts in its page cache. Only the sparse
+ * block index and the vehicle table are read onto the heap. Lookups decompress just the blocks
+ * holding the requested rows: a vehicle's trips are contiguous, and a session ID is found by a
+ * binary search over the sorted hashes followed by a check of the row's actual session ID.</p>
+ *
+ * <p>Rows are numbered in archive order, and the ID of an archived trip is its row plus one.</p>
+ *
+ * <p>Every lookup reads the mapped buffers of one {@link Mappings} snapshot it captured when it
+ * started, so closing the archive (as when a newer archive of the same year is registered) never
+ * pulls a buffer from under a lookup in progress. Lookups started after the archive was closed
+ * fail instead.</p>
+ */
+public class TdrArchive implements TripDetailRecordReader, Closeable {
+
+    /**
+     * Data files are mapped in windows of this size, overlapping by the largest block. Session files
+     * are mapped in windows of the same size without overlap, since it is a multiple of the entry size.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private static final Comparator<TripDetailRecordEntity> BY_START_TIME =
+            Comparator.comparing(TripDetailRecordEntity::getStartTime);
+    private static final Comparator<TripDetailRecordEntity> BY_END_TIME =
+            Comparator.comparing(TripDetailRecordEntity::getEndTime);
+
+    private final Path directory;
+    private final int year;
+    private final int rows;
+    private final int blockRows;
+
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private volatile Mappings mappings;
+
+    /** Vehicle ID to {@code {firstRow, rowCount}}. */
+    private final Map<String, int[]> vehicles;
+    /** First rows of the vehicles in archive order, to find the vehicle of a row. */
+    private final int[] vehicleFirstRows;
+    private final String[] vehicleIds;
+
+    private TdrArchive(Path directory, Properties manifest) throws IOException {
+        this.directory = directory;
+        this.year = Integer.parseInt(manifest.getProperty("year"));
+        this.rows = Integer.parseInt(manifest.getProperty("rows"));
+        this.blockRows = Integer.parseInt(manifest.getProperty("blockRows"));
+        int blocks = Integer.parseInt(manifest.getProperty("blocks"));
+        int vehicleCount = Integer.parseInt(manifest.getProperty("vehicles"));
+        long maxBlockLength = Long.parseLong(manifest.getProperty("maxBlockLength"));
+
+        blockOffsets = new long[blocks];
+        blockLengths = new int[blocks];
+        try (DataInputStream in = read(ArchiveFormat.BLOCKS)) {
+            for (int i = 0; i < blocks; i++) {
+                blockOffsets[i] = in.readLong();
+                blockLengths[i] = in.readInt();
+            }
+        }
+
+        vehicles = HashMap.newHashMap(vehicleCount);
+        vehicleFirstRows = new int[vehicleCount];
+        vehicleIds = new String[vehicleCount];
+        try (DataInputStream in = read(ArchiveFormat.VEHICLES)) {
+            for (int i = 0; i < vehicleCount; i++) {
+                vehicleIds[i] = in.readUTF();
+                vehicleFirstRows[i] = in.readInt();
+                vehicles.put(vehicleIds[i], new int[]{vehicleFirstRows[i], in.readInt()});
+            }
+        }
+
+        mappings = new Mappings(map(ArchiveFormat.DATA, maxBlockLength), map(ArchiveFormat.SESSIONS, 0));
+    }
+
+    /**
+     * Maps a file in windows of {@link #WINDOW_SIZE} bytes, each extended by the given overlap.
+     */
+    private MappedByteBuffer[] map(String file, long overlap) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(file))) {
+            long size = channel.size();
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) Math.max(1, (size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = i * WINDOW_SIZE;
+                long length = Math.min(size - start, WINDOW_SIZE + overlap);
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+            }
+            return windows;
+        }
+    }
+
+    /**
+     * Opens a complete archive.
+     *
+     * @param directory the directory of the archive
+     * @return the opened archive
+     * @throws IOException if the archive is incomplete, of an unknown version or cannot be read
+     */
+    public static TdrArchive open(Path directory) throws IOException {
+        Path manifestFile = directory.resolve(ArchiveFormat.MANIFEST);
+        if (!Files.exists(manifestFile)) {
+            throw new IOException("Archive " + directory + " is incomplete");
+        }
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(manifestFile)) {
+            manifest.load(in);
+        }
+        if (!String.valueOf(ArchiveFormat.VERSION).equals(manifest.getProperty("version"))) {
+            throw new IOException("Archive " + directory + " has unsupported version " + manifest.getProperty("version"));
+        }
+        return new TdrArchive(directory, manifest);
+    }
+
+    /**
+     * @return the year of the archived shard
+     */
+    public int getYear() {
+        return year;
+    }
+
+    /**
+     * @return the directory of the archive
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return a summary of the archive
+     */
+    public ArchiveSummary summary() {
+        long dataSize = blockOffsets.length == 0 ? 0 : blockOffsets[blockOffsets.length - 1] + blockLengths[blockLengths.length - 1];
+        return new ArchiveSummary(year, rows, vehicleIds.length, dataSize);
+    }
+
+    @Override
+    public List<TripDetailRecordEntity> findAllByVehicleId(String vehicleId, Pageable pageable) {
+        return page(vehicleTrips(vehicleId), pageable);
+    }
+
+    @Override
+    public List<TripDetailRecordEntity> findAllByVehicleIdAfter(String vehicleId, TdrCursor cursor, int limit) {
+        Function<TripDetailRecordEntity, LocalDateTime> key = trip -> cursor.keyOf(trip.getStartTime(), trip.getEndTime());
+        Comparator<TripDetailRecordEntity> comparator = Comparator.comparing(key).thenComparing(TripDetailRecordEntity::getSessionId);
+        return vehicleTrips(vehicleId).stream()
+                .filter(trip -> cursor.precedes(key.apply(trip), trip.getSessionId()))
+                .sorted(cursor.descending() ? comparator.reversed() : comparator)
+                .limit(limit)
+                .toList();
+    }
+
+    @Override
+    public TripDetailRecordEntity findBySessionId(String sessionId) {
+        Mappings mappings = mappings();
+        int hash = ArchiveFormat.hash(sessionId);
+        long first = ArchiveFormat.sessionEntry(hash, 0);
+        int low = 0;
+        int high = rows;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mappings.sessionEntry(middle) < first) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // Distinct session IDs may share a hash, so every candidate row is checked
+        for (int i = low; i < rows; i++) {
+            long entry = mappings.sessionEntry(i);
+            if ((int) (entry >>> 32) != hash) {
+                break;
+            }
+            TripDetailRecordEntity candidate = read(mappings, (int) entry, (int) entry + 1).get(0);
+            if (candidate.getSessionId().equals(sessionId)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<TripDetailRecordEntity> findAllBySessionIdIn(Collection<String> sessionIds) {
+        List<TripDetailRecordEntity> result = new ArrayList<>();
+        for (String sessionId : sessionIds) {
+            TripDetailRecordEntity entity = findBySessionId(sessionId);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<TripDetailRecordEntity> findAllByVehicleIdAndStartTimeGreaterThanEqualAndStartTimeLessThan(
+            String vehicleId, LocalDateTime from, LocalDateTime to, Pageable pageable) {
+        List<TripDetailRecordEntity> trips = vehicleTrips(vehicleId);
+        int low = startTimeLowerBound(trips, from);
+        int high = startTimeLowerBound(trips, to);
+        return page(trips.subList(low, Math.max(low, high)), pageable);
+    }
+
+    @Override
+    public List<TripDetailRecordEntity> findByIdGreaterThanOrderByIdAsc(Long id, Limit limit) {
+        int from = (int) Math.min(rows, Math.max(0, id));
+        int to = limit.isLimited() ? (int) Math.min(rows, (long) from + limit.max()) : rows;
+        return from < to ? read(mappings(), from, to) : List.of();
+    }
+
+    @Override
+    public long countTripsOfVehicle(String vehicleId) {
+        int[] range = vehicles.get(vehicleId);
+        return range == null ? 0 : range[1];
+    }
+
+    /**
+     * Unmaps the archive. Lookups in progress finish with the mappings they captured, which are
+     * released once they are garbage collected.
+     */
+    @Override
+    public void close() {
+        mappings = null;
+    }
+
+    private Mappings mappings() {
+        Mappings current = mappings;
+        if (current == null) {
+            throw new IllegalStateException("Archive " + directory + " is closed");
+        }
+        return current;
+    }
+
+    private List<TripDetailRecordEntity> vehicleTrips(String vehicleId) {
+        int[] range = vehicles.get(vehicleId);
+        return range == null ? List.of() : read(mappings(), range[0], range[0] + range[1]);
+    }
+
+    private static int startTimeLowerBound(List<TripDetailRecordEntity> trips, LocalDateTime startTime) {
+        int low = 0;
+        int high = trips.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (trips.get(middle).getStartTime().isBefore(startTime)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sorts and pages trips that are already in start time order, as the database would.
+     */
+    private static List<TripDetailRecordEntity> page(List<TripDetailRecordEntity> trips, Pageable pageable) {
+        List<TripDetailRecordEntity> sorted = new ArrayList<>(trips);
+        Sort.Order order = pageable.getSort().stream().findFirst().orElse(null);
+        if (order != null) {
+            Comparator<TripDetailRecordEntity> comparator = order.getProperty().equals(TdrService.START_TIME) ? BY_START_TIME : BY_END_TIME;
+            sorted.sort(order.isDescending() ? comparator.reversed() : comparator);
+        }
+        if (pageable.isUnpaged()) {
+            return sorted;
+        }
+        int from = (int) Math.min(sorted.size(), pageable.getOffset());
+        return sorted.subList(from, Math.min(sorted.size(), from + pageable.getPageSize()));
+    }
+
+    /**
+     * Reads the rows {@code [from, to)}, decompressing each block they touch once.
+     */
+    private List<TripDetailRecordEntity> read(Mappings mappings, int from, int to) {
+        List<TripDetailRecordEntity> result = new ArrayList<>(to - from);
+        int row = from;
+        while (row < to) {
+            int block = row / blockRows;
+            int blockStart = block * blockRows;
+            int blockEnd = Math.min(to, blockStart + blockRows);
+            decode(mappings, block, row - blockStart, blockEnd - blockStart, blockStart, result);
+            row = blockEnd;
+        }
+        return result;
+    }
+
+    private void decode(Mappings mappings, int block, int first, int end, int blockStart, List<TripDetailRecordEntity> result) {
+        byte[] compressed = new byte[blockLengths[block]];
+        long offset = blockOffsets[block];
+        mappings.dataWindows()[(int) (offset / WINDOW_SIZE)].get((int) (offset % WINDOW_SIZE), compressed);
+
+        Inflater inflater = new Inflater();
+        byte[] raw;
+        try {
+            inflater.setInput(compressed);
+            GrowableBuffer buffer = new GrowableBuffer(blockRows * 40);
+            while (!inflater.finished()) {
+                buffer.inflate(inflater);
+            }
+            raw = buffer.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Block " + block + " of archive " + directory + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+
+        try (DataInputStream columns = new DataInputStream(new ByteArrayInputStream(raw))) {
+            int size = columns.readInt();
+            long[] startTimes = new long[size];
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                previous += columns.readLong();
+                startTimes[i] = previous;
+            }
+            long[] durations = new long[size];
+            for (int i = 0; i < size; i++) {
+                durations[i] = columns.readLong();
+            }
+            double[] totalCosts = new double[size];
+            for (int i = 0; i < size; i++) {
+                totalCosts[i] = columns.readDouble();
+            }
+            for (int i = 0; i < end; i++) {
+                String sessionId = columns.readUTF();
+                if (i >= first) {
+                    int row = blockStart + i;
+                    TripDetailRecordEntity entity = new TripDetailRecordEntity();
+                    entity.setId(row + 1L);
+                    entity.setSessionId(sessionId);
+                    entity.setVehicleId(vehicleOf(row));
+                    entity.setStartTime(EpochMicros.toLocalDateTime(startTimes[i]));
+                    entity.setEndTime(EpochMicros.toLocalDateTime(startTimes[i] + durations[i]));
+                    entity.setTotalCost(totalCosts[i]);
+                    result.add(entity);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String vehicleOf(int row) {
+        int index = Arrays.binarySearch(vehicleFirstRows, row);
+        return vehicleIds[index >= 0 ? index : -index - 2];
+    }
+
+    private DataInputStream read(String file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(file))));
+    }
+
+    /**
+     * The mapped windows of the data and session files, published together and never modified.
+     */
+    private record Mappings(MappedByteBuffer[] dataWindows, MappedByteBuffer[] sessionWindows) {
+
+        /**
+         * Reads the session lookup table entry of a row, which may lie beyond the first 2 GB.
+         */
+        long sessionEntry(int row) {
+            long offset = (long) row * Long.BYTES;
+            return sessionWindows[(int) (offset / WINDOW_SIZE)].getLong((int) (offset % WINDOW_SIZE));
+        }
+    }
+
+    /**
+     * Growable buffer for inflated block contents.
+     */
+    private static final class GrowableBuffer {
+
+        private byte[] buffer;
+        private int size;
+
+        GrowableBuffer(int capacity) {
+            buffer = new byte[Math.max(64, capacity)];
+        }
+
+        void inflate(Inflater inflater) throws DataFormatException {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int inflated = inflater.inflate(buffer, size, buffer.length - size);
+            if (inflated == 0 && inflater.needsInput()) {
+                throw new DataFormatException("Truncated block");
+            }
+            size += inflated;
+        }
+
+        byte[] toByteArray() {
+            return buffer.length == size ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package tdr.solutions.archive;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Service class responsible for the archive tier of closed year shards.
+ *
+ * <p>A closed year can be exported from its databases into an archive (see {@link ArchiveFormat})
+ * below {@code tdr.archive.directory}, in a subdirectory named after the year. The export reads each
+ * sub-shard in vehicle and start time order with a keyset scan, so it needs no more memory than the
+ * session ID lookup table. The year stops accepting new TDRs when the export starts; once complete,
+ * the archive replaces the database sub-shards in the {@link TdrShardingService} as a read-only shard,
+ * and the databases can be retired.</p>
+ *
+ * <p>Archives found in the directory are opened and registered when the application starts.</p>
+ */
+@Service
+public class TdrArchiveService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TdrArchiveService.class);
+
+    private final TdrShardingService tdrShardingService;
+    private final Path directory;
+    private final int exportBatchSize;
+    private final int blockRows;
+
+    private final Map<Integer, TdrArchive> archives = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for {@code TdrArchiveService}.
+     *
+     * @param tdrShardingService the sharding service the archives are registered with
+     * @param directory          the directory holding the archives; archiving is disabled if unset
+     * @param exportBatchSize    the number of rows read per keyset batch while exporting
+     * @param blockRows          the number of rows per compressed block of new archives
+     */
+    public TdrArchiveService(TdrShardingService tdrShardingService,
+                             @Value("${tdr.archive.directory:#{null}}") Path directory,
+                             @Value("${tdr.archive.export-batch-size:5000}") int exportBatchSize,
+                             @Value("${tdr.archive.block-rows:1024}") int blockRows) {
+        this.tdrShardingService = tdrShardingService;
+        this.directory = directory;
+        this.exportBatchSize = exportBatchSize;
+        this.blockRows = blockRows;
+    }
+
+    /**
+     * Opens every complete archive in the archive directory and registers it as a read-only shard.
+     *
+     * @throws IOException if the archive directory cannot be listed or an archive cannot be opened
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (directory == null || !Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path entry : entries.toList()) {
+                if (Files.exists(entry.resolve(ArchiveFormat.MANIFEST)) && entry.getFileName().toString().matches("\\d{4}")) {
+                    register(TdrArchive.open(entry));
+                }
+            }
+        }
+    }
+
+    /**
+     * Exports a closed year shard into an archive and serves the year from the archive afterwards.
+     *
+     * @param year the year of the shard
+     * @return a summary of the written archive
+     * @throws TdrException if archiving is disabled or the year has no closed database shard
+     * @throws IOException  if the archive cannot be written
+     */
+    public ArchiveSummary export(int year) throws TdrException, IOException {
+        if (directory == null) {
+            throw new TdrException("archiving is disabled, tdr.archive.directory is not set");
+        }
+        if (year == tdrShardingService.getCurrentYear()) {
+            throw new TdrException("shard " + year + " is the current shard and cannot be archived");
+        }
+        List<Shard> shards = tdrShardingService.getShards(year);
+        if (shards.isEmpty()) {
+            throw new TdrException("no database shard for year " + year);
+        }
+        long started = System.nanoTime();
+        Files.createDirectories(directory);
+        // Reject new TDRs of the year while it is exported, so none are left out of the archive
+        tdrShardingService.setWritable(year, false);
+        ArchiveSummary summary;
+        try (TdrArchiveWriter writer = new TdrArchiveWriter(directory.resolve(String.valueOf(year)), year, blockRows)) {
+            // Sub-shards hold disjoint vehicles, so exporting them one after another keeps vehicles grouped
+            for (Shard shard : shards) {
+                export(shard.repository(), writer);
+            }
+            summary = writer.finish();
+        } catch (IOException | RuntimeException e) {
+            tdrShardingService.setWritable(year, true);
+            throw e;
+        }
+        register(TdrArchive.open(directory.resolve(String.valueOf(year))));
+        LOGGER.info("Archived {} trips of {} vehicles from shard {} into {} bytes in {} ms", summary.trips(),
+                summary.vehicles(), year, summary.dataSize(), (System.nanoTime() - started) / 1_000_000);
+        return summary;
+    }
+
+    private void export(TripDetailRecordRepository repository, TdrArchiveWriter writer) throws IOException {
+        String vehicleId = "";
+        LocalDateTime startTime = LocalDateTime.of(1970, 1, 1, 0, 0);
+        Long id = 0L;
+        List<TripDetailRecordEntity> batch;
+        do {
+            batch = repository.findNextByVehicleIdAndStartTime(vehicleId, startTime, id, Limit.of(exportBatchSize));
+            for (TripDetailRecordEntity entity : batch) {
+                writer.append(entity);
+                vehicleId = entity.getVehicleId();
+                startTime = entity.getStartTime();
+                id = entity.getId();
+            }
+        } while (batch.size() == exportBatchSize);
+    }
+
+    /**
+     * Returns the summaries of the registered archives.
+     *
+     * @return the summaries, in no particular order
+     */
+    public List<ArchiveSummary> getArchives() {
+        return archives.values().stream().map(TdrArchive::summary).toList();
+    }
+
+    /**
+     * Closes all archives.
+     */
+    @PreDestroy
+    public void close() {
+        archives.values().forEach(TdrArchive::close);
+    }
+
+    private void register(TdrArchive archive) {
+        tdrShardingService.registerReadOnlyShard(archive.getYear(), archive);
+        TdrArchive previous = archives.put(archive.getYear(), archive);
+        if (previous != null) {
+            previous.close();
+        }
+        LOGGER.info("Serving shard {} from archive {}", archive.getYear(), archive.getDirectory());
+    }
+}
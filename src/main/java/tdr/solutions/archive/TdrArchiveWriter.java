@@ -0,0 +1,250 @@
+package tdr.solutions.archive;
+
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TripDetailRecordEntity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the trips of one year shard into an archive, see {@link ArchiveFormat}.
+ *
+ * <p>Trips must be appended grouped by vehicle and ordered by start time within each vehicle.
+ * Everything is written into a temporary sibling directory that is moved into place by
+ * {@link #finish()}, so an archive directory is either complete or absent.</p>
+ */
+public class TdrArchiveWriter implements Closeable {
+
+    private final Path target;
+    private final Path staging;
+    private final int year;
+    private final int blockRows;
+
+    private final DataOutputStream data;
+    private final DataOutputStream blocks;
+    private final DataOutputStream vehicles;
+
+    private final long[] startTimes;
+    private final long[] endTimes;
+    private final double[] totalCosts;
+    private final String[] sessionIds;
+    private int blockSize;
+
+    private long dataOffset;
+    private int maxBlockLength;
+    private int blockCount;
+
+    private long[] sessionEntries = new long[1024];
+    private int rows;
+
+    private String vehicleId;
+    private long lastStartTime;
+    private int vehicleFirstRow;
+    private int vehicleCount;
+    private final Set<String> archivedVehicles = new HashSet<>();
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private boolean finished;
+
+    /**
+     * Starts writing the archive of a year into {@code target}, which must not exist yet.
+     *
+     * @param target    the directory of the archive
+     * @param year      the year of the archived shard
+     * @param blockRows the number of rows per compressed block
+     * @throws IOException if the staging directory cannot be created
+     */
+    public TdrArchiveWriter(Path target, int year, int blockRows) throws IOException {
+        if (Files.exists(target)) {
+            throw new IOException("Archive " + target + " already exists");
+        }
+        this.target = target;
+        this.staging = target.resolveSibling(target.getFileName() + ".tmp");
+        this.year = year;
+        this.blockRows = blockRows;
+        deleteRecursively(staging);
+        Files.createDirectories(staging);
+        this.data = open(ArchiveFormat.DATA);
+        this.blocks = open(ArchiveFormat.BLOCKS);
+        this.vehicles = open(ArchiveFormat.VEHICLES);
+        this.startTimes = new long[blockRows];
+        this.endTimes = new long[blockRows];
+        this.totalCosts = new double[blockRows];
+        this.sessionIds = new String[blockRows];
+    }
+
+    /**
+     * Appends the next trip.
+     *
+     * @param entity the trip
+     * @throws IOException              if writing fails
+     * @throws IllegalArgumentException if the trip is out of vehicle and start time order
+     */
+    public void append(TripDetailRecordEntity entity) throws IOException {
+        long startTime = EpochMicros.of(entity.getStartTime());
+        if (!entity.getVehicleId().equals(vehicleId)) {
+            if (!archivedVehicles.add(entity.getVehicleId())) {
+                throw new IllegalArgumentException("Trips of vehicle " + entity.getVehicleId() + " are not grouped");
+            }
+            finishVehicle();
+            vehicleId = entity.getVehicleId();
+            vehicleFirstRow = rows;
+        } else if (startTime < lastStartTime) {
+            throw new IllegalArgumentException("Trip " + entity.getSessionId() + " is out of start time order");
+        }
+        lastStartTime = startTime;
+
+        startTimes[blockSize] = startTime;
+        endTimes[blockSize] = EpochMicros.of(entity.getEndTime());
+        totalCosts[blockSize] = entity.getTotalCost();
+        sessionIds[blockSize] = entity.getSessionId();
+        blockSize++;
+        if (rows == sessionEntries.length) {
+            sessionEntries = Arrays.copyOf(sessionEntries, rows * 2);
+        }
+        sessionEntries[rows] = ArchiveFormat.sessionEntry(ArchiveFormat.hash(entity.getSessionId()), rows);
+        rows++;
+        if (blockSize == blockRows) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Completes the archive and moves it into place.
+     *
+     * @return a summary of the written archive
+     * @throws IOException if writing fails
+     */
+    public ArchiveSummary finish() throws IOException {
+        finishVehicle();
+        flushBlock();
+        data.close();
+        blocks.close();
+        vehicles.close();
+        Arrays.sort(sessionEntries, 0, rows);
+        try (DataOutputStream sessions = open(ArchiveFormat.SESSIONS)) {
+            for (int i = 0; i < rows; i++) {
+                sessions.writeLong(sessionEntries[i]);
+            }
+        }
+        Properties manifest = new Properties();
+        manifest.setProperty("version", String.valueOf(ArchiveFormat.VERSION));
+        manifest.setProperty("year", String.valueOf(year));
+        manifest.setProperty("rows", String.valueOf(rows));
+        manifest.setProperty("vehicles", String.valueOf(vehicleCount));
+        manifest.setProperty("blocks", String.valueOf(blockCount));
+        manifest.setProperty("blockRows", String.valueOf(blockRows));
+        manifest.setProperty("maxBlockLength", String.valueOf(maxBlockLength));
+        try (OutputStream out = Files.newOutputStream(staging.resolve(ArchiveFormat.MANIFEST))) {
+            manifest.store(out, "Trip detail record archive");
+        }
+        try (Stream<Path> files = Files.list(staging)) {
+            for (Path file : files.toList()) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        }
+        Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        return new ArchiveSummary(year, rows, vehicleCount, dataOffset);
+    }
+
+    /**
+     * Discards an unfinished archive.
+     */
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        if (!finished) {
+            data.close();
+            blocks.close();
+            vehicles.close();
+            deleteRecursively(staging);
+        }
+    }
+
+    private void finishVehicle() throws IOException {
+        if (vehicleId != null) {
+            vehicles.writeUTF(vehicleId);
+            vehicles.writeInt(vehicleFirstRow);
+            vehicles.writeInt(rows - vehicleFirstRow);
+            vehicleCount++;
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockSize == 0) {
+            return;
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(blockSize * 40);
+        try (DataOutputStream columns = new DataOutputStream(raw)) {
+            columns.writeInt(blockSize);
+            long previous = 0;
+            for (int i = 0; i < blockSize; i++) {
+                columns.writeLong(startTimes[i] - previous);
+                previous = startTimes[i];
+            }
+            for (int i = 0; i < blockSize; i++) {
+                columns.writeLong(endTimes[i] - startTimes[i]);
+            }
+            for (int i = 0; i < blockSize; i++) {
+                columns.writeDouble(totalCosts[i]);
+            }
+            for (int i = 0; i < blockSize; i++) {
+                columns.writeUTF(sessionIds[i]);
+            }
+        }
+        deflater.reset();
+        deflater.setInput(raw.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.size() / 2);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        compressed.writeTo(data);
+        blocks.writeLong(dataOffset);
+        blocks.writeInt(compressed.size());
+        dataOffset += compressed.size();
+        maxBlockLength = Math.max(maxBlockLength, compressed.size());
+        blockCount++;
+        blockSize = 0;
+    }
+
+    private DataOutputStream open(String file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(staging.resolve(file))));
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package tdr.solutions.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+import tdr.solutions.index.VehicleLatestTripIndex;
+import tdr.solutions.index.VehicleTimelineIndex;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the near caches of this node coherent with writes made by any node, or directly in the
+ * shard databases.
+ *
+ * <p>Every shard database publishes the TDRs changed by each committed statement on the
+ * {@value #CHANNEL} channel (see the {@code V2__CREATE_INVALIDATION_TRIGGER} migrations). This
+ * service keeps one {@link ShardInvalidationListener} per shard subscribed to that channel and
+ * applies the received changes in batches:</p>
+ * <ul>
+ *     <li>the {@code sessionIds} entries of the changed sessions are evicted for every placement,</li>
+ *     <li>the {@link VehicleHistoryCache} pages of the changed vehicles are invalidated,</li>
+ *     <li>the {@link VehicleTimelineIndex} upserts or removes the changed trips under the placement of
+ *     the shard, using the values carried by the notification instead of reading the rows back, and</li>
+ *     <li>the {@link VehicleLatestTripIndex} applies them to the latest trips of the changed vehicles
+ *     under the placement of the shard.</li>
+ * </ul>
+ *
+ * <p>Notifications are not persisted, so everything a shard may have changed is flushed whenever
+ * its listener had to reconnect, and whenever a statement changed too many rows to be published
+ * individually. Listening starts before the {@link VehicleTimelineIndex} loads, so no change
+ * committed during the load is missed.</p>
+ *
+ * <p>Only PostgreSQL shards can publish changes; other shards (such as the in-memory test
+ * databases) are skipped.</p>
+ */
+@Service
+public class CacheCoherenceService implements SmartLifecycle {
+
+    /** The notification channel the shard databases publish changes on. */
+    public static final String CHANNEL = "tdr_invalidation";
+
+    /** The payload published instead of a change list when everything has to be flushed. */
+    public static final String FLUSH = "*";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheCoherenceService.class);
+
+    private final TdrShardingService tdrShardingService;
+    private final CacheManager cacheManager;
+    private final VehicleHistoryCache vehicleHistoryCache;
+    private final VehicleTimelineIndex vehicleTimelineIndex;
+    private final VehicleLatestTripIndex vehicleLatestTripIndex;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Duration batchWindow;
+    private final int maxBatchSize;
+    private final Duration reconnectDelay;
+    private final Duration idleCheckInterval;
+
+    private final List<ShardInvalidationListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+
+    /**
+     * Constructor for {@code CacheCoherenceService}.
+     *
+     * @param tdrShardingService     the sharding service providing the shard data sources
+     * @param cacheManager           the cache manager holding the {@code sessionIds} cache
+     * @param vehicleHistoryCache    the cache of vehicle history pages
+     * @param vehicleTimelineIndex   the in-memory index of the current shard
+     * @param vehicleLatestTripIndex the in-memory index of the latest trip of every vehicle
+     * @param objectMapper           the mapper used to read notification payloads
+     * @param enabled                whether to listen for changes at all
+     * @param batchWindow            how long to collect notifications before applying them together
+     * @param maxBatchSize           the number of notifications applied at once at most
+     * @param reconnectDelay         the delay between attempts to re-establish a lost listener
+     * @param idleCheckInterval      how long a silent listener waits before checking its connection
+     */
+    public CacheCoherenceService(TdrShardingService tdrShardingService, CacheManager cacheManager,
+                                 VehicleHistoryCache vehicleHistoryCache, VehicleTimelineIndex vehicleTimelineIndex,
+                                 VehicleLatestTripIndex vehicleLatestTripIndex, ObjectMapper objectMapper,
+                                 @Value("${tdr.coherence.enabled:true}") boolean enabled,
+                                 @Value("${tdr.coherence.batch-window:PT0.05S}") Duration batchWindow,
+                                 @Value("${tdr.coherence.max-batch-size:500}") int maxBatchSize,
+                                 @Value("${tdr.coherence.reconnect-delay:PT5S}") Duration reconnectDelay,
+                                 @Value("${tdr.coherence.idle-check-interval:PT30S}") Duration idleCheckInterval) {
+        this.tdrShardingService = tdrShardingService;
+        this.cacheManager = cacheManager;
+        this.vehicleHistoryCache = vehicleHistoryCache;
+        this.vehicleTimelineIndex = vehicleTimelineIndex;
+        this.vehicleLatestTripIndex = vehicleLatestTripIndex;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.batchWindow = batchWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.reconnectDelay = reconnectDelay;
+        this.idleCheckInterval = idleCheckInterval;
+    }
+
+    /**
+     * Subscribes to the changes of every PostgreSQL sub-shard and dedicated shard. The shards of years
+     * initialized in the background are subscribed to once they are registered.
+     */
+    @Override
+    public void start() {
+        running = true;
+        if (enabled) {
+            tdrShardingService.getShards().forEach(this::subscribe);
+            for (int year : tdrShardingService.getPendingYears()) {
+                tdrShardingService.whenRegistered(year).thenRun(() -> {
+                    if (running) {
+                        tdrShardingService.getShards(year).forEach(this::subscribe);
+                        tdrShardingService.getTenantShards(year).values().forEach(this::subscribe);
+                    }
+                });
+            }
+        }
+    }
+
+    private void subscribe(Shard shard) {
+        if (shard.dataSource() instanceof HikariDataSource dataSource
+                && dataSource.getJdbcUrl().startsWith("jdbc:postgresql:")) {
+            String placement = tdrShardingService.getOwner(shard);
+            ShardInvalidationListener listener = new ShardInvalidationListener(shard.year(), dataSource,
+                    batchWindow, maxBatchSize, reconnectDelay, idleCheckInterval,
+                    (year, payloads) -> applyBatch(year, placement, payloads), this::flush);
+            // Subscribe synchronously so that the timeline index cannot miss changes made during its load
+            listener.connect();
+            Thread.ofVirtual().name("tdr-invalidation-" + shard.name()).start(listener);
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void stop() {
+        listeners.forEach(ShardInvalidationListener::stop);
+        listeners.clear();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return VehicleTimelineIndex.PHASE - 1;
+    }
+
+    /**
+     * Applies a batch of notifications received from one shard.
+     *
+     * @param year      the year of the shard that published the notifications
+     * @param placement the operator the shard is dedicated to, or {@code null} for a shared sub-shard
+     * @param payloads  the notification payloads, in the order they were received
+     */
+    void applyBatch(int year, String placement, List<String> payloads) {
+        if (payloads.contains(FLUSH)) {
+            flush(year);
+            return;
+        }
+        // Only the last change per trip matters, since every change carries the full new values
+        Map<List<String>, InvalidationEvent> latest = new LinkedHashMap<>();
+        for (String payload : payloads) {
+            try {
+                for (InvalidationEvent event : InvalidationEvent.parse(objectMapper, payload)) {
+                    latest.remove(List.of(event.sessionId(), event.vehicleId()));
+                    latest.put(List.of(event.sessionId(), event.vehicleId()), event);
+                }
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Flushing caches of shard {} after an unreadable notification", year, e);
+                flush(year);
+                return;
+            }
+        }
+        Cache sessionIds = cacheManager.getCache(TdrService.SESSION_IDS_CACHE);
+        List<String> placements = tdrShardingService.getPlacements();
+        for (InvalidationEvent event : latest.values()) {
+            if (sessionIds != null) {
+                TdrService.SessionKey.evict(sessionIds, placements, event.sessionId());
+            }
+            vehicleHistoryCache.invalidate(event.vehicleId());
+            if (event.deleted()) {
+                vehicleTimelineIndex.remove(year, placement, event.sessionId(), event.vehicleId());
+                vehicleLatestTripIndex.remove(year, placement, event.sessionId(), event.vehicleId());
+            } else {
+                vehicleTimelineIndex.upsert(year, placement, event.sessionId(), event.vehicleId(),
+                        event.startMicros(), event.endMicros(), event.totalCost());
+                vehicleLatestTripIndex.upsert(year, placement, event.sessionId(), event.vehicleId(),
+                        event.startMicros(), event.endMicros(), event.totalCost());
+            }
+        }
+    }
+
+    /**
+     * Drops everything derived from the given shard, for when its changes may have been missed.
+     *
+     * @param year the year of the shard
+     */
+    void flush(int year) {
+        Cache sessionIds = cacheManager.getCache(TdrService.SESSION_IDS_CACHE);
+        if (sessionIds != null) {
+            sessionIds.clear();
+        }
+        vehicleHistoryCache.invalidateAll();
+        if (vehicleTimelineIndex.isServing(year)) {
+            vehicleTimelineIndex.reload();
+        }
+        vehicleLatestTripIndex.reload();
+    }
+}
@@ -0,0 +1,52 @@
+package tdr.solutions.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change to one TDR, as published by the shard databases on the
+ * {@value CacheCoherenceService#CHANNEL} channel.
+ *
+ * <p>A notification payload is a JSON array of changes. An upsert is encoded as
+ * {@code ["U", sessionId, vehicleId, startMicros, endMicros, totalCost]} and carries the new
+ * values, so listeners can apply it without reading the row back; a delete is encoded as
+ * {@code ["D", sessionId, vehicleId]}.</p>
+ *
+ * @param deleted     whether the TDR was deleted (or moved away from this session/vehicle pair)
+ * @param sessionId   the session ID of the TDR
+ * @param vehicleId   the ID of the vehicle of the TDR
+ * @param startMicros the new start time in epoch microseconds; {@code 0} for deletes
+ * @param endMicros   the new end time in epoch microseconds; {@code 0} for deletes
+ * @param totalCost   the new total cost; {@code 0} for deletes
+ */
+public record InvalidationEvent(boolean deleted, String sessionId, String vehicleId,
+                                long startMicros, long endMicros, double totalCost) {
+
+    /**
+     * Parses one notification payload.
+     *
+     * @param objectMapper the mapper used to read the JSON payload
+     * @param payload      the payload of the notification
+     * @return the changes in the order they were published
+     * @throws IllegalArgumentException if the payload is not a valid change list
+     */
+    static List<InvalidationEvent> parse(ObjectMapper objectMapper, String payload) {
+        JsonNode changes;
+        try {
+            changes = objectMapper.readTree(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid invalidation payload: " + payload, e);
+        }
+        List<InvalidationEvent> events = new ArrayList<>(changes.size());
+        for (JsonNode change : changes) {
+            boolean deleted = "D".equals(change.path(0).asText());
+            events.add(new InvalidationEvent(deleted, change.path(1).asText(), change.path(2).asText(),
+                    change.path(3).asLong(), change.path(4).asLong(), change.path(5).asDouble()));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,163 @@
+package tdr.solutions.cache;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Listens for invalidation notifications of one shard database and hands them over in batches.
+ *
+ * <p>The listener holds its own physical connection outside the shard's connection pool, since
+ * a {@code LISTEN} session has to stay open for the lifetime of the application. Notifications
+ * are collected until {@code batchWindow} has passed since the first one of a batch, or until
+ * {@code maxBatchSize} payloads are waiting, and then passed on together.</p>
+ *
+ * <p>Notifications sent while no connection was listening are lost, so whenever the listener
+ * has to reconnect it reports missed events and the caller flushes everything it derived from
+ * this shard.</p>
+ */
+final class ShardInvalidationListener implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardInvalidationListener.class);
+
+    private static final int IDLE_POLL_MILLIS = 500;
+
+    private final int year;
+    private final HikariDataSource dataSource;
+    private final Duration batchWindow;
+    private final int maxBatchSize;
+    private final Duration reconnectDelay;
+    private final Duration idleCheckInterval;
+    private final BiConsumer<Integer, List<String>> batchHandler;
+    private final IntConsumer missedEventsHandler;
+
+    private volatile boolean running = true;
+    private volatile Connection connection;
+
+    ShardInvalidationListener(int year, HikariDataSource dataSource, Duration batchWindow, int maxBatchSize,
+                              Duration reconnectDelay, Duration idleCheckInterval,
+                              BiConsumer<Integer, List<String>> batchHandler, IntConsumer missedEventsHandler) {
+        this.year = year;
+        this.dataSource = dataSource;
+        this.batchWindow = batchWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.reconnectDelay = reconnectDelay;
+        this.idleCheckInterval = idleCheckInterval;
+        this.batchHandler = batchHandler;
+        this.missedEventsHandler = missedEventsHandler;
+    }
+
+    /**
+     * Opens the listening connection and subscribes to the channel.
+     *
+     * @return {@code true} if the listener is subscribed
+     */
+    boolean connect() {
+        try {
+            Connection opened = DriverManager.getConnection(dataSource.getJdbcUrl(), dataSource.getUsername(), dataSource.getPassword());
+            try (Statement statement = opened.createStatement()) {
+                statement.execute("LISTEN " + CacheCoherenceService.CHANNEL);
+            }
+            connection = opened;
+            return true;
+        } catch (SQLException e) {
+            LOGGER.warn("Cannot listen for invalidations of shard {}: {}", year, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (connection == null) {
+                if (!connect()) {
+                    sleep(reconnectDelay);
+                    continue;
+                }
+                missedEventsHandler.accept(year);
+            }
+            try {
+                poll();
+            } catch (SQLException e) {
+                if (running) {
+                    LOGGER.warn("Lost the invalidation listener of shard {}: {}", year, e.getMessage());
+                }
+                closeConnection();
+            }
+        }
+        closeConnection();
+    }
+
+    /**
+     * Stops listening and closes the connection.
+     */
+    void stop() {
+        running = false;
+        closeConnection();
+    }
+
+    private void poll() throws SQLException {
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        List<String> batch = new ArrayList<>();
+        long batchDeadline = 0;
+        long lastActivity = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            int timeout = batch.isEmpty() ? IDLE_POLL_MILLIS : (int) Math.max(1, (batchDeadline - now) / 1_000_000);
+            PGNotification[] notifications = pgConnection.getNotifications(timeout);
+            now = System.nanoTime();
+            if (notifications != null && notifications.length > 0) {
+                if (batch.isEmpty()) {
+                    batchDeadline = now + batchWindow.toNanos();
+                }
+                for (PGNotification notification : notifications) {
+                    batch.add(notification.getParameter());
+                }
+                lastActivity = now;
+            }
+            if (!batch.isEmpty() && (now >= batchDeadline || batch.size() >= maxBatchSize)) {
+                batchHandler.accept(year, List.copyOf(batch));
+                batch.clear();
+            }
+            if (batch.isEmpty() && now - lastActivity > idleCheckInterval.toNanos()) {
+                // A silent channel must not hide a dead connection
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SELECT 1");
+                }
+                lastActivity = now;
+            }
+        }
+    }
+
+    private void closeConnection() {
+        Connection current = connection;
+        connection = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Closing the invalidation listener of shard {} failed", year, e);
+            }
+        }
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
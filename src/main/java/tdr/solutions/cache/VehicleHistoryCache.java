@@ -0,0 +1,339 @@
+package tdr.solutions.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.SingleFlight;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of vehicle history pages, versioned per vehicle.
+ *
+ * <p>Pages are keyed by vehicle ID, placement, sort property, direction and page cursor. Operators
+ * with a dedicated shard may use the same vehicle IDs as the shared sub-shards, so pages and counts
+ * are kept apart per placement (see {@link TdrShardingService#getPlacement(String)}). All pages of a
+ * vehicle live in one {@link VehicleEntry} tagged with the vehicle's version; a write for that
+ * vehicle replaces the entry with a new, empty one of the next version, so only that vehicle's
+ * pages are dropped. A load that was still running when the vehicle was invalidated completes
+ * into the detached entry and is never served to later readers.</p>
+ *
+ * <p>Concurrent misses for the same page are coalesced: the first caller runs the loader and
+ * every other caller waits for the same {@link CompletableFuture}, so a hot vehicle triggers
+ * one shard fan-out instead of one per request. Like with {@link SingleFlight}, a caller waits at
+ * most {@code tdr.single-flight.max-wait} and then runs the loader itself, without caching its
+ * result, so one stuck load cannot hold up every reader of the vehicle. The calls are counted in
+ * the {@code tdr.single-flight} metrics under the name {@code vehicle-history}. Failed loads are not
+ * cached.</p>
+ *
+ * <p>The number of trips of a vehicle is cached in the same entry, so it is dropped by the same
+ * writes as its pages. A write drops the pages and counts of every placement, since the shared
+ * sub-shards of one year are read by operators of several placements.</p>
+ */
+@Component
+public class VehicleHistoryCache {
+
+    /** The name the {@code tdr.single-flight} metrics of the coalesced loads are tagged with. */
+    static final String FLIGHT_NAME = "vehicle-history";
+
+    /**
+     * Identifies one cached page of a vehicle's history.
+     *
+     * @param placement the placement the page was read for, or {@code null} for the shared sub-shards
+     * @param sortBy    the sort property
+     * @param direction the sort direction
+     * @param page      the page number, {@code 0} for keyset pages
+     * @param size      the page size
+     * @param cursor    the encoded position a keyset page follows, or {@code null} for a page by number
+     */
+    record PageKey(String placement, String sortBy, Sort.Direction direction, int page, int size, String cursor) {
+
+        static PageKey of(String placement, Pageable pageable) {
+            Sort.Order order = pageable.getSort().stream().findFirst().get();
+            return new PageKey(placement, order.getProperty(), order.getDirection(), pageable.getPageNumber(), pageable.getPageSize(), null);
+        }
+
+        static PageKey of(String placement, TdrCursor cursor, int size) {
+            return new PageKey(placement, cursor.sortBy(), cursor.descending() ? Sort.Direction.DESC : Sort.Direction.ASC, 0, size,
+                    cursor.encode());
+        }
+    }
+
+    /**
+     * Identifies the cached number of a vehicle's trips.
+     *
+     * @param placement the placement the trips were counted for, or {@code null} for the shared sub-shards
+     */
+    record CountKey(String placement) {
+    }
+
+    /**
+     * A page or count, completed or still loading.
+     *
+     * @param result  the result of the load
+     * @param callers the number of callers served by the load, the loading one included
+     * @param <T>     the type of the result
+     */
+    record Load<T>(CompletableFuture<T> result, AtomicInteger callers) {
+
+        Load() {
+            this(new CompletableFuture<>(), new AtomicInteger(1));
+        }
+    }
+
+    /**
+     * The cached pages of one vehicle at one version.
+     *
+     * @param version the version of the vehicle the pages were loaded for
+     * @param pages   the pages, completed or still loading
+     * @param trips   the numbers of trips of the vehicle, completed or still loading
+     */
+    record VehicleEntry(long version, ConcurrentHashMap<PageKey, Load<List<TripDetailRecord>>> pages,
+                        ConcurrentHashMap<CountKey, Load<Long>> trips) {
+
+        VehicleEntry(long version) {
+            this(version, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        }
+    }
+
+    private final boolean enabled;
+    private final int maxVehicles;
+    private final int maxPagesPerVehicle;
+    private final Duration maxWait;
+    private final Counter leaders;
+    private final Counter followers;
+    private final Counter timeouts;
+    private final DistributionSummary shared;
+
+    private final ConcurrentHashMap<String, VehicleEntry> vehicles = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Constructor for {@code VehicleHistoryCache}.
+     *
+     * @param enabled            whether pages are cached at all
+     * @param maxVehicles        the number of vehicles kept before arbitrary vehicles are evicted
+     * @param maxPagesPerVehicle the number of pages kept per vehicle before its pages are dropped
+     * @param maxWait            how long a caller waits for another caller's load at most
+     * @param meterRegistry      the registry the metrics of the coalesced loads are published to
+     */
+    public VehicleHistoryCache(@Value("${tdr.cache.vehicle-history.enabled:true}") boolean enabled,
+                               @Value("${tdr.cache.vehicle-history.max-vehicles:10000}") int maxVehicles,
+                               @Value("${tdr.cache.vehicle-history.max-pages-per-vehicle:32}") int maxPagesPerVehicle,
+                               @Value("${tdr.single-flight.max-wait:PT2S}") Duration maxWait,
+                               MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxVehicles = maxVehicles;
+        this.maxPagesPerVehicle = maxPagesPerVehicle;
+        this.maxWait = maxWait;
+        this.leaders = calls("leader", meterRegistry);
+        this.followers = calls("follower", meterRegistry);
+        this.timeouts = calls("timeout", meterRegistry);
+        this.shared = DistributionSummary.builder("tdr.single-flight.shared")
+                .description("Callers served by one execution")
+                .tag("name", FLIGHT_NAME)
+                .register(meterRegistry);
+    }
+
+    private static Counter calls(String role, MeterRegistry meterRegistry) {
+        return Counter.builder("tdr.single-flight.calls")
+                .description("Calls of coalesced reads by the role of the caller")
+                .tag("name", FLIGHT_NAME)
+                .tag("role", role)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Tells whether pages are cached at all.
+     *
+     * @return whether the cache is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached page, loading it with {@code loader} on a miss. Callers that miss on the
+     * same page while a load is running wait for that load instead of starting their own, for at
+     * most {@code maxWait}.
+     *
+     * @param placement the placement of the operator reading the page, or {@code null} for the shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     * @param pageable  the requested page and sort order
+     * @param loader    loads the page from the shards
+     * @return the page of TDRs
+     */
+    public List<TripDetailRecord> get(String placement, String vehicleId, Pageable pageable,
+                                      Supplier<List<TripDetailRecord>> loader) {
+        return get(vehicleId, PageKey.of(placement, pageable), loader);
+    }
+
+    /**
+     * Returns the cached keyset page following the cursor, loading it with {@code loader} on a miss,
+     * like {@link #get(String, String, Pageable, Supplier)}.
+     *
+     * @param placement the placement of the operator reading the page, or {@code null} for the shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     * @param cursor    the order and the position the page follows
+     * @param size      the number of TDRs loaded for the page
+     * @param loader    loads the page from the shards
+     * @return the page of TDRs
+     */
+    public List<TripDetailRecord> get(String placement, String vehicleId, TdrCursor cursor, int size,
+                                      Supplier<List<TripDetailRecord>> loader) {
+        return get(vehicleId, PageKey.of(placement, cursor, size), loader);
+    }
+
+    private List<TripDetailRecord> get(String vehicleId, PageKey pageKey, Supplier<List<TripDetailRecord>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        VehicleEntry entry = vehicles.computeIfAbsent(vehicleId, key -> new VehicleEntry(versions.incrementAndGet()));
+        Load<List<TripDetailRecord>> page = entry.pages().get(pageKey);
+        if (page == null) {
+            Load<List<TripDetailRecord>> loading = new Load<>();
+            page = entry.pages().putIfAbsent(pageKey, loading);
+            if (page == null) {
+                leaders.increment();
+                load(vehicleId, entry, pageKey, loading, loader);
+                return join(loading.result());
+            }
+        }
+        return await(page, loader);
+    }
+
+    /**
+     * Returns the cached number of trips of the vehicle, counting them with {@code counter} on a miss.
+     * Callers that miss while a count is running wait for that count instead of starting their own,
+     * for at most {@code maxWait}.
+     *
+     * @param placement the placement of the operator counting the trips, or {@code null} for the shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     * @param counter   counts the trips of the vehicle in the shards
+     * @return the number of trips of the vehicle
+     */
+    public long countTrips(String placement, String vehicleId, Supplier<Long> counter) {
+        if (!enabled) {
+            return counter.get();
+        }
+        VehicleEntry entry = vehicles.computeIfAbsent(vehicleId, key -> new VehicleEntry(versions.incrementAndGet()));
+        CountKey countKey = new CountKey(placement);
+        Load<Long> trips = entry.trips().get(countKey);
+        if (trips == null) {
+            Load<Long> counting = new Load<>();
+            trips = entry.trips().putIfAbsent(countKey, counting);
+            if (trips == null) {
+                leaders.increment();
+                try {
+                    counting.result().complete(counter.get());
+                } catch (RuntimeException e) {
+                    entry.trips().remove(countKey, counting);
+                    counting.result().completeExceptionally(e);
+                }
+                shared.record(counting.callers().get());
+                evictIfFull(vehicleId);
+                return join(counting.result());
+            }
+        }
+        return await(trips, counter);
+    }
+
+    /**
+     * Drops every cached page and count of the vehicle, of all placements, by moving it to a new version.
+     *
+     * @param vehicleId the ID of the vehicle that was written
+     */
+    public void invalidate(String vehicleId) {
+        if (enabled) {
+            vehicles.computeIfPresent(vehicleId, (key, entry) -> new VehicleEntry(versions.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Drops every cached page of every vehicle.
+     */
+    public void invalidateAll() {
+        vehicles.clear();
+    }
+
+    /**
+     * Returns the result of a load of another caller. A completed load is a cache hit; a running one
+     * is waited for at most {@link #maxWait}, after which this caller loads the result itself.
+     */
+    private <T> T await(Load<T> load, Supplier<T> loader) {
+        if (load.result().isDone()) {
+            return join(load.result());
+        }
+        load.callers().incrementAndGet();
+        followers.increment();
+        try {
+            return load.result().get(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            return loader.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a vehicle history load", e);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void load(String vehicleId, VehicleEntry entry, PageKey pageKey,
+                      Load<List<TripDetailRecord>> loading, Supplier<List<TripDetailRecord>> loader) {
+        try {
+            loading.result().complete(loader.get());
+        } catch (RuntimeException e) {
+            entry.pages().remove(pageKey, loading);
+            loading.result().completeExceptionally(e);
+            return;
+        } finally {
+            shared.record(loading.callers().get());
+        }
+        if (entry.pages().size() > maxPagesPerVehicle) {
+            vehicles.remove(vehicleId, entry);
+        }
+        evictIfFull(vehicleId);
+    }
+
+    private void evictIfFull(String keep) {
+        Iterator<String> iterator = vehicles.keySet().iterator();
+        while (vehicles.size() > maxVehicles && iterator.hasNext()) {
+            if (!iterator.next().equals(keep)) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package tdr.solutions.changes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A position in the change feed: the last {@link OutboxPosition} consumed from each shard.
+ *
+ * <p>Consumers see the offset as an opaque, URL-safe token. Shards missing from an offset are read
+ * from their oldest event still in the outbox.</p>
+ *
+ * @param positions the position per sub-shard name
+ */
+public record ChangeOffset(Map<String, OutboxPosition> positions) {
+
+    /** The offset of a consumer reading the feed from the beginning. */
+    public static final ChangeOffset START = new ChangeOffset(Map.of());
+
+    public ChangeOffset {
+        positions = Map.copyOf(positions);
+    }
+
+    /**
+     * Returns the position consumed from a shard.
+     *
+     * @param shard the sub-shard name
+     * @return the position, {@link OutboxPosition#START} if nothing was consumed from the shard
+     */
+    public OutboxPosition position(String shard) {
+        return positions.getOrDefault(shard, OutboxPosition.START);
+    }
+
+    /**
+     * Returns this offset advanced to a position of one shard.
+     *
+     * @param shard    the sub-shard name
+     * @param position the position consumed last from the shard
+     * @return the new offset
+     */
+    public ChangeOffset with(String shard, OutboxPosition position) {
+        Map<String, OutboxPosition> advanced = new TreeMap<>(positions);
+        advanced.put(shard, position);
+        return new ChangeOffset(advanced);
+    }
+
+    /**
+     * Encodes the offset as a token.
+     *
+     * @return the token
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder();
+        new TreeMap<>(positions).forEach((shard, position) -> text.append(text.isEmpty() ? "" : ",")
+                .append(shard).append(':').append(position.txId()).append('.').append(position.id()));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a token created by {@link #encode()}.
+     *
+     * @param token the token, may be {@code null} or empty for {@link #START}
+     * @return the offset
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static ChangeOffset parse(String token) {
+        if (token == null || token.isBlank()) {
+            return START;
+        }
+        String text = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+        Map<String, OutboxPosition> positions = new TreeMap<>();
+        for (String entry : text.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            int dot = entry.lastIndexOf('.');
+            if (colon <= 0 || dot < colon) {
+                throw new IllegalArgumentException("malformed offset " + token);
+            }
+            positions.put(entry.substring(0, colon), new OutboxPosition(
+                    Long.parseLong(entry.substring(colon + 1, dot)), Long.parseLong(entry.substring(dot + 1))));
+        }
+        return new ChangeOffset(positions);
+    }
+}
@@ -0,0 +1,24 @@
+package tdr.solutions.changes;
+
+import java.util.Comparator;
+
+/**
+ * The position of an event in the {@code trip_event_outbox} table of one shard, ordered by the
+ * inserting transaction and then by ID.
+ *
+ * @param txId the ID of the transaction that inserted the event
+ * @param id   the ID of the event
+ */
+public record OutboxPosition(long txId, long id) implements Comparable<OutboxPosition> {
+
+    /** The position before the first event of a shard. */
+    public static final OutboxPosition START = new OutboxPosition(0, 0);
+
+    private static final Comparator<OutboxPosition> ORDER = Comparator.comparingLong(OutboxPosition::txId)
+            .thenComparingLong(OutboxPosition::id);
+
+    @Override
+    public int compareTo(OutboxPosition other) {
+        return ORDER.compare(this, other);
+    }
+}
@@ -0,0 +1,362 @@
+package tdr.solutions.changes;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import tdr.solutions.model.TripChange;
+import tdr.solutions.model.TripChangePage;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays the trips created in the shards to the consumers of the change feed.
+ *
+ * <p>{@code TdrService} writes an event into the {@code trip_event_outbox} table of a shard in the
+ * transaction that creates the trip. The relay polls the outbox of every sub-shard every
+ * {@code tdr.changes.poll-interval} with keyset scans of {@code tdr.changes.batch-size} events and
+ * keeps the most recent {@code tdr.changes.buffer-size} events of each sub-shard in memory, so that
+ * consumers that keep up are served without any query. Consumers that fall behind the buffer are
+ * served by keyset scans of the outbox, never by queries of {@code trip_detail_record}.</p>
+ *
+ * <p>Events are read in the order of their {@link OutboxPosition}. On PostgreSQL only events of
+ * transactions older than every transaction still running are read, so a transaction committing
+ * late can never end up behind a position that was already delivered. Other databases (such as the
+ * in-memory test databases) are read in ID order. Events older than {@code tdr.changes.retention}
+ * are removed from the outbox.</p>
+ */
+@Service
+public class TripEventRelay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TripEventRelay.class);
+
+    private static final String NEXT_SQL = """
+            SELECT tx_id, id, session_id, vehicle_id, start_time, end_time, total_cost, created_at
+            FROM trip_event_outbox
+            WHERE (tx_id, id) > (?, ?) AND tx_id < %s
+            ORDER BY tx_id, id
+            LIMIT ?""";
+    private static final String HEAD_SQL = """
+            SELECT tx_id, id FROM trip_event_outbox
+            WHERE tx_id < %s
+            ORDER BY tx_id DESC, id DESC
+            LIMIT 1""";
+    private static final String PRUNE_SQL = "DELETE FROM trip_event_outbox WHERE created_at < ?";
+    private static final String POSTGRESQL_HORIZON = "pg_snapshot_xmin(pg_current_snapshot())::text::bigint";
+    private static final String NO_HORIZON = String.valueOf(Long.MAX_VALUE);
+
+    private static final RowMapper<OutboxEvent> EVENT_MAPPER = (resultSet, rowNum) -> new OutboxEvent(
+            new OutboxPosition(resultSet.getLong(1), resultSet.getLong(2)),
+            resultSet.getTimestamp(8).toLocalDateTime(),
+            new TripDetailRecord(resultSet.getString(3), resultSet.getString(4),
+                    resultSet.getTimestamp(5).toLocalDateTime(), resultSet.getTimestamp(6).toLocalDateTime(),
+                    resultSet.getDouble(7)));
+
+    /**
+     * An event read from the outbox of a shard.
+     *
+     * @param position  the position of the event in the outbox
+     * @param createdAt when the trip was created
+     * @param trip      the created trip
+     */
+    record OutboxEvent(OutboxPosition position, LocalDateTime createdAt, TripDetailRecord trip) {
+    }
+
+    private final TdrShardingService tdrShardingService;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Duration pollInterval;
+    private final int batchSize;
+    private final int bufferSize;
+    private final Period retention;
+    private final Duration pruneInterval;
+
+    private final Map<String, ShardFeed> feeds = new ConcurrentHashMap<>();
+    private volatile CompletableFuture<Void> relayed = new CompletableFuture<>();
+    private volatile boolean running;
+    private long nextPrune;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor for {@code TripEventRelay}.
+     *
+     * @param tdrShardingService the sharding service providing the shard databases
+     * @param meterRegistry      the registry the relay metrics are published to
+     * @param enabled            whether to relay events at all
+     * @param pollInterval       the delay between two polls of the outboxes
+     * @param batchSize          the number of events read from an outbox per query at most
+     * @param bufferSize         the number of recent events kept in memory per sub-shard
+     * @param retention          how long events are kept in the outboxes
+     * @param pruneInterval      the delay between two removals of expired events
+     */
+    public TripEventRelay(TdrShardingService tdrShardingService, MeterRegistry meterRegistry,
+                          @Value("${tdr.changes.enabled:true}") boolean enabled,
+                          @Value("${tdr.changes.poll-interval:PT0.2S}") Duration pollInterval,
+                          @Value("${tdr.changes.batch-size:500}") int batchSize,
+                          @Value("${tdr.changes.buffer-size:10000}") int bufferSize,
+                          @Value("${tdr.changes.retention:P7D}") Period retention,
+                          @Value("${tdr.changes.prune-interval:PT1H}") Duration pruneInterval) {
+        this.tdrShardingService = tdrShardingService;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.pollInterval = pollInterval;
+        this.batchSize = batchSize;
+        this.bufferSize = bufferSize;
+        this.retention = retention;
+        this.pruneInterval = pruneInterval;
+    }
+
+    /**
+     * Starts polling the outboxes, if enabled.
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        nextPrune = System.nanoTime();
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("tdr-changes-relay").factory());
+        scheduler.scheduleWithFixedDelay(this::poll, 0, pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling and releases the consumers waiting for changes.
+     */
+    @PreDestroy
+    public void close() {
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        relayed.complete(null);
+    }
+
+    /**
+     * Returns whether the relay is polling the outboxes.
+     *
+     * @return {@code true} until the relay is closed, {@code false} if it is disabled
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Reads the next events of every sub-shard into the buffers and wakes up the waiting consumers if
+     * there were any. Sub-shards of years initialized in the background join once registered.
+     */
+    void poll() {
+        boolean any = false;
+        for (Shard shard : tdrShardingService.getShards()) {
+            try {
+                any |= feeds.computeIfAbsent(shard.name(), name -> new ShardFeed(shard)).poll();
+            } catch (DataAccessException e) {
+                LOGGER.warn("Cannot read the outbox of shard {}: {}", shard.name(), e.getMessage());
+            }
+        }
+        if (any) {
+            CompletableFuture<Void> waiting = relayed;
+            relayed = new CompletableFuture<>();
+            waiting.complete(null);
+        }
+        if (System.nanoTime() - nextPrune >= 0) {
+            nextPrune = System.nanoTime() + pruneInterval.toNanos();
+            prune(LocalDateTime.now().minus(retention));
+        }
+    }
+
+    /**
+     * Removes the events created before the cutoff from the outbox of every sub-shard. Offsets
+     * pointing at removed events stay valid; the feed continues with the next retained event.
+     *
+     * @param cutoff the creation time before which events are removed
+     */
+    void prune(LocalDateTime cutoff) {
+        for (Shard shard : tdrShardingService.getShards()) {
+            try {
+                int removed = new JdbcTemplate(shard.dataSource()).update(PRUNE_SQL, Timestamp.valueOf(cutoff));
+                if (removed > 0) {
+                    LOGGER.info("Removed {} expired events from the outbox of shard {}", removed, shard.name());
+                }
+            } catch (DataAccessException e) {
+                LOGGER.warn("Cannot prune the outbox of shard {}: {}", shard.name(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the changes following an offset, waiting for new ones if there are none yet.
+     *
+     * @param after the offset to continue from
+     * @param limit the number of changes returned at most
+     * @param wait  how long to wait for changes at most
+     * @return the changes and the offset to continue from
+     */
+    public TripChangePage changes(ChangeOffset after, int limit, Duration wait) {
+        long deadline = System.nanoTime() + wait.toNanos();
+        while (true) {
+            // Captured before reading, so that events relayed during the read wake us up immediately
+            CompletableFuture<Void> next = relayed;
+            TripChangePage page = read(after, limit);
+            long remaining = deadline - System.nanoTime();
+            if (!page.changes().isEmpty() || remaining <= 0 || !running) {
+                return page;
+            }
+            try {
+                next.get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return page;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return page;
+            }
+        }
+    }
+
+    /**
+     * Returns the changes following an offset. Per sub-shard, the changes are in outbox order; the
+     * sub-shards are merged by creation time.
+     *
+     * @param after the offset to continue from
+     * @param limit the number of changes returned at most
+     * @return the changes and the offset to continue from
+     */
+    TripChangePage read(ChangeOffset after, int limit) {
+        List<List<OutboxEvent>> perShard = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Shard shard : tdrShardingService.getShards()) {
+            ShardFeed feed = feeds.get(shard.name());
+            List<OutboxEvent> events = feed != null ? feed.after(after.position(shard.name()), limit)
+                    : next(shard, after.position(shard.name()), limit);
+            if (!events.isEmpty()) {
+                perShard.add(events);
+                names.add(shard.name());
+            }
+        }
+        List<TripChange> changes = new ArrayList<>(Math.min(limit, perShard.stream().mapToInt(List::size).sum()));
+        int[] taken = new int[perShard.size()];
+        ChangeOffset offset = after;
+        while (changes.size() < limit) {
+            int earliest = -1;
+            for (int i = 0; i < perShard.size(); i++) {
+                if (taken[i] < perShard.get(i).size() && (earliest < 0 || perShard.get(i).get(taken[i]).createdAt()
+                        .isBefore(perShard.get(earliest).get(taken[earliest]).createdAt()))) {
+                    earliest = i;
+                }
+            }
+            if (earliest < 0) {
+                break;
+            }
+            OutboxEvent event = perShard.get(earliest).get(taken[earliest]++);
+            offset = offset.with(names.get(earliest), event.position());
+            changes.add(new TripChange(offset.encode(), names.get(earliest), event.createdAt(), event.trip()));
+        }
+        return new TripChangePage(changes, offset.encode());
+    }
+
+    private List<OutboxEvent> next(Shard shard, OutboxPosition after, int limit) {
+        return new JdbcTemplate(shard.dataSource()).query(NEXT_SQL.formatted(horizon(shard)), EVENT_MAPPER,
+                after.txId(), after.id(), limit);
+    }
+
+    private static String horizon(Shard shard) {
+        return shard.dataSource() instanceof HikariDataSource dataSource
+                && dataSource.getJdbcUrl().startsWith("jdbc:postgresql:") ? POSTGRESQL_HORIZON : NO_HORIZON;
+    }
+
+    /**
+     * The relayed events of one sub-shard.
+     *
+     * <p>The buffer holds every event after {@code bufferedAfter} up to the last one read, trimmed to
+     * the {@code bufferSize} most recent ones. Its size is counted apart, since the size of a skip list
+     * is only known by walking it. It starts empty at the outbox head, so the relay
+     * never reads events that were relayed before it started.</p>
+     */
+    private final class ShardFeed {
+
+        private final Shard shard;
+        private final ConcurrentSkipListMap<OutboxPosition, OutboxEvent> buffer = new ConcurrentSkipListMap<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private volatile OutboxPosition bufferedAfter;
+        private OutboxPosition head;
+
+        ShardFeed(Shard shard) {
+            this.shard = shard;
+            List<OutboxPosition> last = new JdbcTemplate(shard.dataSource()).query(HEAD_SQL.formatted(horizon(shard)),
+                    (resultSet, rowNum) -> new OutboxPosition(resultSet.getLong(1), resultSet.getLong(2)));
+            head = last.isEmpty() ? OutboxPosition.START : last.getFirst();
+            bufferedAfter = head;
+        }
+
+        /**
+         * Reads the events following the last one read into the buffer.
+         *
+         * @return whether there were new events
+         */
+        boolean poll() {
+            int read = 0;
+            List<OutboxEvent> events;
+            do {
+                events = next(shard, head, batchSize);
+                for (OutboxEvent event : events) {
+                    if (buffer.put(event.position(), event) == null) {
+                        buffered.incrementAndGet();
+                    }
+                }
+                if (!events.isEmpty()) {
+                    head = events.getLast().position();
+                    read += events.size();
+                }
+                while (buffered.get() > bufferSize) {
+                    bufferedAfter = buffer.pollFirstEntry().getKey();
+                    buffered.decrementAndGet();
+                }
+            } while (events.size() == batchSize && running);
+            if (read > 0) {
+                meterRegistry.counter("tdr.changes.relayed", "shard", shard.name()).increment(read);
+            }
+            return read > 0;
+        }
+
+        /**
+         * Returns the events following a position, from the buffer if it still holds them.
+         */
+        List<OutboxEvent> after(OutboxPosition position, int limit) {
+            if (position.compareTo(bufferedAfter) >= 0) {
+                Collection<OutboxEvent> buffered = buffer.tailMap(position, false).values();
+                List<OutboxEvent> events = buffered.stream().limit(limit).toList();
+                // The buffer may have been trimmed past the position while reading it
+                if (position.compareTo(bufferedAfter) >= 0) {
+                    return events;
+                }
+            }
+            return next(shard, position, limit);
+        }
+    }
+}
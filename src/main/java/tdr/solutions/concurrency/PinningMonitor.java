@@ -0,0 +1,120 @@
+package tdr.solutions.concurrency;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Reports virtual threads that block while pinned to their carrier thread.
+ *
+ * <p>A virtual thread that blocks inside a {@code synchronized} block or a native frame cannot unmount,
+ * so it holds one of the few carrier threads for as long as it blocks; enough of them stall every
+ * other virtual thread. The JDK records such waits as {@code jdk.VirtualThreadPinned} events, which
+ * this monitor streams from a JFR recording. Each event longer than {@code tdr.pinning.threshold} is
+ * counted in {@code tdr.virtual-threads.pinned}, tagged by the first application frame that blocked.
+ * The first event of each such site is logged with its stack trace.</p>
+ */
+@Component
+public class PinningMonitor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PinningMonitor.class);
+
+    static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final List<String> PLATFORM_PACKAGES = List.of("java.", "javax.", "jdk.", "sun.", "com.sun.");
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Duration threshold;
+    private final Set<String> reportedSites = ConcurrentHashMap.newKeySet();
+    private RecordingStream recordingStream;
+
+    /**
+     * Constructor for {@code PinningMonitor}.
+     *
+     * @param meterRegistry the registry the pinning events are published to
+     * @param enabled       whether pinning events are recorded
+     * @param threshold     how long a virtual thread must be pinned for the event to be reported
+     */
+    public PinningMonitor(MeterRegistry meterRegistry,
+                          @Value("${tdr.pinning.enabled:true}") boolean enabled,
+                          @Value("${tdr.pinning.threshold:PT0.02S}") Duration threshold) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Starts streaming the pinning events of this JVM.
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        recordingStream = new RecordingStream();
+        recordingStream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        recordingStream.onEvent(PINNED_EVENT, this::onPinned);
+        recordingStream.startAsync();
+        LOGGER.info("Reporting virtual threads pinned for longer than {}", threshold);
+    }
+
+    /**
+     * Stops streaming the pinning events.
+     */
+    @PreDestroy
+    public void stop() {
+        if (recordingStream != null) {
+            recordingStream.close();
+        }
+    }
+
+    private void onPinned(RecordedEvent event) {
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        List<RecordedFrame> frames = stackTrace == null ? List.of() : stackTrace.getFrames();
+        String site = applicationSite(frames);
+        Timer.builder("tdr.virtual-threads.pinned")
+                .description("Time virtual threads blocked while pinned to their carrier thread")
+                .tag("site", site)
+                .register(meterRegistry)
+                .record(event.getDuration());
+        if (reportedSites.add(site)) {
+            LOGGER.warn("Virtual thread pinned for {} at {}:\n\t{}", event.getDuration(), site, frames.stream()
+                    .map(PinningMonitor::describe)
+                    .collect(Collectors.joining("\n\t")));
+        } else {
+            LOGGER.debug("Virtual thread pinned for {} at {}", event.getDuration(), site);
+        }
+    }
+
+    /**
+     * @return the first frame outside the JDK, which is the code to fix, or {@code unknown}
+     */
+    static String applicationSite(List<RecordedFrame> frames) {
+        for (RecordedFrame frame : frames) {
+            String type = frame.getMethod().getType().getName();
+            if (PLATFORM_PACKAGES.stream().noneMatch(type::startsWith)) {
+                return type + "." + frame.getMethod().getName();
+            }
+        }
+        return "unknown";
+    }
+
+    private static String describe(RecordedFrame frame) {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+}
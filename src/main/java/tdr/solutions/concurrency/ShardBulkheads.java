@@ -0,0 +1,329 @@
+package tdr.solutions.concurrency;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.stereotype.Component;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulkheads limiting the concurrent repository calls of each shard to the size of its connection pool.
+ *
+ * <p>With virtual threads, any number of requests can reach a shard at once. Beyond the pool size
+ * they would all queue inside the connection pool, where waiting is neither bounded nor visible.
+ * A fair {@link Semaphore} per shard makes them queue before the pool instead: waiting on it parks
+ * a virtual thread without pinning its carrier, the wait is bounded by {@code tdr.bulkhead.max-wait},
+ * and the time spent queueing ({@code tdr.shard.queue}) is measured apart from the time spent in the
+ * query ({@code tdr.shard.query}). {@code tdr.shard.waiting} is the number of callers queueing.</p>
+ *
+ * <p>On top of that, a charge point operator may hold at most {@code tdr.tenants.pool-share} of the
+ * permits of a shard at once (see {@link #forTenant(Shard, String)}), so that one operator's backfill
+ * leaves connections to the others. Its calls queue for its share first, measured by {@code shard}
+ * and {@code tenant} as {@code tdr.tenant.queue}, {@code tdr.tenant.query} and
+ * {@code tdr.tenant.waiting}.</p>
+ *
+ * <p>Queries that do not go through a repository, such as those of the reactive read path, hold the
+ * same permits with {@link #acquire(Shard, String, String)}, so they count against the shard and the operator's
+ * share like repository calls do.</p>
+ *
+ * <p>The bulkhead of a shard is kept by its name, so re-registering a shard reuses its permits.</p>
+ */
+@Component
+public class ShardBulkheads {
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Duration maxWait;
+    private final int defaultPermits;
+    private final double tenantPoolShare;
+    private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final Map<List<String>, TenantBulkhead> tenantBulkheads = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for {@code ShardBulkheads}.
+     *
+     * @param meterRegistry   the registry the queueing and query times are published to
+     * @param enabled         whether repository calls are limited at all
+     * @param maxWait         how long a call waits for a permit at most
+     * @param defaultPermits  the permits of a shard whose data source is not a Hikari pool
+     * @param tenantPoolShare the share of a shard's permits one operator may hold at once
+     */
+    public ShardBulkheads(MeterRegistry meterRegistry,
+                          @Value("${tdr.bulkhead.enabled:true}") boolean enabled,
+                          @Value("${tdr.bulkhead.max-wait:PT10S}") Duration maxWait,
+                          @Value("${tdr.bulkhead.default-permits:10}") int defaultPermits,
+                          @Value("${tdr.tenants.pool-share:0.5}") double tenantPoolShare) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.maxWait = maxWait;
+        this.defaultPermits = defaultPermits;
+        this.tenantPoolShare = tenantPoolShare;
+    }
+
+    /**
+     * Puts the repository of a shard behind the bulkhead of the shard.
+     *
+     * @param shard the shard
+     * @return the shard with a repository limited to as many concurrent calls as its pool has
+     * connections, or the shard itself if bulkheads are disabled or it is guarded already
+     */
+    public Shard guard(Shard shard) {
+        if (!enabled || shard.repository() == null || isGuarded(shard.repository())) {
+            return shard;
+        }
+        return new Shard(shard.year(), shard.name(), proxy(shard.repository(), bulkheadOf(shard)), shard.dataSource());
+    }
+
+    /**
+     * Puts the repository of a shard behind the share of its connections an operator may hold, so that
+     * one operator cannot take all connections of a shard it shares with others.
+     *
+     * @param shard    the shard, usually guarded by {@link #guard(Shard)} already
+     * @param operator the charge point operator calling the repository, or {@code null} for calls made
+     *                 by the service itself
+     * @return the repository limited to {@code tdr.tenants.pool-share} of the pool's connections, or the
+     * repository of the shard itself if bulkheads are disabled or there is no operator
+     */
+    public TripDetailRecordRepository forTenant(Shard shard, String operator) {
+        if (!enabled || operator == null || shard.repository() == null) {
+            return shard.repository();
+        }
+        return tenantBulkheadOf(shard, operator).guard(shard.repository());
+    }
+
+    /**
+     * Takes a permit of a shard, and of the operator's share of it, for a query made without the
+     * repository of the shard. The permits are held until the returned {@link Permit} is closed.
+     * Waiting for them parks the calling thread, so it must not be an event loop thread.
+     *
+     * @param shard    the shard
+     * @param operator the charge point operator making the query, or {@code null} for queries made by
+     *                 the service itself
+     * @param query    the name the query time is published under, as the {@code method} tag
+     * @return the permit to close once the query completed
+     * @throws TransientDataAccessResourceException if no permit was free within {@code tdr.bulkhead.max-wait}
+     */
+    public Permit acquire(Shard shard, String operator, String query) {
+        if (!enabled) {
+            return () -> {
+            };
+        }
+        Bulkhead bulkhead = bulkheadOf(shard);
+        Bulkhead share = operator == null ? null : tenantBulkheadOf(shard, operator).bulkhead;
+        long shareAdmitted = share == null ? 0 : share.acquire();
+        long admitted;
+        try {
+            admitted = bulkhead.acquire();
+        } catch (RuntimeException e) {
+            if (share != null) {
+                share.release(query, shareAdmitted);
+            }
+            throw e;
+        }
+        AtomicBoolean open = new AtomicBoolean(true);
+        return () -> {
+            if (open.getAndSet(false)) {
+                bulkhead.release(query, admitted);
+                if (share != null) {
+                    share.release(query, shareAdmitted);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param name the name of a shard
+     * @return the number of permits of the shard, or {@code 0} if it has no bulkhead
+     */
+    public int getPermits(String name) {
+        Bulkhead bulkhead = bulkheads.get(name);
+        return bulkhead == null ? 0 : bulkhead.permits;
+    }
+
+    /**
+     * @param name     the name of a shard
+     * @param operator a charge point operator
+     * @return the number of permits of the operator in the shard, or {@code 0} if it has no share yet
+     */
+    public int getPermits(String name, String operator) {
+        TenantBulkhead tenantBulkhead = tenantBulkheads.get(List.of(name, operator));
+        return tenantBulkhead == null ? 0 : tenantBulkhead.bulkhead.permits;
+    }
+
+    private Bulkhead bulkheadOf(Shard shard) {
+        return bulkheads.computeIfAbsent(shard.name(), name -> new Bulkhead("shard " + name, "tdr.shard",
+                Tags.of("shard", name), permits(shard.dataSource())));
+    }
+
+    private TenantBulkhead tenantBulkheadOf(Shard shard, String operator) {
+        return tenantBulkheads.computeIfAbsent(List.of(shard.name(), operator),
+                key -> new TenantBulkhead(new Bulkhead("share of operator " + operator + " in shard " + shard.name(),
+                        "tdr.tenant", Tags.of("shard", shard.name(), "tenant", operator),
+                        Math.max(1, (int) Math.ceil(permits(shard.dataSource()) * tenantPoolShare)))));
+    }
+
+    private int permits(DataSource dataSource) {
+        return dataSource instanceof HikariDataSource hikari ? hikari.getMaximumPoolSize() : defaultPermits;
+    }
+
+    private static TripDetailRecordRepository proxy(TripDetailRecordRepository repository, Bulkhead bulkhead) {
+        return (TripDetailRecordRepository) Proxy.newProxyInstance(TripDetailRecordRepository.class.getClassLoader(),
+                new Class<?>[]{TripDetailRecordRepository.class}, new Guard(repository, bulkhead));
+    }
+
+    private static boolean isGuarded(Object repository) {
+        return Proxy.isProxyClass(repository.getClass()) && Proxy.getInvocationHandler(repository) instanceof Guard;
+    }
+
+    private final class Bulkhead {
+
+        private final String label;
+        private final String meterPrefix;
+        private final Tags tags;
+        private final int permits;
+        private final Semaphore semaphore;
+        private final Timer queueTimer;
+        private final Map<String, Timer> queryTimers = new ConcurrentHashMap<>();
+
+        /**
+         * @param label       what the permits are of, for error messages
+         * @param meterPrefix the prefix of the queueing, query and waiting meters
+         * @param tags        the tags of the meters
+         * @param permits     the number of concurrent calls
+         */
+        Bulkhead(String label, String meterPrefix, Tags tags, int permits) {
+            this.label = label;
+            this.meterPrefix = meterPrefix;
+            this.tags = tags;
+            this.permits = permits;
+            this.semaphore = new Semaphore(permits, true);
+            this.queueTimer = Timer.builder(meterPrefix + ".queue")
+                    .description("Time repository calls wait for a connection permit")
+                    .tags(tags)
+                    .register(meterRegistry);
+            Gauge.builder(meterPrefix + ".waiting", semaphore, Semaphore::getQueueLength)
+                    .description("Repository calls waiting for a connection permit")
+                    .tags(tags)
+                    .register(meterRegistry);
+        }
+
+        Object call(Object repository, Method method, Object[] args) throws Throwable {
+            long admitted = acquire();
+            try {
+                return method.invoke(repository, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                release(method.getName(), admitted);
+            }
+        }
+
+        /**
+         * Waits for a permit.
+         *
+         * @return the {@link System#nanoTime()} the permit was taken at
+         */
+        long acquire() {
+            long started = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = semaphore.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransientDataAccessResourceException("Interrupted while waiting for the " + label, e);
+            }
+            long admitted = System.nanoTime();
+            queueTimer.record(admitted - started, TimeUnit.NANOSECONDS);
+            if (!acquired) {
+                throw new TransientDataAccessResourceException("The " + label + " is saturated: no connection permit within " + maxWait);
+            }
+            return admitted;
+        }
+
+        /**
+         * Returns a permit taken by {@link #acquire()}.
+         *
+         * @param method   the name of the call that held the permit
+         * @param admitted the time the permit was taken at
+         */
+        void release(String method, long admitted) {
+            semaphore.release();
+            queryTimers.computeIfAbsent(method, name -> Timer.builder(meterPrefix + ".query")
+                            .description("Time repository calls spend holding a connection permit")
+                            .tags(tags)
+                            .tag("method", name)
+                            .register(meterRegistry))
+                    .record(System.nanoTime() - admitted, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The share of a shard's connections one operator may hold, with the repository last put behind it.
+     * The repository changes when the shard is registered again.
+     */
+    private static final class TenantBulkhead {
+
+        private record Guarded(TripDetailRecordRepository repository, TripDetailRecordRepository proxy) {
+        }
+
+        private final Bulkhead bulkhead;
+        private volatile Guarded guarded;
+
+        TenantBulkhead(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        TripDetailRecordRepository guard(TripDetailRecordRepository repository) {
+            Guarded current = guarded;
+            if (current == null || current.repository() != repository) {
+                current = new Guarded(repository, proxy(repository, bulkhead));
+                guarded = current;
+            }
+            return current.proxy();
+        }
+    }
+
+    /**
+     * Permits taken by {@link #acquire(Shard, String, String)}, returned when closed. Closing it again
+     * has no effect.
+     */
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    private record Guard(TripDetailRecordRepository repository, Bulkhead bulkhead) implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> "Bulkhead of the " + bulkhead.label + " for " + repository;
+                };
+            }
+            return bulkhead.call(repository, method, args);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package tdr.solutions.config;
+
+/**
+ * An API key accepted by the service, as loaded from an {@link ApiKeyStore}.
+ *
+ * <p>Only the SHA-256 digest of the key is stored. API keys are long random strings rather than
+ * passwords, so an unsalted digest is enough to keep the store useless to whoever reads it. A limit
+ * of {@code 0} stands for the default limit configured with {@code tdr.security.default-*}.</p>
+ *
+ * <p>Every key belongs to a charge point operator. The operator decides where the trips sent with the
+ * key are stored and which connection budget they use, see
+ * {@link tdr.solutions.service.TdrShardingService}.</p>
+ *
+ * @param id                    the name of the key, used in logs and metrics instead of the key
+ * @param sha256                the SHA-256 digest of the key, hex encoded
+ * @param requestsPerSecond     the sustained number of requests per second allowed with the key
+ * @param burst                 the number of requests allowed at once on top of the sustained rate
+ * @param maxConcurrentRequests the number of requests with the key processed at the same time at most
+ * @param operator              the charge point operator the key belongs to
+ */
+public record ApiKey(String id, String sha256, double requestsPerSecond, int burst, int maxConcurrentRequests,
+                     String operator) {
+}
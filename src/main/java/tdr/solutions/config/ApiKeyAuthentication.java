@@ -1,36 +1,79 @@
 package tdr.solutions.config;
 
 import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
 import java.util.Collection;
 
 /**
  * Custom authentication token for API key-based authentication.
  *
  * <p>This class extends {@link AbstractAuthenticationToken} to provide a custom implementation
- * that handles authentication using an API key. It stores the API key as the principal
- * and manages the authentication state.</p>
+ * that handles authentication using an API key. It stores the ID of the API key as the
+ * principal, so that the key itself is not kept around, and manages the authentication state.
+ * It also carries the charge point operator of the key, which the services read with
+ * {@link #currentOperator()}.</p>
  *
  * <p>This token is marked as authenticated immediately upon creation, assuming that the
  * presence of the API key and granted authorities is sufficient to authenticate the request.</p>
  */
 public class ApiKeyAuthentication extends AbstractAuthenticationToken {
 
-    /** The API key used for authentication. */
-    private final String apiKey;
+    /** The ID of the API key used for authentication, see {@link ApiKey#id()}. */
+    private final String keyId;
+
+    /** The charge point operator of the API key, see {@link ApiKey#operator()}. */
+    private final String operator;
 
     /**
-     * Constructs a new {@code ApiKeyAuthentication} token with the provided API key and authorities.
+     * Constructs a new {@code ApiKeyAuthentication} token with the provided API key ID and authorities.
      *
-     * @param apiKey the API key used for authentication
+     * @param keyId the ID of the API key used for authentication
+     * @param operator the charge point operator of the API key
      * @param authorities the collection of granted authorities for this token
      */
-    public ApiKeyAuthentication(String apiKey, Collection<? extends GrantedAuthority> authorities) {
+    public ApiKeyAuthentication(String keyId, String operator, Collection<? extends GrantedAuthority> authorities) {
         super(authorities);
-        this.apiKey = apiKey;
+        this.keyId = keyId;
+        this.operator = operator;
         setAuthenticated(true);  // Marks the token as authenticated
     }
 
+    /**
+     * Returns the charge point operator of the API key.
+     *
+     * @return the operator
+     */
+    public String getOperator() {
+        return operator;
+    }
+
+    /**
+     * Returns the charge point operator of the request processed by the current thread.
+     *
+     * <p>The security context is bound to the request thread, so callers that fan out to other threads
+     * have to read the operator before and pass it on.</p>
+     *
+     * @return the operator, or {@code null} outside of a request authenticated with an API key, e.g.
+     * during warm-up
+     */
+    public static String currentOperator() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return authentication instanceof ApiKeyAuthentication apiKey ? apiKey.operator : null;
+    }
+
+    /**
+     * Returns the ID of the API key of the request processed by the current thread, see
+     * {@link #currentOperator()}.
+     *
+     * @return the key ID, or {@code null} outside of a request authenticated with an API key
+     */
+    public static String currentKeyId() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return authentication instanceof ApiKeyAuthentication apiKey ? apiKey.keyId : null;
+    }
+
     /**
      * Returns the credentials for this authentication, which in this case is always {@code null}.
      *
@@ -46,12 +89,12 @@ public class ApiKeyAuthentication extends AbstractAuthenticationToken {
     }
 
     /**
-     * Returns the principal for this authentication, which is the API key.
+     * Returns the principal for this authentication, which is the ID of the API key.
      *
-     * @return the API key associated with this authentication token
+     * @return the ID of the API key associated with this authentication token
      */
     @Override
     public Object getPrincipal() {
-        return apiKey;
+        return keyId;
     }
 }
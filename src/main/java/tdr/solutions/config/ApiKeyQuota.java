@@ -0,0 +1,115 @@
+package tdr.solutions.config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rate limit and concurrency quota of one API key, enforced without locks.
+ *
+ * <p>The rate limit is a token bucket refilled with {@code requestsPerSecond} tokens per second and
+ * holding {@code burst} tokens at most. It is kept as the single time at which the bucket will be
+ * full again (the generic cell rate algorithm), so taking a token is one compare-and-set. The
+ * concurrency quota is a counter of the requests in progress.</p>
+ */
+public final class ApiKeyQuota {
+
+    private final String keyId;
+    private final String operator;
+    private final long emissionIntervalNanos;
+    private final long capacityNanos;
+    private final int maxConcurrentRequests;
+    private final AtomicLong fullAt;
+    private final AtomicInteger inProgress = new AtomicInteger();
+
+    /**
+     * Constructor for {@code ApiKeyQuota}.
+     *
+     * @param keyId                 the ID of the key
+     * @param operator              the charge point operator of the key
+     * @param requestsPerSecond     the rate at which tokens are refilled
+     * @param burst                 the number of tokens the bucket holds at most
+     * @param maxConcurrentRequests the number of requests in progress at most
+     * @param nanoTime              the current {@link System#nanoTime()}; the bucket starts full
+     */
+    ApiKeyQuota(String keyId, String operator, double requestsPerSecond, int burst, int maxConcurrentRequests,
+                long nanoTime) {
+        this.keyId = keyId;
+        this.operator = operator;
+        this.emissionIntervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+        this.capacityNanos = emissionIntervalNanos * Math.max(1, burst);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.fullAt = new AtomicLong(nanoTime);
+    }
+
+    /**
+     * Returns the ID of the key.
+     *
+     * @return the ID
+     */
+    public String keyId() {
+        return keyId;
+    }
+
+    /**
+     * Returns the charge point operator of the key.
+     *
+     * @return the operator
+     */
+    public String operator() {
+        return operator;
+    }
+
+    /**
+     * Takes a token from the bucket if there is one.
+     *
+     * @param nanoTime the current {@link System#nanoTime()}
+     * @return {@code 0} if a token was taken, otherwise how many nanoseconds until the next token
+     */
+    long tryAcquireToken(long nanoTime) {
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - nanoTime > 0 ? current : nanoTime) + emissionIntervalNanos;
+            long excess = next - nanoTime - capacityNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Counts a request as in progress, unless the concurrency quota is exhausted.
+     *
+     * @return whether the request may proceed; it must call {@link #exit()} when done if so
+     */
+    boolean tryEnter() {
+        int current;
+        do {
+            current = inProgress.get();
+            if (current >= maxConcurrentRequests) {
+                return false;
+            }
+        } while (!inProgress.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Counts a request entered with {@link #tryEnter()} as done.
+     */
+    void exit() {
+        inProgress.decrementAndGet();
+    }
+
+    /**
+     * Returns whether this quota enforces the same limits as a key, so it can be kept when the keys
+     * are reloaded.
+     */
+    boolean hasLimitsOf(double requestsPerSecond, int burst, int maxConcurrentRequests) {
+        return emissionIntervalNanos == Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond))
+                && capacityNanos == emissionIntervalNanos * Math.max(1, burst)
+                && this.maxConcurrentRequests == maxConcurrentRequests;
+    }
+}
@@ -0,0 +1,20 @@
+package tdr.solutions.config;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of the API keys accepted by the service, reloaded periodically by the
+ * {@link AuthenticationService}. The default store reads a key file (see {@link ResourceApiKeyStore});
+ * a {@code @Primary} bean of this type replaces it, e.g. to load the keys from a database.
+ */
+public interface ApiKeyStore {
+
+    /**
+     * Loads all keys.
+     *
+     * @return the keys
+     * @throws IOException if the keys cannot be read; the keys loaded before stay in use
+     */
+    List<ApiKey> loadKeys() throws IOException;
+}
@@ -1,7 +1,12 @@
 package tdr.solutions.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.security.core.Authentication;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.filter.GenericFilterBean;
 import jakarta.servlet.FilterChain;
@@ -10,27 +15,50 @@ import jakarta.servlet.ServletRequest;
 import jakarta.servlet.ServletResponse;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import tdr.solutions.exception.ErrorMessage;
+
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A custom filter that processes authentication for incoming HTTP requests.
  *
  * <p>This filter extends {@link GenericFilterBean} and is responsible for extracting authentication
- * information from each request, setting the authentication context, and handling any authentication
- * exceptions.</p>
+ * information from each request, setting the authentication context, and enforcing the quota of the
+ * API key (see {@link ApiKeyQuota}).</p>
  *
- * <p>If authentication fails, the filter responds with a 401 Unauthorized status and a JSON message
- * containing the exception's message.</p>
+ * <p>A request that fails authentication is answered with 401 Unauthorized, a request over the rate
+ * limit or the concurrency quota of its key with 429 Too Many Requests and a {@code Retry-After}
+ * header. Either way the filter chain stops here, so rejected requests cause no work behind the
+ * filter. Rejections are counted as {@code tdr.api-keys.rejected} by {@code reason}.</p>
  */
 public class AuthenticationFilter extends GenericFilterBean {
 
+    private final AuthenticationService authenticationService;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Constructor for {@code AuthenticationFilter}.
+     *
+     * @param authenticationService the service validating the API keys
+     * @param objectMapper          the mapper the error responses are written with
+     * @param meterRegistry         the registry the rejections are counted in
+     */
+    public AuthenticationFilter(AuthenticationService authenticationService, ObjectMapper objectMapper,
+                                MeterRegistry meterRegistry) {
+        this.authenticationService = authenticationService;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+    }
+
     /**
      * Filters incoming requests to authenticate them.
      *
-     * <p>This method attempts to authenticate the request by invoking the {@link AuthenticationService#getAuthentication(HttpServletRequest)} method.
-     * If authentication is successful, it sets the authentication in the {@link SecurityContextHolder}.
-     * If authentication fails, it responds with a 401 Unauthorized status and an error message in JSON format.</p>
+     * <p>Requests for Swagger UI and the API documentation pass without a key. Any other request needs
+     * a valid key with a free token and a free concurrency slot; it is counted as in progress until the
+     * rest of the chain returns.</p>
      *
      * @param request the {@link ServletRequest} object containing the client's request
      * @param response the {@link ServletResponse} object containing the filter's response
@@ -41,22 +69,51 @@ public class AuthenticationFilter extends GenericFilterBean {
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
             throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+        if (path.startsWith("/swagger-ui/") || path.startsWith("/v3/api-docs")) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        ApiKeyQuota quota;
         try {
-            // Attempt to authenticate the request
-            Authentication authentication = AuthenticationService.getAuthentication((HttpServletRequest) request);
-            SecurityContextHolder.getContext().setAuthentication(authentication);
-        } catch (Exception exp) {
-            // Handle authentication failure
-            HttpServletResponse httpResponse = (HttpServletResponse) response;
-            httpResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-            httpResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
-            try (PrintWriter writer = httpResponse.getWriter()) {
-                writer.print(exp.getMessage());
-                writer.flush();
+            quota = authenticationService.authenticate(httpRequest.getHeader(AuthenticationService.AUTH_TOKEN_HEADER_NAME));
+        } catch (BadCredentialsException e) {
+            reject(httpRequest, httpResponse, HttpStatus.UNAUTHORIZED, "unauthorized", e.getMessage(), 0);
+            return;
+        }
+        if (!quota.tryEnter()) {
+            reject(httpRequest, httpResponse, HttpStatus.TOO_MANY_REQUESTS, "concurrency",
+                    "Too many concurrent requests with this API Key", 1);
+            return;
+        }
+        try {
+            long retryAfterNanos = quota.tryAcquireToken(System.nanoTime());
+            if (retryAfterNanos > 0) {
+                reject(httpRequest, httpResponse, HttpStatus.TOO_MANY_REQUESTS, "rate",
+                        "Rate limit of this API Key exceeded", retryAfterNanos);
+                return;
             }
+            SecurityContextHolder.getContext().setAuthentication(
+                    new ApiKeyAuthentication(quota.keyId(), quota.operator(), AuthorityUtils.NO_AUTHORITIES));
+            filterChain.doFilter(request, response);
+        } finally {
+            quota.exit();
         }
+    }
 
-        // Continue processing the filter chain
-        filterChain.doFilter(request, response);
+    private void reject(HttpServletRequest request, HttpServletResponse response, HttpStatus status, String reason,
+                        String message, long retryAfterNanos) throws IOException {
+        meterRegistry.counter("tdr.api-keys.rejected", "reason", reason).increment();
+        response.setStatus(status.value());
+        if (retryAfterNanos > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER,
+                    String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1))));
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(),
+                new ErrorMessage(status.value(), new Date(), message, "uri=" + request.getRequestURI()));
     }
 }
@@ -1,54 +1,179 @@
 package tdr.solutions.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.BadCredentialsException;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.stereotype.Service;
 
-import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service class responsible for handling API key-based authentication.
  *
- * <p>This service extracts the API key from the incoming {@link HttpServletRequest}, validates it,
- * and returns an {@link Authentication} object if the key is valid. If the key is missing or invalid,
- * it throws a {@link BadCredentialsException}.</p>
+ * <p>The accepted keys come from the {@link ApiKeyStore} and are reloaded every
+ * {@code tdr.security.key-refresh-interval} in the background, so authenticating a request never
+ * waits for the store. The keys are held by the SHA-256 digest of the key: a presented key is
+ * digested, looked up by the first bytes of its digest and compared with the full stored digest in
+ * constant time.</p>
  *
- * <p>The service also includes special handling for requests to Swagger UI and API documentation endpoints,
- * allowing these requests to pass through with no authorities.</p>
+ * <p>Every key comes with an {@link ApiKeyQuota}, which survives reloads as long as the limits of the
+ * key stay the same.</p>
  */
+@Service
 public class AuthenticationService {
 
-    /** The name of the HTTP header that carries the API key. */
-    private static final String AUTH_TOKEN_HEADER_NAME = "X-API-KEY";
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthenticationService.class);
 
-    /** The valid API key that is expected for authentication. */
-    private static final String AUTH_TOKEN = "AMIR";
+    /** The name of the HTTP header that carries the API key. */
+    public static final String AUTH_TOKEN_HEADER_NAME = "X-API-KEY";
 
     /**
-     * Retrieves and validates the API key from the incoming request.
+     * An accepted key.
      *
-     * <p>If the request is for Swagger UI or API documentation, the method returns an unauthenticated
-     * {@link ApiKeyAuthentication} token. Otherwise, it validates the API key and returns an
-     * authenticated {@link ApiKeyAuthentication} token if the key is valid.</p>
+     * @param sha256 the SHA-256 digest of the key
+     * @param quota  the quota of the key
+     */
+    private record Entry(byte[] sha256, ApiKeyQuota quota) {
+    }
+
+    private final ApiKeyStore apiKeyStore;
+    private final Duration refreshInterval;
+    private final double defaultRequestsPerSecond;
+    private final int defaultBurst;
+    private final int defaultMaxConcurrentRequests;
+
+    private volatile Map<Long, Entry> keys = Map.of();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor for {@code AuthenticationService}.
      *
-     * @param request the HTTP request containing the API key in its headers
-     * @return an {@link Authentication} object representing the authenticated user
-     * @throws BadCredentialsException if the API key is missing or invalid
+     * @param apiKeyStore                  the store of the accepted keys
+     * @param meterRegistry                the registry the number of keys is published to
+     * @param refreshInterval              the delay between two reloads of the keys
+     * @param defaultRequestsPerSecond     the sustained request rate of keys without limits
+     * @param defaultBurst                 the burst of keys without limits
+     * @param defaultMaxConcurrentRequests the concurrency quota of keys without limits
      */
-    public static Authentication getAuthentication(HttpServletRequest request) {
-        String apiKey = request.getHeader(AUTH_TOKEN_HEADER_NAME);
+    public AuthenticationService(ApiKeyStore apiKeyStore, MeterRegistry meterRegistry,
+                                 @Value("${tdr.security.key-refresh-interval:PT1M}") Duration refreshInterval,
+                                 @Value("${tdr.security.default-requests-per-second:1000}") double defaultRequestsPerSecond,
+                                 @Value("${tdr.security.default-burst:2000}") int defaultBurst,
+                                 @Value("${tdr.security.default-max-concurrent-requests:200}") int defaultMaxConcurrentRequests) {
+        this.apiKeyStore = apiKeyStore;
+        this.refreshInterval = refreshInterval;
+        this.defaultRequestsPerSecond = defaultRequestsPerSecond;
+        this.defaultBurst = defaultBurst;
+        this.defaultMaxConcurrentRequests = defaultMaxConcurrentRequests;
+        meterRegistry.gauge("tdr.api-keys", this, service -> service.keys.size());
+    }
 
-        // Allow requests to Swagger UI and API docs to pass through without authentication
-        if (request.getRequestURL().toString().contains("swagger-ui") || request.getRequestURL().toString().contains("api-docs")) {
-            return new ApiKeyAuthentication(apiKey, AuthorityUtils.NO_AUTHORITIES);
+    /**
+     * Loads the keys and schedules their reloads. The application does not start without keys.
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            refresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load the API keys", e);
         }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("tdr-api-keys").factory());
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Cannot reload the API keys, keeping the {} loaded before", keys.size(), e);
+            }
+        }, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reloading the keys.
+     */
+    @PreDestroy
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
 
-        // Validate the API key
-        if (apiKey == null || !apiKey.equals(AUTH_TOKEN)) {
+    /**
+     * Reloads the keys from the store.
+     *
+     * @throws IOException if the store cannot be read
+     */
+    void refresh() throws IOException {
+        List<ApiKey> loaded = apiKeyStore.loadKeys();
+        Map<Long, Entry> previous = keys;
+        Map<Long, Entry> refreshed = new HashMap<>(loaded.size() * 2);
+        long now = System.nanoTime();
+        for (ApiKey key : loaded) {
+            byte[] sha256 = HexFormat.of().parseHex(key.sha256());
+            double requestsPerSecond = key.requestsPerSecond() > 0 ? key.requestsPerSecond() : defaultRequestsPerSecond;
+            int burst = key.burst() > 0 ? key.burst() : defaultBurst;
+            int maxConcurrentRequests = key.maxConcurrentRequests() > 0 ? key.maxConcurrentRequests() : defaultMaxConcurrentRequests;
+            Entry kept = previous.get(prefix(sha256));
+            ApiKeyQuota quota = kept != null && MessageDigest.isEqual(kept.sha256(), sha256)
+                    && kept.quota().keyId().equals(key.id())
+                    && kept.quota().operator().equals(key.operator())
+                    && kept.quota().hasLimitsOf(requestsPerSecond, burst, maxConcurrentRequests)
+                    ? kept.quota() : new ApiKeyQuota(key.id(), key.operator(), requestsPerSecond, burst, maxConcurrentRequests, now);
+            if (refreshed.putIfAbsent(prefix(sha256), new Entry(sha256, quota)) != null) {
+                LOGGER.warn("Ignoring API key {}, its digest collides with another key", key.id());
+            }
+        }
+        if (refreshed.size() != previous.size()) {
+            LOGGER.info("Loaded {} API keys", refreshed.size());
+        }
+        keys = refreshed;
+    }
+
+    /**
+     * Validates an API key.
+     *
+     * @param apiKey the API key sent with the request, may be {@code null}
+     * @return the quota of the key
+     * @throws BadCredentialsException if the API key is missing or invalid
+     */
+    public ApiKeyQuota authenticate(String apiKey) {
+        if (apiKey == null) {
+            throw new BadCredentialsException("Invalid API Key");
+        }
+        byte[] sha256 = sha256(apiKey);
+        Entry entry = keys.get(prefix(sha256));
+        if (entry == null || !MessageDigest.isEqual(entry.sha256(), sha256)) {
             throw new BadCredentialsException("Invalid API Key");
         }
+        return entry.quota();
+    }
+
+    private static byte[] sha256(String apiKey) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
 
-        // Return an authenticated token if the API key is valid
-        return new ApiKeyAuthentication(apiKey, AuthorityUtils.NO_AUTHORITIES);
+    private static long prefix(byte[] sha256) {
+        return ByteBuffer.wrap(sha256).getLong();
     }
 }
@@ -0,0 +1,53 @@
+package tdr.solutions.config;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+/**
+ * Configuration of the binary encodings of the API.
+ *
+ * <p>Besides JSON, which stays the default, every endpoint reads and writes CBOR
+ * ({@code application/cbor}) and Smile ({@code application/x-jackson-smile}), chosen by the
+ * {@code Content-Type} and {@code Accept} headers. Both replace the converters Spring MVC would
+ * register for these types, so that they share the application's Jackson settings and send
+ * timestamps as epoch microseconds (see {@link EpochMicrosModule}).</p>
+ */
+@Configuration
+public class BinaryEncodingConfiguration {
+
+    /**
+     * Creates the CBOR message converter.
+     *
+     * @param builder a new builder carrying the application's Jackson settings
+     * @return the converter
+     */
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+        return new MappingJackson2CborHttpMessageConverter(builder.factory(new CBORFactory())
+                .modulesToInstall(new EpochMicrosModule())
+                .build());
+    }
+
+    /**
+     * Creates the Smile message converter. Repeated field names and short strings such as vehicle IDs
+     * are written once and back-referenced afterwards.
+     *
+     * @param builder a new builder carrying the application's Jackson settings
+     * @return the converter
+     */
+    @Bean
+    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+        SmileFactory factory = SmileFactory.builder()
+                .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+                .build();
+        return new MappingJackson2SmileHttpMessageConverter(builder.factory(factory)
+                .modulesToInstall(new EpochMicrosModule())
+                .build());
+    }
+}
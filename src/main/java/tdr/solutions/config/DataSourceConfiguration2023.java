@@ -12,6 +12,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.data.repository.config.BootstrapMode;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -35,6 +36,7 @@ import java.util.Objects;
 @EnableJpaRepositories(
         basePackages = "tdr.solutions.repository._2023",
         entityManagerFactoryRef = "tdr2023EntityManagerFactory",
+        bootstrapMode = BootstrapMode.LAZY,
         transactionManagerRef= "tdr2023TransactionManager"
 )
 public class DataSourceConfiguration2023 {
@@ -78,25 +80,33 @@ public class DataSourceConfiguration2023 {
     /**
      * Configures the 2023 tdr {@link LocalContainerEntityManagerFactoryBean} bean,
      * initializing Flyway for database migrations and setting the base package
-     * for JPA entities.
+     * for JPA entities. Both happen in the background if the shard is not initialized
+     * during startup, see {@link ShardStartup}.
      *
      * @param builder the {@link EntityManagerFactoryBuilder} used to create the entity manager factory
+     * @param shardStartup the decision whether the shard is migrated and bootstrapped now or in the background
      * @return the configured {@link LocalContainerEntityManagerFactoryBean} instance
      */
     @Primary
     @Bean(name = "tdr2023EntityManagerFactory")
-    public LocalContainerEntityManagerFactoryBean tdr2023EntityManagerFactory(EntityManagerFactoryBuilder builder) {
-        // Flyway migration
-        Flyway.configure()
+    public LocalContainerEntityManagerFactoryBean tdr2023EntityManagerFactory(
+            EntityManagerFactoryBuilder builder, ShardStartup shardStartup) {
+        Runnable migration = () -> Flyway.configure()
                 .dataSource(tdr2023DataSource())
                 .locations(environment.getProperty("spring.datasource.tdr2023.jpa.location"))
                 .load()
                 .migrate();
-
-        return builder
+        if (shardStartup.isEager(2023)) {
+            migration.run();
+        }
+        LocalContainerEntityManagerFactoryBean entityManagerFactory = builder
                 .dataSource(tdr2023DataSource())
                 .packages(TripDetailRecordEntity.class)
                 .build();
+        if (!shardStartup.isEager(2023)) {
+            entityManagerFactory.setBootstrapExecutor(shardStartup.bootstrapExecutor("tdr2023", migration));
+        }
+        return entityManagerFactory;
     }
 
     /**
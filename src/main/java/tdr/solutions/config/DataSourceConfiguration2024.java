@@ -11,6 +11,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.data.repository.config.BootstrapMode;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -34,6 +35,7 @@ import java.util.Objects;
 @EnableJpaRepositories(
         basePackages = "tdr.solutions.repository._2024",
         entityManagerFactoryRef = "tdr2024EntityManagerFactory",
+        bootstrapMode = BootstrapMode.LAZY,
         transactionManagerRef = "tdr2024TransactionManager"
 )
 public class DataSourceConfiguration2024 {
@@ -83,23 +85,32 @@ public class DataSourceConfiguration2024 {
      * Configures the entity manager factory for the 2024 tdr data source.
      *
      * <p>This method sets up the entity manager factory to use the 2024 tdr data source and
-     * also applies Flyway migrations before the factory is fully built.</p>
+     * also applies Flyway migrations before the factory is fully built. Both happen in the
+     * background if the shard is not initialized during startup, see {@link ShardStartup}.</p>
      *
      * @param builder the {@link EntityManagerFactoryBuilder} used to create the entity manager factory
+     * @param shardStartup the decision whether the shard is migrated and bootstrapped now or in the background
      * @return the configured {@link LocalContainerEntityManagerFactoryBean} bean
      */
     @Bean(name = "tdr2024EntityManagerFactory")
     public LocalContainerEntityManagerFactoryBean tdr2024EntityManagerFactory(
-            EntityManagerFactoryBuilder builder) {
-        Flyway.configure()
+            EntityManagerFactoryBuilder builder, ShardStartup shardStartup) {
+        Runnable migration = () -> Flyway.configure()
                 .dataSource(tdr2024DataSource())
                 .locations(environment.getProperty("spring.datasource.tdr2024.jpa.location"))
                 .load()
                 .migrate();
-        return builder
+        if (shardStartup.isEager(2024)) {
+            migration.run();
+        }
+        LocalContainerEntityManagerFactoryBean entityManagerFactory = builder
                 .dataSource(tdr2024DataSource())
                 .packages("tdr.solutions.model")
                 .build();
+        if (!shardStartup.isEager(2024)) {
+            entityManagerFactory.setBootstrapExecutor(shardStartup.bootstrapExecutor("tdr2024", migration));
+        }
+        return entityManagerFactory;
     }
 
     /**
@@ -0,0 +1,62 @@
+package tdr.solutions.config;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+import tdr.solutions.model.EpochMicros;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+/**
+ * Jackson module writing {@link LocalDateTime} values as epoch microseconds, see {@link EpochMicros}.
+ *
+ * <p>Used by the binary encodings, where a varint is both smaller and cheaper to produce and parse
+ * than an ISO-8601 string. ISO-8601 strings are still accepted when reading.</p>
+ */
+public class EpochMicrosModule extends SimpleModule {
+
+    /**
+     * Constructor for {@code EpochMicrosModule}.
+     */
+    public EpochMicrosModule() {
+        super(EpochMicrosModule.class.getName());
+        addSerializer(LocalDateTime.class, new Serializer());
+        addDeserializer(LocalDateTime.class, new Deserializer());
+    }
+
+    private static class Serializer extends StdScalarSerializer<LocalDateTime> {
+
+        Serializer() {
+            super(LocalDateTime.class);
+        }
+
+        @Override
+        public void serialize(LocalDateTime value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeNumber(EpochMicros.of(value));
+        }
+    }
+
+    private static class Deserializer extends StdScalarDeserializer<LocalDateTime> {
+
+        Deserializer() {
+            super(LocalDateTime.class);
+        }
+
+        @Override
+        public LocalDateTime deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                return EpochMicros.toLocalDateTime(parser.getLongValue());
+            }
+            if (parser.currentToken() == JsonToken.VALUE_STRING) {
+                return LocalDateTime.parse(parser.getText().trim());
+            }
+            return (LocalDateTime) context.handleUnexpectedToken(LocalDateTime.class, parser);
+        }
+    }
+}
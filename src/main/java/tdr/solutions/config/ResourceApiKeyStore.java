@@ -0,0 +1,63 @@
+package tdr.solutions.config;
+
+import org.springframework.core.io.Resource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the API keys from a text file with one key per line:
+ *
+ * <pre>
+ * &lt;key id&gt; &lt;SHA-256 of the key, hex&gt; [&lt;requests per second&gt; &lt;burst&gt; &lt;concurrent requests&gt;] [&lt;operator&gt;]
+ * </pre>
+ *
+ * <p>Blank lines and lines starting with {@code #} are ignored. Keys without limits get the
+ * default ones. A key without an operator is its own operator, i.e. its ID is taken as operator.</p>
+ */
+public class ResourceApiKeyStore implements ApiKeyStore {
+
+    private final Resource resource;
+
+    /**
+     * Constructor for {@code ResourceApiKeyStore}.
+     *
+     * @param resource the key file
+     */
+    public ResourceApiKeyStore(Resource resource) {
+        this.resource = resource;
+    }
+
+    @Override
+    public List<ApiKey> loadKeys() throws IOException {
+        List<ApiKey> keys = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2 || fields.length > 6 || fields.length == 4 || fields[1].length() != 64) {
+                    throw new IOException("malformed API key in line " + number + " of " + resource.getDescription());
+                }
+                String operator = fields.length % 3 == 0 ? fields[fields.length - 1] : fields[0];
+                try {
+                    keys.add(fields.length < 5 ? new ApiKey(fields[0], fields[1], 0, 0, 0, operator)
+                            : new ApiKey(fields[0], fields[1], Double.parseDouble(fields[2]),
+                            Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), operator));
+                } catch (NumberFormatException e) {
+                    throw new IOException("malformed limits in line " + number + " of " + resource.getDescription(), e);
+                }
+            }
+        }
+        return keys;
+    }
+}
@@ -1,7 +1,11 @@
 package tdr.solutions.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
@@ -19,8 +23,20 @@ public class SecurityConfig {
             "/v3/api-docs/**",
             "/swagger-ui/**"
     };
+    /**
+     * Creates the store of the accepted API keys, read from {@code tdr.security.key-file}.
+     *
+     * @param keyFile the key file, see {@link ResourceApiKeyStore} for its format
+     * @return the store
+     */
     @Bean
-    public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
+    public ApiKeyStore apiKeyStore(@Value("${tdr.security.key-file:classpath:api-keys.txt}") Resource keyFile) {
+        return new ResourceApiKeyStore(keyFile);
+    }
+
+    @Bean
+    public SecurityFilterChain filterChain(HttpSecurity http, AuthenticationService authenticationService,
+                                           ObjectMapper objectMapper, MeterRegistry meterRegistry) throws Exception {
         http.csrf(AbstractHttpConfigurer::disable)
           .authorizeHttpRequests( authorizeHttp -> {
               authorizeHttp.requestMatchers(AUTH_WHITELIST).permitAll();
@@ -29,7 +45,8 @@ public class SecurityConfig {
           )
           .httpBasic(Customizer.withDefaults())
           .sessionManagement(httpSecuritySessionManagementConfigurer -> httpSecuritySessionManagementConfigurer.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
-          .addFilterBefore(new AuthenticationFilter(), UsernamePasswordAuthenticationFilter.class);
+          .addFilterBefore(new AuthenticationFilter(authenticationService, objectMapper, meterRegistry),
+                  UsernamePasswordAuthenticationFilter.class);
 
         return http.build();
     }
@@ -0,0 +1,98 @@
+package tdr.solutions.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decides which year shards are initialized while the application starts.
+ *
+ * <p>By default every shard is migrated and its Hibernate bootstrapped before the application
+ * accepts requests, one after the other. With {@code tdr.startup.lazy-shards=true} only the current
+ * year ({@code tdr.sharding.current-year}, the newest configured year by default) is; every other
+ * year is migrated and bootstrapped on a background thread, in parallel with the rest of the startup,
+ * and its first use waits for it to finish.</p>
+ */
+@Component
+public class ShardStartup {
+
+    private final boolean lazyShards;
+    private final int currentYear;
+    private final Map<String, CompletableFuture<Void>> bootstraps = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for {@code ShardStartup}.
+     *
+     * @param lazyShards  whether the shards of past years are initialized in the background
+     * @param currentYear the year that is always initialized during startup
+     */
+    public ShardStartup(@Value("${tdr.startup.lazy-shards:false}") boolean lazyShards,
+                        @Value("${tdr.sharding.current-year:2024}") int currentYear) {
+        this.lazyShards = lazyShards;
+        this.currentYear = currentYear;
+    }
+
+    /**
+     * @param year the year of a shard
+     * @return whether the shards of the year are initialized before the application starts
+     */
+    public boolean isEager(int year) {
+        return !lazyShards || year == currentYear;
+    }
+
+    /**
+     * Creates the executor bootstrapping the entity manager factory of a shard in the background,
+     * after migrating its database.
+     *
+     * @param name      the name of the shard
+     * @param migration the migration of the shard's database
+     * @return the executor to set as bootstrap executor of the entity manager factory
+     */
+    public AsyncTaskExecutor bootstrapExecutor(String name, Runnable migration) {
+        CompletableFuture<Void> bootstrap = bootstraps.computeIfAbsent(name, key -> new CompletableFuture<>());
+        return new AsyncTaskExecutor() {
+            @Override
+            public void execute(Runnable task) {
+                Thread.ofVirtual().name("tdr-bootstrap-" + name).start(task);
+            }
+
+            @Override
+            public <T> Future<T> submit(Callable<T> task) {
+                FutureTask<T> future = new FutureTask<>(() -> {
+                    try {
+                        migration.run();
+                        T result = task.call();
+                        bootstrap.complete(null);
+                        return result;
+                    } catch (Throwable e) {
+                        bootstrap.completeExceptionally(e);
+                        throw e;
+                    }
+                });
+                execute(future);
+                return future;
+            }
+        };
+    }
+
+    /**
+     * Waits until a shard bootstrapped in the background is migrated and its entity manager factory
+     * is built. Returns at once for shards initialized during startup.
+     *
+     * @param name the name of the shard
+     * @throws java.util.concurrent.CompletionException if the bootstrap failed
+     */
+    public void awaitBootstrap(String name) {
+        CompletableFuture<Void> bootstrap = bootstraps.get(name);
+        if (bootstrap != null) {
+            bootstrap.join();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package tdr.solutions.config;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.json.MappingJacksonValue;
+import org.springframework.web.server.ResponseStatusException;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.io.IOException;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Configuration of sparse fieldsets of the list endpoints.
+ *
+ * <p>A client that only needs some fields of the Trip Detail Records it lists sends them as
+ * {@code fields}, e.g. {@code fields=sessionId,startTime,totalCost}. Every record of the response is
+ * then written with just those fields, in every encoding (see {@link BinaryEncodingConfiguration}),
+ * straight from the records the page was served from: no copies of the records are built. Without
+ * {@code fields} every field is written.</p>
+ *
+ * <p>The fields are selected by the filter provider of the response's writer. Only the application's
+ * object mappers look for it, and a mapper or writer without one writes every field, so mappers built
+ * elsewhere are not affected.</p>
+ *
+ * <p>The filtering is response-only. The shard queries read whole rows, and the history cache and
+ * the timeline index hold complete records, so {@code fields} makes the response smaller but does not
+ * reduce what is read from the shards.</p>
+ */
+@Configuration
+public class SparseFieldsConfiguration {
+
+    /** The ID of the Jackson filter selecting the fields of Trip Detail Records. */
+    static final String FILTER_ID = "tdrFields";
+
+    /** The fields of a Trip Detail Record, in the order they are written. */
+    private static final List<String> FIELDS = Arrays.stream(TripDetailRecord.class.getRecordComponents())
+            .map(RecordComponent::getName)
+            .toList();
+
+    /**
+     * Lets the application's object mappers filter the fields of Trip Detail Records, writing all of
+     * them unless a response selects some. The module is registered after the modules of the builder,
+     * so that builders replacing their modules, like those of the binary encodings, keep it.
+     *
+     * @return the customizer
+     */
+    @Bean
+    public Jackson2ObjectMapperBuilderCustomizer sparseFieldsCustomizer() {
+        SimpleModule module = new SimpleModule(SparseFieldsConfiguration.class.getName());
+        module.setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription description,
+                                                      JsonSerializer<?> serializer) {
+                return description.getBeanClass() == TripDetailRecord.class && serializer instanceof BeanSerializerBase all
+                        ? new SelectableFieldsSerializer(all, all.withFilterId(FILTER_ID)) : serializer;
+            }
+        });
+        return builder -> builder.postConfigurer(objectMapper -> objectMapper.registerModule(module));
+    }
+
+    /**
+     * Creates a response body that writes the Trip Detail Records of its value with the selected fields
+     * only. The fields are checked before the value is set, so that a bad request reads no shard.
+     *
+     * @param fields the comma separated fields to write, or {@code null} to write every field
+     * @return the body to set the value of and return from the controller
+     * @throws ResponseStatusException with 400 if a field does not exist
+     */
+    public static MappingJacksonValue selectFields(String fields) {
+        MappingJacksonValue body = new MappingJacksonValue(List.of());
+        if (fields != null) {
+            Set<String> selected = Arrays.stream(fields.split(","))
+                    .map(String::strip)
+                    .filter(field -> !field.isEmpty())
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            if (selected.isEmpty() || !FIELDS.containsAll(selected)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fields must be a comma separated list of " + FIELDS);
+            }
+            body.setFilters(new SimpleFilterProvider().addFilter(FILTER_ID, SimpleBeanPropertyFilter.filterOutAllExcept(selected)));
+        }
+        return body;
+    }
+
+    /**
+     * Writes Trip Detail Records through the fields filter if the writer provides one, and every field
+     * otherwise.
+     */
+    private static final class SelectableFieldsSerializer extends StdSerializer<Object>
+            implements ResolvableSerializer, ContextualSerializer {
+
+        private final JsonSerializer<Object> all;
+        private final JsonSerializer<Object> selected;
+
+        @SuppressWarnings("unchecked")
+        SelectableFieldsSerializer(JsonSerializer<?> all, JsonSerializer<?> selected) {
+            super(Object.class);
+            this.all = (JsonSerializer<Object>) all;
+            this.selected = (JsonSerializer<Object>) selected;
+        }
+
+        @Override
+        public void serialize(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            (selectsFields(provider, value) ? selected : all).serialize(value, generator, provider);
+        }
+
+        @Override
+        public void serializeWithType(Object value, JsonGenerator generator, SerializerProvider provider,
+                                      TypeSerializer typeSerializer) throws IOException {
+            (selectsFields(provider, value) ? selected : all).serializeWithType(value, generator, provider, typeSerializer);
+        }
+
+        @Override
+        public void resolve(SerializerProvider provider) throws JsonMappingException {
+            ((ResolvableSerializer) all).resolve(provider);
+            ((ResolvableSerializer) selected).resolve(provider);
+        }
+
+        @Override
+        public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property) throws JsonMappingException {
+            return new SelectableFieldsSerializer(((ContextualSerializer) all).createContextual(provider, property),
+                    ((ContextualSerializer) selected).createContextual(provider, property));
+        }
+
+        private static boolean selectsFields(SerializerProvider provider, Object value) {
+            FilterProvider filters = provider.getFilterProvider();
+            if (filters == null) {
+                return false;
+            }
+            try {
+                return filters.findPropertyFilter(FILTER_ID, value) != null;
+            } catch (IllegalArgumentException e) {
+                // Thrown by providers of other filters that fail on unknown filter IDs
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package tdr.solutions.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManagerFactory;
+import org.flywaydb.core.Flyway;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.orm.jpa.EntityManagerFactoryBuilder;
+import org.springframework.core.env.Environment;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactoryBean;
+import org.springframework.data.querydsl.EntityPathResolver;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.stereotype.Component;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the additional sub-shards of a year and the dedicated shards of its tenants at startup.
+ *
+ * <p>The sub-shards of a year are listed in {@code tdr.sharding.sub-shards.<year>} by name. Each name
+ * is the prefix of its data source properties below {@code spring.datasource}, laid out like those of
+ * the year's main shard (see {@link DataSourceConfiguration2024}): {@code url}, {@code username},
+ * {@code password}, {@code driver-class-name}, {@code jpa.location} and the Hikari
+ * {@code configuration}. Every sub-shard gets its own data source, Flyway migration, entity manager
+ * factory, transaction manager and {@link TripDetailRecordRepository}, built the same way the
+ * {@code @EnableJpaRepositories} configurations build the main shards.</p>
+ *
+ * <p>Charge point operators that get a database of their own in a year are listed in
+ * {@code tdr.tenants.dedicated.<year>} as {@code <operator>:<name>}, with the data source properties
+ * of each name laid out the same way.</p>
+ */
+@Component
+public class SubShardFactory {
+
+    private final Environment environment;
+    private final EntityManagerFactoryBuilder builder;
+    private final ConfigurableListableBeanFactory beanFactory;
+
+    private final List<EntityManagerFactory> entityManagerFactories = new ArrayList<>();
+    private final List<HikariDataSource> dataSources = new ArrayList<>();
+
+    /** The shards created so far by name, handed out again when the registration of a year is retried. */
+    private final Map<String, Shard> createdShards = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for {@code SubShardFactory}.
+     *
+     * @param environment the Spring {@link Environment} to access application properties
+     * @param builder     the {@link EntityManagerFactoryBuilder} used for the main shards as well
+     * @param beanFactory the bean factory the transaction managers of the sub-shards are registered in
+     */
+    public SubShardFactory(Environment environment, EntityManagerFactoryBuilder builder,
+                           ConfigurableListableBeanFactory beanFactory) {
+        this.environment = environment;
+        this.builder = builder;
+        this.beanFactory = beanFactory;
+    }
+
+    /**
+     * Creates the additional sub-shards configured for a year.
+     *
+     * @param year the year
+     * @return the sub-shards in configuration order, empty if the year has a single database
+     */
+    public List<Shard> createSubShards(int year) {
+        String[] names = environment.getProperty("tdr.sharding.sub-shards." + year, String[].class, new String[0]);
+        List<Shard> shards = new ArrayList<>(names.length);
+        for (String name : names) {
+            shards.add(createSubShard(year, name.trim()));
+        }
+        return shards;
+    }
+
+    /**
+     * Creates the dedicated shards of the tenants that do not share the databases of a year.
+     *
+     * @param year the year
+     * @return the dedicated shard of every such operator, empty if all operators share the year's sub-shards
+     */
+    public Map<String, Shard> createTenantShards(int year) {
+        Map<String, Shard> shards = new LinkedHashMap<>();
+        getDedicatedShardNames(year).forEach((operator, name) -> shards.put(operator, createSubShard(year, name)));
+        return shards;
+    }
+
+    /**
+     * Returns the operators that get a dedicated shard in a year, without creating their shards.
+     *
+     * @param year the year
+     * @return the operators listed in {@code tdr.tenants.dedicated.<year>}
+     */
+    public Set<String> getDedicatedOperators(int year) {
+        return getDedicatedShardNames(year).keySet();
+    }
+
+    private Map<String, String> getDedicatedShardNames(int year) {
+        String[] placements = environment.getProperty("tdr.tenants.dedicated." + year, String[].class, new String[0]);
+        Map<String, String> names = new LinkedHashMap<>();
+        for (String placement : placements) {
+            String[] operatorAndName = placement.trim().split(":", 2);
+            if (operatorAndName.length != 2 || operatorAndName[0].isBlank() || operatorAndName[1].isBlank()) {
+                throw new IllegalStateException("Malformed dedicated shard " + placement + " of year " + year
+                        + ", expected <operator>:<name>");
+            }
+            if (names.containsKey(operatorAndName[0])) {
+                throw new IllegalStateException("Operator " + operatorAndName[0] + " has several dedicated shards in year " + year);
+            }
+            names.put(operatorAndName[0], operatorAndName[1]);
+        }
+        return names;
+    }
+
+    private Shard createSubShard(int year, String name) {
+        Shard created = createdShards.get(name);
+        if (created != null) {
+            return created;
+        }
+        String prefix = "spring.datasource." + name;
+        Binder binder = Binder.get(environment);
+        DataSourceProperties properties = binder.bind(prefix, DataSourceProperties.class)
+                .orElseThrow(() -> new IllegalStateException("No data source properties " + prefix + " for shard " + name));
+        try {
+            properties.afterPropertiesSet();
+        } catch (Exception e) {
+            throw new IllegalStateException("Invalid data source properties " + prefix, e);
+        }
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName(name);
+        binder.bind(prefix + ".configuration", Bindable.ofInstance(dataSource));
+        dataSources.add(dataSource);
+
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations(environment.getProperty(prefix + ".jpa.location"))
+                .load()
+                .migrate();
+        LocalContainerEntityManagerFactoryBean factoryBean = builder
+                .dataSource(dataSource)
+                .packages("tdr.solutions.model")
+                .persistenceUnit(name)
+                .build();
+        factoryBean.afterPropertiesSet();
+        EntityManagerFactory entityManagerFactory = Objects.requireNonNull(factoryBean.getObject());
+        entityManagerFactories.add(entityManagerFactory);
+
+        // Repository methods look up their transaction manager by bean name, like the main shards do
+        String transactionManagerName = name + "TransactionManager";
+        beanFactory.registerSingleton(transactionManagerName, new JpaTransactionManager(entityManagerFactory));
+        JpaRepositoryFactoryBean<TripDetailRecordRepository, TripDetailRecordEntity, Long> repositoryFactory =
+                new JpaRepositoryFactoryBean<>(TripDetailRecordRepository.class);
+        repositoryFactory.setEntityManager(SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory));
+        repositoryFactory.setTransactionManager(transactionManagerName);
+        repositoryFactory.setEntityPathResolver(beanFactory.getBeanProvider(EntityPathResolver.class));
+        repositoryFactory.setBeanClassLoader(beanFactory.getBeanClassLoader());
+        repositoryFactory.setBeanFactory(beanFactory);
+        repositoryFactory.afterPropertiesSet();
+        TripDetailRecordRepository repository = repositoryFactory.getObject();
+        Shard shard = new Shard(year, name, repository, dataSource);
+        createdShards.put(name, shard);
+        return shard;
+    }
+
+    /**
+     * Closes the entity manager factories and connection pools of the created shards.
+     */
+    @PreDestroy
+    public void close() {
+        entityManagerFactories.forEach(EntityManagerFactory::close);
+        dataSources.forEach(HikariDataSource::close);
+    }
+}
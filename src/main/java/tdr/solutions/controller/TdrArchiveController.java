@@ -0,0 +1,70 @@
+package tdr.solutions.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import tdr.solutions.archive.ArchiveSummary;
+import tdr.solutions.archive.TdrArchiveService;
+import tdr.solutions.exception.TdrException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Controller for archiving closed year shards.
+ * Provides endpoints for exporting a year into the archive tier and listing the archives.
+ */
+@RestController
+@RequestMapping("/tdr/archive")
+@Tag(name = "Trip Detail Record Archives", description = "APIs related to the archive tier of closed year shards")
+public class TdrArchiveController {
+
+    private final TdrArchiveService tdrArchiveService;
+
+    public TdrArchiveController(TdrArchiveService tdrArchiveService) {
+        this.tdrArchiveService = tdrArchiveService;
+    }
+
+    /**
+     * Archive a closed year shard.
+     *
+     * @param year the year of the shard to archive
+     * @return the ResponseEntity with status 200 (OK) and the summary of the written archive,
+     * or with status 404 (Not Found) if the year has no closed database shard
+     * @throws TdrException if the year cannot be archived
+     * @throws IOException  if the archive cannot be written
+     */
+    @Operation(summary = "Archive a closed year shard", description = "Exports a closed year shard into the archive tier and serves the year from the archive afterwards.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Shard archived",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ArchiveSummary.class))}),
+            @ApiResponse(responseCode = "404", description = "No closed database shard for the year",
+                    content = @Content)
+    })
+    @PostMapping("/{year}")
+    public ResponseEntity<ArchiveSummary> archive(@PathVariable int year) throws TdrException, IOException {
+        return ResponseEntity.ok(tdrArchiveService.export(year));
+    }
+
+    /**
+     * List the archived year shards.
+     *
+     * @return the ResponseEntity with status 200 (OK) and the summaries of the archives
+     */
+    @Operation(summary = "List the archived year shards", description = "Retrieves the summaries of all archived year shards.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Archives listed",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ArchiveSummary.class))})
+    })
+    @GetMapping
+    public ResponseEntity<List<ArchiveSummary>> getArchives() {
+        return ResponseEntity.ok(tdrArchiveService.getArchives());
+    }
+}
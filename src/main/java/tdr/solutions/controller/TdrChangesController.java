@@ -0,0 +1,143 @@
+package tdr.solutions.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tdr.solutions.changes.ChangeOffset;
+import tdr.solutions.changes.TripEventRelay;
+import tdr.solutions.model.TripChange;
+import tdr.solutions.model.TripChangePage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Controller for following the trips created in all shards.
+ * Provides the change feed as long-polling requests and as a stream of Server-Sent Events.
+ */
+@RestController
+@RequestMapping("/tdr/changes")
+@Tag(name = "Trip Detail Record Changes", description = "APIs related to the feed of created Trip Detail Records")
+public class TdrChangesController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TdrChangesController.class);
+
+    private final TripEventRelay tripEventRelay;
+    private final int maxLimit;
+    private final Duration maxWait;
+    private final Duration streamTimeout;
+    private final Duration heartbeatInterval;
+
+    public TdrChangesController(TripEventRelay tripEventRelay,
+                                @Value("${tdr.changes.max-limit:1000}") int maxLimit,
+                                @Value("${tdr.changes.max-wait:PT30S}") Duration maxWait,
+                                @Value("${tdr.changes.stream-timeout:PT30M}") Duration streamTimeout,
+                                @Value("${tdr.changes.heartbeat-interval:PT15S}") Duration heartbeatInterval) {
+        this.tripEventRelay = tripEventRelay;
+        this.maxLimit = maxLimit;
+        this.maxWait = maxWait;
+        this.streamTimeout = streamTimeout;
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Get the trips created after an offset, waiting for the next ones if there are none yet.
+     *
+     * @param after the offset returned by the previous request; the feed starts at the oldest retained
+     *              trip without it
+     * @param limit the maximum number of changes to return
+     * @param wait  the number of seconds to wait for changes at most if there are none
+     * @return the ResponseEntity with status 200 (OK) and the changes with the offset to continue from,
+     * or with status 400 (Bad Request) if the offset is malformed or the limit is out of range
+     */
+    @Operation(summary = "Poll the change feed", description = "Retrieves the Trip Detail Records created after the given offset. Without changes, the request waits up to the given number of seconds for the next ones.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Changes found, or none within the wait time",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TripChangePage.class))}),
+            @ApiResponse(responseCode = "400", description = "Malformed offset or limit out of range",
+                    content = @Content)
+    })
+    @GetMapping
+    public ResponseEntity<TripChangePage> getChanges(
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(defaultValue = "0") int wait) {
+        if (limit < 1 || limit > maxLimit) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + maxLimit);
+        }
+        Duration waitTime = Duration.ofSeconds(Math.max(0, wait));
+        return ResponseEntity.ok(tripEventRelay.changes(parse(after),
+                limit, waitTime.compareTo(maxWait) > 0 ? maxWait : waitTime));
+    }
+
+    /**
+     * Stream the trips created after an offset as Server-Sent Events. Every event carries one
+     * {@link TripChange} and has its offset as ID, so a reconnecting client resumes with the
+     * {@code Last-Event-ID} header. Comments are sent as heartbeats while there are no changes.
+     *
+     * @param after       the offset to start after; the feed starts at the oldest retained trip without it
+     * @param lastEventId the ID of the last event received before reconnecting, used if {@code after} is absent
+     * @return the event stream, or status 400 (Bad Request) if the offset is malformed
+     */
+    @Operation(summary = "Stream the change feed", description = "Streams the Trip Detail Records created after the given offset as Server-Sent Events, resumable with the Last-Event-ID header.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Stream started",
+                    content = {@Content(mediaType = "text/event-stream",
+                            schema = @Schema(implementation = TripChange.class))}),
+            @ApiResponse(responseCode = "400", description = "Malformed offset",
+                    content = @Content)
+    })
+    @GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(@RequestParam(required = false) String after,
+                                    @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        ChangeOffset start = parse(after != null ? after : lastEventId);
+        SseEmitter emitter = new SseEmitter(streamTimeout.toMillis());
+        AtomicBoolean open = new AtomicBoolean(true);
+        emitter.onCompletion(() -> open.set(false));
+        emitter.onTimeout(() -> open.set(false));
+        emitter.onError(e -> open.set(false));
+        Thread.ofVirtual().name("tdr-changes-stream").start(() -> {
+            ChangeOffset offset = start;
+            try {
+                while (open.get() && tripEventRelay.isRunning()) {
+                    TripChangePage page = tripEventRelay.changes(offset, maxLimit, heartbeatInterval);
+                    if (page.changes().isEmpty()) {
+                        emitter.send(SseEmitter.event().comment("heartbeat"));
+                    }
+                    for (TripChange change : page.changes()) {
+                        emitter.send(SseEmitter.event().id(change.offset()).name("trip")
+                                .data(change, MediaType.APPLICATION_JSON));
+                    }
+                    offset = ChangeOffset.parse(page.offset());
+                }
+                emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                // The client went away, the container completes the emitter
+                LOGGER.debug("Change stream closed: {}", e.getMessage());
+            }
+        });
+        return emitter;
+    }
+
+    private static ChangeOffset parse(String offset) {
+        try {
+            return ChangeOffset.parse(offset);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "malformed offset " + offset);
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package tdr.solutions.controller;
 
+import tdr.solutions.config.SparseFieldsConfiguration;
 import tdr.solutions.exception.TdrException;
+import tdr.solutions.idempotency.IdempotencyStore;
+import tdr.solutions.model.TdrBatchResult;
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TdrLatestTrips;
+import tdr.solutions.model.TdrLookupResult;
+import tdr.solutions.model.TdrPage;
 import tdr.solutions.model.TripDetailRecord;
 import tdr.solutions.service.TdrService;
 import io.swagger.v3.oas.annotations.Operation;
@@ -9,13 +16,18 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
-import jakarta.validation.Valid;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.MappingJacksonValue;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -28,17 +40,37 @@ import java.util.List;
 public class TdrController {
 
     private final TdrService tdrService;
+    private final IdempotencyStore idempotencyStore;
+    private final int maxLookupSize;
+    private final int maxBatchSize;
+    private final int maxLatestTripsSize;
+    private final int maxPageSize;
+    private final int maxPageOffset;
 
-    public TdrController(TdrService tdrService) {
+    public TdrController(TdrService tdrService, IdempotencyStore idempotencyStore,
+                         @Value("${tdr.lookup.max-session-ids:50000}") int maxLookupSize,
+                         @Value("${tdr.batch.max-size:10000}") int maxBatchSize,
+                         @Value("${tdr.latest-trips.max-vehicle-ids:50000}") int maxLatestTripsSize,
+                         @Value("${tdr.page.max-size:1000}") int maxPageSize,
+                         @Value("${tdr.page.max-offset:10000}") int maxPageOffset) {
         this.tdrService = tdrService;
+        this.idempotencyStore = idempotencyStore;
+        this.maxLookupSize = maxLookupSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatestTripsSize = maxLatestTripsSize;
+        this.maxPageSize = maxPageSize;
+        this.maxPageOffset = maxPageOffset;
     }
 
     /**
      * Create a new Trip Detail Record.
      *
-     * @param tdr the Trip Detail Record to create
+     * @param tdr            the Trip Detail Record to create
+     * @param idempotencyKey the key identifying retries of this request, see {@link IdempotencyStore}
      * @return the ResponseEntity with status 200 (OK) and the created Trip Detail Record,
-     * or with status 400 (Bad Request) if the input data is invalid
+     * or with status 400 (Bad Request) if the input data is invalid,
+     * or with status 409 (Conflict) if the request with the same key is still in progress,
+     * or with status 422 (Unprocessable Entity) if the key was sent with a different TDR
      * @throws TdrException if there is an error while creating the TDR
      */
     @Operation(summary = "Create a new Trip Detail Record", description = "Creates a new Trip Detail Record (TDR) and returns the created record.")
@@ -47,11 +79,49 @@ public class TdrController {
                     content = {@Content(mediaType = "application/json",
                             schema = @Schema(implementation = TripDetailRecord.class))}),
             @ApiResponse(responseCode = "400", description = "Invalid input data",
+                    content = @Content),
+            @ApiResponse(responseCode = "409", description = "Request with the same Idempotency-Key in progress",
+                    content = @Content),
+            @ApiResponse(responseCode = "422", description = "Idempotency-Key sent with a different TDR",
                     content = @Content)
     })
     @PostMapping
-    public ResponseEntity<TripDetailRecord> createTdr(@Valid @RequestBody TripDetailRecord tdr) throws TdrException {
-        return ResponseEntity.ok(tdrService.createTdr(tdr));
+    public ResponseEntity<TripDetailRecord> createTdr(@RequestBody TripDetailRecord tdr,
+                                                      @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY_HEADER_NAME, required = false) String idempotencyKey)
+            throws TdrException {
+        return ResponseEntity.ok(idempotencyStore.execute("create", idempotencyKey, tdr, () -> tdrService.createTdr(tdr)));
+    }
+
+    /**
+     * Create a batch of Trip Detail Records.
+     *
+     * @param tdrs           the Trip Detail Records to create, at most {@code tdr.batch.max-size}
+     * @param idempotencyKey the key identifying retries of this request, see {@link IdempotencyStore}
+     * @return the ResponseEntity with status 200 (OK) and the created Trip Detail Records together with the rejected ones
+     * and the ones to send again because a shard was unavailable,
+     * or with status 400 (Bad Request) if too many Trip Detail Records were sent,
+     * or with status 409 (Conflict) if the request with the same key is still in progress,
+     * or with status 422 (Unprocessable Entity) if the key was sent with a different batch
+     */
+    @Operation(summary = "Create a batch of Trip Detail Records", description = "Creates many Trip Detail Records (TDRs) at once. Invalid TDRs are reported with every field they break the rules on, and do not stop the valid ones from being created. TDRs that could not be stored because a shard was unavailable are listed as retryable, to be sent again in a new request.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Batch processed",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TdrBatchResult.class))}),
+            @ApiResponse(responseCode = "400", description = "Too many TDRs",
+                    content = @Content),
+            @ApiResponse(responseCode = "409", description = "Request with the same Idempotency-Key in progress",
+                    content = @Content),
+            @ApiResponse(responseCode = "422", description = "Idempotency-Key sent with a different batch",
+                    content = @Content)
+    })
+    @PostMapping("/batch")
+    public ResponseEntity<TdrBatchResult> createTdrs(@RequestBody List<TripDetailRecord> tdrs,
+                                                     @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY_HEADER_NAME, required = false) String idempotencyKey) {
+        if (tdrs.size() > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + maxBatchSize + " TDRs can be created at once");
+        }
+        return ResponseEntity.ok(idempotencyStore.execute("batch", idempotencyKey, tdrs, () -> tdrService.createTdrs(tdrs)));
     }
 
     /**
@@ -75,6 +145,52 @@ public class TdrController {
         return ResponseEntity.ok(tdrService.getTdrBySessionId(sessionId));
     }
 
+    /**
+     * Look up the Trip Detail Records of a batch of session IDs.
+     *
+     * @param sessionIds the session IDs to look up, at most {@code tdr.lookup.max-session-ids}
+     * @return the ResponseEntity with status 200 (OK) and the found Trip Detail Records together with the missing session IDs,
+     * or with status 400 (Bad Request) if too many session IDs were sent
+     */
+    @Operation(summary = "Look up Trip Detail Records by a batch of session IDs", description = "Retrieves the Trip Detail Records (TDRs) of many session IDs at once and lists the session IDs that were not found.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Lookup completed",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TdrLookupResult.class))}),
+            @ApiResponse(responseCode = "400", description = "Too many session IDs",
+                    content = @Content)
+    })
+    @PostMapping("/lookup")
+    public ResponseEntity<TdrLookupResult> lookupTdrs(@RequestBody List<String> sessionIds) {
+        if (sessionIds.size() > maxLookupSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + maxLookupSize + " session IDs can be looked up at once");
+        }
+        return ResponseEntity.ok(tdrService.lookupTdrs(sessionIds));
+    }
+
+    /**
+     * Get the latest Trip Detail Record, the one that ended last, of each of a batch of vehicles.
+     *
+     * @param vehicleIds the IDs of the vehicles, at most {@code tdr.latest-trips.max-vehicle-ids}
+     * @return the ResponseEntity with status 200 (OK) and the latest Trip Detail Records together with the vehicle IDs without trips,
+     * or with status 400 (Bad Request) if too many vehicle IDs were sent
+     */
+    @Operation(summary = "Get the latest Trip Detail Records of a batch of vehicles", description = "Retrieves the latest Trip Detail Record (TDR) of many vehicles at once from memory and lists the vehicle IDs without trips.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Latest trips retrieved",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TdrLatestTrips.class))}),
+            @ApiResponse(responseCode = "400", description = "Too many vehicle IDs",
+                    content = @Content)
+    })
+    @PostMapping("/vehicle/latest")
+    public ResponseEntity<TdrLatestTrips> getLatestTrips(@RequestBody List<String> vehicleIds) {
+        if (vehicleIds.size() > maxLatestTripsSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + maxLatestTripsSize + " vehicles can be looked up at once");
+        }
+        return ResponseEntity.ok(tdrService.getLatestTrips(vehicleIds));
+    }
+
     /**
      * Get all Trip Detail Records for a specific vehicle, sorted by start time or end time.
      *
@@ -83,7 +199,9 @@ public class TdrController {
      * @param sortOrder the order to sort by, either "asc" for ascending or "desc" for descending (default is ascending)
      * @param page      the page number to retrieve (default is 0)
      * @param size      the number of records per page (default is 3)
-     * @return the ResponseEntity with status 200 (OK) and the sorted list of Trip Detail Records for the specified vehicle
+     * @param fields    the comma separated fields to return of each record (default is all fields)
+     * @return the ResponseEntity with status 200 (OK) and the sorted list of Trip Detail Records for the specified vehicle,
+     * or with status 400 (Bad Request) if an unknown field was requested, or the page is too large or too deep
      */
     @Operation(summary = "Get all Trip Detail Records for a specific vehicle with sorting", description = "Retrieves all Trip Detail Records (TDRs) for a specific vehicle, sorted by a specified field.")
     @ApiResponses(value = {
@@ -92,14 +210,115 @@ public class TdrController {
                             schema = @Schema(implementation = TripDetailRecord.class))})
     })
     @GetMapping("/vehicle/{vehicleId}")
-    public ResponseEntity<List<TripDetailRecord>> getTdrsByVehicleId(
+    public ResponseEntity<MappingJacksonValue> getTdrsByVehicleId(
+            @PathVariable String vehicleId,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "3") int size,
+            @RequestParam(defaultValue = "startTime") String sortBy,
+            @RequestParam(defaultValue = "asc") String sortOrder,
+            @RequestParam(required = false) String fields) {
+        MappingJacksonValue body = SparseFieldsConfiguration.selectFields(fields);
+        body.setValue(tdrService.getTdrsByVehicleId(vehicleId, pageRequest(page, size, sortBy, sortOrder)));
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Get a page of the Trip Detail Records of a specific vehicle together with the total number of its records and pages.
+     * Pages are read by keyset: the first page without a cursor, every following one with the {@code next} cursor of
+     * the page before, so deep pages cost no more than the first.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param cursor    the {@code next} cursor of the previous page, or none for the first page
+     * @param size      the number of records per page (default is 3), at most {@code tdr.page.max-size}
+     * @param sortBy    the field to sort by, either "startTime" or "endTime" (default is start time)
+     * @param sortOrder the order to sort by, either "asc" for ascending or "desc" for descending (default is ascending)
+     * @param fields    the comma separated fields to return of each record (default is all fields)
+     * @return the ResponseEntity with status 200 (OK) and the page of Trip Detail Records with its page metadata,
+     * or with status 400 (Bad Request) if an unknown field was requested, the size is out of range,
+     * or the cursor is malformed or belongs to another sort order
+     */
+    @Operation(summary = "Get a page of Trip Detail Records for a specific vehicle with totals", description = "Retrieves a page of the Trip Detail Records (TDRs) of a specific vehicle, sorted by a specified field, with the total number of TDRs and pages and the cursor of the next page.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Page of TDRs retrieved successfully",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TdrPage.class))}),
+            @ApiResponse(responseCode = "400", description = "Invalid size, sort order or cursor",
+                    content = @Content)
+    })
+    @GetMapping("/vehicle/{vehicleId}/page")
+    public ResponseEntity<MappingJacksonValue> getTdrPageByVehicleId(
+            @PathVariable String vehicleId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "3") int size,
+            @RequestParam(defaultValue = "startTime") String sortBy,
+            @RequestParam(defaultValue = "asc") String sortOrder,
+            @RequestParam(required = false) String fields) {
+        checkPageSize(size);
+        TdrCursor position;
+        try {
+            position = cursor == null || cursor.isBlank()
+                    ? TdrCursor.first(sortBy, !sortOrder.equals("asc"))
+                    : TdrCursor.parse(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        if (!position.sortBy().equals(sortBy) || position.descending() == sortOrder.equals("asc")) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "cursor belongs to another sort order");
+        }
+        MappingJacksonValue body = SparseFieldsConfiguration.selectFields(fields);
+        body.setValue(tdrService.getTdrPageByVehicleId(vehicleId, position, size));
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Get the Trip Detail Records of a specific vehicle that started within a time range, sorted by start time or end time.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param from      the inclusive lower bound of the start time (ISO date-time)
+     * @param to        the exclusive upper bound of the start time (ISO date-time)
+     * @param page      the page number to retrieve (default is 0)
+     * @param size      the number of records per page (default is 3)
+     * @param sortBy    the field to sort by (default is start time)
+     * @param sortOrder the order to sort by, either "asc" for ascending or "desc" for descending (default is ascending)
+     * @param fields    the comma separated fields to return of each record (default is all fields)
+     * @return the ResponseEntity with status 200 (OK) and the sorted list of Trip Detail Records within the range,
+     * or with status 400 (Bad Request) if an unknown field was requested, or the page is too large or too deep
+     */
+    @Operation(summary = "Get Trip Detail Records for a specific vehicle within a start time range", description = "Retrieves the Trip Detail Records (TDRs) of a vehicle whose start time lies within [from, to), sorted by a specified field.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "TDRs retrieved and sorted successfully",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TripDetailRecord.class))})
+    })
+    @GetMapping("/vehicle/{vehicleId}/range")
+    public ResponseEntity<MappingJacksonValue> getTdrsByVehicleIdInRange(
             @PathVariable String vehicleId,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "3") int size,
             @RequestParam(defaultValue = "startTime") String sortBy,
-            @RequestParam(defaultValue = "asc") String sortOrder) {
-        Pageable pageable = PageRequest.of(page, size, sortOrder.equals("asc")?Sort.by(sortBy).ascending():Sort.by(sortBy).descending());
-        return ResponseEntity.ok(tdrService.getTdrsByVehicleId(vehicleId, pageable));
+            @RequestParam(defaultValue = "asc") String sortOrder,
+            @RequestParam(required = false) String fields) {
+        MappingJacksonValue body = SparseFieldsConfiguration.selectFields(fields);
+        body.setValue(tdrService.getTdrsByVehicleIdInRange(vehicleId, from, to, pageRequest(page, size, sortBy, sortOrder)));
+        return ResponseEntity.ok(body);
+    }
+
+    private Pageable pageRequest(int page, int size, String sortBy, String sortOrder) {
+        checkPageSize(size);
+        // Every shard reads all records up to the end of the page, so deep pages are served by cursor only
+        if (page < 0 || (long) page * size > maxPageOffset) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "page * size must be between 0 and " + maxPageOffset + ", read deeper pages with the cursor of /tdr/vehicle/{vehicleId}/page");
+        }
+        return PageRequest.of(page, size, sortOrder.equals("asc")?Sort.by(sortBy).ascending():Sort.by(sortBy).descending());
+    }
+
+    private void checkPageSize(int size) {
+        if (size < 1 || size > maxPageSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "size must be between 1 and " + maxPageSize);
+        }
     }
 
 
@@ -0,0 +1,71 @@
+package tdr.solutions.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import tdr.solutions.idempotency.IdempotencyStore;
+import tdr.solutions.session.SessionEvent;
+import tdr.solutions.session.SessionEventResult;
+import tdr.solutions.session.SessionizationService;
+
+import java.util.List;
+
+/**
+ * Controller for ingesting the raw events of charging sessions.
+ * Stopped sessions become Trip Detail Records shortly after their stop event.
+ */
+@RestController
+@RequestMapping("/tdr/events")
+@Tag(name = "Session Events", description = "APIs related to building Trip Detail Records from session events")
+public class TdrEventController {
+
+    private final SessionizationService sessionizationService;
+    private final IdempotencyStore idempotencyStore;
+    private final int maxEvents;
+
+    public TdrEventController(SessionizationService sessionizationService, IdempotencyStore idempotencyStore,
+                              @Value("${tdr.sessions.max-events:10000}") int maxEvents) {
+        this.sessionizationService = sessionizationService;
+        this.idempotencyStore = idempotencyStore;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Apply a batch of session events.
+     *
+     * @param events         the start, meter and stop events to apply in order, at most {@code tdr.sessions.max-events}
+     * @param idempotencyKey the key identifying retries of this request, see {@link IdempotencyStore}
+     * @return the ResponseEntity with status 200 (OK) and the number of applied events together with the rejected ones,
+     * or with status 400 (Bad Request) if too many events were sent,
+     * or with status 409 (Conflict) if the request with the same key is still in progress,
+     * or with status 422 (Unprocessable Entity) if the key was sent with different events
+     */
+    @Operation(summary = "Ingest session events", description = "Applies start, meter value and stop events of charging sessions in order. A stopped session is written as a Trip Detail Record in the next micro-batch. Rejected events do not stop the others.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Events processed",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = SessionEventResult.class))}),
+            @ApiResponse(responseCode = "400", description = "Too many events",
+                    content = @Content),
+            @ApiResponse(responseCode = "409", description = "Request with the same Idempotency-Key in progress",
+                    content = @Content),
+            @ApiResponse(responseCode = "422", description = "Idempotency-Key sent with different events",
+                    content = @Content)
+    })
+    @PostMapping
+    public ResponseEntity<SessionEventResult> acceptEvents(@RequestBody List<SessionEvent> events,
+                                                           @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY_HEADER_NAME, required = false) String idempotencyKey) {
+        if (events.size() > maxEvents) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + maxEvents + " events can be sent at once");
+        }
+        return ResponseEntity.ok(idempotencyStore.execute("events", idempotencyKey, events, () -> sessionizationService.accept(events)));
+    }
+}
@@ -0,0 +1,93 @@
+package tdr.solutions.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.Valid;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.migration.MigrationProgress;
+import tdr.solutions.migration.MigrationRequest;
+import tdr.solutions.migration.ShardMigrationService;
+
+import java.util.List;
+
+/**
+ * Controller for moving vehicle buckets between the sub-shards of a year.
+ * Provides endpoints for starting a migration and following its progress.
+ */
+@RestController
+@RequestMapping("/tdr/migration")
+@Tag(name = "Trip Detail Record Migrations", description = "APIs related to rebalancing the sub-shards of a year")
+public class TdrMigrationController {
+
+    private final ShardMigrationService shardMigrationService;
+
+    public TdrMigrationController(ShardMigrationService shardMigrationService) {
+        this.shardMigrationService = shardMigrationService;
+    }
+
+    /**
+     * Start moving buckets of a year to one of its sub-shards.
+     *
+     * @param year    the year of the sub-shards
+     * @param request the target sub-shard and the buckets to move
+     * @return the ResponseEntity with status 202 (Accepted) and the progress of the started migration,
+     * or with status 404 (Not Found) if the migration cannot be started
+     * @throws TdrException if the migration cannot be started
+     */
+    @Operation(summary = "Start a bucket migration", description = "Copies the given buckets, or the buckets the consistent hash ring assigns to the target, into the target sub-shard and hands them over once verified.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "202", description = "Migration started",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = MigrationProgress.class))}),
+            @ApiResponse(responseCode = "404", description = "Unknown year or sub-shard, nothing to move, or a migration is running already",
+                    content = @Content)
+    })
+    @PostMapping("/{year}")
+    public ResponseEntity<MigrationProgress> migrate(@PathVariable int year, @Valid @RequestBody MigrationRequest request)
+            throws TdrException {
+        return ResponseEntity.accepted().body(shardMigrationService.start(year, request));
+    }
+
+    /**
+     * List the latest migration of every year.
+     *
+     * @return the ResponseEntity with status 200 (OK) and the progress of the migrations
+     */
+    @Operation(summary = "List bucket migrations", description = "Retrieves the progress of the latest migration of every year.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Migrations listed",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = MigrationProgress.class))})
+    })
+    @GetMapping
+    public ResponseEntity<List<MigrationProgress>> getMigrations() {
+        return ResponseEntity.ok(shardMigrationService.getMigrations());
+    }
+
+    /**
+     * Get the latest migration of a year.
+     *
+     * @param year the year
+     * @return the ResponseEntity with status 200 (OK) and the progress of the migration,
+     * or with status 404 (Not Found) if no migration of the year was started
+     * @throws TdrException if no migration of the year was started
+     */
+    @Operation(summary = "Get the bucket migration of a year", description = "Retrieves the progress of the latest migration of a year.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Migration found",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = MigrationProgress.class))}),
+            @ApiResponse(responseCode = "404", description = "No migration of the year",
+                    content = @Content)
+    })
+    @GetMapping("/{year}")
+    public ResponseEntity<MigrationProgress> getMigration(@PathVariable int year) throws TdrException {
+        return ResponseEntity.ok(shardMigrationService.getMigration(year));
+    }
+}
@@ -0,0 +1,104 @@
+package tdr.solutions.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.reactive.ReactiveTdrService;
+
+/**
+ * Controller for reading Trip Detail Records without blocking a thread while the shards answer.
+ * Serves the same records as {@link TdrController}; writes stay there.
+ */
+@RestController
+@RequestMapping("/tdr/reactive")
+@Tag(name = "Reactive Trip Detail Records", description = "Non-blocking read APIs of Trip Detail Records")
+public class TdrReactiveController {
+
+    private final ReactiveTdrService reactiveTdrService;
+    private final int maxPageSize;
+    private final int maxPageOffset;
+
+    public TdrReactiveController(ReactiveTdrService reactiveTdrService,
+                                 @Value("${tdr.page.max-size:1000}") int maxPageSize,
+                                 @Value("${tdr.page.max-offset:10000}") int maxPageOffset) {
+        this.reactiveTdrService = reactiveTdrService;
+        this.maxPageSize = maxPageSize;
+        this.maxPageOffset = maxPageOffset;
+    }
+
+    /**
+     * Get a Trip Detail Record by session ID.
+     *
+     * @param sessionId the session ID of the Trip Detail Record
+     * @return the Trip Detail Record with status 200 (OK), or status 404 (Not Found) if it does not exist
+     */
+    @Operation(summary = "Get a Trip Detail Record by session ID without blocking", description = "Retrieves a Trip Detail Record (TDR) using its session ID, querying the shards with non-blocking drivers.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "TDR found",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TripDetailRecord.class))}),
+            @ApiResponse(responseCode = "404", description = "TDR not found",
+                    content = @Content)
+    })
+    @GetMapping("/{sessionId}")
+    public Mono<TripDetailRecord> getTdrBySessionId(@PathVariable String sessionId) {
+        return reactiveTdrService.getTdrBySessionId(sessionId);
+    }
+
+    /**
+     * Stream the Trip Detail Records of a specific vehicle, sorted by start time or end time. With
+     * {@code Accept: application/x-ndjson} every record is written as soon as the shards delivered it, and
+     * the shards are read no faster than the client reads the response.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param page      the page number to retrieve (default is 0)
+     * @param size      the number of records per page (default is 3), at most {@code tdr.page.max-size}
+     * @param sortBy    the field to sort by, either "startTime" or "endTime" (default is start time)
+     * @param sortOrder the order to sort by, either "asc" for ascending or "desc" for descending (default is ascending)
+     * @return the sorted Trip Detail Records of the page with status 200 (OK),
+     * or status 400 (Bad Request) if the records cannot be sorted by the field, or the page is too large or too deep
+     */
+    @Operation(summary = "Stream the Trip Detail Records of a specific vehicle", description = "Retrieves the Trip Detail Records (TDRs) of a specific vehicle, sorted by a specified field, merging the streams of its shards. Newline-delimited JSON is streamed with backpressure.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "TDRs retrieved and sorted successfully",
+                    content = {@Content(mediaType = "application/x-ndjson",
+                            schema = @Schema(implementation = TripDetailRecord.class)),
+                            @Content(mediaType = "application/json",
+                                    schema = @Schema(implementation = TripDetailRecord.class))}),
+            @ApiResponse(responseCode = "400", description = "Unsupported sort field or page out of range",
+                    content = @Content)
+    })
+    @GetMapping(value = "/vehicle/{vehicleId}", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public Flux<TripDetailRecord> getTdrsByVehicleId(
+            @PathVariable String vehicleId,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "3") int size,
+            @RequestParam(defaultValue = "startTime") String sortBy,
+            @RequestParam(defaultValue = "asc") String sortOrder) {
+        if (!ReactiveTdrService.SORT_COLUMNS.containsKey(sortBy)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "sortBy must be one of " + ReactiveTdrService.SORT_COLUMNS.keySet());
+        }
+        if (size < 1 || size > maxPageSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "size must be between 1 and " + maxPageSize);
+        }
+        // Every shard streams all records up to the end of the page
+        if (page < 0 || (long) page * size > maxPageOffset) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "page * size must be between 0 and " + maxPageOffset);
+        }
+        Sort sort = sortOrder.equals("asc") ? Sort.by(sortBy).ascending() : Sort.by(sortBy).descending();
+        return reactiveTdrService.getTdrsByVehicleId(vehicleId, PageRequest.of(page, size, sort));
+    }
+}
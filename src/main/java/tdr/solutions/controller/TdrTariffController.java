@@ -0,0 +1,94 @@
+package tdr.solutions.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.Valid;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.tariff.RecalculationProgress;
+import tdr.solutions.tariff.RecalculationRequest;
+import tdr.solutions.tariff.TariffRecalculationService;
+
+import java.util.List;
+
+/**
+ * Controller for recalculating the total cost of the trips of a year after a tariff correction.
+ * Provides endpoints for starting a recalculation or a dry run and following its progress.
+ */
+@RestController
+@RequestMapping("/tdr/tariff")
+@Tag(name = "Trip Detail Record Tariffs", description = "APIs related to recalculating the cost of stored Trip Detail Records")
+public class TdrTariffController {
+
+    private final TariffRecalculationService tariffRecalculationService;
+
+    public TdrTariffController(TariffRecalculationService tariffRecalculationService) {
+        this.tariffRecalculationService = tariffRecalculationService;
+    }
+
+    /**
+     * Start recalculating the total cost of every trip of a year.
+     *
+     * @param year    the year of the trips
+     * @param request the pricing function and whether this is a dry run
+     * @return the ResponseEntity with status 202 (Accepted) and the progress of the started recalculation,
+     * or with status 404 (Not Found) if the recalculation cannot be started
+     * @throws TdrException if the recalculation cannot be started
+     */
+    @Operation(summary = "Start a tariff recalculation", description = "Prices every trip of the year with the given pricing function and writes the changed costs, or only reports them in a dry run. A failed recalculation resumes after its last checkpoint when started again.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "202", description = "Recalculation started",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = RecalculationProgress.class))}),
+            @ApiResponse(responseCode = "404", description = "Unknown year or pricing function, or a recalculation is running already",
+                    content = @Content)
+    })
+    @PostMapping("/{year}")
+    public ResponseEntity<RecalculationProgress> recalculate(@PathVariable int year,
+                                                             @Valid @RequestBody RecalculationRequest request)
+            throws TdrException {
+        return ResponseEntity.accepted().body(tariffRecalculationService.start(year, request));
+    }
+
+    /**
+     * List the latest recalculation of every year.
+     *
+     * @return the ResponseEntity with status 200 (OK) and the progress of the recalculations
+     */
+    @Operation(summary = "List tariff recalculations", description = "Retrieves the progress of the latest recalculation of every year.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Recalculations listed",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = RecalculationProgress.class))})
+    })
+    @GetMapping
+    public ResponseEntity<List<RecalculationProgress>> getRecalculations() {
+        return ResponseEntity.ok(tariffRecalculationService.getRecalculations());
+    }
+
+    /**
+     * Get the latest recalculation of a year.
+     *
+     * @param year the year
+     * @return the ResponseEntity with status 200 (OK) and the progress of the recalculation,
+     * or with status 404 (Not Found) if no recalculation of the year was started
+     * @throws TdrException if no recalculation of the year was started
+     */
+    @Operation(summary = "Get the tariff recalculation of a year", description = "Retrieves the progress and the first changes of the latest recalculation of a year.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Recalculation found",
+                    content = {@Content(mediaType = "application/json",
+                            schema = @Schema(implementation = RecalculationProgress.class))}),
+            @ApiResponse(responseCode = "404", description = "No recalculation of the year",
+                    content = @Content)
+    })
+    @GetMapping("/{year}")
+    public ResponseEntity<RecalculationProgress> getRecalculation(@PathVariable int year) throws TdrException {
+        return ResponseEntity.ok(tariffRecalculationService.getRecalculation(year));
+    }
+}
@@ -2,12 +2,15 @@ package tdr.solutions.exception;
 
 import java.util.Date;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.WebRequest;
 
+import tdr.solutions.validation.TdrValidationException;
+
 
 @ControllerAdvice
 public class ControllerExceptionHandler {
@@ -22,4 +25,29 @@ public class ControllerExceptionHandler {
     
     return new ResponseEntity<>(message, HttpStatus.NOT_FOUND);
   }
+
+  @ExceptionHandler({ShardUnavailableException.class})
+  public ResponseEntity<ErrorMessage> shardUnavailableException(ShardUnavailableException ex, WebRequest request) {
+    ErrorMessage message = new ErrorMessage(
+        HttpStatus.SERVICE_UNAVAILABLE.value(),
+        new Date(),
+        ex.getMessage(),
+        request.getDescription(false));
+
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, ex.getRetryAfter().toSeconds())))
+        .body(message);
+  }
+
+  @ExceptionHandler({TdrValidationException.class})
+  public ResponseEntity<ValidationErrorMessage> validationException(TdrValidationException ex, WebRequest request) {
+    ValidationErrorMessage message = new ValidationErrorMessage(
+        HttpStatus.BAD_REQUEST.value(),
+        new Date(),
+        ex.getMessage(),
+        request.getDescription(false),
+        ex.getViolations());
+
+    return new ResponseEntity<>(message, HttpStatus.BAD_REQUEST);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package tdr.solutions.exception;
+
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * Thrown when the shards of a year cannot be used because their initialization failed. The
+ * initialization is retried, so the request may succeed later.
+ */
+@Getter
+public class ShardUnavailableException extends RuntimeException {
+
+    /** The time until the initialization is tried again. */
+    private final Duration retryAfter;
+
+    public ShardUnavailableException(String s, Duration retryAfter, Throwable cause) {
+        super(s, cause);
+        this.retryAfter = retryAfter;
+    }
+}
@@ -0,0 +1,20 @@
+package tdr.solutions.exception;
+
+import java.util.Date;
+import java.util.List;
+
+import tdr.solutions.validation.TdrViolation;
+
+public class ValidationErrorMessage extends ErrorMessage {
+  private List<TdrViolation> violations;
+
+  public ValidationErrorMessage(int statusCode, Date timestamp, String message, String description,
+      List<TdrViolation> violations) {
+    super(statusCode, timestamp, message, description);
+    this.violations = violations;
+  }
+
+  public List<TdrViolation> getViolations() {
+    return violations;
+  }
+}
@@ -0,0 +1,227 @@
+package tdr.solutions.idempotency;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import tdr.solutions.config.ApiKeyAuthentication;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers the outcomes of create requests sent with an {@code Idempotency-Key} header, so that a
+ * retried request is answered from memory instead of being written again.
+ *
+ * <p>Keys are scoped by the API key of the request and the operation, so clients cannot see each
+ * other's outcomes. The first request of a key runs; requests with the same key arriving while it runs
+ * wait up to {@code tdr.idempotency.max-wait} for its outcome and are answered with 409 Conflict if it
+ * takes longer. Once it completed, requests with the same key get the same result, or the same
+ * {@link tdr.solutions.exception.TdrException}, for {@code tdr.idempotency.ttl} without touching a
+ * shard. Unchecked failures, such as an unavailable database, are not remembered, so the retry runs
+ * again. A key sent with a different request body is answered with 422 Unprocessable Entity; bodies
+ * are compared by the SHA-256 digest of their canonical JSON, with properties and map entries sorted,
+ * so that distinct bodies cannot pass for each other the way colliding hash codes could.</p>
+ *
+ * <p>At most {@code tdr.idempotency.max-keys} keys are kept; the oldest keys are dropped first.
+ * Requests are counted as {@code tdr.idempotency.requests} by {@code outcome}: {@code executed},
+ * {@code replayed}, {@code waited}, {@code conflict} or {@code mismatch}.</p>
+ */
+@Component
+public class IdempotencyStore {
+
+    /** The name of the HTTP header that carries the idempotency key. */
+    public static final String IDEMPOTENCY_KEY_HEADER_NAME = "Idempotency-Key";
+
+    /**
+     * A request that may fail with a checked exception.
+     *
+     * @param <V> the type of the result
+     * @param <E> the type of the checked exception
+     */
+    @FunctionalInterface
+    public interface Request<V, E extends Throwable> {
+
+        /**
+         * Runs the request.
+         *
+         * @return the result
+         * @throws E if the request fails
+         */
+        V run() throws E;
+    }
+
+    /**
+     * Identifies an idempotency key of a client.
+     *
+     * @param keyId     the ID of the API key that sent the request
+     * @param operation the operation the key was sent to
+     * @param key       the idempotency key
+     */
+    private record Key(String keyId, String operation, String key) {
+    }
+
+    /**
+     * The outcome of the first request of a key.
+     *
+     * @param requestDigest the SHA-256 digest of the canonical body of the request
+     * @param createdAt     when the request started, in {@link System#nanoTime()}
+     * @param outcome       the result or the remembered failure, completed once the request returned
+     */
+    private record Entry(byte[] requestDigest, long createdAt, CompletableFuture<Object> outcome) {
+    }
+
+    /** Writes request bodies the same way whatever the order of their properties and map entries. */
+    private static final ObjectMapper CANONICAL_MAPPER = JsonMapper.builder()
+            .findAndAddModules()
+            .enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .build();
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Map.Entry<Key, Entry>> order = new ConcurrentLinkedQueue<>();
+    private final MeterRegistry meterRegistry;
+    private final int maxKeys;
+    private final long ttlNanos;
+    private final Duration maxWait;
+
+    /**
+     * Constructor for {@code IdempotencyStore}.
+     *
+     * @param meterRegistry the registry the requests are counted in
+     * @param maxKeys       the number of keys kept at most
+     * @param ttl           how long the outcome of a key is kept
+     * @param maxWait       how long a request waits for a running request with the same key at most
+     */
+    public IdempotencyStore(MeterRegistry meterRegistry,
+                            @Value("${tdr.idempotency.max-keys:100000}") int maxKeys,
+                            @Value("${tdr.idempotency.ttl:PT1H}") Duration ttl,
+                            @Value("${tdr.idempotency.max-wait:PT30S}") Duration maxWait) {
+        this.meterRegistry = meterRegistry;
+        this.maxKeys = maxKeys;
+        this.ttlNanos = ttl.toNanos();
+        this.maxWait = maxWait;
+        meterRegistry.gauge("tdr.idempotency.keys", entries, ConcurrentHashMap::size);
+    }
+
+    /**
+     * Runs a request once per idempotency key.
+     *
+     * @param operation the operation the request is sent to
+     * @param key       the idempotency key of the request, or {@code null} to run the request anyway
+     * @param body      the body of the request, compared by its digest with the body of the first request of the key
+     * @param request   runs the request
+     * @param <V>       the type of the result
+     * @param <E>       the type of the checked exception of the request
+     * @return the result of this request or of the first request of the key
+     * @throws E if this request or the first request of the key failed with it
+     * @throws ResponseStatusException with 409 if the first request of the key is still running after the
+     *                                 maximum wait, with 422 if it had a different body
+     */
+    @SuppressWarnings("unchecked")
+    public <V, E extends Throwable> V execute(String operation, String key, Object body, Request<V, E> request) throws E {
+        if (key == null) {
+            return request.run();
+        }
+        Key scoped = new Key(ApiKeyAuthentication.currentKeyId(), operation, key);
+        byte[] requestDigest = digest(body);
+        long now = System.nanoTime();
+        Entry entry = new Entry(requestDigest, now, new CompletableFuture<>());
+        Entry existing = entries.compute(scoped, (k, current) ->
+                current == null || now - current.createdAt() > ttlNanos ? entry : current);
+        if (existing == entry) {
+            order.add(Map.entry(scoped, entry));
+            evict(now);
+            count("executed");
+            return run(scoped, entry, request);
+        }
+        if (!MessageDigest.isEqual(existing.requestDigest(), requestDigest)) {
+            count("mismatch");
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY,
+                    IDEMPOTENCY_KEY_HEADER_NAME + " " + key + " was sent with a different request");
+        }
+        Object outcome;
+        try {
+            count(existing.outcome().isDone() ? "replayed" : "waited");
+            outcome = existing.outcome().get(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            count("conflict");
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "The request with " + IDEMPOTENCY_KEY_HEADER_NAME + " " + key + " is still in progress");
+        } catch (ExecutionException e) {
+            throw IdempotencyStore.<E>rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + key, e);
+        }
+        return (V) outcome;
+    }
+
+    private <V, E extends Throwable> V run(Key key, Entry entry, Request<V, E> request) throws E {
+        V result;
+        try {
+            result = request.run();
+        } catch (RuntimeException | Error e) {
+            // Not remembered: waiting requests fail as well, later ones run again
+            entries.remove(key, entry);
+            entry.outcome().completeExceptionally(e);
+            throw e;
+        } catch (Throwable e) {
+            entry.outcome().completeExceptionally(e);
+            throw e;
+        }
+        entry.outcome().complete(result);
+        return result;
+    }
+
+    /**
+     * The cause of a failed request is the exception of the request, which is either unchecked or an {@code E}.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> E rethrow(Throwable cause) throws E {
+        throw (E) cause;
+    }
+
+    private static byte[] digest(Object body) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(CANONICAL_MAPPER.writeValueAsBytes(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Cannot digest the request body", e);
+        }
+    }
+
+    private void evict(long now) {
+        Map.Entry<Key, Entry> oldest;
+        while ((oldest = order.peek()) != null) {
+            Entry entry = oldest.getValue();
+            boolean current = entries.get(oldest.getKey()) == entry;
+            if (current && now - entry.createdAt() <= ttlNanos && entries.size() <= maxKeys) {
+                return;
+            }
+            if (order.remove(oldest) && current) {
+                entries.remove(oldest.getKey(), entry);
+            }
+        }
+    }
+
+    private void count(String outcome) {
+        meterRegistry.counter("tdr.idempotency.requests", "outcome", outcome).increment();
+    }
+}
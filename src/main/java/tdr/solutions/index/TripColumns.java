@@ -0,0 +1,86 @@
+package tdr.solutions.index;
+
+/**
+ * Append-only columnar store for the trips held by a {@link VehicleTimelineIndex}.
+ *
+ * <p>Rows are addressed by an {@code int} offset and laid out in fixed-size chunks of
+ * primitive arrays, so growing the store never copies existing rows. A row is written
+ * completely before its offset is handed out; readers only learn offsets through a
+ * timeline that was published after the write, which makes the row visible to them.</p>
+ *
+ * <p>Rows are never overwritten, since readers may still hold an older timeline pointing to them.
+ * The rows of replaced or removed trips are reclaimed by copying the live rows into a new store,
+ * see {@link VehicleTimelineIndex}.</p>
+ */
+final class TripColumns {
+
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final class Chunk {
+        final String[] sessionIds = new String[CHUNK_SIZE];
+        final long[] startTimes = new long[CHUNK_SIZE];
+        final long[] endTimes = new long[CHUNK_SIZE];
+        final double[] totalCosts = new double[CHUNK_SIZE];
+    }
+
+    /** Chunk directory, replaced (never mutated in place) when a new chunk is added. */
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    /** Number of rows written so far, guarded by {@code this}. */
+    private int size;
+
+    /**
+     * Appends a trip and returns its row offset.
+     *
+     * @param sessionId   the session ID of the trip
+     * @param startMicros the start time in epoch microseconds
+     * @param endMicros   the end time in epoch microseconds
+     * @param totalCost   the total cost of the trip
+     * @return the row offset of the appended trip
+     */
+    synchronized int append(String sessionId, long startMicros, long endMicros, double totalCost) {
+        int row = size;
+        int chunkIndex = row >>> CHUNK_SHIFT;
+        Chunk[] current = chunks;
+        if (chunkIndex == current.length) {
+            Chunk[] grown = new Chunk[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[chunkIndex] = new Chunk();
+            current = grown;
+        }
+        Chunk chunk = current[chunkIndex];
+        int offset = row & CHUNK_MASK;
+        chunk.sessionIds[offset] = sessionId;
+        chunk.startTimes[offset] = startMicros;
+        chunk.endTimes[offset] = endMicros;
+        chunk.totalCosts[offset] = totalCost;
+        chunks = current;
+        size = row + 1;
+        return row;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    String sessionId(int row) {
+        return chunks[row >>> CHUNK_SHIFT].sessionIds[row & CHUNK_MASK];
+    }
+
+    long startTime(int row) {
+        return chunks[row >>> CHUNK_SHIFT].startTimes[row & CHUNK_MASK];
+    }
+
+    long endTime(int row) {
+        return chunks[row >>> CHUNK_SHIFT].endTimes[row & CHUNK_MASK];
+    }
+
+    double totalCost(int row) {
+        return chunks[row >>> CHUNK_SHIFT].totalCosts[row & CHUNK_MASK];
+    }
+}
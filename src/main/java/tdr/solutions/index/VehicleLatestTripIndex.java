@@ -0,0 +1,381 @@
+package tdr.solutions.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import tdr.solutions.cache.CacheCoherenceService;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * In-memory index of the latest trip of every vehicle, the trip that ended last across all database
+ * shards, for fleet dashboards polling the current or last trip of many vehicles at once.
+ *
+ * <p>Every database shard keeps the latest trip of each of its vehicles in its
+ * {@code vehicle_latest_trip} table (see the {@code V9__CREATE_VEHICLE_LATEST_TRIP} migrations). The index
+ * mirrors these tables in one map from vehicle ID to a compact entry of primitives per year and placement,
+ * the shared sub-shards of the year or the dedicated shard of one operator (see
+ * {@link TdrShardingService#getPlacement(String, int)}), loaded by keyset-scanning the tables of every year
+ * when the application context starts, next to the {@link VehicleTimelineIndex}. An operator's latest trip
+ * of a vehicle is the one that ended last in the shards it reads, like
+ * {@link TdrShardingService#getReaders(String, int)} places them: its dedicated shard in the years it has
+ * one, the shared sub-shards otherwise. The shards of years initialized in the background are added once they
+ * are registered. Afterwards the index is kept up to date like the timeline: by
+ * {@link TdrService#createTdr} on this node and by the invalidation events of every other writer, see
+ * {@link CacheCoherenceService}. A trip replaces the latest trip of its vehicle if it ended later; when
+ * the latest trip itself is removed, the vehicle is read again from the shards' tables. Changes that
+ * arrive while the index is being (re)loaded are buffered and replayed onto the new data before it is
+ * published.</p>
+ *
+ * <p>Trips of archived years are not indexed. Until the index is loaded, or with
+ * {@code tdr.latest-trips.enabled=false}, latest trips are read from the shards' tables.</p>
+ */
+@Component
+public class VehicleLatestTripIndex implements SmartLifecycle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VehicleLatestTripIndex.class);
+
+    private final TdrShardingService tdrShardingService;
+    private final boolean enabled;
+    private final int loadBatchSize;
+    private final int chunkSize;
+
+    /** The latest trip by year, placement and vehicle ID, or {@code null} until the first load completed. */
+    private volatile ConcurrentHashMap<VehicleKey, LatestTrip> latestTrips;
+
+    private final Object loadLock = new Object();
+
+    /** Changes received while a load is running; {@code null} otherwise. Modified under {@link #loadLock}. */
+    private volatile List<Consumer<ConcurrentHashMap<VehicleKey, LatestTrip>>> pendingChanges;
+
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private volatile boolean running;
+
+    /**
+     * Identifies the latest trip of a vehicle in the shards of one year and placement.
+     *
+     * @param year      the year of the shards
+     * @param placement the operator of the dedicated shard, or {@code null} for the shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     */
+    private record VehicleKey(int year, String placement, String vehicleId) {
+    }
+
+    /**
+     * The latest trip of a vehicle.
+     *
+     * @param sessionId   the session ID of the trip
+     * @param startMicros the start time in epoch microseconds
+     * @param endMicros   the end time in epoch microseconds
+     * @param totalCost   the total cost of the trip
+     */
+    private record LatestTrip(String sessionId, long startMicros, long endMicros, double totalCost) {
+
+        static LatestTrip of(TripDetailRecordEntity entity) {
+            return new LatestTrip(entity.getSessionId(), EpochMicros.of(entity.getStartTime()),
+                    EpochMicros.of(entity.getEndTime()), entity.getTotalCost());
+        }
+
+        /** Whether this trip ended after the other one, with ties broken by session ID like the shards do. */
+        boolean endsAfter(LatestTrip other) {
+            return endMicros != other.endMicros ? endMicros > other.endMicros : sessionId.compareTo(other.sessionId) > 0;
+        }
+
+        TripDetailRecord toTripDetailRecord(String vehicleId) {
+            return new TripDetailRecord(sessionId, vehicleId, EpochMicros.toLocalDateTime(startMicros),
+                    EpochMicros.toLocalDateTime(endMicros), totalCost);
+        }
+    }
+
+    /**
+     * Constructor for {@code VehicleLatestTripIndex}.
+     *
+     * @param tdrShardingService the sharding service providing the database shards
+     * @param enabled            whether the index is built at all
+     * @param loadBatchSize      the number of vehicles fetched per keyset batch while loading
+     * @param chunkSize          the number of vehicle IDs sent to a shard per query when reading from the shards
+     */
+    public VehicleLatestTripIndex(TdrShardingService tdrShardingService,
+                                  @Value("${tdr.latest-trips.enabled:true}") boolean enabled,
+                                  @Value("${tdr.latest-trips.load-batch-size:5000}") int loadBatchSize,
+                                  @Value("${tdr.lookup.chunk-size:1000}") int chunkSize) {
+        this.tdrShardingService = tdrShardingService;
+        this.enabled = enabled;
+        this.loadBatchSize = loadBatchSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Loads the latest trips of the registered shards before the application starts serving requests.
+     */
+    @Override
+    public void start() {
+        if (enabled) {
+            load();
+            for (int year : tdrShardingService.getPendingYears()) {
+                tdrShardingService.whenRegistered(year).thenRun(this::reload);
+            }
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return VehicleTimelineIndex.PHASE;
+    }
+
+    /**
+     * Rebuilds the index from the databases in the background, for when changes may have been missed.
+     * The current data keeps serving reads until the new data is complete.
+     */
+    public void reload() {
+        if (latestTrips != null && reloading.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("tdr-latest-trips-reload").start(() -> {
+                try {
+                    load();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Reloading the latest trips of the vehicles failed", e);
+                } finally {
+                    reloading.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns whether latest trips are answered from memory.
+     *
+     * @return {@code true} if the index has been loaded
+     */
+    public boolean isServing() {
+        return latestTrips != null;
+    }
+
+    /**
+     * Makes a newly created TDR the latest trip of its vehicle if it ended last.
+     *
+     * @param placement the placement the TDR was stored in, or {@code null} for the shared sub-shards
+     * @param tdr       the TDR that was stored
+     */
+    public void onInsert(String placement, TripDetailRecord tdr) {
+        upsert(tdr.startTime().getYear(), placement, tdr.sessionId(), tdr.vehicleId(), EpochMicros.of(tdr.startTime()),
+                EpochMicros.of(tdr.endTime()), tdr.totalCost());
+    }
+
+    /**
+     * Applies a created or changed trip. Applying the same values twice has no effect. If the latest trip
+     * of the vehicle changed to end earlier, the vehicle is read again from the shards.
+     *
+     * @param shardYear   the year of the shard the trip was written to
+     * @param placement   the operator the shard is dedicated to, or {@code null} for the shared sub-shards
+     * @param sessionId   the session ID of the trip
+     * @param vehicleId   the ID of the vehicle
+     * @param startMicros the start time in epoch microseconds
+     * @param endMicros   the end time in epoch microseconds
+     * @param totalCost   the total cost of the trip
+     */
+    public void upsert(int shardYear, String placement, String sessionId, String vehicleId, long startMicros,
+                       long endMicros, double totalCost) {
+        if (enabled) {
+            VehicleKey key = new VehicleKey(shardYear, placement, vehicleId);
+            LatestTrip trip = new LatestTrip(sessionId, startMicros, endMicros, totalCost);
+            applyChange(indexed -> {
+                LatestTrip current = indexed.get(key);
+                if (current != null && current.sessionId().equals(sessionId) && current.endsAfter(trip)) {
+                    // The latest trip now ends earlier, so another trip of the vehicle may have become the latest
+                    refresh(indexed, key, sessionId);
+                } else {
+                    upsert(indexed, key, trip);
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies a removed trip. If it was the latest trip of its vehicle, the vehicle is read again from
+     * the shards.
+     *
+     * @param shardYear the year of the shard the trip was deleted from
+     * @param placement the operator the shard is dedicated to, or {@code null} for the shared sub-shards
+     * @param sessionId the session ID of the trip
+     * @param vehicleId the ID of the vehicle the trip was indexed under
+     */
+    public void remove(int shardYear, String placement, String sessionId, String vehicleId) {
+        if (enabled) {
+            VehicleKey key = new VehicleKey(shardYear, placement, vehicleId);
+            applyChange(indexed -> {
+                LatestTrip current = indexed.get(key);
+                if (current != null && current.sessionId().equals(sessionId)) {
+                    refresh(indexed, key, sessionId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns an operator's latest trips of several vehicles, from memory once the index is loaded and from
+     * the shards' tables otherwise. Only the shards the operator reads are considered, those of
+     * {@link TdrShardingService#getReaderShards(String, int)} in every year.
+     *
+     * @param operator   the charge point operator the read is placed for, or {@code null}
+     * @param vehicleIds the IDs of the vehicles
+     * @return the latest trip by vehicle ID, for the vehicles that have trips
+     */
+    public Map<String, TripDetailRecord> findLatestTrips(String operator, Collection<String> vehicleIds) {
+        Map<VehicleKey, LatestTrip> indexed = latestTrips;
+        if (indexed == null) {
+            return toTripDetailRecords(readFromShards(operator, vehicleIds));
+        }
+        Map<String, LatestTrip> found = new HashMap<>();
+        for (int year : tdrShardingService.getYears()) {
+            if (tdrShardingService.getReaderShards(operator, year).isEmpty()) {
+                // Archived years are not indexed, not even with the trips indexed before they were archived
+                continue;
+            }
+            String placement = tdrShardingService.getPlacement(operator, year);
+            for (String vehicleId : vehicleIds) {
+                LatestTrip trip = indexed.get(new VehicleKey(year, placement, vehicleId));
+                if (trip != null) {
+                    found.merge(vehicleId, trip, (current, candidate) -> candidate.endsAfter(current) ? candidate : current);
+                }
+            }
+        }
+        return toTripDetailRecords(found);
+    }
+
+    private static Map<String, TripDetailRecord> toTripDetailRecords(Map<String, LatestTrip> latest) {
+        Map<String, TripDetailRecord> result = HashMap.newHashMap(latest.size());
+        latest.forEach((vehicleId, trip) -> result.put(vehicleId, trip.toTripDetailRecord(vehicleId)));
+        return result;
+    }
+
+    private static <K> void upsert(ConcurrentHashMap<K, LatestTrip> indexed, K key, LatestTrip trip) {
+        indexed.merge(key, trip, (current, candidate) -> {
+            if (current.sessionId().equals(candidate.sessionId()) || candidate.endsAfter(current)) {
+                return candidate;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Replaces the removed latest trip of a vehicle with the one the shards of its year and placement hold
+     * now, unless a newer trip arrived in the meantime.
+     */
+    private void refresh(ConcurrentHashMap<VehicleKey, LatestTrip> indexed, VehicleKey vehicle, String removedSessionId) {
+        Shard dedicated = vehicle.placement() == null ? null : tdrShardingService.getTenantShards(vehicle.year()).get(vehicle.placement());
+        List<Shard> shards = dedicated != null ? List.of(dedicated) : tdrShardingService.getShards(vehicle.year());
+        LatestTrip reread = readFromShards(shards, List.of(vehicle.vehicleId())).get(vehicle.vehicleId());
+        indexed.compute(vehicle, (key, current) ->
+                current == null || current.sessionId().equals(removedSessionId) ? reread : current);
+    }
+
+    /**
+     * Reads an operator's latest trips of vehicles from the database shards it reads in every year.
+     */
+    private Map<String, LatestTrip> readFromShards(String operator, Collection<String> vehicleIds) {
+        List<Shard> shards = new ArrayList<>();
+        for (int year : tdrShardingService.getYears()) {
+            shards.addAll(tdrShardingService.getReaderShards(operator, year));
+        }
+        return readFromShards(shards, vehicleIds);
+    }
+
+    /**
+     * Reads the latest trips of vehicles from the given shards, one chunk of vehicle IDs per query.
+     */
+    private Map<String, LatestTrip> readFromShards(List<Shard> shards, Collection<String> vehicleIds) {
+        List<String> requested = List.copyOf(vehicleIds);
+        ConcurrentHashMap<String, LatestTrip> found = new ConcurrentHashMap<>();
+        for (Shard shard : shards) {
+            for (int from = 0; from < requested.size(); from += chunkSize) {
+                for (TripDetailRecordEntity entity : shard.repository().findLatestTripsOfVehicles(
+                        requested.subList(from, Math.min(from + chunkSize, requested.size())))) {
+                    upsert(found, entity.getVehicleId(), LatestTrip.of(entity));
+                }
+            }
+        }
+        return found;
+    }
+
+    private void applyChange(Consumer<ConcurrentHashMap<VehicleKey, LatestTrip>> change) {
+        if (pendingChanges != null) {
+            synchronized (loadLock) {
+                List<Consumer<ConcurrentHashMap<VehicleKey, LatestTrip>>> pending = pendingChanges;
+                if (pending != null) {
+                    pending.add(change);
+                }
+            }
+        }
+        ConcurrentHashMap<VehicleKey, LatestTrip> current = latestTrips;
+        if (current != null) {
+            change.accept(current);
+        }
+    }
+
+    private void load() {
+        synchronized (loadLock) {
+            pendingChanges = new ArrayList<>();
+        }
+        ConcurrentHashMap<VehicleKey, LatestTrip> loaded = null;
+        try {
+            loaded = scan();
+        } finally {
+            synchronized (loadLock) {
+                if (loaded != null) {
+                    ConcurrentHashMap<VehicleKey, LatestTrip> replayed = loaded;
+                    pendingChanges.forEach(change -> change.accept(replayed));
+                    latestTrips = loaded;
+                }
+                pendingChanges = null;
+            }
+        }
+    }
+
+    private ConcurrentHashMap<VehicleKey, LatestTrip> scan() {
+        long started = System.nanoTime();
+        ConcurrentHashMap<VehicleKey, LatestTrip> loaded = new ConcurrentHashMap<>();
+        // Shards of years still being initialized are not waited for; they reload the index once registered
+        for (Shard shard : tdrShardingService.getShards()) {
+            String placement = tdrShardingService.getOwner(shard);
+            String lastVehicleId = "";
+            List<TripDetailRecordEntity> batch;
+            do {
+                batch = shard.repository().findLatestTripsAfterVehicleId(lastVehicleId, loadBatchSize);
+                for (TripDetailRecordEntity entity : batch) {
+                    upsert(loaded, new VehicleKey(shard.year(), placement, entity.getVehicleId()), LatestTrip.of(entity));
+                    lastVehicleId = entity.getVehicleId();
+                }
+            } while (batch.size() == loadBatchSize);
+        }
+        LOGGER.info("Indexed the latest trips of {} vehicles in {} ms", loaded.size(),
+                Duration.ofNanos(System.nanoTime() - started).toMillis());
+        return loaded;
+    }
+}
@@ -0,0 +1,152 @@
+package tdr.solutions.index;
+
+/**
+ * Immutable view of one vehicle's trips, kept as two sorted runs of primitive arrays.
+ *
+ * <p>The start run holds start times in ascending order together with the row offset of
+ * each trip in {@link TripColumns}; the end run does the same for end times. Nothing is
+ * boxed, so a page is located with a binary search and read by walking the arrays.</p>
+ *
+ * <p>Updates return a new instance. Appending the newest trip writes into spare capacity
+ * behind {@link #size} and shares the arrays with the previous instance, which never reads
+ * past its own size; any other change copies the affected run. Callers must always derive
+ * the next instance from the latest one, which {@link VehicleTimelineIndex} ensures by
+ * updating each vehicle inside {@code ConcurrentHashMap.compute}.</p>
+ */
+final class VehicleTimeline {
+
+    static final VehicleTimeline EMPTY = new VehicleTimeline(new long[0], new int[0], new long[0], new int[0], 0);
+
+    private static final int MIN_CAPACITY = 4;
+
+    final long[] startTimes;
+    final int[] startRows;
+    final long[] endTimes;
+    final int[] endRows;
+    final int size;
+
+    private VehicleTimeline(long[] startTimes, int[] startRows, long[] endTimes, int[] endRows, int size) {
+        this.startTimes = startTimes;
+        this.startRows = startRows;
+        this.endTimes = endTimes;
+        this.endRows = endRows;
+        this.size = size;
+    }
+
+    /**
+     * Returns a timeline that additionally contains the given trip.
+     *
+     * @param startMicros the start time of the trip in epoch microseconds
+     * @param endMicros   the end time of the trip in epoch microseconds
+     * @param row         the row offset of the trip in {@link TripColumns}
+     * @return the updated timeline
+     */
+    VehicleTimeline insert(long startMicros, long endMicros, int row) {
+        int capacity = size < startTimes.length ? startTimes.length : Math.max(MIN_CAPACITY, size + (size >> 1) + 1);
+
+        long[] newStartTimes = startTimes;
+        int[] newStartRows = startRows;
+        int startPos = upperBound(startTimes, size, startMicros);
+        if (startPos != size || capacity != startTimes.length) {
+            newStartTimes = new long[capacity];
+            newStartRows = new int[capacity];
+            copyWithGap(startTimes, startRows, newStartTimes, newStartRows, startPos);
+        }
+        newStartTimes[startPos] = startMicros;
+        newStartRows[startPos] = row;
+
+        long[] newEndTimes = endTimes;
+        int[] newEndRows = endRows;
+        int endPos = upperBound(endTimes, size, endMicros);
+        if (endPos != size || capacity != endTimes.length) {
+            newEndTimes = new long[capacity];
+            newEndRows = new int[capacity];
+            copyWithGap(endTimes, endRows, newEndTimes, newEndRows, endPos);
+        }
+        newEndTimes[endPos] = endMicros;
+        newEndRows[endPos] = row;
+
+        return new VehicleTimeline(newStartTimes, newStartRows, newEndTimes, newEndRows, size + 1);
+    }
+
+    /**
+     * Returns a timeline without the given trip, or this timeline if the trip is not part of it.
+     *
+     * @param startMicros the start time the trip was indexed with
+     * @param endMicros   the end time the trip was indexed with
+     * @param row         the row offset of the trip in {@link TripColumns}
+     * @return the updated timeline
+     */
+    VehicleTimeline remove(long startMicros, long endMicros, int row) {
+        int startPos = positionOf(startTimes, startRows, startMicros, row);
+        int endPos = positionOf(endTimes, endRows, endMicros, row);
+        if (startPos < 0 || endPos < 0) {
+            return this;
+        }
+        int capacity = Math.max(MIN_CAPACITY, size - 1);
+        long[] newStartTimes = new long[capacity];
+        int[] newStartRows = new int[capacity];
+        copyWithout(startTimes, startRows, newStartTimes, newStartRows, startPos);
+        long[] newEndTimes = new long[capacity];
+        int[] newEndRows = new int[capacity];
+        copyWithout(endTimes, endRows, newEndTimes, newEndRows, endPos);
+        return new VehicleTimeline(newStartTimes, newStartRows, newEndTimes, newEndRows, size - 1);
+    }
+
+    /**
+     * @return the index of the first key greater than or equal to {@code key} within {@code [0, size)}
+     */
+    static int lowerBound(long[] keys, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first key strictly greater than {@code key} within {@code [0, size)}
+     */
+    static int upperBound(long[] keys, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int positionOf(long[] keys, int[] rows, long key, int row) {
+        for (int i = lowerBound(keys, size, key); i < size && keys[i] == key; i++) {
+            if (rows[i] == row) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void copyWithGap(long[] keys, int[] rows, long[] newKeys, int[] newRows, int gap) {
+        System.arraycopy(keys, 0, newKeys, 0, gap);
+        System.arraycopy(rows, 0, newRows, 0, gap);
+        System.arraycopy(keys, gap, newKeys, gap + 1, size - gap);
+        System.arraycopy(rows, gap, newRows, gap + 1, size - gap);
+    }
+
+    private void copyWithout(long[] keys, int[] rows, long[] newKeys, int[] newRows, int removed) {
+        System.arraycopy(keys, 0, newKeys, 0, removed);
+        System.arraycopy(rows, 0, newRows, 0, removed);
+        System.arraycopy(keys, removed + 1, newKeys, removed, size - removed - 1);
+        System.arraycopy(rows, removed + 1, newRows, removed, size - removed - 1);
+    }
+}
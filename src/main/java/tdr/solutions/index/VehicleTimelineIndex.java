@@ -0,0 +1,530 @@
+package tdr.solutions.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * In-memory index of every trip in the current year shard, grouped per vehicle.
+ *
+ * <p>Each vehicle's trips are held in a {@link VehicleTimeline} of sorted primitive arrays
+ * pointing into a shared {@link TripColumns} store, so vehicle history pages and start time
+ * range seeks for the current shard are answered with a binary search instead of a database
+ * round-trip. The current year's dedicated shards of operators are indexed along with its
+ * sub-shards, each under its placement (see {@link TdrShardingService#getPlacement(String, int)}),
+ * since a dedicated shard may hold the same vehicle and session IDs as the shared sub-shards.
+ * Older shards are not indexed and are still read from their databases.</p>
+ *
+ * <p>The index is loaded by keyset-scanning the current shard in batches when the application
+ * context starts, after the cache coherence listeners and before the web server. Afterwards it
+ * is kept up to date by {@link TdrService#createTdr} on this node and by the invalidation events
+ * of every other writer. Updates are idempotent upserts keyed by session ID, so a trip that
+ * arrives through both paths is indexed once. Changes that arrive while the shard is being
+ * (re)loaded are buffered and replayed onto the new data before it is published.</p>
+ *
+ * <p>The trip store is append-only, so a trip whose values change is written to a new row and a
+ * removed trip leaves its row behind. Once such dead rows make up half of the store, and at least
+ * {@code tdr.timeline.compaction-min-dead-rows}, the live trips are copied into a new store in the
+ * background, the same way a reload publishes its data.</p>
+ */
+@Component
+public class VehicleTimelineIndex implements SmartLifecycle {
+
+    /** Lifecycle phase of the index: after the invalidation listeners, before the web server. */
+    public static final int PHASE = 0;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VehicleTimelineIndex.class);
+
+    private final TdrShardingService tdrShardingService;
+    private final boolean enabled;
+    private final int loadBatchSize;
+    private final Duration maxTripDuration;
+    private final int compactionMinDeadRows;
+
+    /** The indexed data, or {@code null} until the first load completed. */
+    private volatile State state;
+
+    /** The year of the indexed shard, fixed when the index starts. */
+    private volatile int year;
+
+    private final Object loadLock = new Object();
+
+    /** Changes received while a load is running; {@code null} otherwise. Modified under {@link #loadLock}. */
+    private volatile List<Consumer<State>> pendingChanges;
+
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private volatile boolean running;
+
+    /**
+     * Constructor for {@code VehicleTimelineIndex}.
+     *
+     * @param tdrShardingService    the sharding service providing the current year and its repository
+     * @param enabled               whether the index is built at all
+     * @param loadBatchSize         the number of rows fetched per keyset batch while loading
+     * @param maxTripDuration       the longest trip expected; used to decide when older shards cannot
+     *                              contribute to an end time ordered page
+     * @param compactionMinDeadRows the number of rows of replaced or removed trips below which the
+     *                              store is not compacted
+     */
+    public VehicleTimelineIndex(TdrShardingService tdrShardingService,
+                                @Value("${tdr.timeline.enabled:true}") boolean enabled,
+                                @Value("${tdr.timeline.load-batch-size:5000}") int loadBatchSize,
+                                @Value("${tdr.timeline.max-trip-duration:PT24H}") Duration maxTripDuration,
+                                @Value("${tdr.timeline.compaction-min-dead-rows:100000}") int compactionMinDeadRows) {
+        this.tdrShardingService = tdrShardingService;
+        this.enabled = enabled;
+        this.loadBatchSize = loadBatchSize;
+        this.maxTripDuration = maxTripDuration;
+        this.compactionMinDeadRows = compactionMinDeadRows;
+    }
+
+    /**
+     * Loads the current year shard into memory before the application starts serving requests.
+     */
+    @Override
+    public void start() {
+        year = tdrShardingService.getCurrentYear();
+        if (enabled) {
+            load(this::scan);
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * Rebuilds the index from the database in the background, for when changes may have been
+     * missed. The current data keeps serving reads until the new data is complete.
+     */
+    public void reload() {
+        if (state != null && reloading.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("tdr-timeline-reload").start(() -> {
+                try {
+                    load(this::scan);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Reloading the vehicle timeline of shard {} failed", year, e);
+                } finally {
+                    reloading.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies the live trips into a new store in the background once the rows of replaced and removed
+     * trips make up half of the current one. The current data keeps serving reads meanwhile.
+     */
+    private void compactIfWasteful() {
+        State current = state;
+        if (current == null || current.deadRows.get() < compactionMinDeadRows
+                || current.deadRows.get() * 2L < current.columns.size() || !reloading.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("tdr-timeline-compaction").start(() -> {
+            try {
+                load(() -> state.compacted());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Compacting the vehicle timeline of shard {} failed", year, e);
+            } finally {
+                reloading.set(false);
+            }
+        });
+    }
+
+    /**
+     * @return the number of rows in the trip store, including those of replaced and removed trips
+     */
+    int storedRows() {
+        State current = state;
+        return current == null ? 0 : current.columns.size();
+    }
+
+    /**
+     * Returns whether reads for the given shard year can be answered from this index.
+     *
+     * @param year the shard year
+     * @return {@code true} if the index has been loaded and covers that shard
+     */
+    public boolean isServing(int year) {
+        State current = state;
+        return current != null && current.year == year;
+    }
+
+    /**
+     * Adds a newly created TDR to the index if it belongs to the indexed shard.
+     *
+     * @param placement the placement the TDR was stored in, or {@code null} for the shared sub-shards
+     * @param tdr       the TDR that was stored
+     */
+    public void onInsert(String placement, TripDetailRecord tdr) {
+        upsert(tdr.startTime().getYear(), placement, tdr.sessionId(), tdr.vehicleId(),
+                EpochMicros.of(tdr.startTime()), EpochMicros.of(tdr.endTime()), tdr.totalCost());
+    }
+
+    /**
+     * Inserts or replaces a trip of the given shard. Applying the same values twice has no effect.
+     *
+     * @param shardYear   the year of the shard the trip was written to
+     * @param placement   the operator the shard is dedicated to, or {@code null} for the shared sub-shards
+     * @param sessionId   the session ID of the trip
+     * @param vehicleId   the ID of the vehicle
+     * @param startMicros the start time in epoch microseconds
+     * @param endMicros   the end time in epoch microseconds
+     * @param totalCost   the total cost of the trip
+     */
+    public void upsert(int shardYear, String placement, String sessionId, String vehicleId, long startMicros,
+                       long endMicros, double totalCost) {
+        if (enabled && shardYear == year) {
+            VehicleKey key = new VehicleKey(placement, vehicleId);
+            applyChange(indexed -> indexed.upsert(sessionId, key, startMicros, endMicros, totalCost));
+            compactIfWasteful();
+        }
+    }
+
+    /**
+     * Removes a trip of the given shard, if it is indexed.
+     *
+     * @param shardYear the year of the shard the trip was deleted from
+     * @param placement the operator the shard is dedicated to, or {@code null} for the shared sub-shards
+     * @param sessionId the session ID of the trip
+     * @param vehicleId the ID of the vehicle the trip was indexed under
+     */
+    public void remove(int shardYear, String placement, String sessionId, String vehicleId) {
+        if (enabled && shardYear == year) {
+            VehicleKey key = new VehicleKey(placement, vehicleId);
+            applyChange(indexed -> indexed.remove(sessionId, key));
+            compactIfWasteful();
+        }
+    }
+
+    /**
+     * Returns one page of a vehicle's trips in the indexed shard, with the same semantics as
+     * {@link TripDetailRecordRepository#findAllByVehicleId(String, Pageable)}.
+     *
+     * @param placement the placement of the reading operator in the indexed year, or {@code null} for the
+     *                  shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     * @param pageable  the page and the sort order (by start time or end time)
+     * @return the trips on the requested page
+     */
+    public List<TripDetailRecord> findAllByVehicleId(String placement, String vehicleId, Pageable pageable) {
+        return state.slice(new VehicleKey(placement, vehicleId), pageable, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the trips of a vehicle in the indexed shard following a keyset position, with the same
+     * semantics as {@link TripDetailRecordRepository#findAllByVehicleIdAfter(String, TdrCursor, int)}.
+     *
+     * @param placement the placement of the reading operator in the indexed year, or {@code null} for the
+     *                  shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     * @param cursor    the order and the position after which trips are returned
+     * @param limit     the maximum number of trips
+     * @return the trips following the position, in the order of the cursor
+     */
+    public List<TripDetailRecord> findAllByVehicleIdAfter(String placement, String vehicleId, TdrCursor cursor, int limit) {
+        return state.seek(new VehicleKey(placement, vehicleId), cursor, limit);
+    }
+
+    /**
+     * Returns one page of a vehicle's trips in the indexed shard whose start time lies within
+     * {@code [from, to)}.
+     *
+     * @param placement the placement of the reading operator in the indexed year, or {@code null} for the
+     *                  shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     * @param from      the inclusive lower bound of the start time
+     * @param to        the exclusive upper bound of the start time
+     * @param pageable  the page and the sort order (by start time or end time)
+     * @return the trips on the requested page
+     */
+    public List<TripDetailRecord> findAllByVehicleIdAndStartTimeBetween(String placement, String vehicleId,
+                                                                        LocalDateTime from, LocalDateTime to,
+                                                                        Pageable pageable) {
+        return state.slice(new VehicleKey(placement, vehicleId), pageable, EpochMicros.of(from), EpochMicros.of(to));
+    }
+
+    /**
+     * Returns whether a page read from this index is the complete answer across all shards,
+     * meaning no older shard can hold a trip that sorts before any trip on the page.
+     *
+     * <p>That holds for full descending pages when the indexed shard is the newest one: its
+     * start times all lie after those of older shards. For end time ordering a trip of an older
+     * shard may still end in the indexed year, so the page must end at least
+     * {@code tdr.timeline.max-trip-duration} after the year started.</p>
+     *
+     * @param page     a page returned by {@link #findAllByVehicleId(String, String, Pageable)}
+     * @param pageable the request the page was read for
+     * @return {@code true} if older shards do not need to be queried
+     */
+    public boolean supersedesOlderShards(List<TripDetailRecord> page, Pageable pageable) {
+        State current = state;
+        Sort.Order order = pageable.getSort().stream().findFirst().get();
+        if (current == null || !current.newestShard || !order.isDescending() || page.size() < pageable.getPageSize()) {
+            return false;
+        }
+        if (order.getProperty().equals(TdrService.START_TIME)) {
+            return true;
+        }
+        LocalDateTime earliestPossibleOlderEnd = LocalDateTime.of(current.year, 1, 1, 0, 0).plus(maxTripDuration);
+        return !page.get(page.size() - 1).endTime().isBefore(earliestPossibleOlderEnd);
+    }
+
+    private void applyChange(Consumer<State> change) {
+        if (pendingChanges != null) {
+            synchronized (loadLock) {
+                List<Consumer<State>> pending = pendingChanges;
+                if (pending != null) {
+                    pending.add(change);
+                }
+            }
+        }
+        State current = state;
+        if (current != null) {
+            change.accept(current);
+        }
+    }
+
+    private void load(Supplier<State> build) {
+        synchronized (loadLock) {
+            pendingChanges = new ArrayList<>();
+        }
+        State loaded = null;
+        try {
+            loaded = build.get();
+        } finally {
+            synchronized (loadLock) {
+                if (loaded != null) {
+                    State replayed = loaded;
+                    pendingChanges.forEach(change -> change.accept(replayed));
+                    state = loaded;
+                }
+                pendingChanges = null;
+            }
+        }
+    }
+
+    private State scan() {
+        List<Shard> shards = new ArrayList<>(tdrShardingService.getShards(year));
+        shards.addAll(tdrShardingService.getTenantShards(year).values());
+        if (shards.isEmpty()) {
+            return null;
+        }
+        long started = System.nanoTime();
+        State loaded = new State(year, year == tdrShardingService.getYears().last());
+        // Sub-shards hold disjoint vehicles, and dedicated shards are indexed under placements of their own
+        for (Shard shard : shards) {
+            String placement = tdrShardingService.getOwner(shard);
+            long lastId = 0;
+            List<TripDetailRecordEntity> batch;
+            do {
+                batch = shard.repository().findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(loadBatchSize));
+                for (TripDetailRecordEntity entity : batch) {
+                    loaded.upsert(entity.getSessionId(), new VehicleKey(placement, entity.getVehicleId()),
+                            EpochMicros.of(entity.getStartTime()), EpochMicros.of(entity.getEndTime()), entity.getTotalCost());
+                    lastId = entity.getId();
+                }
+            } while (batch.size() == loadBatchSize);
+        }
+        LOGGER.info("Indexed {} trips of {} vehicles from shard {} in {} ms", loaded.columns.size(), loaded.timelines.size(),
+                year, Duration.ofNanos(System.nanoTime() - started).toMillis());
+        return loaded;
+    }
+
+    /**
+     * Identifies the timeline of a vehicle within a placement.
+     *
+     * @param placement the operator of the dedicated shard, or {@code null} for the shared sub-shards
+     * @param vehicleId the ID of the vehicle
+     */
+    private record VehicleKey(String placement, String vehicleId) {
+    }
+
+    /**
+     * One complete copy of the indexed shard.
+     */
+    private static final class State {
+
+        final int year;
+        final boolean newestShard;
+        final TripColumns columns = new TripColumns();
+        final ConcurrentHashMap<VehicleKey, VehicleTimeline> timelines = new ConcurrentHashMap<>();
+
+        /** The number of rows of {@link #columns} no timeline points to any more. */
+        final AtomicInteger deadRows = new AtomicInteger();
+
+        State(int year, boolean newestShard) {
+            this.year = year;
+            this.newestShard = newestShard;
+        }
+
+        void upsert(String sessionId, VehicleKey vehicle, long startMicros, long endMicros, double totalCost) {
+            timelines.compute(vehicle, (key, timeline) -> {
+                VehicleTimeline current = timeline == null ? VehicleTimeline.EMPTY : timeline;
+                int existing = rowOf(current, sessionId);
+                if (existing >= 0) {
+                    long indexedStart = columns.startTime(existing);
+                    long indexedEnd = columns.endTime(existing);
+                    if (indexedStart == startMicros && indexedEnd == endMicros
+                            && Double.compare(columns.totalCost(existing), totalCost) == 0) {
+                        return current;
+                    }
+                    current = current.remove(indexedStart, indexedEnd, existing);
+                    deadRows.incrementAndGet();
+                }
+                return current.insert(startMicros, endMicros, columns.append(sessionId, startMicros, endMicros, totalCost));
+            });
+        }
+
+        void remove(String sessionId, VehicleKey vehicle) {
+            timelines.computeIfPresent(vehicle, (key, timeline) -> {
+                int existing = rowOf(timeline, sessionId);
+                if (existing < 0) {
+                    return timeline;
+                }
+                VehicleTimeline updated = timeline.remove(columns.startTime(existing), columns.endTime(existing), existing);
+                deadRows.incrementAndGet();
+                return updated.size == 0 ? null : updated;
+            });
+        }
+
+        /**
+         * Copies the trips every timeline points to into a new state, leaving the dead rows behind.
+         */
+        State compacted() {
+            long started = System.nanoTime();
+            State copy = new State(year, newestShard);
+            timelines.forEach((vehicle, timeline) -> {
+                for (int i = 0; i < timeline.size; i++) {
+                    int row = timeline.startRows[i];
+                    copy.upsert(columns.sessionId(row), vehicle, columns.startTime(row), columns.endTime(row),
+                            columns.totalCost(row));
+                }
+            });
+            LOGGER.info("Compacted the vehicle timeline of shard {} from {} to {} rows in {} ms", year, columns.size(),
+                    copy.columns.size(), Duration.ofNanos(System.nanoTime() - started).toMillis());
+            return copy;
+        }
+
+        /**
+         * Finds the row of a session within a vehicle's timeline, newest trips first since
+         * repeated upserts almost always concern the latest trip.
+         */
+        private int rowOf(VehicleTimeline timeline, String sessionId) {
+            for (int i = timeline.size - 1; i >= 0; i--) {
+                int row = timeline.startRows[i];
+                if (columns.sessionId(row).equals(sessionId)) {
+                    return row;
+                }
+            }
+            return -1;
+        }
+
+        List<TripDetailRecord> slice(VehicleKey vehicle, Pageable pageable, long fromMicros, long toMicros) {
+            String vehicleId = vehicle.vehicleId();
+            VehicleTimeline timeline = timelines.getOrDefault(vehicle, VehicleTimeline.EMPTY);
+            Sort.Order order = pageable.getSort().stream().findFirst().get();
+            boolean descending = order.isDescending();
+            long offset = pageable.getOffset();
+            int limit = pageable.getPageSize();
+            List<TripDetailRecord> result = new ArrayList<>(Math.min(limit, timeline.size));
+
+            if (order.getProperty().equals(TdrService.START_TIME)) {
+                int low = VehicleTimeline.lowerBound(timeline.startTimes, timeline.size, fromMicros);
+                int high = VehicleTimeline.lowerBound(timeline.startTimes, timeline.size, toMicros);
+                long count = Math.min(limit, high - low - offset);
+                for (int i = 0; i < count; i++) {
+                    int position = descending ? high - 1 - (int) offset - i : low + (int) offset + i;
+                    result.add(toTripDetailRecord(vehicleId, timeline.startRows[position]));
+                }
+                return result;
+            }
+
+            long skipped = 0;
+            for (int i = 0; i < timeline.size && result.size() < limit; i++) {
+                int row = timeline.endRows[descending ? timeline.size - 1 - i : i];
+                long start = columns.startTime(row);
+                if (start < fromMicros || start >= toMicros || skipped++ < offset) {
+                    continue;
+                }
+                result.add(toTripDetailRecord(vehicleId, row));
+            }
+            return result;
+        }
+
+        List<TripDetailRecord> seek(VehicleKey vehicle, TdrCursor cursor, int limit) {
+            VehicleTimeline timeline = timelines.getOrDefault(vehicle, VehicleTimeline.EMPTY);
+            boolean byStartTime = cursor.sortBy().equals(TdrCursor.START_TIME);
+            long[] times = byStartTime ? timeline.startTimes : timeline.endTimes;
+            int[] rows = byStartTime ? timeline.startRows : timeline.endRows;
+            int first;
+            if (cursor.isFirst()) {
+                first = cursor.descending() ? timeline.size - 1 : 0;
+            } else {
+                long key = EpochMicros.of(cursor.key());
+                first = cursor.descending()
+                        ? VehicleTimeline.upperBound(times, timeline.size, key) - 1
+                        : VehicleTimeline.lowerBound(times, timeline.size, key);
+            }
+            int step = cursor.descending() ? -1 : 1;
+            List<TripDetailRecord> result = new ArrayList<>(Math.min(limit, timeline.size));
+            for (int i = first; i >= 0 && i < timeline.size; i += step) {
+                // Trips with the same key are in no particular order, so all of them are read before cutting off
+                if (result.size() >= limit && times[i] != times[i - step]) {
+                    break;
+                }
+                TripDetailRecord tdr = toTripDetailRecord(vehicle.vehicleId(), rows[i]);
+                if (cursor.precedes(cursor.keyOf(tdr.startTime(), tdr.endTime()), tdr.sessionId())) {
+                    result.add(tdr);
+                }
+            }
+            result.sort(cursor.comparator());
+            return result.size() > limit ? result.subList(0, limit) : result;
+        }
+
+        private TripDetailRecord toTripDetailRecord(String vehicleId, int row) {
+            return new TripDetailRecord(
+                    columns.sessionId(row),
+                    vehicleId,
+                    EpochMicros.toLocalDateTime(columns.startTime(row)),
+                    EpochMicros.toLocalDateTime(columns.endTime(row)),
+                    columns.totalCost(row));
+        }
+    }
+}
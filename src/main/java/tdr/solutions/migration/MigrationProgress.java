@@ -0,0 +1,42 @@
+package tdr.solutions.migration;
+
+import java.util.List;
+
+/**
+ * A snapshot of a bucket migration.
+ *
+ * @param year          the year of the migrated sub-shards
+ * @param target        the name of the sub-shard the buckets are moved to
+ * @param buckets       the migrated buckets
+ * @param state         the phase the migration is in
+ * @param scannedRows   the source rows scanned while copying
+ * @param copiedRows    the rows copied into the target, including repaired ones
+ * @param repairedRows  the rows copied again because a range checksum did not match, and the copies
+ *                      deleted because their rows were deleted from the sources
+ * @param deletedRows   the rows removed from the sources after the routing flip
+ * @param progress      the share of the source rows copied, between 0 and 1
+ * @param rowsPerSecond the scan throughput of the copy phase
+ * @param error         the reason of a failed migration, otherwise {@code null}
+ */
+public record MigrationProgress(int year, String target, List<Integer> buckets, MigrationState state,
+                                long scannedRows, long copiedRows, long repairedRows, long deletedRows,
+                                double progress, double rowsPerSecond, String error) {
+
+    /**
+     * The phases of a bucket migration.
+     */
+    public enum MigrationState {
+        /** New trips of the buckets are written to the target as well; waiting for all nodes to notice. */
+        DUAL_WRITING,
+        /** Rows of the buckets are copied into the target. */
+        COPYING,
+        /** Source and target are compared range by range. */
+        VERIFYING,
+        /** The target owns the buckets; the copies left in the sources are removed. */
+        CLEANING,
+        /** The migration is complete. */
+        DONE,
+        /** The migration stopped; starting it again resumes it. */
+        FAILED
+    }
+}
@@ -0,0 +1,15 @@
+package tdr.solutions.migration;
+
+import jakarta.validation.constraints.NotBlank;
+
+import java.util.List;
+
+/**
+ * A request to move buckets of a year to one of its sub-shards.
+ *
+ * @param target  the name of the sub-shard the buckets are moved to
+ * @param buckets the buckets to move; if empty, every bucket the consistent hash ring assigns to
+ *                the target but another sub-shard owns is moved, which rebalances a newly added sub-shard
+ */
+public record MigrationRequest(@NotBlank String target, List<Integer> buckets) {
+}
@@ -0,0 +1,551 @@
+package tdr.solutions.migration;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.migration.MigrationProgress.MigrationState;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.ShardRoutingStore;
+import tdr.solutions.service.TdrShardingService;
+import tdr.solutions.service.VehicleShardRouter;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * Service class responsible for moving vehicle buckets between the sub-shards of a year while the
+ * application keeps serving reads and writes.
+ *
+ * <p>A migration runs through the phases of {@link MigrationState}:</p>
+ * <ol>
+ *     <li>The buckets are marked as migrating in the routing table (see {@link ShardRoutingStore}), and
+ *     every node starts writing new trips of those buckets to the target as well. The migration waits
+ *     two routing refresh intervals so that all nodes picked this up.</li>
+ *     <li>The source sub-shards are scanned by id in chunks of {@code tdr.migration.chunk-size} rows,
+ *     throttled to {@code tdr.migration.max-rows-per-second}; rows of the buckets missing in the target
+ *     are inserted. The scanned id is checkpointed per bucket, so a failed migration resumes where it
+ *     stopped when it is started again.</li>
+ *     <li>Every chunk of the sources is compared with the target by an order-independent checksum.
+ *     Mismatching ranges are copied once more: missing rows are inserted, and copies of rows updated
+ *     since they were copied are replaced. If they still differ, the migration fails and the routing is
+ *     left untouched. Copies of rows deleted from the sources since, such as expired trips trimmed by
+ *     the retention, are deleted from the target.</li>
+ *     <li>The target becomes the owner of the buckets with a single update of the routing table, which
+ *     this node applies at once and the others on their next routing refresh. After two refresh
+ *     intervals the copies left in the sources are deleted.</li>
+ * </ol>
+ *
+ * <p>Updates made to the sources while the buckets migrate reach the target too: the tariff
+ * recalculation writes changed costs to the copies as well (see
+ * {@link TdrShardingService#getMigrationTarget(Shard, String)}), and the retention removes expired
+ * trips from every shard, the target included.</p>
+ *
+ * <p>Copies and deletions run with {@code tdr.migration} set to {@code on}, which makes the PostgreSQL
+ * triggers skip the overlap check and the cache invalidation notifications for rows that only move.
+ * Progress and throughput are published as {@code tdr.migration.*} metrics.</p>
+ */
+@Service
+public class ShardMigrationService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardMigrationService.class);
+
+    private static final String INSERT_SQL =
+            "INSERT INTO trip_detail_record (sessionid, vehicleid, starttime, endtime, totalcost) VALUES (?, ?, ?, ?, ?)";
+    /** Deletes a row by id; the start time lets PostgreSQL prune the deletion to the row's partition. */
+    private static final String DELETE_SQL = "DELETE FROM trip_detail_record WHERE id = ? AND starttime = ?";
+    private static final int INSERT_ATTEMPTS = 3;
+
+    private final TdrShardingService tdrShardingService;
+    private final ShardRoutingStore shardRoutingStore;
+    private final MeterRegistry meterRegistry;
+    private final int chunkSize;
+    private final int maxRowsPerSecond;
+    private final Duration routingRefreshInterval;
+
+    private final Map<Integer, Migration> migrations = new ConcurrentHashMap<>();
+    private ScheduledExecutorService routingRefresher;
+
+    /**
+     * Constructor for {@code ShardMigrationService}.
+     *
+     * @param tdrShardingService     the sharding service whose routing is changed
+     * @param shardRoutingStore      the store of the persisted routing tables
+     * @param meterRegistry          the registry of the migration metrics
+     * @param chunkSize              the number of source rows scanned per chunk
+     * @param maxRowsPerSecond       the maximum number of source rows scanned per second
+     * @param routingRefreshInterval the interval in which every node reloads the routing tables
+     */
+    public ShardMigrationService(TdrShardingService tdrShardingService, ShardRoutingStore shardRoutingStore,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${tdr.migration.chunk-size:1000}") int chunkSize,
+                                 @Value("${tdr.migration.max-rows-per-second:5000}") int maxRowsPerSecond,
+                                 @Value("${tdr.migration.routing-refresh-interval:PT5S}") Duration routingRefreshInterval) {
+        this.tdrShardingService = tdrShardingService;
+        this.shardRoutingStore = shardRoutingStore;
+        this.meterRegistry = meterRegistry;
+        this.chunkSize = chunkSize;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.routingRefreshInterval = routingRefreshInterval;
+    }
+
+    /**
+     * Starts reloading the routing tables periodically, so that migrations started on other nodes
+     * take effect on this one.
+     */
+    @PostConstruct
+    public void init() {
+        routingRefresher = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("tdr-routing-refresh").factory());
+        long interval = routingRefreshInterval.toMillis();
+        routingRefresher.scheduleWithFixedDelay(this::refreshRouting, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reloading the routing tables.
+     */
+    @PreDestroy
+    public void close() {
+        routingRefresher.shutdownNow();
+    }
+
+    private void refreshRouting() {
+        for (int year : tdrShardingService.getYears()) {
+            try {
+                tdrShardingService.refreshRouting(year);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not refresh the routing of year {}", year, e);
+            }
+        }
+    }
+
+    /**
+     * Starts moving buckets of a year to one of its sub-shards in the background.
+     *
+     * @param year    the year of the sub-shards
+     * @param request the target and the buckets to move
+     * @return the progress of the started migration
+     * @throws TdrException if the year or target does not exist, no bucket has to move, or a migration
+     *                      of the year is running already
+     */
+    public MigrationProgress start(int year, MigrationRequest request) throws TdrException {
+        List<Shard> shards = tdrShardingService.getShards(year);
+        if (shards.isEmpty()) {
+            throw new TdrException("no database shard for year " + year);
+        }
+        VehicleShardRouter router = tdrShardingService.getRouter(year);
+        int target = router.getShardNames().indexOf(request.target());
+        if (target < 0) {
+            throw new TdrException("no sub-shard " + request.target() + " in year " + year);
+        }
+        Set<Integer> buckets = new TreeSet<>();
+        if (request.buckets() == null || request.buckets().isEmpty()) {
+            VehicleShardRouter ring = new VehicleShardRouter(router.getShardNames());
+            for (int bucket = 0; bucket < VehicleShardRouter.BUCKETS; bucket++) {
+                if (ring.ownerOf(bucket) == target && router.ownerOf(bucket) != target) {
+                    buckets.add(bucket);
+                }
+            }
+        } else {
+            for (int bucket : request.buckets()) {
+                if (bucket < 0 || bucket >= VehicleShardRouter.BUCKETS) {
+                    throw new TdrException("bucket " + bucket + " does not exist");
+                }
+                if (router.ownerOf(bucket) != target) {
+                    buckets.add(bucket);
+                }
+            }
+        }
+        if (buckets.isEmpty()) {
+            throw new TdrException("sub-shard " + request.target() + " owns the buckets already");
+        }
+        Migration migration = new Migration(year, shards, target, router, buckets);
+        if (migrations.compute(year, (key, previous) -> previous != null && previous.isActive() ? previous : migration) != migration) {
+            throw new TdrException("a migration of year " + year + " is running already");
+        }
+        registerGauges(year);
+        Thread.ofVirtual().name("tdr-migration-" + year).start(() -> run(migration));
+        return migration.progress();
+    }
+
+    /**
+     * Returns the progress of the latest migration of every year.
+     *
+     * @return the progress, oldest year first
+     */
+    public List<MigrationProgress> getMigrations() {
+        return new TreeMap<>(migrations).values().stream().map(Migration::progress).toList();
+    }
+
+    /**
+     * Returns the progress of the latest migration of a year.
+     *
+     * @param year the year
+     * @return the progress
+     * @throws TdrException if no migration of the year was started
+     */
+    public MigrationProgress getMigration(int year) throws TdrException {
+        Migration migration = migrations.get(year);
+        if (migration == null) {
+            throw new TdrException("no migration of year " + year);
+        }
+        return migration.progress();
+    }
+
+    private void run(Migration migration) {
+        DataSource routingDataSource = migration.shards.get(0).dataSource();
+        Shard target = migration.shards.get(migration.target);
+        try {
+            shardRoutingStore.startMigration(routingDataSource, migration.buckets, target.name());
+            tdrShardingService.refreshRouting(migration.year);
+            awaitRoutingRefresh();
+
+            migration.state = MigrationState.COPYING;
+            Map<Integer, ShardRoutingStore.BucketRoute> routes = shardRoutingStore.load(routingDataSource);
+            migration.totalRows = migration.bucketsBySource.keySet().stream()
+                    .mapToLong(source -> migration.shards.get(source).repository().count()).sum();
+            migration.copyStarted = System.nanoTime();
+            for (Map.Entry<Integer, Set<Integer>> source : migration.bucketsBySource.entrySet()) {
+                long copiedUpTo = source.getValue().stream()
+                        .mapToLong(bucket -> routes.get(bucket).copiedUpTo()).min().orElse(0);
+                copy(migration, migration.shards.get(source.getKey()), target, source.getValue(), copiedUpTo);
+            }
+
+            migration.copyFinished = System.nanoTime();
+            migration.state = MigrationState.VERIFYING;
+            for (Map.Entry<Integer, Set<Integer>> source : migration.bucketsBySource.entrySet()) {
+                verify(migration, migration.shards.get(source.getKey()), target, source.getValue());
+                deleteVanished(migration, migration.shards.get(source.getKey()), target, source.getValue());
+            }
+
+            shardRoutingStore.finishMigration(routingDataSource, migration.buckets, target.name());
+            tdrShardingService.refreshRouting(migration.year);
+            migration.state = MigrationState.CLEANING;
+            awaitRoutingRefresh();
+            for (Map.Entry<Integer, Set<Integer>> source : migration.bucketsBySource.entrySet()) {
+                cleanUp(migration, migration.shards.get(source.getKey()), source.getValue());
+            }
+            migration.state = MigrationState.DONE;
+            LOGGER.info("Moved {} buckets of year {} to {}: {} rows copied, {} repaired, {} deleted", migration.buckets.size(),
+                    migration.year, target.name(), migration.copiedRows.get(), migration.repairedRows.get(), migration.deletedRows.get());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            migration.error = e.getMessage();
+            migration.state = MigrationState.FAILED;
+            LOGGER.error("Migration of {} buckets of year {} to {} failed", migration.buckets.size(), migration.year, target.name(), e);
+        }
+    }
+
+    private void copy(Migration migration, Shard source, Shard target, Set<Integer> buckets, long copiedUpTo)
+            throws SQLException, InterruptedException {
+        DataSource routingDataSource = migration.shards.get(0).dataSource();
+        long lastId = copiedUpTo;
+        List<TripDetailRecordEntity> batch;
+        do {
+            batch = source.repository().findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(chunkSize));
+            int inserted = insertMissing(target, inBuckets(batch, buckets));
+            migration.copiedRows.addAndGet(inserted);
+            rows(migration.year, "copied").increment(inserted);
+            if (!batch.isEmpty()) {
+                lastId = batch.get(batch.size() - 1).getId();
+                shardRoutingStore.checkpoint(routingDataSource, buckets, lastId);
+            }
+            migration.scannedRows.addAndGet(batch.size());
+            throttle(migration.copyStarted, migration.scannedRows.get());
+        } while (batch.size() == chunkSize);
+    }
+
+    private void verify(Migration migration, Shard source, Shard target, Set<Integer> buckets)
+            throws SQLException, InterruptedException {
+        long started = System.nanoTime();
+        long scanned = 0;
+        long lastId = 0;
+        List<TripDetailRecordEntity> batch;
+        do {
+            batch = source.repository().findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(chunkSize));
+            List<TripDetailRecordEntity> rows = inBuckets(batch, buckets);
+            if (!rows.isEmpty() && checksum(rows) != checksum(copiesOf(target, rows))) {
+                // Read the rows again, they may have changed since the chunk was read
+                rows = source.repository().findAllBySessionIdIn(rows.stream().map(TripDetailRecordEntity::getSessionId).toList());
+                replaceStale(target, rows);
+                int repaired = insertMissing(target, rows);
+                migration.repairedRows.addAndGet(repaired);
+                migration.copiedRows.addAndGet(repaired);
+                rows(migration.year, "repaired").increment(repaired);
+                if (checksum(rows) != checksum(copiesOf(target, rows))) {
+                    throw new IllegalStateException("Checksum mismatch between " + source.name() + " and " + target.name()
+                            + " for ids " + rows.get(0).getId() + " to " + rows.get(rows.size() - 1).getId());
+                }
+            }
+            if (!batch.isEmpty()) {
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+            scanned += batch.size();
+            throttle(started, scanned);
+        } while (batch.size() == chunkSize);
+    }
+
+    /**
+     * Deletes the copies in the target whose rows were deleted from the source after they were copied.
+     * New rows are written to the source before they are dual-written, so a copy without its row has
+     * no row to come.
+     */
+    private void deleteVanished(Migration migration, Shard source, Shard target, Set<Integer> buckets)
+            throws SQLException, InterruptedException {
+        long started = System.nanoTime();
+        long scanned = 0;
+        long lastId = 0;
+        List<TripDetailRecordEntity> batch;
+        do {
+            batch = target.repository().findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(chunkSize));
+            List<TripDetailRecordEntity> copies = inBuckets(batch, buckets);
+            if (!copies.isEmpty()) {
+                Set<String> present = copiesOf(source, copies).stream().map(TripDetailRecordEntity::getSessionId)
+                        .collect(Collectors.toSet());
+                List<Object[]> vanished = copies.stream().filter(copy -> !present.contains(copy.getSessionId()))
+                        .map(copy -> new Object[]{copy.getId(), copy.getStartTime()})
+                        .toList();
+                executeAsMigration(target.dataSource(), DELETE_SQL, vanished);
+                migration.repairedRows.addAndGet(vanished.size());
+                rows(migration.year, "repaired").increment(vanished.size());
+            }
+            if (!batch.isEmpty()) {
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+            scanned += batch.size();
+            throttle(started, scanned);
+        } while (batch.size() == chunkSize);
+    }
+
+    private void cleanUp(Migration migration, Shard source, Set<Integer> buckets) throws SQLException, InterruptedException {
+        long started = System.nanoTime();
+        long scanned = 0;
+        long lastId = 0;
+        List<TripDetailRecordEntity> batch;
+        do {
+            batch = source.repository().findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(chunkSize));
+            List<Object[]> ids = inBuckets(batch, buckets).stream().map(row -> new Object[]{row.getId(), row.getStartTime()}).toList();
+            executeAsMigration(source.dataSource(), DELETE_SQL, ids);
+            migration.deletedRows.addAndGet(ids.size());
+            rows(migration.year, "deleted").increment(ids.size());
+            if (!batch.isEmpty()) {
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+            scanned += batch.size();
+            throttle(started, scanned);
+        } while (batch.size() == chunkSize);
+    }
+
+    /**
+     * Inserts the rows the target does not hold yet. Dual writes may insert some of them concurrently,
+     * in which case the unique session ID makes the batch fail and it is retried.
+     *
+     * @return the number of inserted rows
+     */
+    private int insertMissing(Shard target, List<TripDetailRecordEntity> rows) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            Set<String> present = copiesOf(target, rows).stream().map(TripDetailRecordEntity::getSessionId)
+                    .collect(Collectors.toSet());
+            List<Object[]> missing = rows.stream().filter(row -> !present.contains(row.getSessionId()))
+                    .map(row -> new Object[]{row.getSessionId(), row.getVehicleId(), row.getStartTime(), row.getEndTime(),
+                            row.getTotalCost()})
+                    .toList();
+            try {
+                executeAsMigration(target.dataSource(), INSERT_SQL, missing);
+                return missing.size();
+            } catch (SQLException e) {
+                if (attempt == INSERT_ATTEMPTS || e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the copies that differ from their rows, because the rows were updated after they were
+     * copied, so that {@link #insertMissing(Shard, List)} copies them again.
+     */
+    private static void replaceStale(Shard target, List<TripDetailRecordEntity> rows) throws SQLException {
+        Map<String, Long> checksums = rows.stream()
+                .collect(Collectors.toMap(TripDetailRecordEntity::getSessionId, row -> checksum(List.of(row))));
+        List<Object[]> stale = copiesOf(target, rows).stream()
+                .filter(copy -> checksums.get(copy.getSessionId()) != checksum(List.of(copy)))
+                .map(copy -> new Object[]{copy.getId(), copy.getStartTime()})
+                .toList();
+        executeAsMigration(target.dataSource(), DELETE_SQL, stale);
+    }
+
+    private static List<TripDetailRecordEntity> copiesOf(Shard target, List<TripDetailRecordEntity> rows) {
+        if (rows.isEmpty()) {
+            return List.of();
+        }
+        return target.repository().findAllBySessionIdIn(rows.stream().map(TripDetailRecordEntity::getSessionId).toList());
+    }
+
+    private static List<TripDetailRecordEntity> inBuckets(List<TripDetailRecordEntity> batch, Set<Integer> buckets) {
+        return batch.stream().filter(row -> buckets.contains(VehicleShardRouter.bucketOf(row.getVehicleId()))).toList();
+    }
+
+    /**
+     * Sums a CRC of every row, so that the checksum does not depend on the row order or the ids,
+     * which differ between source and target.
+     */
+    private static long checksum(List<TripDetailRecordEntity> rows) {
+        long checksum = 0;
+        CRC32C crc = new CRC32C();
+        for (TripDetailRecordEntity row : rows) {
+            crc.reset();
+            crc.update((row.getSessionId() + '\u0000' + row.getVehicleId() + '\u0000' + EpochMicros.of(row.getStartTime())
+                    + '\u0000' + EpochMicros.of(row.getEndTime()) + '\u0000' + Double.doubleToLongBits(row.getTotalCost()))
+                    .getBytes(StandardCharsets.UTF_8));
+            checksum += crc.getValue();
+        }
+        return checksum;
+    }
+
+    /**
+     * Runs a batch of statements in one transaction marked as migration work.
+     */
+    private static void executeAsMigration(DataSource dataSource, String sql, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                if ("PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("SELECT set_config('tdr.migration', 'on', true)");
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for (Object[] row : rows) {
+                        for (int i = 0; i < row.length; i++) {
+                            statement.setObject(i + 1, row[i]);
+                        }
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void throttle(long started, long scannedRows) throws InterruptedException {
+        long due = started + scannedRows * 1_000_000_000L / maxRowsPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(Duration.ofNanos(wait));
+        }
+    }
+
+    private void awaitRoutingRefresh() throws InterruptedException {
+        Thread.sleep(routingRefreshInterval.multipliedBy(2));
+    }
+
+    private Counter rows(int year, String operation) {
+        return Counter.builder("tdr.migration.rows")
+                .description("Rows copied, repaired or deleted by bucket migrations")
+                .tag("year", String.valueOf(year))
+                .tag("operation", operation)
+                .register(meterRegistry);
+    }
+
+    private void registerGauges(int year) {
+        Gauge.builder("tdr.migration.progress", migrations, running -> running.get(year).progress().progress())
+                .description("Share of the source rows scanned by the running bucket migration")
+                .tag("year", String.valueOf(year))
+                .register(meterRegistry);
+        Gauge.builder("tdr.migration.throughput", migrations, running -> running.get(year).progress().rowsPerSecond())
+                .description("Source rows scanned per second by the running bucket migration")
+                .tag("year", String.valueOf(year))
+                .baseUnit("rows/s")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The mutable state of one migration.
+     */
+    private static final class Migration {
+
+        final int year;
+        final List<Shard> shards;
+        final int target;
+        final Set<Integer> buckets;
+        final Map<Integer, Set<Integer>> bucketsBySource = new TreeMap<>();
+
+        final AtomicLong scannedRows = new AtomicLong();
+        final AtomicLong copiedRows = new AtomicLong();
+        final AtomicLong repairedRows = new AtomicLong();
+        final AtomicLong deletedRows = new AtomicLong();
+        volatile long totalRows;
+        volatile long copyStarted;
+        volatile long copyFinished;
+        volatile MigrationState state = MigrationState.DUAL_WRITING;
+        volatile String error;
+
+        Migration(int year, List<Shard> shards, int target, VehicleShardRouter router, Collection<Integer> buckets) {
+            this.year = year;
+            this.shards = shards;
+            this.target = target;
+            this.buckets = new TreeSet<>(buckets);
+            for (int bucket : buckets) {
+                bucketsBySource.computeIfAbsent(router.ownerOf(bucket), source -> new HashSet<>()).add(bucket);
+            }
+        }
+
+        boolean isActive() {
+            return state != MigrationState.DONE && state != MigrationState.FAILED;
+        }
+
+        MigrationProgress progress() {
+            long scanned = scannedRows.get();
+            double progress = switch (state) {
+                case DUAL_WRITING -> 0;
+                case COPYING, FAILED -> totalRows == 0 ? 0 : Math.min(1, (double) scanned / totalRows);
+                case VERIFYING, CLEANING, DONE -> 1;
+            };
+            long copyEnd = copyFinished != 0 ? copyFinished : System.nanoTime();
+            double seconds = copyStarted == 0 ? 0 : (copyEnd - copyStarted) / 1e9;
+            return new MigrationProgress(year, shards.get(target).name(), new ArrayList<>(buckets), state, scanned,
+                    copiedRows.get(), repairedRows.get(), deletedRows.get(), progress,
+                    seconds == 0 ? 0 : scanned / seconds, error);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package tdr.solutions.model;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Conversions between {@link LocalDateTime} and microseconds since the epoch.
+ *
+ * <p>Trip timestamps are stored as {@code timestamp(6)} without a time zone, so they are
+ * interpreted as UTC here. Microsecond precision matches the database columns, which lets
+ * primitive in-memory copies round-trip to the exact value read from a shard.</p>
+ */
+public final class EpochMicros {
+
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+
+    private EpochMicros() {
+    }
+
+    /**
+     * Converts a {@link LocalDateTime} to epoch microseconds.
+     *
+     * @param dateTime the date-time to convert
+     * @return the number of microseconds since 1970-01-01T00:00:00
+     */
+    public static long of(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC) * MICROS_PER_SECOND + dateTime.getNano() / 1_000;
+    }
+
+    /**
+     * Converts epoch microseconds back to a {@link LocalDateTime}.
+     *
+     * @param epochMicros the number of microseconds since 1970-01-01T00:00:00
+     * @return the corresponding date-time
+     */
+    public static LocalDateTime toLocalDateTime(long epochMicros) {
+        long seconds = Math.floorDiv(epochMicros, MICROS_PER_SECOND);
+        int nanos = (int) Math.floorMod(epochMicros, MICROS_PER_SECOND) * 1_000;
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,15 @@
+package tdr.solutions.model;
+
+import tdr.solutions.validation.TdrRejection;
+
+import java.util.List;
+
+/**
+ * The outcome of creating a batch of Trip Detail Records (TDRs).
+ *
+ * @param created   the TDRs that were created, in the order of the batch
+ * @param rejected  the TDRs that were not created, with the reasons
+ * @param retryable the TDRs that could not be created because a shard was unavailable, to be sent again
+ */
+public record TdrBatchResult(List<TripDetailRecord> created, List<TdrRejection> rejected, List<TdrRejection> retryable) {
+}
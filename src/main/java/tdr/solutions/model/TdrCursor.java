@@ -0,0 +1,139 @@
+package tdr.solutions.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Comparator;
+
+/**
+ * A position in the history of a vehicle, for keyset paging: the sort order of the history and the
+ * sort key and session ID of the last trip already delivered.
+ *
+ * <p>Trips are ordered by the sort key and then by session ID, in the same direction, so the
+ * position is unique even when several trips start or end at the same time. Every shard seeks
+ * directly to the trips following the position instead of skipping the trips of earlier pages.
+ * Clients see the cursor as an opaque, URL-safe token.</p>
+ *
+ * @param sortBy     the sort property, {@value #START_TIME} or {@value #END_TIME}
+ * @param descending whether the trips are in descending order
+ * @param key        the sort key of the last delivered trip, or {@code null} for the first page
+ * @param sessionId  the session ID of the last delivered trip, or {@code null} for the first page
+ */
+public record TdrCursor(String sortBy, boolean descending, LocalDateTime key, String sessionId) {
+
+    /** The sort property of trips ordered by start time. */
+    public static final String START_TIME = "startTime";
+
+    /** The sort property of trips ordered by end time. */
+    public static final String END_TIME = "endTime";
+
+    public TdrCursor {
+        if (!START_TIME.equals(sortBy) && !END_TIME.equals(sortBy)) {
+            throw new IllegalArgumentException("sortBy must be one of [" + START_TIME + ", " + END_TIME + "]");
+        }
+        if ((key == null) != (sessionId == null)) {
+            throw new IllegalArgumentException("key and sessionId must be given together");
+        }
+    }
+
+    /**
+     * Returns the position before the first trip in the given order.
+     *
+     * @param sortBy     the sort property
+     * @param descending whether the trips are in descending order
+     * @return the cursor of the first page
+     */
+    public static TdrCursor first(String sortBy, boolean descending) {
+        return new TdrCursor(sortBy, descending, null, null);
+    }
+
+    /**
+     * Returns the position right after the given trip, in the same order as this cursor.
+     *
+     * @param tdr the last trip of a page
+     * @return the cursor of the next page
+     */
+    public TdrCursor after(TripDetailRecord tdr) {
+        return new TdrCursor(sortBy, descending, keyOf(tdr.startTime(), tdr.endTime()), tdr.sessionId());
+    }
+
+    /**
+     * @return whether this cursor is the position before the first trip
+     */
+    public boolean isFirst() {
+        return key == null;
+    }
+
+    /**
+     * Returns the sort key of a trip in the order of this cursor.
+     *
+     * @param startTime the start time of the trip
+     * @param endTime   the end time of the trip
+     * @return the start time or the end time
+     */
+    public LocalDateTime keyOf(LocalDateTime startTime, LocalDateTime endTime) {
+        return START_TIME.equals(sortBy) ? startTime : endTime;
+    }
+
+    /**
+     * Tells whether a trip comes after this position.
+     *
+     * @param key       the sort key of the trip, see {@link #keyOf(LocalDateTime, LocalDateTime)}
+     * @param sessionId the session ID of the trip
+     * @return {@code true} if the trip belongs to a later page
+     */
+    public boolean precedes(LocalDateTime key, String sessionId) {
+        if (isFirst()) {
+            return true;
+        }
+        int comparison = key.compareTo(this.key);
+        if (comparison == 0) {
+            comparison = sessionId.compareTo(this.sessionId);
+        }
+        return descending ? comparison < 0 : comparison > 0;
+    }
+
+    /**
+     * @return the order of trips this cursor pages through
+     */
+    public Comparator<TripDetailRecord> comparator() {
+        Comparator<TripDetailRecord> ascending = Comparator
+                .comparing((TripDetailRecord tdr) -> keyOf(tdr.startTime(), tdr.endTime()))
+                .thenComparing(TripDetailRecord::sessionId);
+        return descending ? ascending.reversed() : ascending;
+    }
+
+    /**
+     * Encodes the cursor as a token.
+     *
+     * @return the token
+     */
+    public String encode() {
+        String text = sortBy + ',' + (descending ? "desc" : "asc")
+                + (isFirst() ? "" : "," + EpochMicros.of(key) + ',' + sessionId);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a token created by {@link #encode()}.
+     *
+     * @param token the token
+     * @return the cursor
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static TdrCursor parse(String token) {
+        String[] parts = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8).split(",", 4);
+        if ((parts.length != 2 && parts.length != 4) || !(parts[1].equals("asc") || parts[1].equals("desc"))) {
+            throw new IllegalArgumentException("malformed cursor " + token);
+        }
+        boolean descending = parts[1].equals("desc");
+        if (parts.length == 2) {
+            return first(parts[0], descending);
+        }
+        try {
+            return new TdrCursor(parts[0], descending, EpochMicros.toLocalDateTime(Long.parseLong(parts[2])), parts[3]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("malformed cursor " + token, e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package tdr.solutions.model;
+
+import java.util.List;
+
+/**
+ * Result of looking up the latest trips of a batch of vehicles.
+ *
+ * @param found   the latest Trip Detail Record of each vehicle that has one, in the order the vehicles were requested
+ * @param missing the requested vehicle IDs without any trip
+ */
+public record TdrLatestTrips(List<TripDetailRecord> found, List<String> missing) {
+}
@@ -0,0 +1,12 @@
+package tdr.solutions.model;
+
+import java.util.List;
+
+/**
+ * Result of looking up a batch of Trip Detail Records by session ID.
+ *
+ * @param found   the TDRs that were found, in the order their session IDs were requested
+ * @param missing the requested session IDs that exist in no shard
+ */
+public record TdrLookupResult(List<TripDetailRecord> found, List<String> missing) {
+}
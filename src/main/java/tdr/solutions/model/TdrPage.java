@@ -0,0 +1,15 @@
+package tdr.solutions.model;
+
+import java.util.List;
+
+/**
+ * A page of Trip Detail Records together with the total number of records and the position of the next page.
+ *
+ * @param content       the TDRs of the page
+ * @param size          the requested number of TDRs per page
+ * @param totalElements the number of TDRs on all pages
+ * @param totalPages    the number of pages
+ * @param next          the cursor of the next page, see {@link TdrCursor}, or {@code null} if this is the last page
+ */
+public record TdrPage(List<TripDetailRecord> content, int size, long totalElements, int totalPages, String next) {
+}
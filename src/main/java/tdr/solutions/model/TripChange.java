@@ -0,0 +1,14 @@
+package tdr.solutions.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * A Trip Detail Record created in one of the shards, as delivered by the change feed.
+ *
+ * @param offset    the offset of the feed right after this change, to resume from
+ * @param shard     the name of the database sub-shard the TDR was created in
+ * @param createdAt when the TDR was created
+ * @param trip      the created TDR
+ */
+public record TripChange(String offset, String shard, LocalDateTime createdAt, TripDetailRecord trip) {
+}
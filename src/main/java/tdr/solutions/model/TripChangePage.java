@@ -0,0 +1,12 @@
+package tdr.solutions.model;
+
+import java.util.List;
+
+/**
+ * A page of the change feed.
+ *
+ * @param changes the changes following the requested offset, in creation order per shard
+ * @param offset  the offset to request the next page with; the requested one if there were no changes
+ */
+public record TripChangePage(List<TripChange> changes, String offset) {
+}
@@ -2,10 +2,14 @@ package tdr.solutions.model;
 
 import jakarta.persistence.*;
 import jakarta.validation.constraints.*;
-import org.hibernate.validator.constraints.ParameterScriptAssert;
 
 import java.time.LocalDateTime;
 
+/**
+ * A Trip Detail Record (TDR) as the API exchanges it. The constraints document the rules for clients;
+ * they are enforced by {@link tdr.solutions.validation.TdrValidator}, which also rejects an end time
+ * before the start time.
+ */
 public record TripDetailRecord(
         @NotNull
         @Size(min = 5, max = 50)
@@ -25,8 +29,4 @@ public record TripDetailRecord(
 
         @Min(0) double totalCost
 ) {
-
-    @ParameterScriptAssert(lang = "javascript", script = "startTime > endTime")
-    public TripDetailRecord {
-    }
 }
@@ -10,7 +10,7 @@ import lombok.Data;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "trip_detail_record", indexes = {@Index(columnList = "vehicleId"),@Index(columnList = "startTime DESC, endTime")})
+@Table(name = "trip_detail_record", indexes = {@Index(columnList = "vehicleId, startTime, id"),@Index(columnList = "vehicleId, endTime, id"),@Index(columnList = "startTime DESC, endTime")})
 @Data
 public class TripDetailRecordEntity {
     
@@ -36,13 +36,4 @@ public class TripDetailRecordEntity {
 
     @Min(0)
     private double totalCost;
-
-
-    @PrePersist
-    @PreUpdate
-    private void validateEndTime() {
-        if (endTime.isBefore(startTime)) {
-            throw new IllegalArgumentException("End time cannot be before start time");
-        }
-    }
 }
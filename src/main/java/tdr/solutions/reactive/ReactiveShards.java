@@ -0,0 +1,103 @@
+package tdr.solutions.reactive;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import tdr.solutions.service.Shard;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking connections to the database shards, for the reactive read path.
+ *
+ * <p>Every database shard gets its own R2DBC connection pool of at most {@code tdr.reactive.pool-size}
+ * connections, next to the JDBC pool the repositories use. The pool is opened on the first reactive
+ * query of the shard, with the URL and credentials of its JDBC data source, so shards need no further
+ * configuration: {@code jdbc:postgresql://host:port/database} becomes
+ * {@code r2dbc:postgresql://host:port/database} (JDBC URL parameters are dropped) and an in-memory H2
+ * database {@code jdbc:h2:mem:name} becomes {@code r2dbc:h2:mem:///name}. Shards whose data source is not
+ * a Hikari pool have no reactive connection and are read through their repository instead.</p>
+ */
+@Component
+public class ReactiveShards {
+
+    private static final String H2_MEMORY = "h2:mem:";
+
+    private final int poolSize;
+    private final Duration maxIdleTime;
+    private final ConcurrentHashMap<String, Optional<DatabaseClient>> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for {@code ReactiveShards}.
+     *
+     * @param poolSize    the number of connections of a shard's pool at most
+     * @param maxIdleTime how long an unused connection is kept open
+     */
+    public ReactiveShards(@Value("${tdr.reactive.pool-size:10}") int poolSize,
+                          @Value("${tdr.reactive.max-idle-time:PT10M}") Duration maxIdleTime) {
+        this.poolSize = poolSize;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Returns the non-blocking client of a database shard, opening its pool on first use.
+     *
+     * @param shard the database shard
+     * @return the client, or empty if the shard cannot be reached without blocking
+     */
+    public Optional<DatabaseClient> clientOf(Shard shard) {
+        return clients.computeIfAbsent(shard.name(), name -> {
+            if (!(shard.dataSource() instanceof HikariDataSource hikari)) {
+                return Optional.empty();
+            }
+            ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(r2dbcUrl(hikari.getJdbcUrl())).mutate();
+            if (hikari.getUsername() != null) {
+                options.option(ConnectionFactoryOptions.USER, hikari.getUsername());
+            }
+            if (hikari.getPassword() != null && !hikari.getPassword().isEmpty()) {
+                options.option(ConnectionFactoryOptions.PASSWORD, hikari.getPassword());
+            }
+            ConnectionPool pool = new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options.build()))
+                    .name("reactive-" + name)
+                    .initialSize(0)
+                    .maxSize(poolSize)
+                    .maxIdleTime(maxIdleTime)
+                    .build());
+            pools.put(name, pool);
+            return Optional.of(DatabaseClient.create(pool));
+        });
+    }
+
+    /**
+     * Translates the JDBC URL of a shard into the R2DBC URL of the same database.
+     *
+     * @param jdbcUrl the JDBC URL
+     * @return the R2DBC URL
+     */
+    static String r2dbcUrl(String jdbcUrl) {
+        String url = jdbcUrl.substring("jdbc:".length());
+        if (url.startsWith(H2_MEMORY)) {
+            int options = url.indexOf(';');
+            return "r2dbc:" + H2_MEMORY + "///" + url.substring(H2_MEMORY.length(), options < 0 ? url.length() : options);
+        }
+        int parameters = url.indexOf('?');
+        return "r2dbc:" + (parameters < 0 ? url : url.substring(0, parameters));
+    }
+
+    /**
+     * Closes the connection pools.
+     */
+    @PreDestroy
+    public void close() {
+        pools.values().forEach(ConnectionPool::dispose);
+    }
+}
@@ -0,0 +1,213 @@
+package tdr.solutions.reactive;
+
+import io.r2dbc.spi.Readable;
+import jakarta.annotation.PreDestroy;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import tdr.solutions.concurrency.ShardBulkheads;
+import tdr.solutions.config.ApiKeyAuthentication;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.model.TdrEndTimeComparator;
+import tdr.solutions.model.TdrStartTimeComparator;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordReader;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Non-blocking reads of Trip Detail Records, next to the blocking reads of {@link TdrService}.
+ *
+ * <p>Database shards are queried through {@link ReactiveShards}, so a request holds no thread while it
+ * waits for its shards, only for a permit of the shard's {@link ShardBulkheads bulkhead} and of the
+ * operator's share of it, which reactive queries hold like repository calls do; read-only shards such as archives, and shards without a reactive connection,
+ * are read through their repository on virtual threads. The results of the shards are combined as
+ * streams: a vehicle's history is merged in sort order from the sorted streams of its shards, and
+ * demand flows back from the HTTP response to the shards, which only fetch rows as they are
+ * consumed. Writes, caches of vehicle history and the in-memory timeline index stay with the servlet
+ * path; session ID lookups share its {@code sessionIds} cache.</p>
+ */
+@Service
+public class ReactiveTdrService {
+
+    /** The columns of the sort properties of the API. */
+    public static final Map<String, String> SORT_COLUMNS = Map.of(TdrService.START_TIME, "starttime", "endTime", "endtime");
+
+    private static final String COLUMNS = "SELECT id, endtime, sessionid, starttime, totalcost, vehicleid FROM trip_detail_record ";
+
+    private final TdrShardingService tdrShardingService;
+    private final ReactiveShards reactiveShards;
+    private final ShardBulkheads shardBulkheads;
+    private final CacheManager cacheManager;
+    private final ExecutorService blockingReads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Scheduler blockingScheduler = Schedulers.fromExecutorService(blockingReads, "tdr-reactive-blocking");
+
+    /**
+     * Constructor for {@code ReactiveTdrService}.
+     *
+     * @param tdrShardingService the sharding service placing the reads
+     * @param reactiveShards     the non-blocking connections of the database shards
+     * @param shardBulkheads     the bulkheads limiting the concurrent queries of each database shard
+     * @param cacheManager       the cache manager holding the {@code sessionIds} cache
+     */
+    public ReactiveTdrService(TdrShardingService tdrShardingService, ReactiveShards reactiveShards,
+                              ShardBulkheads shardBulkheads, CacheManager cacheManager) {
+        this.tdrShardingService = tdrShardingService;
+        this.reactiveShards = reactiveShards;
+        this.shardBulkheads = shardBulkheads;
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * Retrieves a Trip Detail Record by its session ID. Like {@link TdrService#getTdrBySessionId(String)}
+     * the years are asked oldest first, each with the shard its session directory routes the session ID
+     * to, and the answer is cached; the shards of later years are not asked once a year found the record.
+     *
+     * @param sessionId the session ID of the TDR to be retrieved.
+     * @return the TDR, or a {@link TdrException} if no TDR has the session ID.
+     */
+    public Mono<TripDetailRecord> getTdrBySessionId(String sessionId) {
+        String operator = ApiKeyAuthentication.currentOperator();
+        TdrService.SessionKey key = new TdrService.SessionKey(tdrShardingService.getPlacement(operator), sessionId);
+        Cache cache = cacheManager.getCache(TdrService.SESSION_IDS_CACHE);
+        TripDetailRecord cached = cache == null ? null : cache.get(key, TripDetailRecord.class);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return Flux.fromIterable(tdrShardingService.getYears())
+                .concatMap(year -> sessionSources(operator, year, sessionId))
+                .next()
+                .doOnNext(tdr -> {
+                    if (cache != null) {
+                        cache.putIfAbsent(key, tdr);
+                    }
+                })
+                .switchIfEmpty(Mono.error(() -> new TdrException("sessionId " + sessionId + " not found")));
+    }
+
+    private Flux<TripDetailRecord> sessionSources(String operator, int year, String sessionId) {
+        Function<TripDetailRecordReader, List<TripDetailRecordEntity>> read = reader -> {
+            TripDetailRecordEntity entity = reader.findBySessionId(sessionId);
+            return entity == null ? List.of() : List.of(entity);
+        };
+        List<Shard> shards = tdrShardingService.getReaderShards(operator, year);
+        if (shards.isEmpty()) {
+            return Flux.merge(tdrShardingService.getReaders(operator, year).stream()
+                    .map(reader -> blocking(() -> read.apply(reader)))
+                    .toList());
+        }
+        // The session directory is read through JDBC
+        return Mono.fromCallable(() -> tdrShardingService.getSessionShards(operator, year, sessionId))
+                .subscribeOn(blockingScheduler)
+                .flatMapMany(sessionShards -> Flux.merge(sessionShards.stream()
+                        .map(shard -> query(shard, operator, COLUMNS + "WHERE sessionid = :sessionId",
+                                spec -> spec.bind("sessionId", sessionId), read))
+                        .toList()));
+    }
+
+    /**
+     * Streams a page of a vehicle's Trip Detail Records. Every year delivers its leading records up to
+     * the end of the page in sort order from the shard the vehicle is routed to, and the streams are
+     * merged by the sort property before the page is cut out, like
+     * {@link TdrService#getTdrsByVehicleId(String, Pageable)} merges its lists.
+     *
+     * @param vehicleId the ID of the vehicle whose TDRs are to be retrieved.
+     * @param pageable  the pagination and sorting information, sorted by one of {@link #SORT_COLUMNS}.
+     * @return the TDRs of the page, in the requested order.
+     */
+    public Flux<TripDetailRecord> getTdrsByVehicleId(String vehicleId, Pageable pageable) {
+        Sort.Order order = pageable.getSort().stream().findFirst().orElseThrow();
+        String column = SORT_COLUMNS.get(order.getProperty());
+        if (column == null) {
+            return Flux.error(new IllegalArgumentException("Cannot sort by " + order.getProperty()));
+        }
+        String direction = order.isDescending() ? " DESC" : " ASC";
+        String sql = COLUMNS + "WHERE vehicleid = :vehicleId ORDER BY " + column + direction + ", id" + direction
+                + " LIMIT :limit";
+        Pageable leadingRecords = PageRequest.of(0, (int) pageable.getOffset() + pageable.getPageSize(), pageable.getSort());
+        String operator = ApiKeyAuthentication.currentOperator();
+
+        List<Flux<TripDetailRecord>> sources = new ArrayList<>();
+        for (int year : tdrShardingService.getYears()) {
+            Shard shard = tdrShardingService.getVehicleShard(operator, year, vehicleId);
+            if (shard != null) {
+                sources.add(query(shard, operator, sql,
+                        spec -> spec.bind("vehicleId", vehicleId).bind("limit", leadingRecords.getPageSize()),
+                        repository -> repository.findAllByVehicleId(vehicleId, leadingRecords)));
+                continue;
+            }
+            TripDetailRecordReader reader = tdrShardingService.getVehicleReader(operator, year, vehicleId);
+            if (reader != null) {
+                sources.add(blocking(() -> reader.findAllByVehicleId(vehicleId, leadingRecords)));
+            }
+        }
+        Comparator<TripDetailRecord> comparator = TdrService.START_TIME.equals(order.getProperty())
+                ? new TdrStartTimeComparator() : new TdrEndTimeComparator();
+        return Flux.mergeComparing(order.isDescending() ? comparator.reversed() : comparator,
+                        sources.toArray(Flux[]::new))
+                .skip(pageable.getOffset())
+                .take(pageable.getPageSize());
+    }
+
+    /**
+     * Runs a query on the reactive connection of a shard, holding a permit of the shard and of the
+     * operator's share of it until the rows are consumed or the query fails or is cancelled, or reads
+     * the shard with its repository, behind the same permits, if it has no reactive connection.
+     */
+    private Flux<TripDetailRecord> query(Shard shard, String operator, String sql,
+                                         UnaryOperator<DatabaseClient.GenericExecuteSpec> bind,
+                                         Function<TripDetailRecordReader, List<TripDetailRecordEntity>> fallback) {
+        return reactiveShards.clientOf(shard)
+                .map(client -> Flux.usingWhen(
+                        // Waiting for the permits parks a virtual thread instead of the event loop
+                        Mono.fromCallable(() -> shardBulkheads.acquire(shard, operator, "reactive"))
+                                .subscribeOn(blockingScheduler),
+                        permit -> bind.apply(client.sql(sql)).map(ReactiveTdrService::getTripDetailRecord).all(),
+                        permit -> Mono.fromRunnable(permit::close)))
+                .orElseGet(() -> blocking(() -> fallback.apply(shardBulkheads.forTenant(shard, operator))));
+    }
+
+    private Flux<TripDetailRecord> blocking(Callable<List<TripDetailRecordEntity>> read) {
+        return Mono.fromCallable(read)
+                .subscribeOn(blockingScheduler)
+                .flatMapIterable(entities -> entities)
+                .map(entity -> new TripDetailRecord(entity.getSessionId(), entity.getVehicleId(), entity.getStartTime(),
+                        entity.getEndTime(), entity.getTotalCost()));
+    }
+
+    private static TripDetailRecord getTripDetailRecord(Readable row) {
+        return new TripDetailRecord(row.get("sessionid", String.class), row.get("vehicleid", String.class),
+                row.get("starttime", LocalDateTime.class), row.get("endtime", LocalDateTime.class),
+                row.get("totalcost", Double.class));
+    }
+
+    /**
+     * Stops the virtual threads of blocking reads.
+     */
+    @PreDestroy
+    public void close() {
+        blockingScheduler.dispose();
+        blockingReads.shutdownNow();
+    }
+}
@@ -0,0 +1,83 @@
+package tdr.solutions.repository;
+
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TripDetailRecordEntity;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Pageable;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Read access to the Trip Detail Records of one shard.
+ *
+ * <p>Implemented by the JPA repositories of the database shards and by the archives of retired
+ * shards, so that queries work the same regardless of where a year is stored.</p>
+ */
+public interface TripDetailRecordReader {
+
+    /**
+     * Find all Trip Detail Records by vehicle ID.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @return the list of Trip Detail Records for the specified vehicle
+     */
+    List<TripDetailRecordEntity> findAllByVehicleId(String vehicleId, Pageable pageable);
+
+    /**
+     * Find the Trip Detail Records of a vehicle following a keyset position, seeking to the position
+     * instead of skipping the records before it.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param cursor    the order and the position after which records are returned
+     * @param limit     the maximum number of records
+     * @return the records following the position, in the order of the cursor
+     */
+    List<TripDetailRecordEntity> findAllByVehicleIdAfter(String vehicleId, TdrCursor cursor, int limit);
+
+    /**
+     * Find the Trip Detail Record of a session.
+     *
+     * @param sessionId the session ID of the TDR
+     * @return the Trip Detail Record with the specified session ID, or {@code null} if there is none
+     */
+    TripDetailRecordEntity findBySessionId(String sessionId);
+
+    /**
+     * Find the Trip Detail Records of several sessions with a single query.
+     *
+     * @param sessionIds the session IDs to look up
+     * @return the Trip Detail Records of those session IDs that exist, in no particular order
+     */
+    List<TripDetailRecordEntity> findAllBySessionIdIn(Collection<String> sessionIds);
+
+    /**
+     * Find all Trip Detail Records of a vehicle whose start time lies within {@code [from, to)}.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param from      the inclusive lower bound of the start time
+     * @param to        the exclusive upper bound of the start time
+     * @param pageable  the pagination and sorting information
+     * @return the list of Trip Detail Records for the specified vehicle and time range
+     */
+    List<TripDetailRecordEntity> findAllByVehicleIdAndStartTimeGreaterThanEqualAndStartTimeLessThan(
+            String vehicleId, LocalDateTime from, LocalDateTime to, Pageable pageable);
+
+    /**
+     * Find the next batch of Trip Detail Records after the given ID, for keyset scans over a whole shard.
+     *
+     * @param id    the last ID of the previous batch, or {@code 0} to start from the beginning
+     * @param limit the maximum number of records in the batch
+     * @return the records with an ID greater than {@code id}, in ID order
+     */
+    List<TripDetailRecordEntity> findByIdGreaterThanOrderByIdAsc(Long id, Limit limit);
+
+    /**
+     * Count the Trip Detail Records of a vehicle, without counting its trips one by one.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @return the number of Trip Detail Records of the vehicle in this shard
+     */
+    long countTripsOfVehicle(String vehicleId);
+}
@@ -1,31 +1,200 @@
 package tdr.solutions.repository;
 
+import tdr.solutions.model.TdrCursor;
 import tdr.solutions.model.TripDetailRecordEntity;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 /**
  * Repository interface for Trip Detail Records.
  */
 @Repository
-public interface TripDetailRecordRepository extends JpaRepository<TripDetailRecordEntity, Long> {
+public interface TripDetailRecordRepository extends JpaRepository<TripDetailRecordEntity, Long>, TripDetailRecordReader {
 
     /**
-     * Find all Trip Detail Records by vehicle ID.
+     * Find the next batch of Trip Detail Records in vehicle and start time order, for keyset scans
+     * that export a whole shard grouped by vehicle.
+     *
+     * @param vehicleId the vehicle ID of the last record of the previous batch, or {@code ""} to start from the beginning
+     * @param startTime the start time of the last record of the previous batch
+     * @param id        the ID of the last record of the previous batch, breaking ties between equal start times
+     * @param limit     the maximum number of records in the batch
+     * @return the records following the given one, ordered by vehicle ID, start time and ID
+     */
+    @Query("""
+            select t from TripDetailRecordEntity t
+            where t.vehicleId > :vehicleId
+               or (t.vehicleId = :vehicleId and (t.startTime > :startTime or (t.startTime = :startTime and t.id > :id)))
+            order by t.vehicleId, t.startTime, t.id""")
+    List<TripDetailRecordEntity> findNextByVehicleIdAndStartTime(String vehicleId, LocalDateTime startTime, Long id, Limit limit);
+
+    /**
+     * Find the Trip Detail Records of a vehicle following a keyset position, with one of the queries below
+     * for the order of the cursor. The session ID breaks ties between equal sort keys.
+     */
+    @Override
+    default List<TripDetailRecordEntity> findAllByVehicleIdAfter(String vehicleId, TdrCursor cursor, int limit) {
+        if (cursor.isFirst()) {
+            Sort sort = Sort.by(cursor.sortBy(), "sessionId");
+            return findAllByVehicleId(vehicleId, PageRequest.of(0, limit, cursor.descending() ? sort.descending() : sort.ascending()));
+        }
+        boolean byStartTime = cursor.sortBy().equals(TdrCursor.START_TIME);
+        if (cursor.descending()) {
+            return byStartTime
+                    ? findBeforeByStartTime(vehicleId, cursor.key(), cursor.sessionId(), Limit.of(limit))
+                    : findBeforeByEndTime(vehicleId, cursor.key(), cursor.sessionId(), Limit.of(limit));
+        }
+        return byStartTime
+                ? findAfterByStartTime(vehicleId, cursor.key(), cursor.sessionId(), Limit.of(limit))
+                : findAfterByEndTime(vehicleId, cursor.key(), cursor.sessionId(), Limit.of(limit));
+    }
+
+    /**
+     * Find the Trip Detail Records of a vehicle following the given one in ascending start time order.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param startTime the start time of the last record of the previous page
+     * @param sessionId the session ID of the last record of the previous page
+     * @param limit     the maximum number of records
+     * @return the following records, ordered by start time and session ID
+     */
+    @Query("""
+            select t from TripDetailRecordEntity t
+            where t.vehicleId = :vehicleId
+              and (t.startTime > :startTime or (t.startTime = :startTime and t.sessionId > :sessionId))
+            order by t.startTime, t.sessionId""")
+    List<TripDetailRecordEntity> findAfterByStartTime(String vehicleId, LocalDateTime startTime, String sessionId, Limit limit);
+
+    /**
+     * Find the Trip Detail Records of a vehicle following the given one in descending start time order.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param startTime the start time of the last record of the previous page
+     * @param sessionId the session ID of the last record of the previous page
+     * @param limit     the maximum number of records
+     * @return the following records, ordered by start time and session ID descending
+     */
+    @Query("""
+            select t from TripDetailRecordEntity t
+            where t.vehicleId = :vehicleId
+              and (t.startTime < :startTime or (t.startTime = :startTime and t.sessionId < :sessionId))
+            order by t.startTime desc, t.sessionId desc""")
+    List<TripDetailRecordEntity> findBeforeByStartTime(String vehicleId, LocalDateTime startTime, String sessionId, Limit limit);
+
+    /**
+     * Find the Trip Detail Records of a vehicle following the given one in ascending end time order.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @param endTime   the end time of the last record of the previous page
+     * @param sessionId the session ID of the last record of the previous page
+     * @param limit     the maximum number of records
+     * @return the following records, ordered by end time and session ID
+     */
+    @Query("""
+            select t from TripDetailRecordEntity t
+            where t.vehicleId = :vehicleId
+              and (t.endTime > :endTime or (t.endTime = :endTime and t.sessionId > :sessionId))
+            order by t.endTime, t.sessionId""")
+    List<TripDetailRecordEntity> findAfterByEndTime(String vehicleId, LocalDateTime endTime, String sessionId, Limit limit);
+
+    /**
+     * Find the Trip Detail Records of a vehicle following the given one in descending end time order.
      *
      * @param vehicleId the ID of the vehicle
-     * @return the list of Trip Detail Records for the specified vehicle
+     * @param endTime   the end time of the last record of the previous page
+     * @param sessionId the session ID of the last record of the previous page
+     * @param limit     the maximum number of records
+     * @return the following records, ordered by end time and session ID descending
+     */
+    @Query("""
+            select t from TripDetailRecordEntity t
+            where t.vehicleId = :vehicleId
+              and (t.endTime < :endTime or (t.endTime = :endTime and t.sessionId < :sessionId))
+            order by t.endTime desc, t.sessionId desc""")
+    List<TripDetailRecordEntity> findBeforeByEndTime(String vehicleId, LocalDateTime endTime, String sessionId, Limit limit);
+
+    /**
+     * Find the most recent Trip Detail Records by start time, e.g. to warm up caches.
+     *
+     * @param limit the maximum number of records
+     * @return the records, most recent first
+     */
+    List<TripDetailRecordEntity> findAllByOrderByStartTimeDesc(Limit limit);
+
+    /**
+     * Count the Trip Detail Records of a vehicle from the {@code vehicle_trip_counter} table, which the
+     * shard keeps up to date in the transaction of every insert and delete.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @return the number of Trip Detail Records of the vehicle in this shard
+     */
+    @Override
+    @Query(value = "select coalesce((select trips from vehicle_trip_counter where vehicleid = :vehicleId), 0)",
+            nativeQuery = true)
+    long countTripsOfVehicle(String vehicleId);
+
+    /**
+     * Find the next batch of latest trips from the {@code vehicle_latest_trip} table, which the shard keeps
+     * up to date in the transaction of every insert, update and delete, for keyset scans over all vehicles.
+     *
+     * @param vehicleId the vehicle ID of the last trip of the previous batch, or {@code ""} to start from the beginning
+     * @param limit     the maximum number of trips in the batch
+     * @return the latest trip of each vehicle following the given one, in vehicle ID order
+     */
+    @Query(value = """
+            select id, endtime, sessionid, starttime, totalcost, vehicleid from vehicle_latest_trip
+            where vehicleid > :vehicleId order by vehicleid limit :limit""", nativeQuery = true)
+    List<TripDetailRecordEntity> findLatestTripsAfterVehicleId(String vehicleId, int limit);
+
+    /**
+     * Find the latest trips of several vehicles from the {@code vehicle_latest_trip} table with a single query.
+     *
+     * @param vehicleIds the IDs of the vehicles
+     * @return the latest trip of each of those vehicles that has trips in this shard, in no particular order
+     */
+    @Query(value = """
+            select id, endtime, sessionid, starttime, totalcost, vehicleid from vehicle_latest_trip
+            where vehicleid in (:vehicleIds)""", nativeQuery = true)
+    List<TripDetailRecordEntity> findLatestTripsOfVehicles(Collection<String> vehicleIds);
+
+    /**
+     * Save a new Trip Detail Record together with its event in the {@code trip_event_outbox} table, in
+     * one transaction of this shard.
+     *
+     * @param entity the record to save
+     * @return the saved record
      */
-    List<TripDetailRecordEntity> findAllByVehicleId(String vehicleId, Pageable pageable);
+    @Transactional
+    default TripDetailRecordEntity saveWithEvent(TripDetailRecordEntity entity) {
+        TripDetailRecordEntity saved = save(entity);
+        insertTripEvent(saved.getSessionId(), saved.getVehicleId(), saved.getStartTime(), saved.getEndTime(),
+                saved.getTotalCost());
+        return saved;
+    }
 
     /**
-     * Find all Trip Detail Records by vehicle ID.
+     * Append the event of a created Trip Detail Record to the {@code trip_event_outbox} table.
      *
-     * @param sessionId the sessionId of the TDR
-     * @return TripDetailRecord the of Trip Detail Records for the specified sessionId
+     * @param sessionId the session ID of the record
+     * @param vehicleId the vehicle ID of the record
+     * @param startTime the start time of the record
+     * @param endTime   the end time of the record
+     * @param totalCost the total cost of the record
      */
-    TripDetailRecordEntity findBySessionId(String sessionId);
+    @Modifying
+    @Query(value = """
+            insert into trip_event_outbox (session_id, vehicle_id, start_time, end_time, total_cost)
+            values (:sessionId, :vehicleId, :startTime, :endTime, :totalCost)""", nativeQuery = true)
+    void insertTripEvent(String sessionId, String vehicleId, LocalDateTime startTime, LocalDateTime endTime,
+                         double totalCost);
 }
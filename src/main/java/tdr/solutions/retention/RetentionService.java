@@ -0,0 +1,303 @@
+package tdr.solutions.retention;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tdr.solutions.archive.ArchiveSummary;
+import tdr.solutions.archive.TdrArchiveWriter;
+import tdr.solutions.cache.CacheCoherenceService;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service class responsible for removing trips older than the retention period from the shard databases.
+ *
+ * <p>The {@code trip_detail_record} table of every PostgreSQL shard is partitioned by month of the start
+ * time. A partition whose months lie completely before the cutoff is detached and dropped, which frees
+ * its storage without writing a single row, leaving nothing for vacuum and no I/O on the live path.
+ * With {@code tdr.retention.archive-directory} set, the partition is exported into an archive
+ * (see {@link TdrArchiveWriter}) below that directory first. Partitions that only partly expire, such as
+ * the default partition, are trimmed with throttled batches of deletes instead; when archiving, their
+ * rows wait until the whole partition expires, so every expired trip ends up in an archive.</p>
+ *
+ * <p>Neither dropping nor trimming goes through the invalidation triggers, so each of them asks all
+ * nodes to flush their near caches (see {@link CacheCoherenceService}) once it is done. Nor do they go
+ * through the triggers counting the trips of each vehicle, so they subtract the trips they remove from
+ * {@code vehicle_trip_counter} in the same transaction, and afterwards look up the latest trips of the
+ * vehicles whose latest trip in {@code vehicle_latest_trip} expired.</p>
+ *
+ * <p>Shards of other databases (such as the in-memory test databases) are not partitioned and are
+ * skipped.</p>
+ */
+@Service
+public class RetentionService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetentionService.class);
+
+    /** Subtracts the trips per vehicle selected by the given query, with the columns vehicleid and trips. */
+    private static final String SUBTRACT_TRIPS_SQL = """
+            UPDATE vehicle_trip_counter c
+            SET trips = c.trips - removed.trips
+            FROM (%s) removed
+            WHERE c.vehicleid = removed.vehicleid""";
+
+    /** Looks up the latest trips again of the vehicles whose latest trip started before the cutoff and is gone. */
+    private static final String REFRESH_LATEST_TRIPS_SQL = """
+            SELECT refresh_vehicle_latest_trips(ARRAY(
+                SELECT l.vehicleid
+                FROM vehicle_latest_trip l
+                WHERE l.starttime < ?
+                  AND NOT EXISTS (SELECT 1 FROM trip_detail_record r WHERE r.sessionid = l.sessionid AND r.starttime = l.starttime)
+                ORDER BY l.vehicleid))""";
+
+    private final TdrShardingService tdrShardingService;
+    private final boolean enabled;
+    private final Period period;
+    private final Duration interval;
+    private final int deleteBatchSize;
+    private final int maxRowsPerSecond;
+    private final Duration lockTimeout;
+    private final Path archiveDirectory;
+    private final int blockRows;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor for {@code RetentionService}.
+     *
+     * @param tdrShardingService the sharding service providing the shard databases
+     * @param enabled            whether to remove expired trips at all
+     * @param period             how long trips are kept, counted from their start time
+     * @param interval           the delay between two retention runs
+     * @param deleteBatchSize    the number of rows deleted per statement when trimming a partition
+     * @param maxRowsPerSecond   the number of rows deleted per second at most when trimming a partition
+     * @param lockTimeout        how long to wait for the table lock needed to detach a partition
+     * @param archiveDirectory   the directory expired partitions are archived into; they are dropped
+     *                           without an archive if unset
+     * @param blockRows          the number of rows per compressed block of the archives
+     */
+    public RetentionService(TdrShardingService tdrShardingService,
+                            @Value("${tdr.retention.enabled:false}") boolean enabled,
+                            @Value("${tdr.retention.period:P2Y}") Period period,
+                            @Value("${tdr.retention.interval:PT1H}") Duration interval,
+                            @Value("${tdr.retention.delete-batch-size:1000}") int deleteBatchSize,
+                            @Value("${tdr.retention.max-rows-per-second:5000}") int maxRowsPerSecond,
+                            @Value("${tdr.retention.lock-timeout:PT2S}") Duration lockTimeout,
+                            @Value("${tdr.retention.archive-directory:#{null}}") Path archiveDirectory,
+                            @Value("${tdr.archive.block-rows:1024}") int blockRows) {
+        this.tdrShardingService = tdrShardingService;
+        this.enabled = enabled;
+        this.period = period;
+        this.interval = interval;
+        this.deleteBatchSize = deleteBatchSize;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.lockTimeout = lockTimeout;
+        this.archiveDirectory = archiveDirectory;
+        this.blockRows = blockRows;
+    }
+
+    /**
+     * Schedules the retention runs, if enabled.
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("tdr-retention").factory());
+        scheduler.scheduleWithFixedDelay(this::purge, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the retention runs.
+     */
+    @PreDestroy
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes the trips that started before the retention period from every database shard. A shard
+     * that fails is left as it is and retried on the next run.
+     */
+    public void purge() {
+        purge(LocalDateTime.now().minus(period));
+    }
+
+    /**
+     * Removes the trips that started before the cutoff from every database shard.
+     *
+     * @param cutoff the start time before which trips expire
+     */
+    void purge(LocalDateTime cutoff) {
+        for (Shard shard : tdrShardingService.getShards()) {
+            try {
+                purge(shard, cutoff);
+            } catch (SQLException | IOException | RuntimeException e) {
+                LOGGER.warn("Retention of shard {} failed, retrying on the next run", shard.name(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void purge(Shard shard, LocalDateTime cutoff) throws SQLException, IOException, InterruptedException {
+        for (TdrPartition partition : TdrPartition.listOf(shard.dataSource())) {
+            if (partition.expiredBefore(cutoff)) {
+                if (archiveDirectory != null) {
+                    archive(shard, partition);
+                }
+                drop(shard, partition, cutoff);
+            } else if (partition.expiresPartlyBefore(cutoff) && archiveDirectory == null) {
+                trim(shard, partition, cutoff);
+            }
+        }
+    }
+
+    /**
+     * Exports a partition in vehicle and start time order, as archives require. An archive left by an
+     * earlier run that could not drop the partition is kept.
+     */
+    private void archive(Shard shard, TdrPartition partition) throws SQLException, IOException {
+        Path target = archiveDirectory.resolve(shard.name()).resolve(partition.name());
+        if (Files.exists(target)) {
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        String sql = "SELECT id, sessionid, vehicleid, starttime, endtime, totalcost FROM " + quote(partition.name())
+                + " ORDER BY vehicleid, starttime, id";
+        ArchiveSummary summary;
+        try (Connection connection = shard.dataSource().getConnection();
+             TdrArchiveWriter writer = new TdrArchiveWriter(target, shard.year(), blockRows)) {
+            // Fetching in batches needs a transaction, otherwise the driver reads the whole partition at once
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setFetchSize(blockRows);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        TripDetailRecordEntity entity = new TripDetailRecordEntity();
+                        entity.setId(resultSet.getLong(1));
+                        entity.setSessionId(resultSet.getString(2));
+                        entity.setVehicleId(resultSet.getString(3));
+                        entity.setStartTime(resultSet.getObject(4, LocalDateTime.class));
+                        entity.setEndTime(resultSet.getObject(5, LocalDateTime.class));
+                        entity.setTotalCost(resultSet.getDouble(6));
+                        writer.append(entity);
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            summary = writer.finish();
+        }
+        LOGGER.info("Archived {} trips of partition {} of shard {} into {}", summary.trips(), partition.name(),
+                shard.name(), target);
+    }
+
+    private void drop(Shard shard, TdrPartition partition, LocalDateTime cutoff) throws SQLException {
+        try (Connection connection = shard.dataSource().getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                // Detaching locks the whole table; rather than queueing live queries behind a long wait,
+                // give up and try again on the next run
+                statement.execute("SET LOCAL lock_timeout = " + lockTimeout.toMillis());
+                statement.execute("ALTER TABLE trip_detail_record DETACH PARTITION " + quote(partition.name()));
+                statement.execute(SUBTRACT_TRIPS_SQL.formatted("SELECT vehicleid, count(*) AS trips FROM "
+                        + quote(partition.name()) + " GROUP BY vehicleid"));
+                statement.execute("DROP TABLE " + quote(partition.name()));
+                refreshLatestTrips(connection, cutoff);
+                notifyFlush(statement);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        LOGGER.info("Dropped expired partition {} of shard {}", partition.name(), shard.name());
+    }
+
+    /**
+     * Deletes the expired trips of a partition in batches, each in its own transaction so that locks
+     * and dead rows pile up no more than one batch at a time.
+     */
+    private void trim(Shard shard, TdrPartition partition, LocalDateTime cutoff) throws SQLException, InterruptedException {
+        String table = quote(partition.name());
+        String sql = "WITH deleted AS (DELETE FROM " + table + " WHERE ctid = ANY (ARRAY(SELECT ctid FROM " + table
+                + " WHERE starttime < ? LIMIT ?)) RETURNING vehicleid),"
+                + " removed AS (SELECT vehicleid, count(*) AS trips FROM deleted GROUP BY vehicleid),"
+                + " subtracted AS (" + SUBTRACT_TRIPS_SQL.formatted("SELECT * FROM removed") + ")"
+                + " SELECT coalesce(sum(trips), 0) FROM removed";
+        long started = System.nanoTime();
+        long deleted = 0;
+        int batch;
+        try (Connection connection = shard.dataSource().getConnection()) {
+            do {
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.setObject(1, cutoff);
+                    statement.setInt(2, deleteBatchSize);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        resultSet.next();
+                        batch = resultSet.getInt(1);
+                    }
+                }
+                deleted += batch;
+                throttle(started, deleted);
+            } while (batch == deleteBatchSize);
+            if (deleted > 0) {
+                refreshLatestTrips(connection, cutoff);
+                try (Statement statement = connection.createStatement()) {
+                    notifyFlush(statement);
+                }
+                LOGGER.info("Deleted {} expired trips from partition {} of shard {}", deleted, partition.name(), shard.name());
+            }
+        }
+    }
+
+    private static void refreshLatestTrips(Connection connection, LocalDateTime cutoff) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(REFRESH_LATEST_TRIPS_SQL)) {
+            statement.setObject(1, cutoff);
+            statement.execute();
+        }
+    }
+
+    private static void notifyFlush(Statement statement) throws SQLException {
+        statement.execute("SELECT pg_notify('" + CacheCoherenceService.CHANNEL + "', '" + CacheCoherenceService.FLUSH + "')");
+    }
+
+    private void throttle(long started, long rows) throws InterruptedException {
+        long due = started + rows * 1_000_000_000L / maxRowsPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(Duration.ofNanos(wait));
+        }
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,99 @@
+package tdr.solutions.retention;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A partition of the {@code trip_detail_record} table of one shard database, see the
+ * {@code V4__PARTITION_TRIP_DETAIL_RECORD} migrations.
+ *
+ * @param name the name of the partition table
+ * @param from the inclusive lower bound of its start times, or {@code null} if unbounded
+ * @param to   the exclusive upper bound of its start times, or {@code null} if unbounded
+ */
+public record TdrPartition(String name, LocalDateTime from, LocalDateTime to) {
+
+    private static final String PARTITIONS_SQL = """
+            SELECT c.relname, pg_get_expr(c.relpartbound, c.oid)
+            FROM pg_inherits i
+                     JOIN pg_class c ON c.oid = i.inhrelid
+            WHERE i.inhparent = to_regclass('trip_detail_record')
+            ORDER BY c.relname""";
+    private static final Pattern RANGE = Pattern.compile("FOR VALUES FROM \\((.+)\\) TO \\((.+)\\)");
+
+    /**
+     * Lists the partitions of the {@code trip_detail_record} table of a shard database.
+     *
+     * @param dataSource the shard database
+     * @return the partitions by name, none if the database is not PostgreSQL
+     * @throws SQLException if the partitions cannot be read
+     */
+    public static List<TdrPartition> listOf(DataSource dataSource) throws SQLException {
+        List<TdrPartition> partitions = new ArrayList<>();
+        try (Connection connection = dataSource.getConnection()) {
+            if (!"PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())) {
+                return partitions;
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(PARTITIONS_SQL)) {
+                while (resultSet.next()) {
+                    partitions.add(parse(resultSet.getString(1), resultSet.getString(2)));
+                }
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Reads a partition from its bound expression, as returned by PostgreSQL's {@code pg_get_expr}.
+     *
+     * @param name  the name of the partition table
+     * @param bound the bound expression, such as
+     *              {@code FOR VALUES FROM ('2024-01-01 00:00:00') TO ('2024-02-01 00:00:00')} or {@code DEFAULT}
+     * @return the partition; the default partition is unbounded on both sides
+     */
+    public static TdrPartition parse(String name, String bound) {
+        Matcher matcher = RANGE.matcher(bound);
+        if (!matcher.matches()) {
+            return new TdrPartition(name, null, null);
+        }
+        return new TdrPartition(name, parseBound(matcher.group(1)), parseBound(matcher.group(2)));
+    }
+
+    private static LocalDateTime parseBound(String bound) {
+        if (!bound.startsWith("'")) {
+            // MINVALUE or MAXVALUE
+            return null;
+        }
+        return LocalDateTime.parse(bound.substring(1, bound.length() - 1).replace(' ', 'T'));
+    }
+
+    /**
+     * Tells whether every trip the partition can hold started before the cutoff, so the partition can be
+     * dropped as a whole.
+     *
+     * @param cutoff the start time before which trips expire
+     * @return whether the partition expired completely
+     */
+    public boolean expiredBefore(LocalDateTime cutoff) {
+        return to != null && !to.isAfter(cutoff);
+    }
+
+    /**
+     * Tells whether the partition can hold trips that started before the cutoff, but not only those.
+     *
+     * @param cutoff the start time before which trips expire
+     * @return whether the expired trips of the partition have to be deleted row by row
+     */
+    public boolean expiresPartlyBefore(LocalDateTime cutoff) {
+        return !expiredBefore(cutoff) && (from == null || from.isBefore(cutoff));
+    }
+}
@@ -0,0 +1,157 @@
+package tdr.solutions.retention;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service class responsible for storing the trips of closed months in vehicle order.
+ *
+ * <p>Trips arrive in start time order, so the trips of one vehicle are spread over as many blocks as
+ * it has trips. Once a month is over, nothing but late trips is written into its partition any more:
+ * the partition is rewritten in the order of the {@code tdr_vehicleid_starttime_covering} index with
+ * {@code CLUSTER}, after which a vehicle's history of the month lies in a few neighbouring blocks. A
+ * partition is clustered once, {@code tdr.layout.cluster.after} after the end of its month; trips
+ * stored into it later are appended as usual.</p>
+ *
+ * <p>{@code CLUSTER} locks the partition for as long as it rewrites it, so it waits at most
+ * {@code tdr.layout.cluster.lock-timeout} for the lock and tries again on the next run otherwise.
+ * Shards of other databases (such as the in-memory test databases) are not partitioned and are
+ * skipped.</p>
+ */
+@Service
+public class VehicleClusteringService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VehicleClusteringService.class);
+
+    private static final String CLUSTER_INDEX = "tdr_vehicleid_starttime_covering";
+    private static final String CLUSTERED_SQL = """
+            SELECT c.relname, x.indisclustered
+            FROM pg_inherits i
+                     JOIN pg_class c ON c.oid = i.inhrelid
+                     JOIN pg_index x ON x.indexrelid = c.oid
+            WHERE i.inhparent = to_regclass('%s')
+              AND x.indrelid = to_regclass(?)""".formatted(CLUSTER_INDEX);
+
+    private final TdrShardingService tdrShardingService;
+    private final boolean enabled;
+    private final Duration interval;
+    private final Duration after;
+    private final Duration lockTimeout;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor for {@code VehicleClusteringService}.
+     *
+     * @param tdrShardingService the sharding service providing the shard databases
+     * @param enabled            whether to cluster closed months at all
+     * @param interval           the delay between two clustering runs
+     * @param after              how long after the end of its month a partition is clustered
+     * @param lockTimeout        how long to wait for the lock of a partition
+     */
+    public VehicleClusteringService(TdrShardingService tdrShardingService,
+                                    @Value("${tdr.layout.cluster.enabled:false}") boolean enabled,
+                                    @Value("${tdr.layout.cluster.interval:PT6H}") Duration interval,
+                                    @Value("${tdr.layout.cluster.after:P1D}") Duration after,
+                                    @Value("${tdr.layout.cluster.lock-timeout:PT2S}") Duration lockTimeout) {
+        this.tdrShardingService = tdrShardingService;
+        this.enabled = enabled;
+        this.interval = interval;
+        this.after = after;
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Schedules the clustering runs, if enabled.
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("tdr-clustering").factory());
+        scheduler.scheduleWithFixedDelay(this::cluster, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the clustering runs.
+     */
+    @PreDestroy
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Clusters the partitions of closed months that are not clustered yet, in every database shard. A
+     * shard that fails is left as it is and retried on the next run.
+     */
+    public void cluster() {
+        LocalDateTime closedBefore = LocalDateTime.now().minus(after);
+        for (Shard shard : tdrShardingService.getShards()) {
+            try {
+                for (TdrPartition partition : TdrPartition.listOf(shard.dataSource())) {
+                    if (partition.to() != null && !partition.to().isAfter(closedBefore)) {
+                        cluster(shard, partition);
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.warn("Clustering of shard {} failed, retrying on the next run", shard.name(), e);
+            }
+        }
+    }
+
+    private void cluster(Shard shard, TdrPartition partition) throws SQLException {
+        try (Connection connection = shard.dataSource().getConnection()) {
+            String index;
+            try (PreparedStatement statement = connection.prepareStatement(CLUSTERED_SQL)) {
+                statement.setString(1, partition.name());
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next() || resultSet.getBoolean(2)) {
+                        return;
+                    }
+                    index = resultSet.getString(1);
+                }
+            }
+            long started = System.nanoTime();
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET LOCAL lock_timeout = " + lockTimeout.toMillis());
+                statement.execute("CLUSTER " + quote(partition.name()) + " USING " + quote(index));
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ANALYZE " + quote(partition.name()));
+            }
+            LOGGER.info("Clustered partition {} of shard {} by vehicle in {} ms", partition.name(), shard.name(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        }
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,174 @@
+package tdr.solutions.service;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the session directory of a year in the {@code session_route} table of its sub-shard 0.
+ *
+ * <p>The unique constraint of {@code trip_detail_record} covers one database only, and a session ID
+ * does not tell the vehicle it is routed by. The directory maps every session ID of the year to its
+ * vehicle, so its primary key keeps session IDs unique across all sub-shards and a lookup by session
+ * ID asks the sub-shard of that vehicle only. The vehicle rather than the sub-shard is kept, so that
+ * the entries stay valid while buckets migrate between sub-shards.</p>
+ *
+ * <p>A session ID is claimed before its trip is written to the vehicle's sub-shard, which is another
+ * database, so a claim whose write failed stays behind. Such a claim does not hide a trip, since its
+ * vehicle's sub-shard does not hold the session ID, and can be taken over once it is older than any
+ * write could take.</p>
+ */
+@Component
+public class SessionRouteStore {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final String BACKFILL_SQL = "INSERT INTO session_route (sessionid, vehicleid, claimed_at)"
+            + " SELECT ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM session_route WHERE sessionid = ?)";
+
+    /**
+     * The directory entry of a session ID.
+     *
+     * @param vehicleId the ID of the vehicle the session ID was claimed for
+     * @param claimedAt when the session ID was claimed
+     */
+    public record SessionRoute(String vehicleId, Instant claimedAt) {
+    }
+
+    /**
+     * Claims a session ID for a vehicle.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param sessionId  the session ID
+     * @param vehicleId  the ID of the vehicle
+     * @param claimedAt  the time of the claim
+     * @return {@code true} if the session ID was claimed, {@code false} if it was claimed already
+     */
+    public boolean claim(DataSource dataSource, String sessionId, String vehicleId, Instant claimedAt) {
+        try {
+            new JdbcTemplate(dataSource).update(
+                    "INSERT INTO session_route (sessionid, vehicleid, claimed_at) VALUES (?, ?, ?)",
+                    sessionId, vehicleId, Timestamp.from(claimedAt));
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes over the claim of a session ID, unless it changed since it was read.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param sessionId  the session ID
+     * @param stale      the claim as it was read
+     * @param vehicleId  the ID of the vehicle claiming the session ID
+     * @param claimedAt  the time of the claim
+     * @return {@code true} if the session ID was claimed, {@code false} if another claim came first
+     */
+    public boolean takeOver(DataSource dataSource, String sessionId, SessionRoute stale, String vehicleId,
+                            Instant claimedAt) {
+        return new JdbcTemplate(dataSource).update(
+                "UPDATE session_route SET vehicleid = ?, claimed_at = ?"
+                        + " WHERE sessionid = ? AND vehicleid = ? AND claimed_at = ?",
+                vehicleId, Timestamp.from(claimedAt), sessionId, stale.vehicleId(),
+                Timestamp.from(stale.claimedAt())) == 1;
+    }
+
+    /**
+     * Looks up the claim of a session ID.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param sessionId  the session ID
+     * @return the claim, or {@code null} if the session ID is not claimed
+     */
+    public SessionRoute find(DataSource dataSource, String sessionId) {
+        List<SessionRoute> routes = new JdbcTemplate(dataSource).query(
+                "SELECT vehicleid, claimed_at FROM session_route WHERE sessionid = ?",
+                (resultSet, row) -> new SessionRoute(resultSet.getString(1), resultSet.getTimestamp(2).toInstant()),
+                sessionId);
+        return routes.isEmpty() ? null : routes.get(0);
+    }
+
+    /**
+     * Looks up the vehicles of several session IDs, in chunks of at most {@value #CHUNK_SIZE}.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param sessionIds the session IDs
+     * @return the vehicle ID by session ID, without the session IDs that are not claimed
+     */
+    public Map<String, String> findVehicles(DataSource dataSource, List<String> sessionIds) {
+        Map<String, String> vehicles = new HashMap<>();
+        NamedParameterJdbcTemplate jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+        for (int from = 0; from < sessionIds.size(); from += CHUNK_SIZE) {
+            jdbcTemplate.query("SELECT sessionid, vehicleid FROM session_route WHERE sessionid IN (:sessionIds)",
+                    Map.of("sessionIds", sessionIds.subList(from, Math.min(from + CHUNK_SIZE, sessionIds.size()))),
+                    resultSet -> {
+                        vehicles.put(resultSet.getString(1), resultSet.getString(2));
+                    });
+        }
+        return vehicles;
+    }
+
+    /**
+     * Enters the session IDs a sub-shard holds into the directory, unless this was done before. Used
+     * for the sub-shards whose trips were written before the directory existed; session IDs already in
+     * the directory keep their claim.
+     *
+     * @param dataSource      the data source of the year's sub-shard 0
+     * @param shard           the name of the sub-shard
+     * @param shardDataSource the data source of the sub-shard
+     * @param claimedAt       the time of the claims
+     */
+    public void backfill(DataSource dataSource, String shard, DataSource shardDataSource, Instant claimedAt) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        Integer done = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM session_route_backfill WHERE shard = ?", Integer.class, shard);
+        if (done != null && done > 0) {
+            return;
+        }
+        Timestamp timestamp = Timestamp.from(claimedAt);
+        List<Object[]> rows = new ArrayList<>(CHUNK_SIZE);
+        new JdbcTemplate(shardDataSource).query("SELECT sessionid, vehicleid FROM trip_detail_record", resultSet -> {
+            String sessionId = resultSet.getString(1);
+            rows.add(new Object[]{sessionId, resultSet.getString(2), timestamp, sessionId});
+            if (rows.size() == CHUNK_SIZE) {
+                insertMissing(jdbcTemplate, rows);
+                rows.clear();
+            }
+        });
+        insertMissing(jdbcTemplate, rows);
+        try {
+            jdbcTemplate.update("INSERT INTO session_route_backfill (shard) VALUES (?)", shard);
+        } catch (DuplicateKeyException e) {
+            // Another node entered the sub-shard at the same time
+        }
+    }
+
+    private static void insertMissing(JdbcTemplate jdbcTemplate, Collection<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            jdbcTemplate.batchUpdate(BACKFILL_SQL, List.copyOf(rows));
+        } catch (DuplicateKeyException e) {
+            // A session ID was claimed concurrently, so the rows of the chunk are entered one by one
+            for (Object[] row : rows) {
+                try {
+                    jdbcTemplate.update(BACKFILL_SQL, row);
+                } catch (DuplicateKeyException duplicate) {
+                    // Claimed already
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package tdr.solutions.service;
+
+import tdr.solutions.repository.TripDetailRecordRepository;
+
+import javax.sql.DataSource;
+
+/**
+ * One physical database holding a part of a year's Trip Detail Records.
+ *
+ * <p>A year is split into one or more sub-shards by a {@link VehicleShardRouter}; sub-shard 0 is
+ * the year's statically configured database, further ones are configured via
+ * {@code tdr.sharding.sub-shards.<year>}.</p>
+ *
+ * @param year       the year of the shard
+ * @param name       the name of the sub-shard, which is also its data source property prefix
+ * @param repository the repository of the sub-shard
+ * @param dataSource the data source of the sub-shard, for work that needs plain JDBC access
+ */
+public record Shard(int year, String name, TripDetailRecordRepository repository, DataSource dataSource) {
+}
@@ -0,0 +1,107 @@
+package tdr.solutions.service;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the routing table of a year in the {@code shard_bucket} table of its sub-shard 0.
+ *
+ * <p>The table pins the owner of every bucket, so adding a sub-shard does not move any bucket until
+ * it is migrated, and it records running migrations so that every application node dual-writes and
+ * a failed migration can be resumed from its last copied row.</p>
+ */
+@Component
+public class ShardRoutingStore {
+
+    /**
+     * The persisted state of one bucket.
+     *
+     * @param owner           the name of the sub-shard owning the bucket
+     * @param migrationTarget the name of the sub-shard the bucket is being copied to, or {@code null}
+     * @param copiedUpTo      the source row id up to which the bucket has been copied
+     */
+    public record BucketRoute(String owner, String migrationTarget, long copiedUpTo) {
+    }
+
+    /**
+     * Loads the routing table of a year.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @return the state of every persisted bucket by bucket, empty if the table was never initialized
+     */
+    public Map<Integer, BucketRoute> load(DataSource dataSource) {
+        Map<Integer, BucketRoute> routes = new HashMap<>();
+        new JdbcTemplate(dataSource).query("SELECT bucket, owner, migrating_to, copied_up_to FROM shard_bucket",
+                resultSet -> {
+                    routes.put(resultSet.getInt(1),
+                            new BucketRoute(resultSet.getString(2), resultSet.getString(3), resultSet.getLong(4)));
+                });
+        return routes;
+    }
+
+    /**
+     * Persists the owners of a router as the initial routing table of a year, in one transaction.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param router     the router whose owners are persisted
+     */
+    public void initialize(DataSource dataSource, VehicleShardRouter router) {
+        List<Object[]> rows = new ArrayList<>(VehicleShardRouter.BUCKETS);
+        for (int bucket = 0; bucket < VehicleShardRouter.BUCKETS; bucket++) {
+            rows.add(new Object[]{bucket, router.getShardNames().get(router.ownerOf(bucket))});
+        }
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).executeWithoutResult(status ->
+                new JdbcTemplate(dataSource).batchUpdate("INSERT INTO shard_bucket (bucket, owner) VALUES (?, ?)", rows));
+    }
+
+    /**
+     * Marks buckets as being copied to a sub-shard. The copy progress of buckets already being copied
+     * to that sub-shard is kept, that of the others starts over.
+     *
+     * @param dataSource      the data source of the year's sub-shard 0
+     * @param buckets         the buckets
+     * @param migrationTarget the name of the sub-shard the buckets are copied to
+     */
+    public void startMigration(DataSource dataSource, Collection<Integer> buckets, String migrationTarget) {
+        new NamedParameterJdbcTemplate(dataSource).update(
+                "UPDATE shard_bucket SET copied_up_to = CASE WHEN migrating_to = :target THEN copied_up_to ELSE 0 END,"
+                        + " migrating_to = :target WHERE bucket IN (:buckets)",
+                Map.of("target", migrationTarget, "buckets", buckets));
+    }
+
+    /**
+     * Records how far buckets have been copied.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param buckets    the buckets
+     * @param copiedUpTo the source row id up to which the buckets have been copied
+     */
+    public void checkpoint(DataSource dataSource, Collection<Integer> buckets, long copiedUpTo) {
+        new NamedParameterJdbcTemplate(dataSource).update(
+                "UPDATE shard_bucket SET copied_up_to = :copiedUpTo WHERE bucket IN (:buckets)",
+                Map.of("copiedUpTo", copiedUpTo, "buckets", buckets));
+    }
+
+    /**
+     * Hands buckets over to the sub-shard they were copied to, in a single statement.
+     *
+     * @param dataSource the data source of the year's sub-shard 0
+     * @param buckets    the buckets
+     * @param owner      the name of the new owner
+     */
+    public void finishMigration(DataSource dataSource, Collection<Integer> buckets, String owner) {
+        new NamedParameterJdbcTemplate(dataSource).update(
+                "UPDATE shard_bucket SET owner = :owner, migrating_to = NULL, copied_up_to = 0 WHERE bucket IN (:buckets)",
+                Map.of("owner", owner, "buckets", buckets));
+    }
+}
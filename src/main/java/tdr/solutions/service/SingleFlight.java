@@ -0,0 +1,170 @@
+package tdr.solutions.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Collapses concurrent reads of the same key into one execution whose result is shared by every caller.
+ *
+ * <p>The first caller of a key becomes the leader and runs the loader; callers arriving while it runs
+ * wait for the leader's result, or its failure, instead of running their own. A caller waits at most
+ * {@code maxWait}: if the leader is still running by then, the caller runs the loader itself, so one
+ * stuck read cannot hold up every other reader of the key. A key is in flight only while its leader
+ * runs; later callers start a new execution.</p>
+ *
+ * <p>A waiter may receive a result read before a write it has seen completed. Writers therefore
+ * {@link #forget(Object) forget} the keys they touched, which makes later callers start over.</p>
+ *
+ * <p>Executions are counted in {@code tdr.single-flight.calls}, tagged with the name of the flight and
+ * the role of the caller: {@code leader}, {@code follower} or {@code timeout} (a follower that gave up
+ * waiting). {@code tdr.single-flight.shared} records how many callers each execution served, so the
+ * coalescing ratio of a flight is the share of followers among all calls.</p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * A read that may fail with a checked exception.
+     *
+     * @param <V> the type of the result
+     * @param <E> the type of the checked exception
+     */
+    @FunctionalInterface
+    public interface Loader<V, E extends Throwable> {
+
+        /**
+         * Runs the read.
+         *
+         * @return the result
+         * @throws E if the read fails
+         */
+        V load() throws E;
+    }
+
+    private record Flight<V>(CompletableFuture<V> result, AtomicInteger callers) {
+
+        Flight() {
+            this(new CompletableFuture<>(), new AtomicInteger(1));
+        }
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final Duration maxWait;
+    private final Counter leaders;
+    private final Counter followers;
+    private final Counter timeouts;
+    private final DistributionSummary shared;
+
+    /**
+     * Constructor for {@code SingleFlight}.
+     *
+     * @param name          the name the metrics of this flight are tagged with
+     * @param maxWait       how long a caller waits for another caller's execution at most
+     * @param meterRegistry the registry the metrics are published to
+     */
+    public SingleFlight(String name, Duration maxWait, MeterRegistry meterRegistry) {
+        this.maxWait = maxWait;
+        this.leaders = calls(name, "leader", meterRegistry);
+        this.followers = calls(name, "follower", meterRegistry);
+        this.timeouts = calls(name, "timeout", meterRegistry);
+        this.shared = DistributionSummary.builder("tdr.single-flight.shared")
+                .description("Callers served by one execution")
+                .tag("name", name)
+                .register(meterRegistry);
+    }
+
+    private static Counter calls(String name, String role, MeterRegistry meterRegistry) {
+        return Counter.builder("tdr.single-flight.calls")
+                .description("Calls of coalesced reads by the role of the caller")
+                .tag("name", name)
+                .tag("role", role)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the result of the execution in flight for the key, or runs the loader if there is none.
+     *
+     * @param key    the key identifying the read
+     * @param loader runs the read
+     * @param <E>    the type of the checked exception of the loader
+     * @return the result
+     * @throws E if the execution this caller waited for, or its own, failed
+     */
+    public <E extends Throwable> V execute(K key, Loader<V, E> loader) throws E {
+        Flight<V> flight = new Flight<>();
+        Flight<V> running = inFlight.putIfAbsent(key, flight);
+        if (running == null) {
+            leaders.increment();
+            return lead(key, flight, loader);
+        }
+        running.callers().incrementAndGet();
+        followers.increment();
+        try {
+            return running.result().get(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            return loader.load();
+        } catch (ExecutionException e) {
+            throw SingleFlight.<E>rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + key, e);
+        }
+    }
+
+    private <E extends Throwable> V lead(K key, Flight<V> flight, Loader<V, E> loader) throws E {
+        V result;
+        try {
+            result = loader.load();
+        } catch (Throwable e) {
+            // Leave the map first, so that no caller joins a finished execution
+            inFlight.remove(key, flight);
+            flight.result().completeExceptionally(e);
+            shared.record(flight.callers().get());
+            throw e;
+        }
+        inFlight.remove(key, flight);
+        flight.result().complete(result);
+        shared.record(flight.callers().get());
+        return result;
+    }
+
+    /**
+     * The cause of a failed execution is the exception of its loader, which is either unchecked or an {@code E}.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> E rethrow(Throwable cause) throws E {
+        throw (E) cause;
+    }
+
+    /**
+     * Makes later callers of the key start a new execution, while current waiters still receive the result
+     * of the running one.
+     *
+     * @param key the key that was written
+     */
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Makes later callers of every matching key start a new execution.
+     *
+     * @param keys selects the keys that were written
+     */
+    public void forgetIf(Predicate<K> keys) {
+        inFlight.keySet().removeIf(keys);
+    }
+}
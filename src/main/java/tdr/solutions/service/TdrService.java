@@ -1,97 +1,625 @@
 package tdr.solutions.service;
 
+import tdr.solutions.cache.VehicleHistoryCache;
+import tdr.solutions.config.ApiKeyAuthentication;
 import tdr.solutions.exception.TdrException;
+import tdr.solutions.index.VehicleLatestTripIndex;
+import tdr.solutions.index.VehicleTimelineIndex;
+import tdr.solutions.model.TdrBatchResult;
+import tdr.solutions.model.TdrCursor;
 import tdr.solutions.model.TdrEndTimeComparator;
+import tdr.solutions.model.TdrLatestTrips;
+import tdr.solutions.model.TdrLookupResult;
+import tdr.solutions.model.TdrPage;
 import tdr.solutions.model.TdrStartTimeComparator;
 import tdr.solutions.model.TripDetailRecord;
 import tdr.solutions.model.TripDetailRecordEntity;
-import tdr.solutions.repository.TripDetailRecordRepository;
-import jakarta.validation.Valid;
-import org.springframework.cache.annotation.Cacheable;
+import tdr.solutions.repository.TripDetailRecordReader;
+import tdr.solutions.validation.TdrRejection;
+import tdr.solutions.validation.TdrValidationException;
+import tdr.solutions.validation.TdrValidator;
+import tdr.solutions.validation.TdrViolation;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 /**
  * Service class responsible for handling operations related to Trip Detail Records (TDRs).
  * This service interacts with the underlying database sharding service and repositories to
  * create, retrieve, and manage TDRs.
+ *
+ * <p>Every operation is placed for the charge point operator of the request's API key, see
+ * {@link ApiKeyAuthentication#currentOperator()}: the operator is read once on the request thread and
+ * passed on to the {@link TdrShardingService}, which picks the operator's dedicated shards and
+ * connection shares. A dedicated shard may hold the same session and vehicle IDs as the shared
+ * sub-shards, so the {@code sessionIds} cache, the coalesced reads, the {@link VehicleHistoryCache} and
+ * the {@link VehicleTimelineIndex} are keyed by the operator's placement (see
+ * {@link TdrShardingService#getPlacement(String)}); operators without a dedicated shard share them.</p>
  */
 @Service
 public class TdrService {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(TdrService.class);
+
     public static final String START_TIME = "startTime";
+    public static final String SESSION_IDS_CACHE = "sessionIds";
     private final TdrShardingService tdrShardingService;
+    private final VehicleTimelineIndex vehicleTimelineIndex;
+    private final VehicleLatestTripIndex vehicleLatestTripIndex;
+    private final VehicleHistoryCache vehicleHistoryCache;
+    private final CacheManager cacheManager;
+    private final TdrValidator tdrValidator;
+    private final int lookupChunkSize;
+    private final SingleFlight<SessionKey, TripDetailRecord> sessionFlights;
+    private final SingleFlight<VehicleQuery, List<TripDetailRecord>> vehicleFlights;
+
+    /**
+     * Identifies a session ID lookup in the {@code sessionIds} cache and for coalescing.
+     *
+     * @param placement the placement of the operator the lookup is placed for, or {@code null} for the shared sub-shards
+     * @param sessionId the session ID
+     */
+    public record SessionKey(String placement, String sessionId) {
+
+        /**
+         * Evicts a session from the {@code sessionIds} cache for every placement, since the shared
+         * sub-shards of a year are read by operators of several placements.
+         *
+         * @param cache      the {@code sessionIds} cache
+         * @param placements every placement, see {@link TdrShardingService#getPlacements()}
+         * @param sessionId  the session ID that was written
+         */
+        public static void evict(Cache cache, Collection<String> placements, String sessionId) {
+            for (String placement : placements) {
+                cache.evict(new SessionKey(placement, sessionId));
+            }
+        }
+    }
+
+    /**
+     * Identifies a read of a vehicle's TDRs for coalescing.
+     *
+     * @param operator  the charge point operator the read is placed for, or {@code null}
+     * @param vehicleId the ID of the vehicle
+     * @param from      the inclusive lower bound of the start time, or {@code null} if unbounded
+     * @param to        the exclusive upper bound of the start time, or {@code null} if unbounded
+     * @param pageable  the pagination and sorting information, only the page size for keyset reads
+     * @param cursor    the position a keyset read starts after, or {@code null} for a read by page number
+     */
+    private record VehicleQuery(String operator, String vehicleId, LocalDateTime from, LocalDateTime to, Pageable pageable,
+                                TdrCursor cursor) {
+    }
 
     /**
      * Constructor for {@code TdrService}.
      *
-     * @param tdrShardingService the service responsible for determining the appropriate shard
-     *                           and providing access to the corresponding repository.
+     * @param tdrShardingService     the service responsible for determining the appropriate shard
+     *                               and providing access to the corresponding repository.
+     * @param vehicleTimelineIndex   the in-memory index serving vehicle history of the current shard.
+     * @param vehicleLatestTripIndex the in-memory index of the latest trip of every vehicle.
+     * @param vehicleHistoryCache    the cache of vehicle history pages.
+     * @param cacheManager           the cache manager holding the {@code sessionIds} cache.
+     * @param tdrValidator           the validator new TDRs must pass.
+     * @param lookupChunkSize        the number of session IDs sent to a shard per lookup query.
+     * @param meterRegistry          the registry the coalescing metrics are published to.
+     * @param singleFlightMaxWait    how long a read waits for an identical read in flight at most.
      */
-    public TdrService(TdrShardingService tdrShardingService) {
+    public TdrService(TdrShardingService tdrShardingService, VehicleTimelineIndex vehicleTimelineIndex,
+                      VehicleLatestTripIndex vehicleLatestTripIndex, VehicleHistoryCache vehicleHistoryCache,
+                      CacheManager cacheManager, TdrValidator tdrValidator,
+                      @Value("${tdr.lookup.chunk-size:1000}") int lookupChunkSize,
+                      MeterRegistry meterRegistry,
+                      @Value("${tdr.single-flight.max-wait:PT2S}") Duration singleFlightMaxWait) {
         this.tdrShardingService = tdrShardingService;
+        this.vehicleTimelineIndex = vehicleTimelineIndex;
+        this.vehicleLatestTripIndex = vehicleLatestTripIndex;
+        this.vehicleHistoryCache = vehicleHistoryCache;
+        this.cacheManager = cacheManager;
+        this.tdrValidator = tdrValidator;
+        this.lookupChunkSize = lookupChunkSize;
+        this.sessionFlights = new SingleFlight<>("session", singleFlightMaxWait, meterRegistry);
+        this.vehicleFlights = new SingleFlight<>("vehicle", singleFlightMaxWait, meterRegistry);
     }
 
     /**
-     * Creates a new Trip Detail Record (TDR) in the appropriate shard.
+     * Creates a new Trip Detail Record (TDR) in the appropriate shard, together with its event for the
+     * change feed (see {@link tdr.solutions.changes.TripEventRelay}). While the bucket of its vehicle
+     * is being migrated, the TDR is also written to the migration target.
      *
-     * @param tdr the TDR to be created, must be valid.
+     * @param tdr the TDR to be created.
      * @return the created TDR.
+     * @throws TdrValidationException if the TDR is invalid, see {@link TdrValidator}.
      * @throws TdrException if there is an issue during the creation process, such as data integrity violations.
      */
-    public TripDetailRecord createTdr(@Valid TripDetailRecord tdr) throws TdrException {
-        var tdrRepository = tdrShardingService.determineShard(tdr.startTime());
+    public TripDetailRecord createTdr(TripDetailRecord tdr) throws TdrException {
+        tdrValidator.check(tdr);
+        return insert(ApiKeyAuthentication.currentOperator(), tdr);
+    }
+
+    /**
+     * Creates a batch of Trip Detail Records (TDRs). The batch is validated first, with every TDR
+     * checked up to the first rule it breaks; the valid TDRs are then created one by one. A TDR that
+     * is invalid or conflicts with a stored one is rejected without stopping the others; a TDR that
+     * cannot be stored because of the database, such as an unavailable or saturated shard, is reported
+     * as retryable instead.
+     *
+     * @param tdrs the TDRs to be created.
+     * @return the created TDRs, the rejected ones with the reasons and the ones to be sent again.
+     */
+    public TdrBatchResult createTdrs(List<TripDetailRecord> tdrs) {
+        return createTdrs(ApiKeyAuthentication.currentOperator(), tdrs);
+    }
+
+    /**
+     * Creates a batch of Trip Detail Records (TDRs) for a charge point operator, like
+     * {@link #createTdrs(List)}. Used off the request thread, where there is no API key to take the
+     * operator from.
+     *
+     * @param operator the charge point operator the TDRs are placed for, or {@code null}
+     * @param tdrs     the TDRs to be created.
+     * @return the created TDRs, the rejected ones with the reasons and the ones to be sent again.
+     */
+    public TdrBatchResult createTdrs(String operator, List<TripDetailRecord> tdrs) {
+        List<TdrRejection> rejected = new ArrayList<>(tdrValidator.validateAll(tdrs));
+        List<TripDetailRecord> created = new ArrayList<>(tdrs.size() - rejected.size());
+        List<TdrRejection> retryable = new ArrayList<>();
+        int nextRejected = 0;
+        int invalid = rejected.size();
+        for (int i = 0; i < tdrs.size(); i++) {
+            if (nextRejected < invalid && rejected.get(nextRejected).index() == i) {
+                nextRejected++;
+                continue;
+            }
+            TripDetailRecord tdr = tdrs.get(i);
+            try {
+                created.add(insert(operator, tdr));
+            } catch (TdrException e) {
+                rejected.add(new TdrRejection(i, tdr.sessionId(), List.of(new TdrViolation(null, e.getMessage()))));
+            } catch (RuntimeException e) {
+                // Not a fault of the TDR: the shard may be down or saturated, so it is left to be sent again
+                LOGGER.warn("Creating session {} of a batch failed", tdr.sessionId(), e);
+                retryable.add(new TdrRejection(i, tdr.sessionId(), List.of(new TdrViolation(null, "temporarily unavailable"))));
+            }
+        }
+        rejected.sort(Comparator.comparingInt(TdrRejection::index));
+        return new TdrBatchResult(created, rejected, retryable);
+    }
+
+    private TripDetailRecord insert(String operator, TripDetailRecord tdr) throws TdrException {
+        var tdrRepository = tdrShardingService.determineShard(operator, tdr.startTime(), tdr.vehicleId());
+        if (tdrRepository == null) {
+            throw new TdrException("no writable shard for year " + tdr.startTime().getYear());
+        }
+        // The unique constraint covers one database only, so the session ID is claimed for the whole year first
+        if (!tdrShardingService.claimSession(operator, tdr.startTime().getYear(), tdr.sessionId(), tdr.vehicleId())) {
+            throw new TdrException("sessionId " + tdr.sessionId() + " already exists");
+        }
         TripDetailRecordEntity tripDetailRecordEntity = getTripDetailRecordEntity(tdr);
         TripDetailRecordEntity result;
         try {
-            result = tdrRepository.save(tripDetailRecordEntity);
+            result = tdrRepository.saveWithEvent(tripDetailRecordEntity);
         } catch (DataIntegrityViolationException e) {
             throw new TdrException(e.getMessage());
         }
-        return getTripDetailRecord(result);
+        TripDetailRecord created = getTripDetailRecord(result);
+        var dualWriteRepository = tdrShardingService.determineDualWriteShard(operator, tdr.startTime(), tdr.vehicleId());
+        if (dualWriteRepository != null) {
+            try {
+                dualWriteRepository.save(getTripDetailRecordEntity(created));
+            } catch (DataIntegrityViolationException e) {
+                // The migration copied the TDR already
+                LOGGER.debug("Session {} is already in the migration target", created.sessionId());
+            } catch (DataAccessException e) {
+                // Missing copies are repaired when the migration verifies its checksums
+                LOGGER.warn("Dual write of session {} failed", created.sessionId(), e);
+            }
+        }
+        String placement = tdrShardingService.getPlacement(operator, tdr.startTime().getYear());
+        vehicleTimelineIndex.onInsert(placement, created);
+        vehicleLatestTripIndex.onInsert(placement, created);
+        vehicleHistoryCache.invalidate(created.vehicleId());
+        // Reads in flight may have missed the new TDR, so later reads must not join them
+        sessionFlights.forgetIf(key -> key.sessionId().equals(created.sessionId()));
+        vehicleFlights.forgetIf(query -> query.vehicleId().equals(created.vehicleId()));
+        return created;
     }
 
     /**
      * Retrieves a Trip Detail Record (TDR) by its session ID.
-     * This method uses caching to improve performance for frequently accessed session IDs.
+     * This method uses the {@code sessionIds} cache to improve performance for frequently accessed
+     * session IDs. A session ID does not tell its vehicle, so the years are asked oldest first, each
+     * with the sub-shard its session directory routes the session ID to, see
+     * {@link TdrShardingService#getSessionReaders(String, int, String)}. Concurrent cache misses for
+     * the same session ID and placement share one such lookup, see {@link SingleFlight}.
      *
      * @param sessionId the session ID of the TDR to be retrieved.
      * @return the TDR associated with the given session ID.
      * @throws TdrException if no TDR is found for the given session ID.
      */
-    @Cacheable(value = "sessionIds", key = "#sessionId")
     public TripDetailRecord getTdrBySessionId(String sessionId) throws TdrException {
-        var map = tdrShardingService.getJpaRepositoryHashMap();
-        for (TripDetailRecordRepository tripDetailRecordRepository : map.values()) {
-            TripDetailRecordEntity result = tripDetailRecordRepository.findBySessionId(sessionId);
-            if (result != null) {
-                return getTripDetailRecord(result);
+        String operator = ApiKeyAuthentication.currentOperator();
+        SessionKey key = new SessionKey(tdrShardingService.getPlacement(operator), sessionId);
+        Cache cache = cacheManager.getCache(SESSION_IDS_CACHE);
+        TripDetailRecord cached = cache == null ? null : cache.get(key, TripDetailRecord.class);
+        if (cached != null) {
+            return cached;
+        }
+        TripDetailRecord tdr = sessionFlights.execute(key, () -> findTdrBySessionId(operator, sessionId));
+        if (cache != null) {
+            cache.put(key, tdr);
+        }
+        return tdr;
+    }
+
+    private TripDetailRecord findTdrBySessionId(String operator, String sessionId) throws TdrException {
+        for (int year : tdrShardingService.getYears()) {
+            for (TripDetailRecordEntity result : queryInParallel(tdrShardingService.getSessionReaders(operator, year, sessionId),
+                    reader -> reader.findBySessionId(sessionId))) {
+                if (result != null) {
+                    return getTripDetailRecord(result);
+                }
             }
         }
         throw new TdrException("sessionId " + sessionId + " not found");
     }
 
+    /**
+     * Puts the most recent Trip Detail Records (TDRs) of every registered database sub-shard into the
+     * {@code sessionIds} cache, so that a new instance does not start with a cold cache. Every placement
+     * gets the TDRs of the shards it reads; shards are loaded oldest year first and cached entries are
+     * not replaced, like session ID lookups resolve.
+     *
+     * @param perShard the number of TDRs loaded from each sub-shard, by start time.
+     * @return the TDRs that were loaded, once per shard.
+     */
+    public List<TripDetailRecord> cacheRecentTdrs(int perShard) {
+        Cache cache = cacheManager.getCache(SESSION_IDS_CACHE);
+        Map<String, List<TripDetailRecord>> recentByShard = new LinkedHashMap<>();
+        for (String placement : tdrShardingService.getPlacements()) {
+            for (Shard shard : tdrShardingService.getShards(placement)) {
+                // The shared sub-shards are read by every placement without a dedicated shard in their year, but loaded once
+                List<TripDetailRecord> recent = recentByShard.computeIfAbsent(shard.name(), name ->
+                        shard.repository().findAllByOrderByStartTimeDesc(Limit.of(perShard)).stream()
+                                .map(TdrService::getTripDetailRecord)
+                                .toList());
+                if (cache != null) {
+                    recent.forEach(tdr -> cache.putIfAbsent(new SessionKey(placement, tdr.sessionId()), tdr));
+                }
+            }
+        }
+        return recentByShard.values().stream().flatMap(List::stream).toList();
+    }
+
+    /**
+     * Retrieves the Trip Detail Records (TDRs) of a batch of session IDs.
+     *
+     * <p>Session IDs held by the {@code sessionIds} cache are answered from there. The remaining ones
+     * are looked up in the sub-shards the session directory of each year routes them to, in parallel,
+     * each receiving one {@code IN} query per chunk of {@code tdr.lookup.chunk-size} of its IDs; found TDRs are added to the cache. As with
+     * {@link #getTdrBySessionId(String)}, a session ID present in several shards resolves to the oldest
+     * shard.</p>
+     *
+     * @param sessionIds the session IDs to look up; duplicates are looked up once.
+     * @return the found TDRs in request order and the session IDs that were not found.
+     */
+    public TdrLookupResult lookupTdrs(Collection<String> sessionIds) {
+        Set<String> requested = new LinkedHashSet<>(sessionIds);
+        Map<String, TripDetailRecord> found = new HashMap<>();
+        String operator = ApiKeyAuthentication.currentOperator();
+        String placement = tdrShardingService.getPlacement(operator);
+        Cache cache = cacheManager.getCache(SESSION_IDS_CACHE);
+        List<String> misses = new ArrayList<>();
+        for (String sessionId : requested) {
+            TripDetailRecord cached = cache == null ? null : cache.get(new SessionKey(placement, sessionId), TripDetailRecord.class);
+            if (cached != null) {
+                found.put(sessionId, cached);
+            } else {
+                misses.add(sessionId);
+            }
+        }
+        if (!misses.isEmpty()) {
+            for (List<TripDetailRecordEntity> shardResult : findAllBySessionIdInTheirShards(operator, misses)) {
+                for (TripDetailRecordEntity entity : shardResult) {
+                    if (found.putIfAbsent(entity.getSessionId(), getTripDetailRecord(entity)) == null && cache != null) {
+                        cache.putIfAbsent(new SessionKey(placement, entity.getSessionId()), found.get(entity.getSessionId()));
+                    }
+                }
+            }
+        }
+        List<TripDetailRecord> foundInOrder = new ArrayList<>(found.size());
+        List<String> missing = new ArrayList<>();
+        for (String sessionId : requested) {
+            TripDetailRecord tdr = found.get(sessionId);
+            if (tdr != null) {
+                foundInOrder.add(tdr);
+            } else {
+                missing.add(sessionId);
+            }
+        }
+        return new TdrLookupResult(foundInOrder, missing);
+    }
+
+    /**
+     * Retrieves the latest trip, the one that ended last, of each of a batch of vehicles in one pass over
+     * the {@link VehicleLatestTripIndex}, instead of a page of each vehicle's history sorted by end time
+     * from every shard. Only the shards the calling operator reads are considered, and trips of archived
+     * years are not.
+     *
+     * @param vehicleIds the IDs of the vehicles; duplicates are answered once.
+     * @return the latest TDRs in request order and the vehicle IDs without trips.
+     */
+    public TdrLatestTrips getLatestTrips(Collection<String> vehicleIds) {
+        Set<String> requested = new LinkedHashSet<>(vehicleIds);
+        Map<String, TripDetailRecord> latestTrips = vehicleLatestTripIndex.findLatestTrips(
+                ApiKeyAuthentication.currentOperator(), requested);
+        List<TripDetailRecord> found = new ArrayList<>(latestTrips.size());
+        List<String> missing = new ArrayList<>();
+        for (String vehicleId : requested) {
+            TripDetailRecord tdr = latestTrips.get(vehicleId);
+            if (tdr != null) {
+                found.add(tdr);
+            } else {
+                missing.add(vehicleId);
+            }
+        }
+        return new TdrLatestTrips(found, missing);
+    }
+
+    /**
+     * Queries the sub-shards of every year that may hold the given session IDs concurrently, each for
+     * the session IDs its year's session directory routes to it. Within a sub-shard the chunks are
+     * queried one after another, so a lookup holds at most one connection per database.
+     *
+     * @param operator   the charge point operator the lookup is placed for, or {@code null}.
+     * @param sessionIds the session IDs to look up.
+     * @return the found entities per sub-shard, oldest year first.
+     */
+    private List<List<TripDetailRecordEntity>> findAllBySessionIdInTheirShards(String operator, List<String> sessionIds) {
+        Map<TripDetailRecordReader, List<String>> sessionIdsByReader = new LinkedHashMap<>();
+        for (int year : tdrShardingService.getYears()) {
+            sessionIdsByReader.putAll(tdrShardingService.getSessionReaders(operator, year, sessionIds));
+        }
+        return queryInParallel(List.copyOf(sessionIdsByReader.keySet()), reader -> {
+            List<String> readerSessionIds = sessionIdsByReader.get(reader);
+            List<TripDetailRecordEntity> result = new ArrayList<>();
+            for (int from = 0; from < readerSessionIds.size(); from += lookupChunkSize) {
+                result.addAll(reader.findAllBySessionIdIn(
+                        readerSessionIds.subList(from, Math.min(from + lookupChunkSize, readerSessionIds.size()))));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Runs a query against several shards concurrently, one virtual thread per shard. A single shard
+     * is queried on the calling thread.
+     *
+     * @param readers the shards to query.
+     * @param query   the query.
+     * @return the results in the order of {@code readers}; {@code null} results are kept.
+     */
+    private static <T> List<T> queryInParallel(List<TripDetailRecordReader> readers, Function<TripDetailRecordReader, T> query) {
+        if (readers.size() == 1) {
+            return Collections.singletonList(query.apply(readers.get(0)));
+        }
+        List<Future<T>> shardResults = new ArrayList<>(readers.size());
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (TripDetailRecordReader reader : readers) {
+                shardResults.add(executor.submit(() -> query.apply(reader)));
+            }
+        }
+        List<T> results = new ArrayList<>(shardResults.size());
+        for (Future<T> shardResult : shardResults) {
+            if (shardResult.state() == Future.State.FAILED) {
+                Throwable cause = shardResult.exceptionNow();
+                throw cause instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(cause);
+            }
+            results.add(shardResult.resultNow());
+        }
+        return results;
+    }
+
     /**
      * Retrieves a list of Trip Detail Records (TDRs) for a specific vehicle ID, with pagination and sorting.
+     * Pages are served from the {@link VehicleHistoryCache}, which coalesces concurrent misses for the
+     * same page and is invalidated per vehicle whenever a TDR of that vehicle is created. With the
+     * cache disabled, concurrent identical reads are coalesced by a {@link SingleFlight} instead.
      *
      * @param vehicleId the ID of the vehicle whose TDRs are to be retrieved.
      * @param pageable  the pagination and sorting information.
      * @return a list of TDRs for the specified vehicle, sorted by the specified criteria.
      */
     public List<TripDetailRecord> getTdrsByVehicleId(String vehicleId, Pageable pageable) {
-        var map = tdrShardingService.getJpaRepositoryHashMap();
+        String operator = ApiKeyAuthentication.currentOperator();
+        if (vehicleHistoryCache.isEnabled()) {
+            // Sharing a load across cache versions could store a page read before a write into the new version
+            return vehicleHistoryCache.get(tdrShardingService.getPlacement(operator), vehicleId, pageable,
+                    () -> loadTdrsByVehicleId(operator, vehicleId, pageable));
+        }
+        return vehicleFlights.execute(new VehicleQuery(operator, vehicleId, null, null, pageable, null),
+                () -> loadTdrsByVehicleId(operator, vehicleId, pageable));
+    }
+
+    /**
+     * Retrieves a page of a vehicle's Trip Detail Records following a keyset position, together with
+     * the total number of the vehicle's TDRs and the position of the next page. Every shard seeks to
+     * the position, so a page costs the same however deep into the history it lies; see
+     * {@link TdrCursor}. Pages are cached in the {@link VehicleHistoryCache} like those of
+     * {@link #getTdrsByVehicleId(String, Pageable)}.
+     *
+     * <p>The total is the sum of the trip counters of the sub-shard the vehicle is routed to in each
+     * year, which every shard keeps up to date in the transaction of each insert and delete, so no
+     * trips are counted on the request path. Counts are cached next to the pages and dropped with them.</p>
+     *
+     * @param vehicleId the ID of the vehicle whose TDRs are to be retrieved.
+     * @param cursor    the order and the position after which TDRs are returned.
+     * @param size      the number of TDRs per page.
+     * @return the page of TDRs with the total number of TDRs and pages and the cursor of the next page.
+     */
+    public TdrPage getTdrPageByVehicleId(String vehicleId, TdrCursor cursor, int size) {
+        String operator = ApiKeyAuthentication.currentOperator();
+        String placement = tdrShardingService.getPlacement(operator);
+        // One more TDR than requested tells whether there is a next page
+        List<TripDetailRecord> leading = vehicleHistoryCache.isEnabled()
+                ? vehicleHistoryCache.get(placement, vehicleId, cursor, size + 1,
+                        () -> loadTdrsByVehicleIdAfter(operator, vehicleId, cursor, size + 1))
+                : vehicleFlights.execute(new VehicleQuery(operator, vehicleId, null, null, Pageable.ofSize(size + 1), cursor),
+                        () -> loadTdrsByVehicleIdAfter(operator, vehicleId, cursor, size + 1));
+        List<TripDetailRecord> content = leading.size() > size ? leading.subList(0, size) : leading;
+        String next = leading.size() > size ? cursor.after(content.get(size - 1)).encode() : null;
+        long totalElements = vehicleHistoryCache.countTrips(placement, vehicleId, () -> countTripsOfVehicle(operator, vehicleId));
+        int totalPages = (int) ((totalElements + size - 1) / size);
+        return new TdrPage(content, size, totalElements, totalPages, next);
+    }
+
+    private long countTripsOfVehicle(String operator, String vehicleId) {
+        long trips = 0;
+        for (int year : tdrShardingService.getYears()) {
+            trips += tdrShardingService.getVehicleReader(operator, year, vehicleId).countTripsOfVehicle(vehicleId);
+        }
+        return trips;
+    }
+
+    /**
+     * Loads a page of a vehicle's TDRs from the shards, asking only the sub-shard the vehicle is
+     * routed to in each year. The current year shard is read from the {@link VehicleTimelineIndex};
+     * when its page already holds the newest trips across all shards, the other shards are not
+     * queried at all. Every shard delivers its leading records up to the end of the page, so that the
+     * merged pages follow each other without gaps.
+     *
+     * @param operator  the charge point operator the read is placed for, or {@code null}.
+     * @param vehicleId the ID of the vehicle whose TDRs are to be retrieved.
+     * @param pageable  the pagination and sorting information.
+     * @return a list of TDRs for the specified vehicle, sorted by the specified criteria.
+     */
+    private List<TripDetailRecord> loadTdrsByVehicleId(String operator, String vehicleId, Pageable pageable) {
+        var leadingRecords = PageRequest.of(0, (int) pageable.getOffset() + pageable.getPageSize(), pageable.getSort());
         List<TripDetailRecord> result = new ArrayList<>();
-        for (TripDetailRecordRepository tripDetailRecordRepository : map.values()) {
-            var vehicleIdOrderByStartTimeAsc = tripDetailRecordRepository.findAllByVehicleId(vehicleId, pageable);
+        int currentYear = tdrShardingService.getCurrentYear();
+        boolean fromMemory = vehicleTimelineIndex.isServing(currentYear);
+        if (fromMemory) {
+            var currentShardPage = vehicleTimelineIndex.findAllByVehicleId(
+                    tdrShardingService.getPlacement(operator, currentYear), vehicleId, leadingRecords);
+            if (vehicleTimelineIndex.supersedesOlderShards(currentShardPage, leadingRecords)) {
+                return currentShardPage.stream().skip(pageable.getOffset()).toList();
+            }
+            result.addAll(currentShardPage);
+        }
+        for (int year : tdrShardingService.getYears()) {
+            if (fromMemory && year == currentYear) {
+                continue;
+            }
+            var vehicleIdOrderByStartTimeAsc = tdrShardingService.getVehicleReader(operator, year, vehicleId).findAllByVehicleId(vehicleId, leadingRecords);
             vehicleIdOrderByStartTimeAsc.stream().map(TdrService::getTripDetailRecord).forEach(result::add);
         }
         sortResult(pageable, result);
-        return result.stream().limit(pageable.getPageSize()).toList();
+        return result.stream().skip(pageable.getOffset()).limit(pageable.getPageSize()).toList();
+    }
+
+    /**
+     * Loads the TDRs of a vehicle following a keyset position from the shards, asking only the
+     * sub-shard the vehicle is routed to in each year and reading the current year shard from the
+     * {@link VehicleTimelineIndex}. Each shard delivers at most {@code limit} TDRs following the
+     * position, which are merged in the order of the cursor.
+     *
+     * @param operator  the charge point operator the read is placed for, or {@code null}.
+     * @param vehicleId the ID of the vehicle whose TDRs are to be retrieved.
+     * @param cursor    the order and the position after which TDRs are returned.
+     * @param limit     the number of TDRs to return at most.
+     * @return the TDRs following the position, in the order of the cursor.
+     */
+    private List<TripDetailRecord> loadTdrsByVehicleIdAfter(String operator, String vehicleId, TdrCursor cursor, int limit) {
+        List<TripDetailRecord> result = new ArrayList<>();
+        int currentYear = tdrShardingService.getCurrentYear();
+        boolean fromMemory = vehicleTimelineIndex.isServing(currentYear);
+        if (fromMemory) {
+            var currentShardPage = vehicleTimelineIndex.findAllByVehicleIdAfter(
+                    tdrShardingService.getPlacement(operator, currentYear), vehicleId, cursor, limit);
+            Sort sort = Sort.by(cursor.descending() ? Sort.Direction.DESC : Sort.Direction.ASC, cursor.sortBy());
+            if (vehicleTimelineIndex.supersedesOlderShards(currentShardPage, PageRequest.of(0, limit, sort))) {
+                return currentShardPage;
+            }
+            result.addAll(currentShardPage);
+        }
+        for (int year : tdrShardingService.getYears()) {
+            if (fromMemory && year == currentYear) {
+                continue;
+            }
+            tdrShardingService.getVehicleReader(operator, year, vehicleId).findAllByVehicleIdAfter(vehicleId, cursor, limit)
+                    .stream().map(TdrService::getTripDetailRecord).forEach(result::add);
+        }
+        result.sort(cursor.comparator());
+        return result.size() > limit ? List.copyOf(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Retrieves a page of Trip Detail Records (TDRs) for a specific vehicle whose start time lies
+     * within {@code [from, to)}. Only the shards whose year overlaps the range are consulted, and
+     * the current year shard is read from the {@link VehicleTimelineIndex}. Concurrent identical
+     * reads share one execution, see {@link SingleFlight}.
+     *
+     * @param vehicleId the ID of the vehicle whose TDRs are to be retrieved.
+     * @param from      the inclusive lower bound of the start time.
+     * @param to        the exclusive upper bound of the start time.
+     * @param pageable  the pagination and sorting information.
+     * @return a list of TDRs for the specified vehicle and range, sorted by the specified criteria.
+     */
+    public List<TripDetailRecord> getTdrsByVehicleIdInRange(String vehicleId, LocalDateTime from, LocalDateTime to,
+                                                            Pageable pageable) {
+        if (!from.isBefore(to)) {
+            return List.of();
+        }
+        String operator = ApiKeyAuthentication.currentOperator();
+        return vehicleFlights.execute(new VehicleQuery(operator, vehicleId, from, to, pageable, null),
+                () -> loadTdrsByVehicleIdInRange(operator, vehicleId, from, to, pageable));
+    }
+
+    private List<TripDetailRecord> loadTdrsByVehicleIdInRange(String operator, String vehicleId, LocalDateTime from,
+                                                              LocalDateTime to, Pageable pageable) {
+        // Every shard has to deliver the leading records up to the end of the page before they can be merged
+        var leadingRecords = PageRequest.of(0, (int) pageable.getOffset() + pageable.getPageSize(), pageable.getSort());
+        int lastYear = to.minusNanos(1).getYear();
+        List<TripDetailRecord> result = new ArrayList<>();
+        for (int year : tdrShardingService.getYears()) {
+            if (year < from.getYear() || year > lastYear) {
+                continue;
+            }
+            if (vehicleTimelineIndex.isServing(year)) {
+                result.addAll(vehicleTimelineIndex.findAllByVehicleIdAndStartTimeBetween(
+                        tdrShardingService.getPlacement(operator, year), vehicleId, from, to, leadingRecords));
+            } else {
+                tdrShardingService.getVehicleReader(operator, year, vehicleId).findAllByVehicleIdAndStartTimeGreaterThanEqualAndStartTimeLessThan(vehicleId, from, to, leadingRecords)
+                        .stream().map(TdrService::getTripDetailRecord).forEach(result::add);
+            }
+        }
+        sortResult(pageable, result);
+        return result.stream().skip(pageable.getOffset()).limit(pageable.getPageSize()).toList();
     }
 
     /**
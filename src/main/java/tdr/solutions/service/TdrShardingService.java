@@ -1,70 +1,878 @@
 package tdr.solutions.service;
 
+import tdr.solutions.concurrency.ShardBulkheads;
+import tdr.solutions.config.ShardStartup;
+import tdr.solutions.config.SubShardFactory;
+import tdr.solutions.exception.ShardUnavailableException;
+import tdr.solutions.repository.TripDetailRecordReader;
 import tdr.solutions.repository.TripDetailRecordRepository;
 import tdr.solutions.repository._2023.TripDetailRecordRepository2023;
 import tdr.solutions.repository._2024.TripDetailRecordRepository2024;
 import jakarta.annotation.PostConstruct;
 import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * Service class responsible for determining the appropriate data shard (i.e., the correct
- * {@link TripDetailRecordRepository}) based on the year of the Trip Detail Record's start time.
+ * {@link TripDetailRecordRepository}) based on the year of the Trip Detail Record's start time
+ * and its vehicle.
  *
- * <p>This service initializes and manages a map of repositories, where each repository handles data
- * for a specific year. The sharding is based on the year component of the {@link LocalDateTime}
- * of the record's start time.</p>
+ * <p>Each year is split into one or more sub-shards, see {@link Shard}. Within a year, the
+ * {@link VehicleShardRouter} of that year picks the sub-shard by a consistent hash of the vehicle ID,
+ * so writes scale with the number of sub-shards while all trips of a vehicle stay together. A year
+ * that was archived is served by a single read-only {@link TripDetailRecordReader} instead.</p>
  *
- * <p>The service currently supports sharding for the years 2023 and 2024, with the corresponding
- * repositories {@link TripDetailRecordRepository2023} and {@link TripDetailRecordRepository2024}.</p>
+ * <p>The years 2023 and 2024 are backed by the repositories {@link TripDetailRecordRepository2023}
+ * and {@link TripDetailRecordRepository2024} as their sub-shard 0; further sub-shards are created by
+ * the {@link SubShardFactory}. Years are iterated oldest first.</p>
+ *
+ * <p>Years that {@link ShardStartup} does not initialize during startup are registered in the
+ * background once their databases are migrated. Until then they are listed by {@link #getYears()},
+ * and the methods for a single year wait for the first attempt. A failed initialization is retried,
+ * and until a retry succeeds these methods throw a {@link ShardUnavailableException}.</p>
+ *
+ * <p>Trips are placed by charge point operator and year. By default all operators share the
+ * sub-shards of a year, each holding at most its share of a sub-shard's connections (see
+ * {@link ShardBulkheads#forTenant(Shard, String)}). Large operators can get a dedicated database in a
+ * year, see {@link SubShardFactory#createTenantShards(int)}: it holds all of their trips of that year,
+ * with a connection pool of its own, and the operator's reads and writes of that year go there only.
+ * The methods taking an operator place the trips of that operator; the ones without an operator, or
+ * with {@code null}, place them in the shared sub-shards. Since a dedicated shard may hold the same
+ * vehicle and session IDs as the shared ones, whatever is derived from trips is kept apart per
+ * {@link #getPlacement(String) placement}.</p>
  */
 @Service
 public class TdrShardingService {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(TdrShardingService.class);
+
     private final TripDetailRecordRepository2023 tdrRepository2023;
     private final TripDetailRecordRepository2024 tdrRepository2024;
+    private final DataSource tdr2023DataSource;
+    private final DataSource tdr2024DataSource;
+    private final SubShardFactory subShardFactory;
+    private final ShardRoutingStore shardRoutingStore;
+    private final SessionRouteStore sessionRouteStore;
+    private final ShardBulkheads shardBulkheads;
+    private final ShardStartup shardStartup;
+
+    /** The database sub-shards of every year, indexed like the year's {@link VehicleShardRouter}. */
+    private final NavigableMap<Integer, List<Shard>> shardHashMap = new ConcurrentSkipListMap<>();
+
+    /** The router of every year that has database sub-shards. */
+    private final Map<Integer, VehicleShardRouter> routerHashMap = new ConcurrentHashMap<>();
+
+    /** The dedicated shards of every year, by the operator they belong to. */
+    private final NavigableMap<Integer, Map<String, Shard>> tenantShardHashMap = new ConcurrentSkipListMap<>();
+
+    /** The read-only shards, typically archives, replacing the database sub-shards of past years. */
+    private final NavigableMap<Integer, TripDetailRecordReader> readOnlyShardHashMap = new ConcurrentSkipListMap<>();
+
+    /** The registrations of the years still being initialized in the background. */
+    private final Map<Integer, CompletableFuture<Void>> pendingYears = new ConcurrentHashMap<>();
+
+    /** The first attempt to register each year of {@link #pendingYears}, completed whether it succeeded or not. */
+    private final Map<Integer, CompletableFuture<Void>> firstAttempts = new ConcurrentHashMap<>();
+
+    /** The last failure of every year of {@link #pendingYears} whose initialization failed and is retried. */
+    private final Map<Integer, RuntimeException> unavailableYears = new ConcurrentHashMap<>();
+
+    /** The years whose database sub-shards are temporarily not accepting new TDRs. */
+    private final Set<Integer> frozenYears = ConcurrentHashMap.newKeySet();
+
+    /** The configured current year, or {@code null} to use the newest configured shard. */
+    private final Integer configuredCurrentYear;
+
+    /** The age from which a session ID claimed for a trip its vehicle's sub-shard lacks may be claimed anew. */
+    private final Duration sessionClaimTimeout;
+
+    /** The delay before the failed initialization of a year is tried again. */
+    private final Duration registrationRetryDelay;
 
     /**
-     * A map that holds the relationship between a year (as an {@link Integer})
-     * and its corresponding {@link TripDetailRecordRepository}.
+     * The year of the shard receiving the bulk of today's traffic.
      */
     @Getter
-    private final Map<Integer, TripDetailRecordRepository> jpaRepositoryHashMap = new HashMap<>();
+    private int currentYear;
 
     /**
      * Constructor to inject the required repositories for sharding.
      *
-     * @param tdrRepository2023 the repository handling Trip Detail Records for the year 2023
-     * @param tdrRepository2024 the repository handling Trip Detail Records for the year 2024
+     * @param tdrRepository2023      the repository handling Trip Detail Records for the year 2023
+     * @param tdrRepository2024      the repository handling Trip Detail Records for the year 2024
+     * @param tdr2023DataSource      the data source of the 2023 shard
+     * @param tdr2024DataSource      the data source of the 2024 shard
+     * @param subShardFactory        the factory of the additional sub-shards of each year
+     * @param shardRoutingStore      the store of the persisted routing table of each year
+     * @param sessionRouteStore      the store of the session directory of each year
+     * @param shardBulkheads         the bulkheads limiting the concurrent calls of each database sub-shard
+     * @param shardStartup           the decision which years are initialized during startup
+     * @param configuredCurrentYear  the year of the active shard; defaults to the newest configured year
+     * @param sessionClaimTimeout    the age from which an unused session ID claim may be taken over,
+     *                               longer than any write of a TDR takes
+     * @param registrationRetryDelay the delay before the failed background initialization of a year is
+     *                               tried again
      */
-    public TdrShardingService(TripDetailRecordRepository2023 tdrRepository2023, TripDetailRecordRepository2024 tdrRepository2024) {
+    public TdrShardingService(TripDetailRecordRepository2023 tdrRepository2023, TripDetailRecordRepository2024 tdrRepository2024,
+                              @Qualifier("tdr2023DataSource") DataSource tdr2023DataSource,
+                              @Qualifier("tdr2024DataSource") DataSource tdr2024DataSource,
+                              SubShardFactory subShardFactory, ShardRoutingStore shardRoutingStore,
+                              SessionRouteStore sessionRouteStore, ShardBulkheads shardBulkheads, ShardStartup shardStartup,
+                              @Value("${tdr.sharding.current-year:#{null}}") Integer configuredCurrentYear,
+                              @Value("${tdr.sharding.session-claim-timeout:PT1M}") Duration sessionClaimTimeout,
+                              @Value("${tdr.sharding.registration-retry-delay:PT30S}") Duration registrationRetryDelay) {
         this.tdrRepository2023 = tdrRepository2023;
         this.tdrRepository2024 = tdrRepository2024;
+        this.tdr2023DataSource = tdr2023DataSource;
+        this.tdr2024DataSource = tdr2024DataSource;
+        this.subShardFactory = subShardFactory;
+        this.shardRoutingStore = shardRoutingStore;
+        this.sessionRouteStore = sessionRouteStore;
+        this.shardBulkheads = shardBulkheads;
+        this.shardStartup = shardStartup;
+        this.configuredCurrentYear = configuredCurrentYear;
+        this.sessionClaimTimeout = sessionClaimTimeout;
+        this.registrationRetryDelay = registrationRetryDelay;
     }
 
     /**
-     * Initializes the jpaRepositoryHashMap with the repositories corresponding to
-     * the supported years. This method is executed after the constructor has been invoked
-     * and all dependencies have been injected.
+     * Registers the sub-shards of the supported years. This method is executed after the
+     * constructor has been invoked and all dependencies have been injected.
      */
     @PostConstruct
     public void init() {
-        jpaRepositoryHashMap.put(2023, tdrRepository2023);
-        jpaRepositoryHashMap.put(2024, tdrRepository2024);
+        initYear(new Shard(2023, "tdr2023", tdrRepository2023, tdr2023DataSource));
+        initYear(new Shard(2024, "tdr2024", tdrRepository2024, tdr2024DataSource));
+        currentYear = configuredCurrentYear != null ? configuredCurrentYear : getYears().last();
+    }
+
+    private void initYear(Shard main) {
+        int year = main.year();
+        if (shardStartup.isEager(year)) {
+            registerShards(year, withSubShards(main));
+            registerTenantShards(year, subShardFactory.createTenantShards(year));
+            return;
+        }
+        CompletableFuture<Void> registration = new CompletableFuture<>();
+        CompletableFuture<Void> firstAttempt = new CompletableFuture<>();
+        firstAttempts.put(year, firstAttempt);
+        pendingYears.put(year, registration);
+        Thread.ofVirtual().name("tdr-shard-init-" + year).start(() -> registerInBackground(main, registration, firstAttempt));
+    }
+
+    /**
+     * Registers the shards of a year until it succeeds, waiting {@link #registrationRetryDelay} after
+     * every failure. The year is unavailable from the first failure until then.
+     */
+    private void registerInBackground(Shard main, CompletableFuture<Void> registration, CompletableFuture<Void> firstAttempt) {
+        int year = main.year();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // The routing table is only there once the migration of sub-shard 0 ran
+                shardStartup.awaitBootstrap(main.name());
+                registerShards(year, withSubShards(main));
+                registerTenantShards(year, subShardFactory.createTenantShards(year));
+                pendingYears.remove(year);
+                unavailableYears.remove(year);
+                firstAttempts.remove(year);
+                firstAttempt.complete(null);
+                registration.complete(null);
+                LOGGER.info("Shards of year {} initialized in the background", year);
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not initialize the shards of year {} (attempt {}), retrying in {}",
+                        year, attempt, registrationRetryDelay, e);
+                unavailableYears.put(year, e);
+                firstAttempt.complete(null);
+            }
+            try {
+                Thread.sleep(registrationRetryDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until the first attempt to register the sub-shards of a year initialized in the background
+     * is done. Retries are not waited for.
+     *
+     * @throws ShardUnavailableException if the initialization of the year failed and is being retried
+     */
+    private void awaitRegistration(int year) {
+        CompletableFuture<Void> firstAttempt = firstAttempts.get(year);
+        if (firstAttempt == null) {
+            return;
+        }
+        firstAttempt.join();
+        RuntimeException failure = unavailableYears.get(year);
+        if (failure != null) {
+            throw new ShardUnavailableException("The shards of year " + year + " are unavailable: " + failure.getMessage(),
+                    registrationRetryDelay, failure);
+        }
+    }
+
+    /**
+     * Returns when the sub-shards of a year are registered.
+     *
+     * @param year the year
+     * @return a future completed once the sub-shards of the year initialized in the background are
+     * registered, also by a retry; completed already for every other year
+     */
+    public CompletableFuture<Void> whenRegistered(int year) {
+        return pendingYears.getOrDefault(year, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * @return the years still being initialized in the background
+     */
+    public Set<Integer> getPendingYears() {
+        return Set.copyOf(pendingYears.keySet());
+    }
+
+    private List<Shard> withSubShards(Shard main) {
+        List<Shard> shards = new ArrayList<>();
+        shards.add(main);
+        shards.addAll(subShardFactory.createSubShards(main.year()));
+        return shards;
+    }
+
+    /**
+     * Registers the writable database sub-shards of a year, replacing any read-only shard of that year.
+     * Their repositories are put behind the bulkhead of each sub-shard, see {@link ShardBulkheads}.
+     * The owners of the buckets are taken from the routing table persisted in sub-shard 0; if there
+     * is none yet, the consistent hash ring of the sub-shards is persisted as the routing table. A year
+     * with several sub-shards keeps its session IDs in the directory of {@link SessionRouteStore}; the
+     * session IDs of sub-shards that were written without it are entered first.
+     *
+     * @param year   the year of the sub-shards
+     * @param shards the sub-shards; their order defines their index in the routing table
+     */
+    public void registerShards(int year, List<Shard> shards) {
+        VehicleShardRouter ring = new VehicleShardRouter(shards.stream().map(Shard::name).toList());
+        DataSource routingDataSource = shards.get(0).dataSource();
+        if (routingDataSource != null && shardRoutingStore.load(routingDataSource).isEmpty()) {
+            try {
+                shardRoutingStore.initialize(routingDataSource, ring);
+            } catch (DuplicateKeyException e) {
+                // Another node initialized the routing table first
+            }
+        }
+        if (routingDataSource != null && shards.size() > 1) {
+            for (Shard shard : shards) {
+                if (shard.dataSource() != null) {
+                    sessionRouteStore.backfill(routingDataSource, shard.name(), shard.dataSource(), Instant.now());
+                }
+            }
+        }
+        routerHashMap.put(year, routingDataSource == null ? ring : loadRouter(routingDataSource, ring));
+        shardHashMap.put(year, shards.stream().map(shardBulkheads::guard).toList());
+        readOnlyShardHashMap.remove(year);
+        frozenYears.remove(year);
+    }
+
+    /**
+     * Registers the dedicated shards of the operators that do not share the sub-shards of a year. Their
+     * repositories are put behind the bulkhead of each shard, see {@link ShardBulkheads}.
+     *
+     * @param year   the year of the shards
+     * @param shards the dedicated shard of every such operator; empty if all operators share the sub-shards
+     */
+    public void registerTenantShards(int year, Map<String, Shard> shards) {
+        if (shards.isEmpty()) {
+            tenantShardHashMap.remove(year);
+            return;
+        }
+        Map<String, Shard> guarded = new HashMap<>();
+        shards.forEach((operator, shard) -> guarded.put(operator, shardBulkheads.guard(shard)));
+        tenantShardHashMap.put(year, Map.copyOf(guarded));
+    }
+
+    /**
+     * Reloads the persisted routing table of a year and swaps in the resulting router at once, so that
+     * bucket ownership changes and migrations started on any node take effect on this one.
+     *
+     * @param year the year
+     */
+    public void refreshRouting(int year) {
+        if (pendingYears.containsKey(year)) {
+            // Loaded with the registration of the year
+            return;
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        VehicleShardRouter current = routerHashMap.get(year);
+        if (shards != null && current != null && shards.get(0).dataSource() != null) {
+            routerHashMap.replace(year, current, loadRouter(shards.get(0).dataSource(), current));
+        }
+    }
+
+    private VehicleShardRouter loadRouter(DataSource routingDataSource, VehicleShardRouter base) {
+        List<String> names = base.getShardNames();
+        Map<List<Integer>, List<Integer>> changedBuckets = new HashMap<>();
+        for (Map.Entry<Integer, ShardRoutingStore.BucketRoute> route : shardRoutingStore.load(routingDataSource).entrySet()) {
+            int owner = names.indexOf(route.getValue().owner());
+            if (owner < 0) {
+                throw new IllegalStateException("Bucket " + route.getKey() + " is owned by the unknown sub-shard "
+                        + route.getValue().owner());
+            }
+            String target = route.getValue().migrationTarget();
+            int migrationTarget = target == null ? VehicleShardRouter.NO_SHARD : names.indexOf(target);
+            if (base.ownerOf(route.getKey()) != owner || base.migrationTargetOf(route.getKey()) != migrationTarget) {
+                changedBuckets.computeIfAbsent(List.of(owner, migrationTarget), key -> new ArrayList<>()).add(route.getKey());
+            }
+        }
+        VehicleShardRouter router = base;
+        for (Map.Entry<List<Integer>, List<Integer>> change : changedBuckets.entrySet()) {
+            router = router.withBuckets(change.getValue(), change.getKey().get(0), change.getKey().get(1));
+        }
+        return router;
     }
 
     /**
-     * Determines the appropriate {@link TripDetailRecordRepository} based on the
-     * year of the provided start time.
+     * Replaces the database sub-shards of a past year by a read-only shard, typically its archive.
+     * Queries for that year are answered by the given reader from now on, and new TDRs of that year
+     * are rejected. The dedicated shards of operators in that year are not affected.
      *
+     * @param year   the year of the shard
+     * @param reader the read-only shard
+     */
+    public void registerReadOnlyShard(int year, TripDetailRecordReader reader) {
+        checkPastYear(year);
+        awaitRegistration(year);
+        readOnlyShardHashMap.put(year, reader);
+        shardHashMap.remove(year);
+        routerHashMap.remove(year);
+        frozenYears.remove(year);
+    }
+
+    /**
+     * Stops or resumes accepting new TDRs of a past year while its sub-shards keep answering queries,
+     * e.g. while the year is exported.
+     *
+     * @param year     the year of the shard
+     * @param writable whether new TDRs of the year are accepted
+     */
+    public void setWritable(int year, boolean writable) {
+        if (writable) {
+            frozenYears.remove(year);
+        } else {
+            checkPastYear(year);
+            frozenYears.add(year);
+        }
+    }
+
+    private void checkPastYear(int year) {
+        if (year == currentYear) {
+            throw new IllegalArgumentException("The current shard " + year + " cannot be read-only");
+        }
+    }
+
+    /**
+     * Determines the appropriate {@link TripDetailRecordRepository} based on the year of the
+     * provided start time and the sub-shard the vehicle is routed to.
+     *
+     * @param startTime the {@link LocalDateTime} representing the start time of the Trip Detail Record
+     * @param vehicleId the ID of the vehicle of the Trip Detail Record
+     * @return the corresponding {@link TripDetailRecordRepository}, or {@code null} if that year has
+     * no writable shard
+     */
+    public TripDetailRecordRepository determineShard(LocalDateTime startTime, String vehicleId) {
+        return determineShard(null, startTime, vehicleId);
+    }
+
+    /**
+     * Determines the appropriate {@link TripDetailRecordRepository} for a Trip Detail Record of an
+     * operator: the dedicated shard of the operator in the year of the start time if it has one, or the
+     * shared sub-shard the vehicle is routed to, limited to the operator's share of its connections.
+     *
+     * @param operator  the charge point operator of the Trip Detail Record, or {@code null}
      * @param startTime the {@link LocalDateTime} representing the start time of the Trip Detail Record
-     * @return the corresponding {@link TripDetailRecordRepository} for the year of the start time
+     * @param vehicleId the ID of the vehicle of the Trip Detail Record
+     * @return the corresponding {@link TripDetailRecordRepository}, or {@code null} if that year has
+     * no writable shard
+     */
+    public TripDetailRecordRepository determineShard(String operator, LocalDateTime startTime, String vehicleId) {
+        int year = startTime.getYear();
+        awaitRegistration(year);
+        Shard dedicated = getTenantShard(operator, year);
+        if (dedicated != null) {
+            return dedicated.repository();
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        if (shards == null || frozenYears.contains(year)) {
+            return null;
+        }
+        return shardBulkheads.forTenant(shards.get(routerHashMap.get(year).shardOf(vehicleId)), operator);
+    }
+
+    /**
+     * Determines the sub-shard that has to receive a copy of a new Trip Detail Record, because the
+     * bucket of its vehicle is being migrated there.
+     *
+     * @param startTime the {@link LocalDateTime} representing the start time of the Trip Detail Record
+     * @param vehicleId the ID of the vehicle of the Trip Detail Record
+     * @return the repository of the migration target, or {@code null} if the bucket is not being migrated
+     */
+    public TripDetailRecordRepository determineDualWriteShard(LocalDateTime startTime, String vehicleId) {
+        return determineDualWriteShard(null, startTime, vehicleId);
+    }
+
+    /**
+     * Determines the sub-shard that has to receive a copy of a new Trip Detail Record of an operator.
+     * Dedicated shards are not migrated, so the trips of an operator with a dedicated shard in that
+     * year are never copied.
+     *
+     * @param operator  the charge point operator of the Trip Detail Record, or {@code null}
+     * @param startTime the {@link LocalDateTime} representing the start time of the Trip Detail Record
+     * @param vehicleId the ID of the vehicle of the Trip Detail Record
+     * @return the repository of the migration target, or {@code null} if the bucket is not being migrated
+     */
+    public TripDetailRecordRepository determineDualWriteShard(String operator, LocalDateTime startTime, String vehicleId) {
+        int year = startTime.getYear();
+        awaitRegistration(year);
+        if (getTenantShard(operator, year) != null) {
+            return null;
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        VehicleShardRouter router = routerHashMap.get(year);
+        if (shards == null || router == null) {
+            return null;
+        }
+        int migrationTarget = router.migrationTargetOf(vehicleId);
+        return migrationTarget == VehicleShardRouter.NO_SHARD ? null
+                : shardBulkheads.forTenant(shards.get(migrationTarget), operator);
+    }
+
+    /**
+     * Determines the sub-shard that has to receive the changes made to a trip in another sub-shard,
+     * because the bucket of its vehicle is being migrated there. Like new trips (see
+     * {@link #determineDualWriteShard(String, LocalDateTime, String)}), updates and deletions of the
+     * copied trips have to reach the copy as well, or they are lost when the target takes over.
+     *
+     * @param shard     the shard the trip was changed in
+     * @param vehicleId the ID of the vehicle of the trip
+     * @return the migration target, or {@code null} if the shard is not a sub-shard, the bucket is not
+     * being migrated or the shard is the migration target itself
+     */
+    public Shard getMigrationTarget(Shard shard, String vehicleId) {
+        List<Shard> shards = shardHashMap.get(shard.year());
+        VehicleShardRouter router = routerHashMap.get(shard.year());
+        if (shards == null || router == null || shards.stream().noneMatch(subShard -> subShard.name().equals(shard.name()))) {
+            return null;
+        }
+        int migrationTarget = router.migrationTargetOf(vehicleId);
+        if (migrationTarget == VehicleShardRouter.NO_SHARD || shards.get(migrationTarget).name().equals(shard.name())) {
+            return null;
+        }
+        return shards.get(migrationTarget);
+    }
+
+    /**
+     * Returns every year that can be queried, backed by database sub-shards or a read-only shard.
+     *
+     * @return the years, oldest first
+     */
+    public NavigableSet<Integer> getYears() {
+        NavigableSet<Integer> years = new TreeSet<>(shardHashMap.keySet());
+        years.addAll(tenantShardHashMap.keySet());
+        years.addAll(readOnlyShardHashMap.keySet());
+        years.addAll(pendingYears.keySet());
+        return years;
+    }
+
+    /**
+     * Returns the readers answering queries for a year: its read-only shard, or the repositories of
+     * all its database sub-shards. Queries that are not keyed by vehicle have to ask all of them.
+     *
+     * @param year the year
+     * @return the readers, empty if the year has no shard
+     */
+    public List<TripDetailRecordReader> getReaders(int year) {
+        return getReaders(null, year);
+    }
+
+    /**
+     * Returns the readers answering queries of an operator for a year: its dedicated shard of the year
+     * if it has one, otherwise the readers of {@link #getReaders(int)}, limited to the operator's share
+     * of their connections.
+     *
+     * @param operator the charge point operator, or {@code null}
+     * @param year     the year
+     * @return the readers, empty if the year has no shard
+     */
+    public List<TripDetailRecordReader> getReaders(String operator, int year) {
+        awaitRegistration(year);
+        Shard dedicated = getTenantShard(operator, year);
+        if (dedicated != null) {
+            return List.of(dedicated.repository());
+        }
+        TripDetailRecordReader readOnlyShard = readOnlyShardHashMap.get(year);
+        if (readOnlyShard != null) {
+            return List.of(readOnlyShard);
+        }
+        return getShards(year).stream().<TripDetailRecordReader>map(shard -> shardBulkheads.forTenant(shard, operator)).toList();
+    }
+
+    /**
+     * Returns the reader holding the trips of a vehicle in a year.
+     *
+     * @param year      the year
+     * @param vehicleId the ID of the vehicle
+     * @return the read-only shard or the routed sub-shard of the year, or {@code null} if the year has no shard
+     */
+    public TripDetailRecordReader getVehicleReader(int year, String vehicleId) {
+        return getVehicleReader(null, year, vehicleId);
+    }
+
+    /**
+     * Returns the reader holding the trips of an operator's vehicle in a year.
+     *
+     * @param operator  the charge point operator, or {@code null}
+     * @param year      the year
+     * @param vehicleId the ID of the vehicle
+     * @return the dedicated shard of the operator, the read-only shard or the routed sub-shard of the
+     * year, or {@code null} if the year has no shard
+     */
+    public TripDetailRecordReader getVehicleReader(String operator, int year, String vehicleId) {
+        awaitRegistration(year);
+        Shard dedicated = getTenantShard(operator, year);
+        if (dedicated != null) {
+            return dedicated.repository();
+        }
+        TripDetailRecordReader readOnlyShard = readOnlyShardHashMap.get(year);
+        if (readOnlyShard != null) {
+            return readOnlyShard;
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        return shards == null ? null : shardBulkheads.forTenant(shards.get(routerHashMap.get(year).shardOf(vehicleId)), operator);
+    }
+
+    /**
+     * Returns the database shards answering queries of an operator for a year, for readers that query
+     * the databases without the repositories, such as the reactive read path.
+     *
+     * @param operator the charge point operator, or {@code null}
+     * @param year     the year
+     * @return the dedicated shard of the operator, or all sub-shards of the year; empty if the year is
+     * read-only or has no shard
+     */
+    public List<Shard> getReaderShards(String operator, int year) {
+        awaitRegistration(year);
+        Shard dedicated = getTenantShard(operator, year);
+        if (dedicated != null) {
+            return List.of(dedicated);
+        }
+        return shardHashMap.getOrDefault(year, List.of());
+    }
+
+    /**
+     * Returns the database shard holding the trips of an operator's vehicle in a year, for readers that
+     * query the databases without the repositories, such as the reactive read path.
+     *
+     * @param operator  the charge point operator, or {@code null}
+     * @param year      the year
+     * @param vehicleId the ID of the vehicle
+     * @return the dedicated shard of the operator or the routed sub-shard of the year, or {@code null} if
+     * the year is read-only or has no shard
+     */
+    public Shard getVehicleShard(String operator, int year, String vehicleId) {
+        awaitRegistration(year);
+        Shard dedicated = getTenantShard(operator, year);
+        if (dedicated != null) {
+            return dedicated;
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        return shards == null ? null : shards.get(routerHashMap.get(year).shardOf(vehicleId));
+    }
+
+    /**
+     * Claims a session ID of an operator's year for a vehicle before its trip is written, so that no
+     * other sub-shard of the year takes the same session ID, see {@link SessionRouteStore}. A session ID
+     * claimed for the same vehicle is left to the unique constraint of the vehicle's sub-shard. One
+     * claimed for another vehicle is taken over only if that vehicle's sub-shard does not hold it and
+     * the claim is older than the session claim timeout, so a write still in flight keeps its claim.
+     *
+     * @param operator  the charge point operator, or {@code null}
+     * @param year      the year of the trip
+     * @param sessionId the session ID of the trip
+     * @param vehicleId the ID of the vehicle of the trip
+     * @return {@code false} if the session ID belongs to another trip of the year; {@code true} otherwise,
+     * also if the year has no directory because a single database holds the trips
+     */
+    public boolean claimSession(String operator, int year, String sessionId, String vehicleId) {
+        DataSource directory = getSessionDirectory(operator, year);
+        if (directory == null) {
+            return true;
+        }
+        Instant now = Instant.now();
+        if (sessionRouteStore.claim(directory, sessionId, vehicleId, now)) {
+            return true;
+        }
+        SessionRouteStore.SessionRoute route = sessionRouteStore.find(directory, sessionId);
+        if (route == null) {
+            return sessionRouteStore.claim(directory, sessionId, vehicleId, now);
+        }
+        if (route.vehicleId().equals(vehicleId)) {
+            return true;
+        }
+        if (route.claimedAt().isAfter(now.minus(sessionClaimTimeout))
+                || getVehicleReader(operator, year, route.vehicleId()).findBySessionId(sessionId) != null) {
+            return false;
+        }
+        return sessionRouteStore.takeOver(directory, sessionId, route, vehicleId, now);
+    }
+
+    /**
+     * Returns the readers that may hold a session ID of an operator's year: the sub-shard of the vehicle
+     * the session ID is claimed for in the directory of {@link SessionRouteStore}, none if it is not
+     * claimed, or all readers of {@link #getReaders(String, int)} if a single database holds the trips.
+     *
+     * @param operator  the charge point operator, or {@code null}
+     * @param year      the year
+     * @param sessionId the session ID
+     * @return the readers, empty if the year does not have the session ID or has no shard
+     */
+    public List<TripDetailRecordReader> getSessionReaders(String operator, int year, String sessionId) {
+        DataSource directory = getSessionDirectory(operator, year);
+        if (directory == null) {
+            return getReaders(operator, year);
+        }
+        SessionRouteStore.SessionRoute route = sessionRouteStore.find(directory, sessionId);
+        return route == null ? List.of() : List.of(getVehicleReader(operator, year, route.vehicleId()));
+    }
+
+    /**
+     * Returns the readers that may hold any of several session IDs of an operator's year, each with the
+     * session IDs to ask it for, like {@link #getSessionReaders(String, int, String)}.
+     *
+     * @param operator   the charge point operator, or {@code null}
+     * @param year       the year
+     * @param sessionIds the session IDs
+     * @return the session IDs by reader; empty if the year has none of them or has no shard
+     */
+    public Map<TripDetailRecordReader, List<String>> getSessionReaders(String operator, int year, List<String> sessionIds) {
+        Map<TripDetailRecordReader, List<String>> sessionIdsByReader = new LinkedHashMap<>();
+        DataSource directory = getSessionDirectory(operator, year);
+        if (directory == null) {
+            getReaders(operator, year).forEach(reader -> sessionIdsByReader.put(reader, sessionIds));
+            return sessionIdsByReader;
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        VehicleShardRouter router = routerHashMap.get(year);
+        Map<Integer, List<String>> sessionIdsByShard = new TreeMap<>();
+        sessionRouteStore.findVehicles(directory, sessionIds).forEach((sessionId, vehicleId) ->
+                sessionIdsByShard.computeIfAbsent(router.shardOf(vehicleId), shard -> new ArrayList<>()).add(sessionId));
+        sessionIdsByShard.forEach((shard, ids) ->
+                sessionIdsByReader.put(shardBulkheads.forTenant(shards.get(shard), operator), ids));
+        return sessionIdsByReader;
+    }
+
+    /**
+     * Returns the database shards that may hold a session ID of an operator's year, for readers that
+     * query the databases without the repositories, like {@link #getSessionReaders(String, int, String)}.
+     *
+     * @param operator  the charge point operator, or {@code null}
+     * @param year      the year
+     * @param sessionId the session ID
+     * @return the shards of {@link #getReaderShards(String, int)} that may hold the session ID
+     */
+    public List<Shard> getSessionShards(String operator, int year, String sessionId) {
+        DataSource directory = getSessionDirectory(operator, year);
+        if (directory == null) {
+            return getReaderShards(operator, year);
+        }
+        SessionRouteStore.SessionRoute route = sessionRouteStore.find(directory, sessionId);
+        return route == null ? List.of() : List.of(getVehicleShard(operator, year, route.vehicleId()));
+    }
+
+    /**
+     * Returns the data source holding the session directory of an operator's year.
+     *
+     * @return the data source of sub-shard 0, or {@code null} if the operator's trips of the year are
+     * in a single database, whose unique constraint keeps their session IDs unique
+     */
+    private DataSource getSessionDirectory(String operator, int year) {
+        awaitRegistration(year);
+        if (getTenantShard(operator, year) != null || readOnlyShardHashMap.containsKey(year)) {
+            return null;
+        }
+        List<Shard> shards = shardHashMap.get(year);
+        return shards == null || shards.size() < 2 ? null : shards.get(0).dataSource();
+    }
+
+    /**
+     * Returns the database sub-shards of a year.
+     *
+     * @param year the year
+     * @return the sub-shards in routing index order, empty if the year is archived or unknown
+     */
+    public List<Shard> getShards(int year) {
+        awaitRegistration(year);
+        return shardHashMap.getOrDefault(year, List.of());
+    }
+
+    /**
+     * Returns the dedicated shards of a year.
+     *
+     * @param year the year
+     * @return the dedicated shard of every operator that has one in the year
+     */
+    public Map<String, Shard> getTenantShards(int year) {
+        awaitRegistration(year);
+        return tenantShardHashMap.getOrDefault(year, Map.of());
+    }
+
+    private Shard getTenantShard(String operator, int year) {
+        if (operator == null) {
+            return null;
+        }
+        Map<String, Shard> shards = tenantShardHashMap.get(year);
+        return shards == null ? null : shards.get(operator);
+    }
+
+    /**
+     * Returns the placement of an operator's trips in a year: the operator itself if it has a dedicated
+     * shard in the year, otherwise {@code null} for the shared sub-shards. Operators with the same
+     * placement read the same trips of the year.
+     *
+     * @param operator the charge point operator, or {@code null}
+     * @param year     the year
+     * @return the operator, or {@code null} if it shares the sub-shards of the year
+     */
+    public String getPlacement(String operator, int year) {
+        awaitRegistration(year);
+        return getTenantShard(operator, year) == null ? null : operator;
+    }
+
+    /**
+     * Returns the placement of an operator's trips across all years: the operator itself if it has a
+     * dedicated shard in any year, otherwise {@code null}. Operators with the same placement read the
+     * same trips, so caches of trips that span years are keyed by it. The dedicated shards of the years
+     * still being initialized in the background are taken from their configuration, so this does not
+     * wait for them.
+     *
+     * @param operator the charge point operator, or {@code null}
+     * @return the operator, or {@code null} if it shares the sub-shards of every year
+     */
+    public String getPlacement(String operator) {
+        if (operator == null || getPlacements().contains(operator)) {
+            return operator;
+        }
+        for (int year : pendingYears.keySet()) {
+            if (subShardFactory.getDedicatedOperators(year).contains(operator)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns every placement of {@link #getPlacement(String)}. Does not wait for the years still being
+     * initialized in the background.
+     *
+     * @return {@code null} for the shared sub-shards, followed by every operator with a dedicated shard
+     */
+    public List<String> getPlacements() {
+        List<String> placements = new ArrayList<>();
+        placements.add(null);
+        tenantShardHashMap.values().stream()
+                .flatMap(shards -> shards.keySet().stream())
+                .distinct()
+                .sorted()
+                .forEach(placements::add);
+        return placements;
+    }
+
+    /**
+     * Returns the operator a shard is dedicated to.
+     *
+     * @param shard a database sub-shard or dedicated shard
+     * @return the operator, or {@code null} if the shard is a sub-shard shared by all operators
+     */
+    public String getOwner(Shard shard) {
+        for (Map.Entry<String, Shard> tenantShard : tenantShardHashMap.getOrDefault(shard.year(), Map.of()).entrySet()) {
+            if (tenantShard.getValue().name().equals(shard.name())) {
+                return tenantShard.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the database shards answering the queries of a placement in the registered years, like
+     * {@link #getShards()} does for all of them. Does not wait for the years still being initialized in
+     * the background.
+     *
+     * @param placement a placement of {@link #getPlacements()}
+     * @return the dedicated shard of the placement or the sub-shards of every year, oldest year first
+     */
+    public List<Shard> getShards(String placement) {
+        List<Shard> shards = new ArrayList<>();
+        NavigableSet<Integer> years = new TreeSet<>(shardHashMap.keySet());
+        years.addAll(tenantShardHashMap.keySet());
+        for (int year : years) {
+            Shard dedicated = getTenantShard(placement, year);
+            if (dedicated != null) {
+                shards.add(dedicated);
+            } else {
+                shards.addAll(shardHashMap.getOrDefault(year, List.of()));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Returns the database sub-shards and dedicated shards of all years. Does not wait for the years
+     * still being initialized in the background, see {@link #whenRegistered(int)}.
+     *
+     * @return the shards, oldest year first, the sub-shards of a year before its dedicated shards
+     */
+    public List<Shard> getShards() {
+        List<Shard> shards = new ArrayList<>();
+        NavigableSet<Integer> years = new TreeSet<>(shardHashMap.keySet());
+        years.addAll(tenantShardHashMap.keySet());
+        for (int year : years) {
+            shards.addAll(shardHashMap.getOrDefault(year, List.of()));
+            tenantShardHashMap.getOrDefault(year, Map.of()).values().stream()
+                    .sorted(Comparator.comparing(Shard::name))
+                    .forEach(shards::add);
+        }
+        return shards;
+    }
+
+    /**
+     * Returns the router of a year with database sub-shards.
+     *
+     * @param year the year
+     * @return the router, or {@code null} if the year is archived or unknown
      */
-    public TripDetailRecordRepository determineShard(LocalDateTime startTime) {
-        return jpaRepositoryHashMap.get(startTime.getYear());
+    public VehicleShardRouter getRouter(int year) {
+        awaitRegistration(year);
+        return routerHashMap.get(year);
     }
 }
@@ -0,0 +1,171 @@
+package tdr.solutions.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Routes the vehicles of one year to its sub-shards.
+ *
+ * <p>A vehicle ID is hashed into one of {@link #BUCKETS} fixed buckets, and every bucket is owned by
+ * one sub-shard. The initial owners come from a consistent hash ring on which every sub-shard name
+ * places {@value #VIRTUAL_NODES} virtual nodes; a bucket belongs to the first node at or after its
+ * position. Since the ring depends on the sub-shard names only, every node computes the same table,
+ * and adding a sub-shard takes over about {@code 1/N} of the buckets, each from a single previous
+ * owner. All trips of a vehicle live in one sub-shard, so vehicle queries touch one database per year
+ * and the per-vehicle overlap check of the database keeps working.</p>
+ *
+ * <p>Routers are immutable. Once a year's routing table is persisted, buckets move between sub-shards
+ * only by migration: while a bucket is copied, new trips are written to its owner and to the
+ * migration target, and the finished migration swaps in a router with the new owner.</p>
+ */
+public final class VehicleShardRouter {
+
+    /** The number of buckets vehicle IDs are hashed into. */
+    public static final int BUCKETS = 1024;
+
+    /** Marks a bucket that is not being migrated. */
+    public static final int NO_SHARD = -1;
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<String> shardNames;
+
+    private final int[] owners;
+
+    private final int[] migrationTargets;
+
+    /**
+     * Creates the routing table of the given sub-shards.
+     *
+     * @param shardNames the names of the sub-shards, indexed like the sub-shards of the year
+     */
+    public VehicleShardRouter(List<String> shardNames) {
+        if (shardNames.isEmpty()) {
+            throw new IllegalArgumentException("A year needs at least one sub-shard");
+        }
+        this.shardNames = List.copyOf(shardNames);
+        this.owners = new int[BUCKETS];
+        this.migrationTargets = new int[BUCKETS];
+        Arrays.fill(migrationTargets, NO_SHARD);
+        TreeMap<Long, Integer> ring = new TreeMap<>(Long::compareUnsigned);
+        for (int shard = 0; shard < shardNames.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.putIfAbsent(hash(shardNames.get(shard) + "#" + node), shard);
+            }
+        }
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            Map.Entry<Long, Integer> owner = ring.ceilingEntry(position(bucket));
+            owners[bucket] = (owner != null ? owner : ring.firstEntry()).getValue();
+        }
+    }
+
+    private VehicleShardRouter(List<String> shardNames, int[] owners, int[] migrationTargets) {
+        this.shardNames = shardNames;
+        this.owners = owners;
+        this.migrationTargets = migrationTargets;
+    }
+
+    /**
+     * Returns a router that differs from this one in the given buckets.
+     *
+     * @param buckets         the buckets to change
+     * @param owner           the index of the sub-shard owning the buckets
+     * @param migrationTarget the index of the sub-shard the buckets are being copied to, or {@link #NO_SHARD}
+     * @return the new router
+     */
+    public VehicleShardRouter withBuckets(Collection<Integer> buckets, int owner, int migrationTarget) {
+        int[] newOwners = owners.clone();
+        int[] newMigrationTargets = migrationTargets.clone();
+        for (int bucket : buckets) {
+            newOwners[bucket] = owner;
+            newMigrationTargets[bucket] = migrationTarget;
+        }
+        return new VehicleShardRouter(shardNames, newOwners, newMigrationTargets);
+    }
+
+    /**
+     * Returns the bucket of a vehicle.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @return the bucket, between 0 and {@link #BUCKETS} exclusive
+     */
+    public static int bucketOf(String vehicleId) {
+        return (int) (hash(vehicleId) >>> (Long.SIZE - Integer.numberOfTrailingZeros(BUCKETS)));
+    }
+
+    /**
+     * Returns the index of the sub-shard holding the trips of a vehicle.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @return the index of the sub-shard
+     */
+    public int shardOf(String vehicleId) {
+        return owners[bucketOf(vehicleId)];
+    }
+
+    /**
+     * Returns the index of the sub-shard owning a bucket.
+     *
+     * @param bucket the bucket
+     * @return the index of the sub-shard
+     */
+    public int ownerOf(int bucket) {
+        return owners[bucket];
+    }
+
+    /**
+     * Returns the index of the sub-shard a bucket is being copied to.
+     *
+     * @param bucket the bucket
+     * @return the index of the migration target, or {@link #NO_SHARD} if the bucket is not being migrated
+     */
+    public int migrationTargetOf(int bucket) {
+        return migrationTargets[bucket];
+    }
+
+    /**
+     * Returns the index of the sub-shard that has to receive a copy of the new trips of a vehicle.
+     *
+     * @param vehicleId the ID of the vehicle
+     * @return the index of the migration target, or {@link #NO_SHARD} if the vehicle's bucket is not being migrated
+     */
+    public int migrationTargetOf(String vehicleId) {
+        return migrationTargets[bucketOf(vehicleId)];
+    }
+
+    /**
+     * Returns the names of the routed sub-shards.
+     *
+     * @return the names, indexed like the sub-shards
+     */
+    public List<String> getShardNames() {
+        return shardNames;
+    }
+
+    private static long position(int bucket) {
+        return (long) bucket << (Long.SIZE - Integer.numberOfTrailingZeros(BUCKETS));
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that the high bits
+     * used for bucketing depend on every input byte. The result must never change, since it decides
+     * where stored trips are found.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,12 @@
+package tdr.solutions.session;
+
+import tdr.solutions.model.TripDetailRecord;
+
+/**
+ * A stopped session waiting to be written to its shard.
+ *
+ * @param operator the charge point operator that started the session, or {@code null}
+ * @param tdr      the TDR assembled from the events of the session
+ */
+record FinishedSession(String operator, TripDetailRecord tdr) {
+}
@@ -0,0 +1,24 @@
+package tdr.solutions.session;
+
+import java.time.LocalDateTime;
+
+/**
+ * A session that started and has not stopped yet. Held by a {@link SessionStore} under the lock of its
+ * stripe, so the fields that change are plain.
+ */
+final class OpenSession {
+
+    final String operator;
+    final String vehicleId;
+    final LocalDateTime startTime;
+    double cost;
+    long lastEventMillis;
+
+    OpenSession(String operator, String vehicleId, LocalDateTime startTime, double cost, long lastEventMillis) {
+        this.operator = operator;
+        this.vehicleId = vehicleId;
+        this.startTime = startTime;
+        this.cost = cost;
+        this.lastEventMillis = lastEventMillis;
+    }
+}
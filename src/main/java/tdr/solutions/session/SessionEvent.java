@@ -0,0 +1,30 @@
+package tdr.solutions.session;
+
+import java.time.LocalDateTime;
+
+/**
+ * A raw event of a charging session, as sent by a charge point operator to {@code POST /tdr/events}.
+ * The events of a session are assembled into a Trip Detail Record by the {@link SessionizationService}.
+ *
+ * @param type      what happened in the session
+ * @param sessionId the ID of the session
+ * @param vehicleId the ID of the vehicle, required by {@link Type#START} and ignored otherwise
+ * @param timestamp when it happened; the start time of a {@link Type#START}, the end time of a
+ *                  {@link Type#STOP} and informational for a {@link Type#METER}
+ * @param cost      the cost accrued by the session so far, optional; the highest cost seen becomes the
+ *                  total cost of the TDR unless the {@link Type#STOP} brings its own
+ */
+public record SessionEvent(Type type, String sessionId, String vehicleId, LocalDateTime timestamp, Double cost) {
+
+    /**
+     * The kinds of session events.
+     */
+    public enum Type {
+        /** The session started, it stays open until it stops or times out. */
+        START,
+        /** A meter value of an open session. */
+        METER,
+        /** The session stopped, its TDR is created. */
+        STOP
+    }
+}
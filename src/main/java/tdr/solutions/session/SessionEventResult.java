@@ -0,0 +1,14 @@
+package tdr.solutions.session;
+
+import tdr.solutions.validation.TdrRejection;
+
+import java.util.List;
+
+/**
+ * The outcome of a batch of session events.
+ *
+ * @param accepted the number of events applied to the open sessions
+ * @param rejected the events that were not applied, with their index in the batch and the reasons
+ */
+public record SessionEventResult(int accepted, List<TdrRejection> rejected) {
+}
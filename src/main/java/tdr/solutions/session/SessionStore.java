@@ -0,0 +1,307 @@
+package tdr.solutions.session;
+
+import tdr.solutions.model.TripDetailRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The open sessions, keyed by session ID.
+ *
+ * <p>The sessions are spread over stripes by the hash of their ID, each a plain {@link HashMap} under
+ * its own {@link ReentrantLock}, so events of different sessions rarely contend and virtual threads
+ * waiting for a stripe do not pin their carrier. The number of open sessions is capped: a session
+ * beyond the cap is refused when it starts, never evicted later.</p>
+ *
+ * <p>A snapshot writes the open sessions together with the stopped sessions not written yet into one
+ * file, stripe by stripe, so a stripe is only locked while its own sessions are written. The file is
+ * replaced atomically; a crash while writing leaves the previous snapshot in place.</p>
+ */
+final class SessionStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x54445253;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, OpenSession> sessions = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    private final int maxOpenSessions;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Constructor for {@code SessionStore}.
+     *
+     * @param stripes         the number of stripes, rounded up to a power of two
+     * @param maxOpenSessions the number of sessions that can be open at once
+     */
+    SessionStore(int stripes, int maxOpenSessions) {
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(1, stripes) * 2 - 1)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.maxOpenSessions = maxOpenSessions;
+    }
+
+    /**
+     * Opens a session.
+     *
+     * @param sessionId the ID of the session
+     * @param session   the state of the session
+     * @throws IllegalArgumentException if the session is open already or too many sessions are open
+     */
+    void start(String sessionId, OpenSession session) {
+        if (size.incrementAndGet() > maxOpenSessions) {
+            size.decrementAndGet();
+            throw new IllegalArgumentException("too many open sessions");
+        }
+        Stripe stripe = stripe(sessionId);
+        stripe.lock.lock();
+        try {
+            if (stripe.sessions.putIfAbsent(sessionId, session) != null) {
+                size.decrementAndGet();
+                throw new IllegalArgumentException("session " + sessionId + " is open already");
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Records a meter value of an open session.
+     *
+     * @param sessionId the ID of the session
+     * @param cost      the cost accrued so far, or {@code null}
+     * @param now       the current time in milliseconds
+     * @throws IllegalArgumentException if the session is not open
+     */
+    void meter(String sessionId, Double cost, long now) {
+        Stripe stripe = stripe(sessionId);
+        stripe.lock.lock();
+        try {
+            OpenSession session = open(stripe, sessionId);
+            if (cost != null) {
+                session.cost = Math.max(session.cost, cost);
+            }
+            session.lastEventMillis = now;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Closes an open session.
+     *
+     * @param sessionId the ID of the session
+     * @param endTime   when the session stopped
+     * @param cost      the total cost of the session, or {@code null} for the highest metered cost
+     * @return the stopped session
+     * @throws IllegalArgumentException if the session is not open or stops before it started; the
+     *                                  session stays open then
+     */
+    FinishedSession stop(String sessionId, LocalDateTime endTime, Double cost) {
+        Stripe stripe = stripe(sessionId);
+        stripe.lock.lock();
+        try {
+            OpenSession session = open(stripe, sessionId);
+            if (endTime.isBefore(session.startTime)) {
+                throw new IllegalArgumentException("session " + sessionId + " cannot stop before it started");
+            }
+            stripe.sessions.remove(sessionId);
+            size.decrementAndGet();
+            return new FinishedSession(session.operator, new TripDetailRecord(sessionId, session.vehicleId,
+                    session.startTime, endTime, cost != null ? cost : session.cost));
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Reopens a session that stopped but could not be handed on, so a retried stop finds it again.
+     *
+     * @param finished the stopped session
+     * @param now      the current time in milliseconds
+     */
+    void reopen(FinishedSession finished, long now) {
+        TripDetailRecord tdr = finished.tdr();
+        Stripe stripe = stripe(tdr.sessionId());
+        stripe.lock.lock();
+        try {
+            if (stripe.sessions.putIfAbsent(tdr.sessionId(),
+                    new OpenSession(finished.operator(), tdr.vehicleId(), tdr.startTime(), tdr.totalCost(), now)) == null) {
+                size.incrementAndGet();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the sessions without an event since a point in time.
+     *
+     * @param lastEventBefore the time in milliseconds the last event of a dropped session is before
+     * @return the number of dropped sessions
+     */
+    int expire(long lastEventBefore) {
+        int expired = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                Iterator<OpenSession> sessions = stripe.sessions.values().iterator();
+                while (sessions.hasNext()) {
+                    if (sessions.next().lastEventMillis < lastEventBefore) {
+                        sessions.remove();
+                        expired++;
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        size.addAndGet(-expired);
+        return expired;
+    }
+
+    /**
+     * @return the number of open sessions
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Writes the open sessions and the stopped sessions not written yet into a snapshot file.
+     *
+     * @param file     the snapshot file to replace
+     * @param finished the stopped sessions not written to their shard yet
+     * @return the number of open sessions written
+     * @throws IOException if the snapshot cannot be written
+     */
+    int writeSnapshot(Path file, Collection<FinishedSession> finished) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            for (Stripe stripe : stripes) {
+                stripe.lock.lock();
+                try {
+                    for (Map.Entry<String, OpenSession> entry : stripe.sessions.entrySet()) {
+                        OpenSession session = entry.getValue();
+                        out.writeBoolean(true);
+                        out.writeUTF(entry.getKey());
+                        writeNullable(out, session.operator);
+                        out.writeUTF(session.vehicleId);
+                        writeTime(out, session.startTime);
+                        out.writeDouble(session.cost);
+                        out.writeLong(session.lastEventMillis);
+                        written++;
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            out.writeBoolean(false);
+            for (FinishedSession session : finished) {
+                TripDetailRecord tdr = session.tdr();
+                out.writeBoolean(true);
+                out.writeUTF(tdr.sessionId());
+                writeNullable(out, session.operator());
+                out.writeUTF(tdr.vehicleId());
+                writeTime(out, tdr.startTime());
+                writeTime(out, tdr.endTime());
+                out.writeDouble(tdr.totalCost());
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    /**
+     * Opens the sessions of a snapshot file again. Sessions that are open already are kept as they are.
+     *
+     * @param file the snapshot file
+     * @return the stopped sessions of the snapshot, still to be written to their shard
+     * @throws IOException if the snapshot cannot be read
+     */
+    List<FinishedSession> readSnapshot(Path file) throws IOException {
+        List<FinishedSession> finished = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException(file + " is not a session snapshot");
+            }
+            while (in.readBoolean()) {
+                String sessionId = in.readUTF();
+                OpenSession session = new OpenSession(readNullable(in), in.readUTF(), readTime(in), in.readDouble(), in.readLong());
+                Stripe stripe = stripe(sessionId);
+                stripe.lock.lock();
+                try {
+                    if (stripe.sessions.putIfAbsent(sessionId, session) == null) {
+                        size.incrementAndGet();
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            while (in.readBoolean()) {
+                String sessionId = in.readUTF();
+                String operator = readNullable(in);
+                finished.add(new FinishedSession(operator,
+                        new TripDetailRecord(sessionId, in.readUTF(), readTime(in), readTime(in), in.readDouble())));
+            }
+        }
+        return finished;
+    }
+
+    private Stripe stripe(String sessionId) {
+        int hash = sessionId.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static OpenSession open(Stripe stripe, String sessionId) {
+        OpenSession session = stripe.sessions.get(sessionId);
+        if (session == null) {
+            throw new IllegalArgumentException("no open session " + sessionId);
+        }
+        return session;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+    }
+
+    private static LocalDateTime readTime(DataInputStream in) throws IOException {
+        return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,302 @@
+package tdr.solutions.session;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tdr.solutions.config.ApiKeyAuthentication;
+import tdr.solutions.model.TdrBatchResult;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.validation.TdrRejection;
+import tdr.solutions.validation.TdrValidator;
+import tdr.solutions.validation.TdrViolation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembles Trip Detail Records (TDRs) from the raw events of charging sessions.
+ *
+ * <p>A {@link SessionEvent.Type#START} opens a session in the {@link SessionStore}, meter values update
+ * it, and a {@link SessionEvent.Type#STOP} turns it into a TDR. Stopped sessions are queued, at most
+ * {@code tdr.sessions.max-pending} of them, and written through {@link TdrService#createTdrs(String, List)}
+ * in micro-batches of {@code tdr.sessions.flush-size} every {@code tdr.sessions.flush-interval}, for the
+ * charge point operator that started the session. A batch failing on the database, and the TDRs
+ * of a batch reported as retryable, are retried on the next flush.</p>
+ *
+ * <p>Sessions without an event for {@code tdr.sessions.idle-timeout} are abandoned: they are dropped
+ * without a TDR and counted as {@code tdr.sessions.timed-out}. With {@code tdr.sessions.snapshot-directory}
+ * set, the open sessions and the stopped sessions not written yet are saved there every
+ * {@code tdr.sessions.snapshot-interval} and on shutdown, and restored on startup. Sessions stopped
+ * after the last snapshot may be written again after a crash; they are rejected as duplicates then.
+ * Flushes, sweeps and snapshots run one after the other on a single thread.</p>
+ */
+@Service
+public class SessionizationService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionizationService.class);
+
+    static final String SNAPSHOT_FILE = "sessions.snapshot";
+
+    private final TdrService tdrService;
+    private final MeterRegistry meterRegistry;
+    private final SessionStore sessionStore;
+    private final BlockingQueue<FinishedSession> pending;
+    private final List<FinishedSession> retrying = new ArrayList<>();
+    private final Duration idleTimeout;
+    private final int flushSize;
+    private final Duration flushInterval;
+    private final Duration sweepInterval;
+    private final Path snapshotFile;
+    private final Duration snapshotInterval;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor for {@code SessionizationService}.
+     *
+     * @param tdrService        the service the TDRs are created with
+     * @param meterRegistry     the registry the session metrics are published to
+     * @param stripes           the number of lock stripes of the open sessions
+     * @param maxOpenSessions   the number of sessions that can be open at once
+     * @param maxPending        the number of stopped sessions that can wait to be written
+     * @param idleTimeout       how long a session may go without an event before it is abandoned
+     * @param flushSize         the number of TDRs written per micro-batch
+     * @param flushInterval     the delay between two flushes of the stopped sessions
+     * @param sweepInterval     the delay between two sweeps for abandoned sessions
+     * @param snapshotDirectory the directory of the snapshot, or blank for no snapshots
+     * @param snapshotInterval  the delay between two snapshots
+     */
+    public SessionizationService(TdrService tdrService, MeterRegistry meterRegistry,
+                                 @Value("${tdr.sessions.stripes:64}") int stripes,
+                                 @Value("${tdr.sessions.max-open:2000000}") int maxOpenSessions,
+                                 @Value("${tdr.sessions.max-pending:100000}") int maxPending,
+                                 @Value("${tdr.sessions.idle-timeout:PT12H}") Duration idleTimeout,
+                                 @Value("${tdr.sessions.flush-size:500}") int flushSize,
+                                 @Value("${tdr.sessions.flush-interval:PT0.2S}") Duration flushInterval,
+                                 @Value("${tdr.sessions.sweep-interval:PT1M}") Duration sweepInterval,
+                                 @Value("${tdr.sessions.snapshot-directory:}") String snapshotDirectory,
+                                 @Value("${tdr.sessions.snapshot-interval:PT30S}") Duration snapshotInterval) {
+        this.tdrService = tdrService;
+        this.meterRegistry = meterRegistry;
+        this.sessionStore = new SessionStore(stripes, maxOpenSessions);
+        this.pending = new ArrayBlockingQueue<>(maxPending);
+        this.idleTimeout = idleTimeout;
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
+        this.sweepInterval = sweepInterval;
+        this.snapshotFile = snapshotDirectory.isBlank() ? null : Path.of(snapshotDirectory).resolve(SNAPSHOT_FILE);
+        this.snapshotInterval = snapshotInterval;
+        meterRegistry.gauge("tdr.sessions.open", sessionStore, SessionStore::size);
+        meterRegistry.gauge("tdr.sessions.pending", pending, BlockingQueue::size);
+    }
+
+    /**
+     * Restores the last snapshot and schedules the flushes, sweeps and snapshots.
+     */
+    @PostConstruct
+    public void init() {
+        if (snapshotFile != null && Files.exists(snapshotFile)) {
+            try {
+                List<FinishedSession> finished = sessionStore.readSnapshot(snapshotFile);
+                retrying.addAll(finished);
+                LOGGER.info("Restored {} open and {} stopped sessions from {}", sessionStore.size(), finished.size(), snapshotFile);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot restore the sessions from {}, starting without them", snapshotFile, e);
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("tdr-sessions").factory());
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::sweep, sweepInterval.toMillis(), sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+        if (snapshotFile != null) {
+            scheduler.scheduleWithFixedDelay(this::snapshot, snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the stopped sessions and saves the open ones before shutting down.
+     *
+     * @throws InterruptedException if interrupted while waiting for the scheduled work to finish
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        if (scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+            flush();
+            if (snapshotFile != null) {
+                snapshot();
+            }
+        }
+    }
+
+    /**
+     * Applies a batch of session events in order. An event that cannot be applied does not stop the others.
+     *
+     * @param events the events to apply
+     * @return the number of applied events and the rejected ones with the reasons
+     */
+    public SessionEventResult accept(List<SessionEvent> events) {
+        String operator = ApiKeyAuthentication.currentOperator();
+        List<TdrRejection> rejected = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            SessionEvent event = events.get(i);
+            String violation = check(event);
+            if (violation == null) {
+                try {
+                    apply(operator, event);
+                } catch (IllegalArgumentException e) {
+                    violation = e.getMessage();
+                }
+            }
+            if (violation != null) {
+                rejected.add(new TdrRejection(i, event == null ? null : event.sessionId(),
+                        List.of(new TdrViolation(null, violation))));
+            }
+            meterRegistry.counter("tdr.sessions.events",
+                    "type", event == null || event.type() == null ? "unknown" : event.type().name().toLowerCase(),
+                    "outcome", violation == null ? "accepted" : "rejected").increment();
+        }
+        return new SessionEventResult(events.size() - rejected.size(), rejected);
+    }
+
+    /**
+     * @return the number of open sessions
+     */
+    public int getOpenSessions() {
+        return sessionStore.size();
+    }
+
+    private static String check(SessionEvent event) {
+        if (event == null || event.type() == null) {
+            return "type must not be null";
+        }
+        if (event.sessionId() == null) {
+            return "sessionId must not be null";
+        }
+        if (event.cost() != null && event.cost() < 0) {
+            return "cost must be greater than or equal to 0";
+        }
+        if (event.type() == SessionEvent.Type.METER) {
+            return null;
+        }
+        if (event.timestamp() == null) {
+            return "timestamp must not be null";
+        }
+        if (event.type() == SessionEvent.Type.START) {
+            if (event.sessionId().length() < TdrValidator.MIN_ID_LENGTH || event.sessionId().length() > TdrValidator.MAX_ID_LENGTH
+                    || event.vehicleId() == null
+                    || event.vehicleId().length() < TdrValidator.MIN_ID_LENGTH || event.vehicleId().length() > TdrValidator.MAX_ID_LENGTH) {
+                return "sessionId and vehicleId size must be between " + TdrValidator.MIN_ID_LENGTH + " and " + TdrValidator.MAX_ID_LENGTH;
+            }
+        }
+        return null;
+    }
+
+    private void apply(String operator, SessionEvent event) {
+        long now = System.currentTimeMillis();
+        switch (event.type()) {
+            case START -> sessionStore.start(event.sessionId(), new OpenSession(operator, event.vehicleId(),
+                    event.timestamp(), event.cost() != null ? event.cost() : 0, now));
+            case METER -> sessionStore.meter(event.sessionId(), event.cost(), now);
+            case STOP -> {
+                FinishedSession finished = sessionStore.stop(event.sessionId(), event.timestamp(), event.cost());
+                if (!pending.offer(finished)) {
+                    sessionStore.reopen(finished, now);
+                    throw new IllegalArgumentException("too many stopped sessions waiting to be written");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the stopped sessions in micro-batches until none are left.
+     */
+    void flush() {
+        try {
+            while (!retrying.isEmpty() || !pending.isEmpty()) {
+                List<FinishedSession> batch = new ArrayList<>(retrying);
+                retrying.clear();
+                pending.drainTo(batch, Math.max(0, flushSize - batch.size()));
+                List<FinishedSession> unwritten;
+                try {
+                    unwritten = write(batch);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Cannot write {} stopped sessions, retrying on the next flush", batch.size(), e);
+                    retrying.addAll(batch);
+                    return;
+                }
+                if (!unwritten.isEmpty()) {
+                    LOGGER.warn("Cannot write {} stopped sessions, retrying on the next flush", unwritten.size());
+                    retrying.addAll(unwritten);
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Flushing the stopped sessions failed", e);
+        }
+    }
+
+    /**
+     * Writes a batch of stopped sessions, grouped by operator.
+     *
+     * @param batch the stopped sessions to write
+     * @return the sessions whose TDR could not be stored for now, to be written again
+     */
+    private List<FinishedSession> write(List<FinishedSession> batch) {
+        Map<String, List<FinishedSession>> byOperator = new LinkedHashMap<>();
+        for (FinishedSession session : batch) {
+            byOperator.computeIfAbsent(session.operator(), operator -> new ArrayList<>()).add(session);
+        }
+        List<FinishedSession> unwritten = new ArrayList<>();
+        for (Map.Entry<String, List<FinishedSession>> entry : byOperator.entrySet()) {
+            List<FinishedSession> sessions = entry.getValue();
+            TdrBatchResult result = tdrService.createTdrs(entry.getKey(), sessions.stream().map(FinishedSession::tdr).toList());
+            meterRegistry.counter("tdr.sessions.finalized", "outcome", "created").increment(result.created().size());
+            meterRegistry.counter("tdr.sessions.finalized", "outcome", "rejected").increment(result.rejected().size());
+            for (TdrRejection rejection : result.rejected()) {
+                LOGGER.warn("TDR of session {} rejected: {}", rejection.sessionId(), rejection.violations());
+            }
+            for (TdrRejection retryable : result.retryable()) {
+                unwritten.add(sessions.get(retryable.index()));
+            }
+        }
+        return unwritten;
+    }
+
+    private void sweep() {
+        int expired = sessionStore.expire(System.currentTimeMillis() - idleTimeout.toMillis());
+        if (expired > 0) {
+            meterRegistry.counter("tdr.sessions.timed-out").increment(expired);
+            LOGGER.info("Abandoned {} sessions without events for {}", expired, idleTimeout);
+        }
+    }
+
+    private void snapshot() {
+        List<FinishedSession> finished = new ArrayList<>(retrying);
+        finished.addAll(pending);
+        try {
+            Files.createDirectories(snapshotFile.getParent());
+            int written = sessionStore.writeSnapshot(snapshotFile, finished);
+            LOGGER.debug("Saved {} open and {} stopped sessions to {}", written, finished.size(), snapshotFile);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Cannot save the sessions to {}", snapshotFile, e);
+        }
+    }
+}
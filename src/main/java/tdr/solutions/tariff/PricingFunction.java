@@ -0,0 +1,22 @@
+package tdr.solutions.tariff;
+
+import tdr.solutions.model.TripDetailRecord;
+
+/**
+ * Computes the total cost of a trip under a tariff.
+ *
+ * <p>Pricing functions are Spring beans and are selected by their bean name when a recalculation is
+ * started, see {@link TariffRecalculationService}. They are called concurrently from the threads of a
+ * fork-join pool, so they must be thread-safe and should not block.</p>
+ */
+@FunctionalInterface
+public interface PricingFunction {
+
+    /**
+     * Computes the total cost of a trip.
+     *
+     * @param trip the trip with its current cost
+     * @return the total cost of the trip under the tariff
+     */
+    double price(TripDetailRecord trip);
+}
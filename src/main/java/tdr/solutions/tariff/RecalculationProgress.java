@@ -0,0 +1,35 @@
+package tdr.solutions.tariff;
+
+import java.util.List;
+
+/**
+ * A snapshot of a tariff recalculation.
+ *
+ * @param year          the year of the recalculated shards
+ * @param pricing       the bean name of the pricing function
+ * @param dryRun        whether the changes are only reported
+ * @param state         the state of the recalculation
+ * @param scannedRows   the trips priced so far
+ * @param changedRows   the trips whose cost changed, or would change in a dry run
+ * @param costDelta     the sum of the cost changes
+ * @param progress      the share of the trips scanned, between 0 and 1
+ * @param rowsPerSecond the scan throughput
+ * @param diffs         the first changes, up to {@code tdr.tariff.max-diffs}
+ * @param error         the reason of a failed recalculation, otherwise {@code null}
+ */
+public record RecalculationProgress(int year, String pricing, boolean dryRun, RecalculationState state,
+                                    long scannedRows, long changedRows, double costDelta, double progress,
+                                    double rowsPerSecond, List<TariffDiff> diffs, String error) {
+
+    /**
+     * The states of a tariff recalculation.
+     */
+    public enum RecalculationState {
+        /** The shards of the year are being scanned. */
+        RUNNING,
+        /** Every trip of the year was priced. */
+        DONE,
+        /** The recalculation stopped; starting it again resumes after the last checkpoint. */
+        FAILED
+    }
+}
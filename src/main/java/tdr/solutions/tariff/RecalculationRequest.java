@@ -0,0 +1,12 @@
+package tdr.solutions.tariff;
+
+import jakarta.validation.constraints.NotBlank;
+
+/**
+ * A request to recalculate the total cost of every trip of a year.
+ *
+ * @param pricing the bean name of the {@link PricingFunction} computing the new costs
+ * @param dryRun  whether the changes are only reported instead of written
+ */
+public record RecalculationRequest(@NotBlank String pricing, boolean dryRun) {
+}
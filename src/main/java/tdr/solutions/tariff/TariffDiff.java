@@ -0,0 +1,12 @@
+package tdr.solutions.tariff;
+
+/**
+ * A trip whose total cost changes under a tariff.
+ *
+ * @param sessionId the session ID of the trip
+ * @param shard     the name of the shard holding the trip
+ * @param oldCost   the stored total cost
+ * @param newCost   the total cost under the tariff
+ */
+public record TariffDiff(String sessionId, String shard, double oldCost, double newCost) {
+}
@@ -0,0 +1,435 @@
+package tdr.solutions.tariff;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.domain.Limit;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import tdr.solutions.cache.VehicleHistoryCache;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.index.VehicleLatestTripIndex;
+import tdr.solutions.index.VehicleTimelineIndex;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+import tdr.solutions.tariff.RecalculationProgress.RecalculationState;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Service class responsible for recalculating the total cost of every trip of a year after a tariff
+ * correction, while the application keeps serving reads and writes.
+ *
+ * <p>A recalculation scans every database sub-shard and dedicated shard of the year by id in chunks
+ * of {@code tdr.tariff.chunk-size} rows, throttled to {@code tdr.tariff.max-rows-per-second}. The
+ * trips of a chunk are priced by the chosen {@link PricingFunction} in parallel on a fork-join pool of
+ * {@code tdr.tariff.parallelism} threads (one per core by default). The changed costs are written with
+ * one batched update per chunk, in the transaction that also moves the checkpoint of the shard (see
+ * {@code tariff_checkpoint}), so a failed recalculation resumes after the last written chunk when it
+ * is started again with the same pricing function. Trips of buckets being migrated to another
+ * sub-shard (see {@code ShardMigrationService}) get the new cost in their copy in the migration target
+ * as well, before the chunk is committed, so the change survives the cutover. The caches of this node
+ * are updated with every written chunk; other nodes learn about the changes through the invalidation
+ * notifications.</p>
+ *
+ * <p>A dry run prices the same trips without writing or checkpointing anything, and reports the first
+ * {@code tdr.tariff.max-diffs} changes together with the number and sum of all of them. Progress and
+ * throughput are published as {@code tdr.tariff.*} metrics.</p>
+ */
+@Service
+public class TariffRecalculationService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TariffRecalculationService.class);
+
+    /** Updates a trip by id; the start time lets PostgreSQL prune the update to the trip's partition. */
+    private static final String UPDATE_SQL = "UPDATE trip_detail_record SET totalcost = ? WHERE id = ? AND starttime = ?";
+    private static final String UPDATE_COPY_SQL =
+            "UPDATE trip_detail_record SET totalcost = ? WHERE sessionid = ? AND starttime = ?";
+    private static final String SELECT_CHECKPOINT_SQL = "SELECT last_id FROM tariff_checkpoint WHERE pricing = ?";
+    private static final String UPDATE_CHECKPOINT_SQL =
+            "UPDATE tariff_checkpoint SET last_id = ?, updated_at = localtimestamp WHERE pricing = ?";
+    private static final String INSERT_CHECKPOINT_SQL = "INSERT INTO tariff_checkpoint (last_id, pricing) VALUES (?, ?)";
+    private static final String DELETE_CHECKPOINT_SQL = "DELETE FROM tariff_checkpoint WHERE pricing = ?";
+    private static final String COUNT_SQL = "SELECT count(*) FROM trip_detail_record WHERE id > ?";
+
+    private final TdrShardingService tdrShardingService;
+    private final Map<String, PricingFunction> pricingFunctions;
+    private final CacheManager cacheManager;
+    private final VehicleHistoryCache vehicleHistoryCache;
+    private final VehicleTimelineIndex vehicleTimelineIndex;
+    private final VehicleLatestTripIndex vehicleLatestTripIndex;
+    private final MeterRegistry meterRegistry;
+    private final int chunkSize;
+    private final int maxRowsPerSecond;
+    private final int maxDiffs;
+    private final ForkJoinPool pricingPool;
+
+    private final Map<Integer, Recalculation> recalculations = new ConcurrentHashMap<>();
+
+    /**
+     * A trip whose cost changes.
+     *
+     * @param trip    the stored trip
+     * @param newCost the cost under the tariff
+     */
+    private record Change(TripDetailRecordEntity trip, double newCost) {
+    }
+
+    /**
+     * Constructor for {@code TariffRecalculationService}.
+     *
+     * @param tdrShardingService     the sharding service providing the shards of a year
+     * @param pricingFunctions       the pricing functions by bean name
+     * @param cacheManager           the cache manager holding the {@code sessionIds} cache
+     * @param vehicleHistoryCache    the cache of vehicle history pages
+     * @param vehicleTimelineIndex   the in-memory index of the current shard
+     * @param vehicleLatestTripIndex the in-memory index of the latest trip of every vehicle
+     * @param meterRegistry          the registry of the recalculation metrics
+     * @param chunkSize              the number of trips scanned, priced and written per chunk
+     * @param maxRowsPerSecond       the maximum number of trips scanned per second
+     * @param maxDiffs               the number of changes reported with the progress at most
+     * @param parallelism            the number of threads pricing a chunk; {@code 0} for one per core
+     */
+    public TariffRecalculationService(TdrShardingService tdrShardingService, Map<String, PricingFunction> pricingFunctions,
+                                      CacheManager cacheManager, VehicleHistoryCache vehicleHistoryCache,
+                                      VehicleTimelineIndex vehicleTimelineIndex,
+                                      VehicleLatestTripIndex vehicleLatestTripIndex, MeterRegistry meterRegistry,
+                                      @Value("${tdr.tariff.chunk-size:1000}") int chunkSize,
+                                      @Value("${tdr.tariff.max-rows-per-second:5000}") int maxRowsPerSecond,
+                                      @Value("${tdr.tariff.max-diffs:100}") int maxDiffs,
+                                      @Value("${tdr.tariff.parallelism:0}") int parallelism) {
+        this.tdrShardingService = tdrShardingService;
+        this.pricingFunctions = pricingFunctions;
+        this.cacheManager = cacheManager;
+        this.vehicleHistoryCache = vehicleHistoryCache;
+        this.vehicleTimelineIndex = vehicleTimelineIndex;
+        this.vehicleLatestTripIndex = vehicleLatestTripIndex;
+        this.meterRegistry = meterRegistry;
+        this.chunkSize = chunkSize;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.maxDiffs = maxDiffs;
+        this.pricingPool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Stops the pricing threads.
+     */
+    @PreDestroy
+    public void close() {
+        pricingPool.shutdownNow();
+    }
+
+    /**
+     * Starts recalculating the total cost of every trip of a year in the background.
+     *
+     * @param year    the year of the trips
+     * @param request the pricing function and whether to write the changes
+     * @return the progress of the started recalculation
+     * @throws TdrException if the pricing function or the shards of the year do not exist, or a
+     *                      recalculation of the year is running already
+     */
+    public RecalculationProgress start(int year, RecalculationRequest request) throws TdrException {
+        PricingFunction pricing = pricingFunctions.get(request.pricing());
+        if (pricing == null) {
+            throw new TdrException("no pricing function " + request.pricing());
+        }
+        List<Shard> shards = new ArrayList<>(tdrShardingService.getShards(year));
+        shards.addAll(tdrShardingService.getTenantShards(year).values());
+        if (shards.isEmpty()) {
+            throw new TdrException("no database shard for year " + year);
+        }
+        Recalculation recalculation = new Recalculation(year, request, shards);
+        if (recalculations.compute(year, (key, previous) -> previous != null && previous.state == RecalculationState.RUNNING
+                ? previous : recalculation) != recalculation) {
+            throw new TdrException("a tariff recalculation of year " + year + " is running already");
+        }
+        registerGauges(year);
+        Thread.ofVirtual().name("tdr-tariff-" + year).start(() -> run(recalculation, pricing));
+        return recalculation.progress();
+    }
+
+    /**
+     * Returns the progress of the latest recalculation of every year.
+     *
+     * @return the progress, oldest year first
+     */
+    public List<RecalculationProgress> getRecalculations() {
+        return new TreeMap<>(recalculations).values().stream().map(Recalculation::progress).toList();
+    }
+
+    /**
+     * Returns the progress of the latest recalculation of a year.
+     *
+     * @param year the year
+     * @return the progress
+     * @throws TdrException if no recalculation of the year was started
+     */
+    public RecalculationProgress getRecalculation(int year) throws TdrException {
+        Recalculation recalculation = recalculations.get(year);
+        if (recalculation == null) {
+            throw new TdrException("no tariff recalculation of year " + year);
+        }
+        return recalculation.progress();
+    }
+
+    private void run(Recalculation recalculation, PricingFunction pricing) {
+        try {
+            long[] checkpoints = new long[recalculation.shards.size()];
+            long totalRows = 0;
+            for (int i = 0; i < checkpoints.length; i++) {
+                JdbcTemplate jdbcTemplate = new JdbcTemplate(recalculation.shards.get(i).dataSource());
+                checkpoints[i] = recalculation.dryRun ? 0 : checkpoint(jdbcTemplate, recalculation.pricing);
+                totalRows += Objects.requireNonNull(jdbcTemplate.queryForObject(COUNT_SQL, Long.class, checkpoints[i]));
+            }
+            recalculation.totalRows = totalRows;
+            recalculation.started = System.nanoTime();
+            for (int i = 0; i < checkpoints.length; i++) {
+                recalculate(recalculation, recalculation.shards.get(i), pricing, checkpoints[i]);
+            }
+            recalculation.finished = System.nanoTime();
+            recalculation.state = RecalculationState.DONE;
+            LOGGER.info("{} tariff {} over year {}: {} trips scanned, {} changed by {}", recalculation.dryRun ? "Dry run of" : "Applied",
+                    recalculation.pricing, recalculation.year, recalculation.scannedRows.get(), recalculation.changedRows.get(),
+                    recalculation.costDelta.sum());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            recalculation.finished = System.nanoTime();
+            recalculation.error = e.getMessage();
+            recalculation.state = RecalculationState.FAILED;
+            LOGGER.error("Tariff recalculation {} of year {} failed", recalculation.pricing, recalculation.year, e);
+        }
+    }
+
+    private void recalculate(Recalculation recalculation, Shard shard, PricingFunction pricing, long checkpoint)
+            throws SQLException, InterruptedException, ExecutionException {
+        long lastId = checkpoint;
+        List<TripDetailRecordEntity> batch;
+        do {
+            batch = shard.repository().findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(chunkSize));
+            if (batch.isEmpty()) {
+                break;
+            }
+            List<Change> changes = price(batch, pricing);
+            lastId = batch.get(batch.size() - 1).getId();
+            if (!recalculation.dryRun) {
+                writeCopies(shard, changes);
+                write(shard, recalculation.pricing, changes, lastId);
+                updateCaches(shard, changes);
+            }
+            for (Change change : changes) {
+                if (recalculation.diffs.size() < maxDiffs) {
+                    recalculation.diffs.add(new TariffDiff(change.trip().getSessionId(), shard.name(),
+                            change.trip().getTotalCost(), change.newCost()));
+                }
+                recalculation.costDelta.add(change.newCost() - change.trip().getTotalCost());
+            }
+            recalculation.changedRows.addAndGet(changes.size());
+            recalculation.scannedRows.addAndGet(batch.size());
+            rows(recalculation.year, "scanned").increment(batch.size());
+            rows(recalculation.year, recalculation.dryRun ? "differing" : "changed").increment(changes.size());
+            throttle(recalculation.started, recalculation.scannedRows.get());
+        } while (batch.size() == chunkSize);
+        if (!recalculation.dryRun) {
+            new JdbcTemplate(shard.dataSource()).update(DELETE_CHECKPOINT_SQL, recalculation.pricing);
+        }
+    }
+
+    /**
+     * Prices a chunk of trips in parallel on the pricing pool.
+     *
+     * @return the trips whose cost changes, in id order
+     */
+    private List<Change> price(List<TripDetailRecordEntity> batch, PricingFunction pricing)
+            throws InterruptedException, ExecutionException {
+        return pricingPool.submit(() -> batch.parallelStream()
+                .map(trip -> {
+                    double newCost = pricing.price(new TripDetailRecord(trip.getSessionId(), trip.getVehicleId(),
+                            trip.getStartTime(), trip.getEndTime(), trip.getTotalCost()));
+                    return Double.compare(newCost, trip.getTotalCost()) == 0 ? null : new Change(trip, newCost);
+                })
+                .filter(Objects::nonNull)
+                .toList()).get();
+    }
+
+    /**
+     * Writes the changed costs of the trips whose buckets are being migrated to their copies in the
+     * migration targets. Copies that do not exist yet are made later from the changed trip. A failure
+     * leaves the chunk uncommitted, so it is written again when the recalculation is resumed.
+     */
+    private void writeCopies(Shard shard, List<Change> changes) throws SQLException {
+        Map<Shard, List<Change>> changesByTarget = new LinkedHashMap<>();
+        for (Change change : changes) {
+            Shard target = tdrShardingService.getMigrationTarget(shard, change.trip().getVehicleId());
+            if (target != null) {
+                changesByTarget.computeIfAbsent(target, key -> new ArrayList<>()).add(change);
+            }
+        }
+        for (Map.Entry<Shard, List<Change>> copies : changesByTarget.entrySet()) {
+            try (Connection connection = copies.getKey().dataSource().getConnection();
+                 PreparedStatement statement = connection.prepareStatement(UPDATE_COPY_SQL)) {
+                for (Change change : copies.getValue()) {
+                    statement.setDouble(1, change.newCost());
+                    statement.setString(2, change.trip().getSessionId());
+                    statement.setObject(3, change.trip().getStartTime());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes the changed costs of a chunk and moves the checkpoint of the shard past the chunk in one
+     * transaction.
+     */
+    private static void write(Shard shard, String pricing, List<Change> changes, long lastId) throws SQLException {
+        try (Connection connection = shard.dataSource().getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                if (!changes.isEmpty()) {
+                    try (PreparedStatement statement = connection.prepareStatement(UPDATE_SQL)) {
+                        for (Change change : changes) {
+                            statement.setDouble(1, change.newCost());
+                            statement.setLong(2, change.trip().getId());
+                            statement.setObject(3, change.trip().getStartTime());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                if (executeUpdate(connection, UPDATE_CHECKPOINT_SQL, lastId, pricing) == 0) {
+                    executeUpdate(connection, INSERT_CHECKPOINT_SQL, lastId, pricing);
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static int executeUpdate(Connection connection, String sql, long lastId, String pricing) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, lastId);
+            statement.setString(2, pricing);
+            return statement.executeUpdate();
+        }
+    }
+
+    private static long checkpoint(JdbcTemplate jdbcTemplate, String pricing) {
+        List<Long> lastIds = jdbcTemplate.queryForList(SELECT_CHECKPOINT_SQL, Long.class, pricing);
+        return lastIds.isEmpty() ? 0 : lastIds.get(0);
+    }
+
+    private void updateCaches(Shard shard, List<Change> changes) {
+        Cache sessionIds = cacheManager.getCache(TdrService.SESSION_IDS_CACHE);
+        List<String> placements = tdrShardingService.getPlacements();
+        String placement = tdrShardingService.getOwner(shard);
+        for (Change change : changes) {
+            TripDetailRecordEntity trip = change.trip();
+            if (sessionIds != null) {
+                TdrService.SessionKey.evict(sessionIds, placements, trip.getSessionId());
+            }
+            vehicleHistoryCache.invalidate(trip.getVehicleId());
+            vehicleTimelineIndex.upsert(shard.year(), placement, trip.getSessionId(), trip.getVehicleId(),
+                    EpochMicros.of(trip.getStartTime()), EpochMicros.of(trip.getEndTime()), change.newCost());
+            vehicleLatestTripIndex.upsert(shard.year(), placement, trip.getSessionId(), trip.getVehicleId(),
+                    EpochMicros.of(trip.getStartTime()), EpochMicros.of(trip.getEndTime()), change.newCost());
+        }
+    }
+
+    private void throttle(long started, long scannedRows) throws InterruptedException {
+        long due = started + scannedRows * 1_000_000_000L / maxRowsPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(Duration.ofNanos(wait));
+        }
+    }
+
+    private Counter rows(int year, String outcome) {
+        return Counter.builder("tdr.tariff.rows")
+                .description("Trips scanned, changed or found differing by tariff recalculations")
+                .tag("year", String.valueOf(year))
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private void registerGauges(int year) {
+        Gauge.builder("tdr.tariff.progress", recalculations, running -> running.get(year).progress().progress())
+                .description("Share of the trips scanned by the latest tariff recalculation")
+                .tag("year", String.valueOf(year))
+                .register(meterRegistry);
+        Gauge.builder("tdr.tariff.throughput", recalculations, running -> running.get(year).progress().rowsPerSecond())
+                .description("Trips scanned per second by the latest tariff recalculation")
+                .tag("year", String.valueOf(year))
+                .baseUnit("rows/s")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The mutable state of one recalculation.
+     */
+    private static final class Recalculation {
+
+        final int year;
+        final String pricing;
+        final boolean dryRun;
+        final List<Shard> shards;
+
+        final AtomicLong scannedRows = new AtomicLong();
+        final AtomicLong changedRows = new AtomicLong();
+        final DoubleAdder costDelta = new DoubleAdder();
+        final List<TariffDiff> diffs = new CopyOnWriteArrayList<>();
+        volatile long totalRows;
+        volatile long started;
+        volatile long finished;
+        volatile RecalculationState state = RecalculationState.RUNNING;
+        volatile String error;
+
+        Recalculation(int year, RecalculationRequest request, List<Shard> shards) {
+            this.year = year;
+            this.pricing = request.pricing();
+            this.dryRun = request.dryRun();
+            this.shards = shards;
+        }
+
+        RecalculationProgress progress() {
+            long scanned = scannedRows.get();
+            double progress = state == RecalculationState.DONE ? 1
+                    : totalRows == 0 ? 0 : Math.min(1, (double) scanned / totalRows);
+            long end = finished != 0 ? finished : System.nanoTime();
+            double seconds = started == 0 ? 0 : (end - started) / 1e9;
+            return new RecalculationProgress(year, pricing, dryRun, state, scanned, changedRows.get(), costDelta.sum(),
+                    progress, seconds == 0 ? 0 : scanned / seconds, List.copyOf(diffs), error);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package tdr.solutions.tariff;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.Duration;
+
+/**
+ * A tariff charging a fee per session and a price per hour of the trip, rounded to cents.
+ */
+@Component("timeBased")
+public class TimeBasedTariff implements PricingFunction {
+
+    private final double sessionFee;
+    private final double pricePerHour;
+
+    /**
+     * Constructor for {@code TimeBasedTariff}.
+     *
+     * @param sessionFee   the fee charged once per trip
+     * @param pricePerHour the price of an hour of the trip
+     */
+    public TimeBasedTariff(@Value("${tdr.tariff.time-based.session-fee:0}") double sessionFee,
+                           @Value("${tdr.tariff.time-based.price-per-hour:15}") double pricePerHour) {
+        this.sessionFee = sessionFee;
+        this.pricePerHour = pricePerHour;
+    }
+
+    @Override
+    public double price(TripDetailRecord trip) {
+        double hours = Duration.between(trip.startTime(), trip.endTime()).toMillis() / 3_600_000.0;
+        return Math.round((sessionFee + pricePerHour * hours) * 100) / 100.0;
+    }
+}
@@ -0,0 +1,13 @@
+package tdr.solutions.validation;
+
+import java.util.List;
+
+/**
+ * A Trip Detail Record (TDR) of a batch that was not created.
+ *
+ * @param index      the position of the TDR in the batch
+ * @param sessionId  the session ID of the TDR, or {@code null} if it has none
+ * @param violations the reasons it was rejected
+ */
+public record TdrRejection(int index, String sessionId, List<TdrViolation> violations) {
+}
@@ -0,0 +1,25 @@
+package tdr.solutions.validation;
+
+import tdr.solutions.exception.TdrException;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thrown when a Trip Detail Record (TDR) breaks one or more of the rules of {@link TdrValidator}.
+ */
+public class TdrValidationException extends TdrException {
+
+    private final transient List<TdrViolation> violations;
+
+    public TdrValidationException(List<TdrViolation> violations) {
+        super("invalid TDR: " + violations.stream()
+                .map(violation -> violation.field() == null ? violation.message() : violation.field() + " " + violation.message())
+                .collect(Collectors.joining(", ")));
+        this.violations = List.copyOf(violations);
+    }
+
+    public List<TdrViolation> getViolations() {
+        return violations;
+    }
+}
@@ -0,0 +1,131 @@
+package tdr.solutions.validation;
+
+import org.springframework.stereotype.Component;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates Trip Detail Records (TDRs) before they are stored.
+ *
+ * <p>The rules are those declared on {@link TripDetailRecord}, plus the end time not being before the
+ * start time, written out as plain checks: no script engine, reflection or constraint metadata is
+ * involved, and a valid TDR allocates nothing. Single, batch and streaming ingest share this one pass,
+ * so the store does not validate again.</p>
+ */
+@Component
+public class TdrValidator {
+
+    public static final int MIN_ID_LENGTH = 5;
+    public static final int MAX_ID_LENGTH = 50;
+
+    static final String NOT_NULL = "must not be null";
+    static final String ID_SIZE = "size must be between " + MIN_ID_LENGTH + " and " + MAX_ID_LENGTH;
+    static final String PAST_OR_PRESENT = "must be a date in the past or in the present";
+    static final String NOT_BEFORE_START = "must not be before startTime";
+    static final String NOT_NEGATIVE = "must be greater than or equal to 0";
+
+    /**
+     * Checks a TDR and reports every rule it breaks.
+     *
+     * @param tdr the TDR to check
+     * @throws TdrValidationException if the TDR is invalid
+     */
+    public void check(TripDetailRecord tdr) throws TdrValidationException {
+        List<TdrViolation> violations = validate(tdr, LocalDateTime.now(), false);
+        if (!violations.isEmpty()) {
+            throw new TdrValidationException(violations);
+        }
+    }
+
+    /**
+     * Validates a batch of TDRs. Each TDR is checked up to the first rule it breaks, so the cost of a
+     * batch full of broken TDRs stays bounded; every TDR of the batch is checked.
+     *
+     * @param tdrs the TDRs to validate
+     * @return the invalid TDRs, in the order of the batch
+     */
+    public List<TdrRejection> validateAll(List<TripDetailRecord> tdrs) {
+        LocalDateTime now = LocalDateTime.now();
+        List<TdrRejection> rejections = new ArrayList<>();
+        for (int i = 0; i < tdrs.size(); i++) {
+            TripDetailRecord tdr = tdrs.get(i);
+            List<TdrViolation> violations = validate(tdr, now, true);
+            if (!violations.isEmpty()) {
+                rejections.add(new TdrRejection(i, tdr == null ? null : tdr.sessionId(), violations));
+            }
+        }
+        return rejections;
+    }
+
+    /**
+     * Validates a TDR.
+     *
+     * @param tdr      the TDR to validate
+     * @param now      the time the start time must not be after; taken once per batch or stream
+     * @param failFast whether to stop at the first rule the TDR breaks
+     * @return the rules the TDR breaks, empty if it is valid
+     */
+    public List<TdrViolation> validate(TripDetailRecord tdr, LocalDateTime now, boolean failFast) {
+        if (tdr == null) {
+            return List.of(new TdrViolation(null, NOT_NULL));
+        }
+        Violations violations = new Violations(failFast);
+        if (violations.checkId("sessionId", tdr.sessionId()) || violations.checkId("vehicleId", tdr.vehicleId())) {
+            return violations.list;
+        }
+        if (tdr.startTime() == null) {
+            if (violations.add("startTime", NOT_NULL)) {
+                return violations.list;
+            }
+        } else if (tdr.startTime().isAfter(now) && violations.add("startTime", PAST_OR_PRESENT)) {
+            return violations.list;
+        }
+        if (tdr.endTime() == null) {
+            if (violations.add("endTime", NOT_NULL)) {
+                return violations.list;
+            }
+        } else if (tdr.startTime() != null && tdr.endTime().isBefore(tdr.startTime())
+                && violations.add("endTime", NOT_BEFORE_START)) {
+            return violations.list;
+        }
+        // Also rejects NaN
+        if (!(tdr.totalCost() >= 0)) {
+            violations.add("totalCost", NOT_NEGATIVE);
+        }
+        return violations.list;
+    }
+
+    private static final class Violations {
+
+        private final boolean failFast;
+        private List<TdrViolation> list = List.of();
+
+        Violations(boolean failFast) {
+            this.failFast = failFast;
+        }
+
+        /**
+         * @return whether validation stops here
+         */
+        boolean add(String field, String message) {
+            if (list.isEmpty()) {
+                list = new ArrayList<>(failFast ? 1 : 4);
+            }
+            list.add(new TdrViolation(field, message));
+            return failFast;
+        }
+
+        boolean checkId(String field, String id) {
+            if (id == null) {
+                return add(field, NOT_NULL);
+            }
+            if (id.length() < MIN_ID_LENGTH || id.length() > MAX_ID_LENGTH) {
+                return add(field, ID_SIZE);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package tdr.solutions.validation;
+
+/**
+ * A rule a Trip Detail Record (TDR) breaks.
+ *
+ * @param field   the name of the offending field, or {@code null} if the TDR as a whole is rejected
+ * @param message the rule that is broken
+ */
+public record TdrViolation(String field, String message) {
+}
@@ -0,0 +1,203 @@
+package tdr.solutions.warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.http.converter.json.MappingJacksonValue;
+import org.springframework.stereotype.Component;
+import tdr.solutions.controller.TdrController;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.validation.TdrValidator;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up a new instance before it reports ready.
+ *
+ * <p>Spring Boot switches the readiness state to {@code ACCEPTING_TRAFFIC} only after every
+ * {@link ApplicationRunner} returned, so {@code /actuator/health/readiness} reports the instance out
+ * of service until the warm-up is done. The warm-up first loads the {@code tdr.warmup.recent-trips}
+ * most recent trips of every shard into the {@code sessionIds} cache. It then replays a read-only mix
+ * of {@link TdrController} calls for these trips, serializing each response to JSON, so that the JIT
+ * compiles the hot request paths before real traffic arrives. Both phases share the time budget
+ * {@code tdr.warmup.budget}; a failing warm-up never prevents the startup.</p>
+ *
+ * <p>The phases are timed as {@code tdr.warmup} by {@code phase}, the replayed calls are counted as
+ * {@code tdr.warmup.calls} by {@code outcome}, and {@code tdr.warmup.cached-sessions} gauges the
+ * preloaded sessions.</p>
+ */
+@Component
+public class WarmUpRunner implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmUpRunner.class);
+
+    /** The number of distinct calls in the replayed mix. */
+    private static final int CALL_KINDS = 6;
+    private static final int LOOKUP_SIZE = 10;
+    private static final String SPARSE_FIELDS = "sessionId,startTime,totalCost";
+
+    private final TdrService tdrService;
+    private final TdrController tdrController;
+    private final TdrValidator tdrValidator;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int recentTrips;
+    private final int maxCalls;
+    private final Duration budget;
+    private final AtomicInteger cachedSessions = new AtomicInteger();
+
+    /**
+     * Constructor for {@code WarmUpRunner}.
+     *
+     * @param tdrService    the service whose session cache is preloaded
+     * @param tdrController the controller whose calls are replayed
+     * @param tdrValidator  the validator new TDRs pass, replayed without storing anything
+     * @param objectMapper  the mapper the responses are serialized with
+     * @param meterRegistry the registry the warm-up metrics are published to
+     * @param enabled       whether the instance is warmed up
+     * @param recentTrips   the number of trips loaded from each shard
+     * @param maxCalls      the number of controller calls replayed at most
+     * @param budget        how long the warm-up may take at most
+     */
+    public WarmUpRunner(TdrService tdrService, TdrController tdrController, TdrValidator tdrValidator,
+                        ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                        @Value("${tdr.warmup.enabled:true}") boolean enabled,
+                        @Value("${tdr.warmup.recent-trips:1000}") int recentTrips,
+                        @Value("${tdr.warmup.max-calls:20000}") int maxCalls,
+                        @Value("${tdr.warmup.budget:PT30S}") Duration budget) {
+        this.tdrService = tdrService;
+        this.tdrController = tdrController;
+        this.tdrValidator = tdrValidator;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.recentTrips = recentTrips;
+        this.maxCalls = maxCalls;
+        this.budget = budget;
+        meterRegistry.gauge("tdr.warmup.cached-sessions", cachedSessions);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (enabled) {
+            warmUp();
+        }
+    }
+
+    /**
+     * Preloads the session cache and replays controller calls until done or out of budget.
+     *
+     * @return the number of replayed calls
+     */
+    int warmUp() {
+        long started = System.nanoTime();
+        long deadline = started + budget.toNanos();
+        List<TripDetailRecord> sample;
+        try {
+            sample = tdrService.cacheRecentTdrs(recentTrips);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not preload the session cache, skipping the warm-up", e);
+            return 0;
+        }
+        cachedSessions.set(sample.size());
+        long cached = System.nanoTime();
+        record("cache", cached - started);
+        if (sample.isEmpty()) {
+            LOGGER.info("Nothing to warm up with, the shards hold no trips");
+            return 0;
+        }
+
+        Counter succeeded = meterRegistry.counter("tdr.warmup.calls", "outcome", "ok");
+        Counter failed = meterRegistry.counter("tdr.warmup.calls", "outcome", "failed");
+        int calls = 0;
+        while (calls < maxCalls && System.nanoTime() < deadline) {
+            try {
+                write(replay(sample, calls));
+                succeeded.increment();
+            } catch (TdrException | RuntimeException | JsonProcessingException e) {
+                LOGGER.debug("Warm-up call {} failed", calls, e);
+                failed.increment();
+            }
+            calls++;
+        }
+        long replayed = System.nanoTime();
+        record("replay", replayed - cached);
+        LOGGER.info("Warmed up in {} ms: {} sessions cached, {} calls replayed{}", (replayed - started) / 1_000_000,
+                sample.size(), calls, calls < maxCalls ? " until the budget of " + budget + " ran out" : "");
+        return calls;
+    }
+
+    /**
+     * Replays one call of the mix.
+     *
+     * @return the response body
+     */
+    private Object replay(List<TripDetailRecord> sample, int call) throws TdrException {
+        int round = call / CALL_KINDS;
+        TripDetailRecord tdr = sample.get(round % sample.size());
+        return switch (call % CALL_KINDS) {
+            case 0 -> tdrController.getTdrBySessionId(tdr.sessionId()).getBody();
+            // The round picks the variant, since the calls of one kind are all odd or all even
+            case 1 -> tdrController.getTdrsByVehicleId(tdr.vehicleId(), 0, 3,
+                    round % 2 == 0 ? TdrService.START_TIME : "endTime", round % 4 < 2 ? "asc" : "desc",
+                    round % 8 < 4 ? null : SPARSE_FIELDS).getBody();
+            case 2 -> tdrController.getTdrsByVehicleIdInRange(tdr.vehicleId(), tdr.startTime().minusDays(30),
+                    tdr.startTime().plusDays(1), 0, 10, TdrService.START_TIME, "desc", null).getBody();
+            case 3 -> tdrController.lookupTdrs(lookupBatch(sample, call)).getBody();
+            case 4 -> {
+                try {
+                    yield tdrController.getTdrBySessionId("warmup-missing-" + call).getBody();
+                } catch (TdrException e) {
+                    // Not found is the expected answer
+                    yield e.getMessage();
+                }
+            }
+            default -> tdrValidator.validate(tdr, LocalDateTime.now(), false);
+        };
+    }
+
+    /**
+     * Serializes a response body the way the message converters do, applying the filters of sparse fieldsets.
+     */
+    private void write(Object body) throws JsonProcessingException {
+        if (body instanceof MappingJacksonValue value && value.getFilters() != null) {
+            objectMapper.writer(value.getFilters()).writeValueAsBytes(value.getValue());
+        } else if (body instanceof MappingJacksonValue value) {
+            objectMapper.writeValueAsBytes(value.getValue());
+        } else {
+            objectMapper.writeValueAsBytes(body);
+        }
+    }
+
+    private static List<String> lookupBatch(List<TripDetailRecord> sample, int call) {
+        List<String> sessionIds = new ArrayList<>(LOOKUP_SIZE + 1);
+        for (int i = 0; i < LOOKUP_SIZE; i++) {
+            sessionIds.add(sample.get((call + i) % sample.size()).sessionId());
+        }
+        sessionIds.add("warmup-missing-" + call);
+        return sessionIds;
+    }
+
+    private void record(String phase, long nanos) {
+        Timer.builder("tdr.warmup")
+                .description("Time spent warming up the instance before it reports ready")
+                .tag("phase", phase)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
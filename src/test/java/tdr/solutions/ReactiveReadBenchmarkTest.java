@@ -0,0 +1,97 @@
+package tdr.solutions;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput per core of the blocking vehicle history reads on virtual threads with the
+ * non-blocking reads of {@code /tdr/reactive}. Concurrent clients request the same pages from both paths,
+ * with the vehicle history cache and the timeline index turned off so that every request reads the
+ * shards; the CPU time of the process is divided by the requests answered. The clients run in the same
+ * process, so the figures compare the paths with each other rather than measure them absolutely.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class ReactiveReadBenchmarkTest {
+
+    private static final int CLIENTS = 64;
+    private static final Duration WARM_UP = Duration.ofSeconds(5);
+    private static final Duration MEASURED = Duration.ofSeconds(15);
+    private static final String QUERY = "?page=1&size=3&sortBy=startTime&sortOrder=desc";
+    private static final Map<String, String> PATHS = Map.of(
+            "servlet", "/tdr/vehicle/vehicle10" + QUERY,
+            "reactive", "/tdr/reactive/vehicle/vehicle10" + QUERY);
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @Test
+    void requestsPerCpuSecond() throws Exception {
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(TripSolutionsApplication.class).run(
+                "--server.port=0",
+                "--spring.jpa.show-sql=false",
+                "--tdr.cache.vehicle-history.enabled=false",
+                "--tdr.timeline.enabled=false",
+                "--spring.datasource.tdr2023.url=jdbc:h2:mem:tdr_2023_reactive_benchmark;DB_CLOSE_ON_EXIT=FALSE;",
+                "--spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_reactive_benchmark;DB_CLOSE_ON_EXIT=FALSE;")) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            System.out.printf("%-9s %10s %12s %16s %18s%n", "path", "requests", "requests/s", "cpu ms/request", "requests/cpu s");
+            for (String path : List.of("servlet", "reactive", "servlet", "reactive")) {
+                run(port, PATHS.get(path), WARM_UP);
+                long cpu = os.getProcessCpuTime();
+                long started = System.nanoTime();
+                long requests = run(port, PATHS.get(path), MEASURED);
+                double seconds = (System.nanoTime() - started) / 1e9;
+                double cpuSeconds = (os.getProcessCpuTime() - cpu) / 1e9;
+                System.out.printf("%-9s %10d %12.0f %16.3f %18.0f%n", path, requests, requests / seconds,
+                        cpuSeconds * 1000 / requests, requests / cpuSeconds);
+            }
+        }
+    }
+
+    private long run(int port, String path, Duration duration) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("X-API-KEY", "AMIR")
+                .header("Accept", "application/json")
+                .build();
+        long deadline = System.nanoTime() + duration.toNanos();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Long>> counts = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                counts.add(clients.submit(() -> {
+                    long requests = 0;
+                    while (System.nanoTime() < deadline) {
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        assertEquals(200, response.statusCode(), response.body());
+                        requests++;
+                    }
+                    return requests;
+                }));
+            }
+            long requests = 0;
+            for (Future<Long> count : counts) {
+                requests += count.get();
+            }
+            return requests;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package tdr.solutions;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures the time from launching the application to answering its first request, with every shard
+ * initialized during startup and with past years initialized in the background. Also measures when
+ * the first request for the past year is answered. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class StartupBenchmarkTest {
+
+    private static final int RUNS = 3;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @Test
+    void timeToFirstRequest() throws Exception {
+        System.out.printf("%-6s %14s %22s %22s%n", "mode", "ready ms", "current year req ms", "past year req ms");
+        for (boolean lazy : List.of(false, true)) {
+            for (int run = 0; run < RUNS; run++) {
+                String databases = (lazy ? "lazy" : "eager") + run;
+                long launched = System.nanoTime();
+                try (ConfigurableApplicationContext context = new SpringApplicationBuilder(TripSolutionsApplication.class).run(
+                        "--server.port=0",
+                        "--tdr.startup.lazy-shards=" + lazy,
+                        "--spring.datasource.tdr2023.url=jdbc:h2:mem:tdr_2023_" + databases + ";DB_CLOSE_ON_EXIT=FALSE;",
+                        "--spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_" + databases + ";DB_CLOSE_ON_EXIT=FALSE;")) {
+                    long ready = System.nanoTime();
+                    int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+                    get(port, "/tdr/vehicle/vehicle3/range?from=2024-01-01T00:00:00&to=2025-01-01T00:00:00");
+                    long currentYear = System.nanoTime();
+                    get(port, "/tdr/vehicle/vehicle3/range?from=2023-01-01T00:00:00&to=2024-01-01T00:00:00");
+                    long pastYear = System.nanoTime();
+                    System.out.printf("%-6s %14d %22d %22d%n", lazy ? "lazy" : "eager",
+                            (ready - launched) / 1_000_000, (currentYear - launched) / 1_000_000, (pastYear - launched) / 1_000_000);
+                }
+            }
+        }
+    }
+
+    private void get(int port, String path) throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("X-API-KEY", "AMIR")
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+    }
+}
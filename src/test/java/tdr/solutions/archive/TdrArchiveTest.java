@@ -0,0 +1,123 @@
+package tdr.solutions.archive;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TripDetailRecordEntity;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TdrArchiveTest {
+
+    @TempDir
+    private Path directory;
+
+    private TdrArchive archive;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        try (TdrArchiveWriter writer = new TdrArchiveWriter(directory.resolve("2023"), 2023, 3)) {
+            writer.append(entity("session1", "vehicle1", "2023-01-01T10:00:00", "2023-01-01T11:00:00", 1.5));
+            writer.append(entity("session2", "vehicle1", "2023-01-02T10:00:00", "2023-01-05T00:00:00", 2.5));
+            writer.append(entity("session3", "vehicle1", "2023-01-03T10:00:00", "2023-01-03T13:00:00", 3.5));
+            writer.append(entity("session4", "vehicle1", "2023-01-04T10:00:00.123456", "2023-01-04T10:10:00", 4.5));
+            writer.append(entity("session5", "vehicle2", "2023-02-01T10:00:00", "2023-02-01T11:00:00", 5.5));
+            ArchiveSummary summary = writer.finish();
+            assertEquals(new ArchiveSummary(2023, 5, 2, summary.dataSize()), summary);
+        }
+        archive = TdrArchive.open(directory.resolve("2023"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        archive.close();
+    }
+
+    @Test
+    void findsTripsBySessionIdAcrossBlocks() {
+        TripDetailRecordEntity found = archive.findBySessionId("session4");
+
+        assertEquals("vehicle1", found.getVehicleId());
+        assertEquals(LocalDateTime.parse("2023-01-04T10:00:00.123456"), found.getStartTime());
+        assertEquals(LocalDateTime.parse("2023-01-04T10:10:00"), found.getEndTime());
+        assertEquals(4.5, found.getTotalCost());
+        assertEquals("vehicle2", archive.findBySessionId("session5").getVehicleId());
+        assertNull(archive.findBySessionId("session6"));
+        assertEquals(2, archive.findAllBySessionIdIn(List.of("session1", "session6", "session5")).size());
+    }
+
+    @Test
+    void failsLookupsStartedAfterClosing() {
+        archive.close();
+
+        assertThrows(IllegalStateException.class, () -> archive.findBySessionId("session4"));
+        assertThrows(IllegalStateException.class, () -> archive.findAllByVehicleId("vehicle1", Pageable.unpaged()));
+        assertEquals(4, archive.countTripsOfVehicle("vehicle1"));
+    }
+
+    @Test
+    void pagesVehicleTripsLikeTheDatabase() {
+        var byStartDesc = archive.findAllByVehicleId("vehicle1", PageRequest.of(0, 3, Sort.by("startTime").descending()));
+        var byEndAscSecondPage = archive.findAllByVehicleId("vehicle1", PageRequest.of(1, 2, Sort.by("endTime").ascending()));
+        var range = archive.findAllByVehicleIdAndStartTimeGreaterThanEqualAndStartTimeLessThan("vehicle1",
+                LocalDateTime.parse("2023-01-02T10:00:00"), LocalDateTime.parse("2023-01-04T10:00:00"),
+                PageRequest.of(0, 5, Sort.by("startTime").ascending()));
+
+        assertEquals(List.of("session4", "session3", "session2"), sessionIds(byStartDesc));
+        assertEquals(List.of("session4", "session2"), sessionIds(byEndAscSecondPage));
+        assertEquals(List.of("session2", "session3"), sessionIds(range));
+        assertTrue(archive.findAllByVehicleId("vehicle3", PageRequest.of(0, 3, Sort.by("startTime"))).isEmpty());
+
+        var afterSession3ByEnd = archive.findAllByVehicleIdAfter("vehicle1", new TdrCursor(TdrCursor.END_TIME, false,
+                LocalDateTime.parse("2023-01-03T13:00:00"), "session3"), 2);
+        assertEquals(List.of("session4", "session2"), sessionIds(afterSession3ByEnd));
+    }
+
+    @Test
+    void scansRowsInArchiveOrder() {
+        var batch = archive.findByIdGreaterThanOrderByIdAsc(2L, Limit.of(2));
+
+        assertEquals(List.of("session3", "session4"), sessionIds(batch));
+        assertEquals(List.of(3L, 4L), batch.stream().map(TripDetailRecordEntity::getId).toList());
+        assertTrue(archive.findByIdGreaterThanOrderByIdAsc(5L, Limit.of(2)).isEmpty());
+    }
+
+    @Test
+    void rejectsUngroupedTripsAndLeavesNoPartialArchive() throws IOException {
+        try (TdrArchiveWriter writer = new TdrArchiveWriter(directory.resolve("2022"), 2022, 3)) {
+            writer.append(entity("session1", "vehicle1", "2022-01-01T10:00:00", "2022-01-01T11:00:00", 1.0));
+            writer.append(entity("session2", "vehicle2", "2022-01-01T10:00:00", "2022-01-01T11:00:00", 1.0));
+            assertThrows(IllegalArgumentException.class,
+                    () -> writer.append(entity("session3", "vehicle1", "2022-01-02T10:00:00", "2022-01-02T11:00:00", 1.0)));
+        }
+
+        assertFalse(Files.exists(directory.resolve("2022")));
+        assertFalse(Files.exists(directory.resolve("2022.tmp")));
+    }
+
+    private static List<String> sessionIds(List<TripDetailRecordEntity> entities) {
+        return entities.stream().map(TripDetailRecordEntity::getSessionId).toList();
+    }
+
+    private static TripDetailRecordEntity entity(String sessionId, String vehicleId, String startTime, String endTime, double totalCost) {
+        TripDetailRecordEntity entity = new TripDetailRecordEntity();
+        entity.setSessionId(sessionId);
+        entity.setVehicleId(vehicleId);
+        entity.setStartTime(LocalDateTime.parse(startTime));
+        entity.setEndTime(LocalDateTime.parse(endTime));
+        entity.setTotalCost(totalCost);
+        return entity;
+    }
+}
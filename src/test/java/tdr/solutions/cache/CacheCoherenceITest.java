@@ -0,0 +1,110 @@
+package tdr.solutions.cache;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import tdr.solutions.TripSolutionsApplication;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Objects;
+import java.util.UUID;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs two application nodes against the same PostgreSQL shards and checks that writes seen by
+ * one node become visible in the caches of the other. Needs two empty PostgreSQL databases, given
+ * by {@code TDR_IT_POSTGRES_2023_URL} and {@code TDR_IT_POSTGRES_2024_URL} (and optionally
+ * {@code TDR_IT_POSTGRES_USERNAME} and {@code TDR_IT_POSTGRES_PASSWORD}).
+ */
+@EnabledIfEnvironmentVariable(named = "TDR_IT_POSTGRES_2023_URL", matches = ".+")
+@EnabledIfEnvironmentVariable(named = "TDR_IT_POSTGRES_2024_URL", matches = ".+")
+class CacheCoherenceITest {
+
+    private static final Duration VISIBLE_WITHIN = Duration.ofSeconds(5);
+
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+
+    @BeforeAll
+    static void startNodes() {
+        nodeA = startNode();
+        nodeB = startNode();
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        if (nodeA != null) {
+            nodeA.close();
+        }
+        if (nodeB != null) {
+            nodeB.close();
+        }
+    }
+
+    @Test
+    void tdrCreatedOnOneNodeShowsUpInTheVehicleHistoryOfAnother() throws TdrException {
+        String vehicleId = "vehicle-" + UUID.randomUUID();
+        var newestFirst = PageRequest.of(0, 10, Sort.by("startTime").descending());
+        TdrService serviceB = nodeB.getBean(TdrService.class);
+        assertEquals(0, serviceB.getTdrsByVehicleId(vehicleId, newestFirst).size());
+
+        nodeA.getBean(TdrService.class).createTdr(new TripDetailRecord(UUID.randomUUID().toString(), vehicleId,
+                LocalDateTime.parse("2024-06-01T10:00:00"), LocalDateTime.parse("2024-06-01T11:00:00"), 20.0));
+
+        await().atMost(VISIBLE_WITHIN).until(() -> serviceB.getTdrsByVehicleId(vehicleId, newestFirst).size() == 1);
+    }
+
+    @Test
+    void correctionMadeInTheDatabaseReplacesCachedTdr() throws TdrException {
+        String sessionId = UUID.randomUUID().toString();
+        nodeA.getBean(TdrService.class).createTdr(new TripDetailRecord(sessionId, "vehicle-" + UUID.randomUUID(),
+                LocalDateTime.parse("2023-06-01T10:00:00"), LocalDateTime.parse("2023-06-01T11:00:00"), 20.0));
+        TdrService serviceB = nodeB.getBean(TdrService.class);
+        await().atMost(VISIBLE_WITHIN).until(() -> totalCost(serviceB, sessionId) == 20.0);
+
+        var shard2023 = nodeA.getBean(TdrShardingService.class).getShards(2023).get(0).dataSource();
+        new JdbcTemplate(shard2023).update("UPDATE trip_detail_record SET totalcost = 25.0 WHERE sessionid = ?", sessionId);
+
+        await().atMost(VISIBLE_WITHIN).until(() -> totalCost(serviceB, sessionId) == 25.0);
+    }
+
+    private static double totalCost(TdrService service, String sessionId) {
+        try {
+            return service.getTdrBySessionId(sessionId).totalCost();
+        } catch (TdrException e) {
+            return -1;
+        }
+    }
+
+    private static ConfigurableApplicationContext startNode() {
+        String username = Objects.requireNonNullElse(System.getenv("TDR_IT_POSTGRES_USERNAME"), "postgres");
+        String password = Objects.requireNonNullElse(System.getenv("TDR_IT_POSTGRES_PASSWORD"), "yourpassword");
+        return new SpringApplicationBuilder(TripSolutionsApplication.class).run(
+                "--server.port=0",
+                "--spring.jpa.generate-ddl=false",
+                "--spring.jpa.hibernate.ddl-auto=validate",
+                "--spring.datasource.tdr2023.url=" + System.getenv("TDR_IT_POSTGRES_2023_URL"),
+                "--spring.datasource.tdr2023.username=" + username,
+                "--spring.datasource.tdr2023.password=" + password,
+                "--spring.datasource.tdr2023.driver-class-name=org.postgresql.Driver",
+                "--spring.datasource.tdr2023.jpa.location=db/migration/2023",
+                "--spring.datasource.tdr2024.url=" + System.getenv("TDR_IT_POSTGRES_2024_URL"),
+                "--spring.datasource.tdr2024.username=" + username,
+                "--spring.datasource.tdr2024.password=" + password,
+                "--spring.datasource.tdr2024.driver-class-name=org.postgresql.Driver",
+                "--spring.datasource.tdr2024.jpa.location=db/migration/2024");
+    }
+}
@@ -0,0 +1,104 @@
+package tdr.solutions.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import tdr.solutions.index.VehicleLatestTripIndex;
+import tdr.solutions.index.VehicleTimelineIndex;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CacheCoherenceServiceTest {
+
+    @Mock
+    private TdrShardingService tdrShardingService;
+
+    @Mock
+    private VehicleHistoryCache vehicleHistoryCache;
+
+    @Mock
+    private VehicleTimelineIndex vehicleTimelineIndex;
+
+    @Mock
+    private VehicleLatestTripIndex vehicleLatestTripIndex;
+
+    private final ConcurrentMapCacheManager cacheManager = new ConcurrentMapCacheManager(TdrService.SESSION_IDS_CACHE);
+
+    private CacheCoherenceService service;
+
+    private Cache sessionIds;
+
+    @BeforeEach
+    void setUp() {
+        service = new CacheCoherenceService(tdrShardingService, cacheManager, vehicleHistoryCache, vehicleTimelineIndex,
+                vehicleLatestTripIndex, new ObjectMapper(), true, Duration.ofMillis(50), 500, Duration.ofSeconds(5), Duration.ofSeconds(30));
+        sessionIds = cacheManager.getCache(TdrService.SESSION_IDS_CACHE);
+        lenient().when(tdrShardingService.getPlacements()).thenReturn(Arrays.asList(null, "cpo-big"));
+        sessionIds.put(shared("session1"), "cached");
+        sessionIds.put(new TdrService.SessionKey("cpo-big", "session1"), "cached");
+        sessionIds.put(shared("session2"), "cached");
+        sessionIds.put(shared("session3"), "cached");
+    }
+
+    @Test
+    void appliesTheLatestChangePerTrip() {
+        service.applyBatch(2024, "cpo-big", List.of(
+                "[[\"U\",\"session1\",\"vehicle1\",1000,2000,10.0]]",
+                "[[\"U\",\"session1\",\"vehicle1\",1000,3000,12.5],[\"D\",\"session2\",\"vehicle2\"]]"));
+
+        assertNull(sessionIds.get(shared("session1")));
+        assertNull(sessionIds.get(new TdrService.SessionKey("cpo-big", "session1")));
+        assertNull(sessionIds.get(shared("session2")));
+        assertNotNull(sessionIds.get(shared("session3")));
+        verify(vehicleHistoryCache).invalidate("vehicle1");
+        verify(vehicleHistoryCache).invalidate("vehicle2");
+        verify(vehicleTimelineIndex).upsert(2024, "cpo-big", "session1", "vehicle1", 1000, 3000, 12.5);
+        verify(vehicleTimelineIndex).remove(2024, "cpo-big", "session2", "vehicle2");
+        verifyNoMoreInteractions(vehicleTimelineIndex);
+        verify(vehicleLatestTripIndex).upsert(2024, "cpo-big", "session1", "vehicle1", 1000, 3000, 12.5);
+        verify(vehicleLatestTripIndex).remove(2024, "cpo-big", "session2", "vehicle2");
+        verifyNoMoreInteractions(vehicleLatestTripIndex);
+    }
+
+    @Test
+    void flushesEverythingOnOverflow() {
+        when(vehicleTimelineIndex.isServing(2024)).thenReturn(true);
+
+        service.applyBatch(2024, null, List.of("[[\"D\",\"session2\",\"vehicle2\"]]", CacheCoherenceService.FLUSH));
+
+        assertNull(sessionIds.get(shared("session3")));
+        verify(vehicleHistoryCache).invalidateAll();
+        verify(vehicleTimelineIndex).reload();
+        verify(vehicleTimelineIndex, never()).remove(anyInt(), any(), anyString(), anyString());
+        verify(vehicleLatestTripIndex).reload();
+        verify(vehicleLatestTripIndex, never()).remove(anyInt(), any(), anyString(), anyString());
+    }
+
+    @Test
+    void flushesOlderShardsWithoutReloadingTheIndex() {
+        when(vehicleTimelineIndex.isServing(2023)).thenReturn(false);
+
+        service.applyBatch(2023, null, List.of("not json"));
+
+        assertNull(sessionIds.get(shared("session1")));
+        verify(vehicleHistoryCache).invalidateAll();
+        verify(vehicleTimelineIndex, never()).reload();
+    }
+
+    private static TdrService.SessionKey shared(String sessionId) {
+        return new TdrService.SessionKey(null, sessionId);
+    }
+}
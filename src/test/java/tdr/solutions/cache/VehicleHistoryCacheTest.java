@@ -0,0 +1,172 @@
+package tdr.solutions.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VehicleHistoryCacheTest {
+
+    private static final Pageable FIRST_PAGE = PageRequest.of(0, 3, Sort.by("startTime").descending());
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final VehicleHistoryCache cache = new VehicleHistoryCache(true, 100, 32, Duration.ofSeconds(5), meterRegistry);
+
+    @Test
+    void servesRepeatedPagesFromCache() {
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        var second = cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        cache.get(null, "vehicle1", PageRequest.of(0, 3, Sort.by("startTime").ascending()), () -> page(loads.incrementAndGet()));
+
+        assertEquals(2, loads.get());
+        assertEquals("session1", second.get(0).sessionId());
+    }
+
+    @Test
+    void invalidatesOnlyTheWrittenVehicle() {
+        AtomicInteger loads = new AtomicInteger();
+        cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        cache.get(null, "vehicle2", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+
+        cache.invalidate("vehicle1");
+        var reloaded = cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        cache.get(null, "vehicle2", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+
+        assertEquals(3, loads.get());
+        assertEquals("session3", reloaded.get(0).sessionId());
+    }
+
+    @Test
+    void countsTripsUntilTheVehicleIsWritten() {
+        AtomicInteger counts = new AtomicInteger();
+        cache.countTrips(null, "vehicle1", () -> 10L + counts.incrementAndGet());
+        long cached = cache.countTrips(null, "vehicle1", () -> 10L + counts.incrementAndGet());
+
+        cache.invalidate("vehicle1");
+        long recounted = cache.countTrips(null, "vehicle1", () -> 10L + counts.incrementAndGet());
+
+        assertEquals(11, cached);
+        assertEquals(12, recounted);
+    }
+
+    @Test
+    void keepsPlacementsApartAndInvalidatesThemTogether() {
+        AtomicInteger loads = new AtomicInteger();
+        cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        var dedicated = cache.get("cpo-big", "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        long sharedTrips = cache.countTrips(null, "vehicle1", () -> 1L);
+        long dedicatedTrips = cache.countTrips("cpo-big", "vehicle1", () -> 2L);
+
+        cache.invalidate("vehicle1");
+        cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+        cache.get("cpo-big", "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+
+        assertEquals("session2", dedicated.get(0).sessionId());
+        assertEquals(1, sharedTrips);
+        assertEquals(2, dedicatedTrips);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void coalescesConcurrentMisses() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loaderStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoader = new CountDownLatch(1);
+        List<Future<List<TripDetailRecord>>> results = new ArrayList<>();
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            results.add(executor.submit(() -> cache.get(null, "vehicle1", FIRST_PAGE, () -> {
+                loaderStarted.countDown();
+                await(releaseLoader);
+                return page(loads.incrementAndGet());
+            })));
+            assertTrue(loaderStarted.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 50; i++) {
+                results.add(executor.submit(() -> cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()))));
+            }
+            releaseLoader.countDown();
+            for (var result : results) {
+                assertEquals("session1", result.get(5, TimeUnit.SECONDS).get(0).sessionId());
+            }
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void loadsItselfWhenTheRunningLoadTakesTooLong() throws Exception {
+        VehicleHistoryCache impatient = new VehicleHistoryCache(true, 100, 32, Duration.ofMillis(50), meterRegistry);
+        CountDownLatch loaderStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoader = new CountDownLatch(1);
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<List<TripDetailRecord>> stuck = executor.submit(() -> impatient.get(null, "vehicle1", FIRST_PAGE, () -> {
+                loaderStarted.countDown();
+                await(releaseLoader);
+                return page(1);
+            }));
+            assertTrue(loaderStarted.await(5, TimeUnit.SECONDS));
+
+            var own = impatient.get(null, "vehicle1", FIRST_PAGE, () -> page(2));
+
+            assertEquals("session2", own.get(0).sessionId());
+            releaseLoader.countDown();
+            assertEquals("session1", stuck.get(5, TimeUnit.SECONDS).get(0).sessionId());
+        }
+        assertEquals("session1", impatient.get(null, "vehicle1", FIRST_PAGE, () -> page(3)).get(0).sessionId());
+        assertEquals(1.0, meterRegistry.get("tdr.single-flight.calls")
+                .tags("name", VehicleHistoryCache.FLIGHT_NAME, "role", "timeout").counter().count());
+    }
+
+    @Test
+    void loadStartedBeforeInvalidationIsNotServedAfterwards() {
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get(null, "vehicle1", FIRST_PAGE, () -> {
+            List<TripDetailRecord> stale = page(loads.incrementAndGet());
+            cache.invalidate("vehicle1");
+            return stale;
+        });
+        var fresh = cache.get(null, "vehicle1", FIRST_PAGE, () -> page(loads.incrementAndGet()));
+
+        assertEquals("session2", fresh.get(0).sessionId());
+    }
+
+    @Test
+    void doesNotCacheFailures() {
+        assertThrows(IllegalStateException.class, () -> cache.get(null, "vehicle1", FIRST_PAGE, () -> {
+            throw new IllegalStateException("shard unavailable");
+        }));
+
+        assertEquals("session7", cache.get(null, "vehicle1", FIRST_PAGE, () -> page(7)).get(0).sessionId());
+    }
+
+    private static List<TripDetailRecord> page(int load) {
+        return List.of(new TripDetailRecord("session" + load, "vehicle1",
+                LocalDateTime.parse("2024-11-24T14:15:00"), LocalDateTime.parse("2024-11-24T16:00:00"), 10.0));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
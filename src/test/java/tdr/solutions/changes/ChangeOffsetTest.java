@@ -0,0 +1,43 @@
+package tdr.solutions.changes;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeOffsetTest {
+
+    @Test
+    void encodesAndParsesPositionsPerShard() {
+        ChangeOffset offset = ChangeOffset.START
+                .with("tdr2024-1", new OutboxPosition(750, 12))
+                .with("tdr2023", new OutboxPosition(0, 3));
+
+        String token = offset.encode();
+
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+        assertEquals(offset, ChangeOffset.parse(token));
+        assertEquals(new OutboxPosition(0, 3), ChangeOffset.parse(token).position("tdr2023"));
+        assertEquals(OutboxPosition.START, ChangeOffset.parse(token).position("tdr2024"));
+    }
+
+    @Test
+    void startsFromTheBeginningWithoutToken() {
+        assertEquals(ChangeOffset.START, ChangeOffset.parse(null));
+        assertEquals(ChangeOffset.START, ChangeOffset.parse(ChangeOffset.START.encode()));
+        assertEquals(Map.of(), ChangeOffset.parse("").positions());
+    }
+
+    @Test
+    void rejectsMalformedTokens() {
+        assertThrows(IllegalArgumentException.class, () -> ChangeOffset.parse("not an offset"));
+        assertThrows(IllegalArgumentException.class, () -> ChangeOffset.parse(new ChangeOffset(Map.of()).encode() + "dGRyMjAyNA"));
+    }
+
+    @Test
+    void ordersPositionsByTransactionFirst() {
+        assertTrue(new OutboxPosition(2, 1).compareTo(new OutboxPosition(1, 9)) > 0);
+        assertTrue(new OutboxPosition(1, 1).compareTo(new OutboxPosition(1, 2)) < 0);
+    }
+}
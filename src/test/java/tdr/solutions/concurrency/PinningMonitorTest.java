@@ -0,0 +1,103 @@
+package tdr.solutions.concurrency;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reproduces carrier thread pinning under load: many more virtual threads than carriers block at once,
+ * either inside a monitor, as a driver holding a {@code synchronized} lock around socket I/O does, or
+ * queued on a shard bulkhead.
+ */
+class PinningMonitorTest {
+
+    private static final int TASKS = Runtime.getRuntime().availableProcessors() * 8;
+    private static final Duration BLOCKING = Duration.ofMillis(50);
+    /** The least time {@link #TASKS} pinned tasks take, with one carrier per processor. */
+    private static final Duration PINNED_MINIMUM = BLOCKING.multipliedBy(TASKS / Runtime.getRuntime().availableProcessors());
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final PinningMonitor monitor = new PinningMonitor(meterRegistry, true, Duration.ofMillis(10));
+
+    @BeforeEach
+    void setUp() {
+        monitor.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        monitor.stop();
+    }
+
+    @Test
+    void reportsVirtualThreadsBlockingInsideMonitors() {
+        long started = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < TASKS; i++) {
+                Object lock = new Object();
+                executor.submit(() -> blockWhilePinned(lock));
+            }
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - started);
+
+        String site = PinningMonitorTest.class.getName() + ".blockWhilePinned";
+        await().atMost(Duration.ofSeconds(10)).until(() -> pinned(site) > 0);
+        assertTrue(elapsed.compareTo(PINNED_MINIMUM) >= 0, "pinned tasks finished in " + elapsed);
+    }
+
+    @Test
+    void waitingOnBulkheadDoesNotPin() throws Exception {
+        TripDetailRecordRepository repository = mock(TripDetailRecordRepository.class);
+        when(repository.findBySessionId(anyString())).thenAnswer(invocation -> {
+            Thread.sleep(BLOCKING.toMillis());
+            return new TripDetailRecordEntity();
+        });
+        TripDetailRecordRepository guarded = new ShardBulkheads(meterRegistry, true, Duration.ofSeconds(30), TASKS / 2, 0.5)
+                .guard(new Shard(2024, "tdr2024", repository, null)).repository();
+
+        long started = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < TASKS; i++) {
+                executor.submit(() -> guarded.findBySessionId("session1"));
+            }
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - started);
+
+        // Pinning events are flushed to the stream about once a second
+        Thread.sleep(2_000);
+        assertEquals(0, meterRegistry.find("tdr.virtual-threads.pinned").timers().stream().mapToLong(Timer::count).sum());
+        assertEquals(TASKS, meterRegistry.get("tdr.shard.query").timer().count());
+        // Two waves of half the tasks each, however few carriers there are
+        assertTrue(elapsed.compareTo(PINNED_MINIMUM) < 0, "bulkheaded tasks finished in " + elapsed);
+    }
+
+    private static void blockWhilePinned(Object lock) {
+        synchronized (lock) {
+            try {
+                Thread.sleep(BLOCKING.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long pinned(String site) {
+        Timer timer = meterRegistry.find("tdr.virtual-threads.pinned").tag("site", site).timer();
+        return timer == null ? 0 : timer.count();
+    }
+}
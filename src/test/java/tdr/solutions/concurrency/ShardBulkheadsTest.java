@@ -0,0 +1,144 @@
+package tdr.solutions.concurrency;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.TransientDataAccessResourceException;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShardBulkheadsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TripDetailRecordRepository repository = mock(TripDetailRecordRepository.class);
+
+    @Test
+    void limitsConcurrentCallsToThePermitsOfTheShard() throws Exception {
+        ShardBulkheads bulkheads = new ShardBulkheads(meterRegistry, true, Duration.ofSeconds(10), 4, 0.5);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        when(repository.findBySessionId(anyString())).thenAnswer(invocation -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+            return new TripDetailRecordEntity();
+        });
+        TripDetailRecordRepository guarded = bulkheads.guard(new Shard(2024, "tdr2024", repository, null)).repository();
+
+        List<Future<TripDetailRecordEntity>> results = new ArrayList<>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 50; i++) {
+                results.add(executor.submit(() -> guarded.findBySessionId("session1")));
+            }
+        }
+
+        for (Future<TripDetailRecordEntity> result : results) {
+            assertNotNull(result.get());
+        }
+        assertEquals(4, maxRunning.get());
+        assertEquals(4, bulkheads.getPermits("tdr2024"));
+        assertEquals(50, meterRegistry.get("tdr.shard.queue").tag("shard", "tdr2024").timer().count());
+        assertEquals(50, meterRegistry.get("tdr.shard.query").tag("shard", "tdr2024").tag("method", "findBySessionId").timer().count());
+        assertTrue(meterRegistry.get("tdr.shard.queue").tag("shard", "tdr2024").timer().max(TimeUnit.MILLISECONDS) >= 20);
+    }
+
+    @Test
+    void limitsEachOperatorToItsShareOfTheShard() throws Exception {
+        ShardBulkheads bulkheads = new ShardBulkheads(meterRegistry, true, Duration.ofSeconds(10), 4, 0.5);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        when(repository.findBySessionId("backfill")).thenAnswer(invocation -> {
+            running.incrementAndGet();
+            release.await();
+            return new TripDetailRecordEntity();
+        });
+        when(repository.findBySessionId("other")).thenReturn(new TripDetailRecordEntity());
+        Shard shard = bulkheads.guard(new Shard(2024, "tdr2024", repository, null));
+        TripDetailRecordRepository noisy = bulkheads.forTenant(shard, "cpo-a");
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 5; i++) {
+                executor.submit(() -> noisy.findBySessionId("backfill"));
+            }
+            await().atMost(Duration.ofSeconds(5)).until(() -> meterRegistry.get("tdr.tenant.waiting")
+                    .tag("tenant", "cpo-a").gauge().value() == 3);
+
+            // The other operator still gets the permits cpo-a cannot take
+            assertNotNull(bulkheads.forTenant(shard, "cpo-b").findBySessionId("other"));
+            assertEquals(2, running.get());
+            release.countDown();
+        }
+        assertEquals(2, bulkheads.getPermits("tdr2024", "cpo-a"));
+        assertSame(noisy, bulkheads.forTenant(shard, "cpo-a"));
+        assertSame(shard.repository(), bulkheads.forTenant(shard, null));
+        assertEquals(5, meterRegistry.get("tdr.tenant.queue").tag("shard", "tdr2024").tag("tenant", "cpo-a").timer().count());
+    }
+
+    @Test
+    void failsWhenNoPermitIsFreeInTime() throws Exception {
+        ShardBulkheads bulkheads = new ShardBulkheads(meterRegistry, true, Duration.ofMillis(50), 1, 0.5);
+        CountDownLatch release = new CountDownLatch(1);
+        when(repository.count()).thenAnswer(invocation -> {
+            release.await();
+            return 1L;
+        });
+        TripDetailRecordRepository guarded = bulkheads.guard(new Shard(2024, "tdr2024", repository, null)).repository();
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<Long> holder = executor.submit(() -> guarded.count());
+            await().atMost(Duration.ofSeconds(5)).until(() -> meterRegistry.get("tdr.shard.queue").timer().count() == 1);
+
+            assertThrows(TransientDataAccessResourceException.class, guarded::count);
+            assertEquals(0.0, meterRegistry.get("tdr.shard.waiting").gauge().value());
+            release.countDown();
+            assertEquals(1L, holder.get());
+        }
+    }
+
+    @Test
+    void countsQueriesWithoutRepositoryAgainstTheSamePermits() {
+        ShardBulkheads bulkheads = new ShardBulkheads(meterRegistry, true, Duration.ofMillis(50), 4, 0.5);
+        Shard shard = bulkheads.guard(new Shard(2024, "tdr2024", repository, null));
+
+        ShardBulkheads.Permit first = bulkheads.acquire(shard, "cpo-a", "reactive");
+        ShardBulkheads.Permit second = bulkheads.acquire(shard, "cpo-a", "reactive");
+
+        // The operator holds its whole share, the shard still has permits for others
+        assertThrows(TransientDataAccessResourceException.class, () -> bulkheads.forTenant(shard, "cpo-a").count());
+        assertThrows(TransientDataAccessResourceException.class, () -> bulkheads.acquire(shard, "cpo-a", "reactive"));
+        bulkheads.acquire(shard, "cpo-b", "reactive").close();
+        first.close();
+        first.close();
+        bulkheads.acquire(shard, "cpo-a", "reactive").close();
+        second.close();
+        assertEquals(4, meterRegistry.get("tdr.shard.query").tag("shard", "tdr2024").tag("method", "reactive").timer().count());
+    }
+
+    @Test
+    void passesThroughFailuresAndGuardsOnce() {
+        ShardBulkheads bulkheads = new ShardBulkheads(meterRegistry, true, Duration.ofSeconds(1), 2, 0.5);
+        when(repository.findBySessionId("broken")).thenThrow(new IllegalStateException("broken"));
+        Shard shard = bulkheads.guard(new Shard(2024, "tdr2024", repository, null));
+
+        assertEquals("broken", assertThrows(IllegalStateException.class, () -> shard.repository().findBySessionId("broken")).getMessage());
+        assertSame(shard, bulkheads.guard(shard));
+        assertEquals(shard.repository(), shard.repository());
+        assertSame(repository, new ShardBulkheads(meterRegistry, false, Duration.ofSeconds(1), 2, 0.5)
+                .guard(new Shard(2024, "tdr2024", repository, null)).repository());
+    }
+}
@@ -0,0 +1,51 @@
+package tdr.solutions.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApiKeyQuotaTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void allowsBurstThenRefillsAtTheSustainedRate() {
+        ApiKeyQuota quota = new ApiKeyQuota("key", "key", 10, 3, 1, 0);
+
+        assertEquals(0, quota.tryAcquireToken(0));
+        assertEquals(0, quota.tryAcquireToken(0));
+        assertEquals(0, quota.tryAcquireToken(0));
+        assertEquals(SECOND / 10, quota.tryAcquireToken(0));
+
+        assertEquals(0, quota.tryAcquireToken(SECOND / 10));
+        assertTrue(quota.tryAcquireToken(SECOND / 10) > 0);
+        // An idle bucket fills up to the burst, not beyond
+        long later = 10 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, quota.tryAcquireToken(later));
+        }
+        assertTrue(quota.tryAcquireToken(later) > 0);
+    }
+
+    @Test
+    void limitsRequestsInProgress() {
+        ApiKeyQuota quota = new ApiKeyQuota("key", "key", 10, 3, 2, 0);
+
+        assertTrue(quota.tryEnter());
+        assertTrue(quota.tryEnter());
+        assertFalse(quota.tryEnter());
+        quota.exit();
+        assertTrue(quota.tryEnter());
+    }
+
+    @Test
+    void comparesLimits() {
+        ApiKeyQuota quota = new ApiKeyQuota("key", "key", 10, 3, 2, 0);
+
+        assertTrue(quota.hasLimitsOf(10, 3, 2));
+        assertFalse(quota.hasLimitsOf(20, 3, 2));
+        assertFalse(quota.hasLimitsOf(10, 3, 4));
+    }
+}
@@ -0,0 +1,50 @@
+package tdr.solutions.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.BadCredentialsException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuthenticationServiceTest {
+
+    private static final String AMIR_SHA256 = "798363f1c8523db147da9a6bec58d79532c7f019005d28bd368fef6f688e2513";
+    private static final String LIMITED_SHA256 = "c9b062eec89e082951728d271756409d24bf36e2a6c06b966101f4b5da657e85";
+
+    private final AtomicReference<List<ApiKey>> storedKeys = new AtomicReference<>(List.of(
+            new ApiKey("default", AMIR_SHA256, 0, 0, 0, "default"),
+            new ApiKey("limited", LIMITED_SHA256, 1, 2, 3, "cpo-a")));
+    private final AuthenticationService authenticationService = new AuthenticationService(storedKeys::get,
+            new SimpleMeterRegistry(), Duration.ofMinutes(1), 100, 200, 20);
+
+    @Test
+    void acceptsStoredKeysOnly() throws IOException {
+        authenticationService.refresh();
+
+        assertEquals("default", authenticationService.authenticate("AMIR").keyId());
+        assertEquals("limited", authenticationService.authenticate("LIMITED").keyId());
+        assertEquals("cpo-a", authenticationService.authenticate("LIMITED").operator());
+        assertThrows(BadCredentialsException.class, () -> authenticationService.authenticate("AMIR "));
+        assertThrows(BadCredentialsException.class, () -> authenticationService.authenticate(null));
+    }
+
+    @Test
+    void appliesDefaultLimitsAndKeepsQuotasAcrossReloads() throws IOException {
+        authenticationService.refresh();
+        ApiKeyQuota quota = authenticationService.authenticate("AMIR");
+        assertTrue(quota.hasLimitsOf(100, 200, 20));
+
+        authenticationService.refresh();
+        assertSame(quota, authenticationService.authenticate("AMIR"));
+
+        storedKeys.set(List.of(new ApiKey("default", AMIR_SHA256, 5, 0, 0, "default")));
+        authenticationService.refresh();
+        assertTrue(authenticationService.authenticate("AMIR").hasLimitsOf(5, 200, 20));
+        assertThrows(BadCredentialsException.class, () -> authenticationService.authenticate("LIMITED"));
+    }
+}
@@ -0,0 +1,86 @@
+package tdr.solutions.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the payload size and the encoding and decoding cost of a page of TDRs in JSON, CBOR and
+ * Smile, configured as the API encodes them. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class EncodingBenchmarkTest {
+
+    private static final TypeReference<List<TripDetailRecord>> PAGE = new TypeReference<>() {
+    };
+    private static final int WARMUP_ITERATIONS = 2_000;
+    private static final int MEASURED_ITERATIONS = 5_000;
+
+    @Test
+    void binaryEncodingsAreSmallerAndCheaperThanJson() throws IOException {
+        List<TripDetailRecord> page = page(100);
+        ObjectMapper json = new ObjectMapper().registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        Map<String, ObjectMapper> mappers = Map.of(
+                "json", json,
+                "cbor", new ObjectMapper(new CBORFactory()).registerModule(new EpochMicrosModule()),
+                "smile", new ObjectMapper(SmileFactory.builder().enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES).build())
+                        .registerModule(new EpochMicrosModule()));
+
+        int jsonSize = json.writeValueAsBytes(page).length;
+        System.out.printf("%-6s %10s %14s %14s%n", "format", "bytes", "encode ns/op", "decode ns/op");
+        for (String format : List.of("json", "cbor", "smile")) {
+            ObjectMapper mapper = mappers.get(format);
+            byte[] payload = mapper.writeValueAsBytes(page);
+            assertEquals(page, mapper.readValue(payload, PAGE));
+            measure(mapper, page, payload, WARMUP_ITERATIONS);
+            long[] nanos = measure(mapper, page, payload, MEASURED_ITERATIONS);
+            System.out.printf("%-6s %10d %14d %14d%n", format, payload.length,
+                    nanos[0] / MEASURED_ITERATIONS, nanos[1] / MEASURED_ITERATIONS);
+            assertTrue(payload.length <= jsonSize, format + " payload is larger than JSON");
+        }
+    }
+
+    private static long[] measure(ObjectMapper mapper, List<TripDetailRecord> page, byte[] payload, int iterations)
+            throws IOException {
+        long blackhole = 0;
+        long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += mapper.writeValueAsBytes(page).length;
+        }
+        long encoded = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole += mapper.readValue(payload, PAGE).size();
+        }
+        long decoded = System.nanoTime();
+        assertTrue(blackhole > 0);
+        return new long[]{encoded - started, decoded - encoded};
+    }
+
+    private static List<TripDetailRecord> page(int size) {
+        List<TripDetailRecord> page = new ArrayList<>(size);
+        LocalDateTime start = LocalDateTime.parse("2024-03-01T06:00:00");
+        for (int i = 0; i < size; i++) {
+            LocalDateTime tripStart = start.plusMinutes(37L * i).plusNanos(1_000L * i);
+            page.add(new TripDetailRecord("session-" + (100_000 + i), "vehicle-" + (i % 4), tripStart,
+                    tripStart.plusMinutes(25), 3.5 + i % 17));
+        }
+        return page;
+    }
+}
@@ -0,0 +1,54 @@
+package tdr.solutions.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.AsyncTaskExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardStartupTest {
+
+    @Test
+    void initializesOnlyTheCurrentYearEagerlyInLazyMode() {
+        assertTrue(new ShardStartup(false, 2024).isEager(2023));
+        assertTrue(new ShardStartup(true, 2024).isEager(2024));
+        assertFalse(new ShardStartup(true, 2024).isEager(2023));
+        assertFalse(new ShardStartup(true, 2023).isEager(2024));
+    }
+
+    @Test
+    void migratesBeforeBootstrappingInTheBackground() throws Exception {
+        ShardStartup shardStartup = new ShardStartup(true, 2024);
+        List<String> steps = new ArrayList<>();
+        AsyncTaskExecutor executor = shardStartup.bootstrapExecutor("tdr2023", () -> steps.add("migrate"));
+
+        Future<String> bootstrap = executor.submit(() -> {
+            steps.add("bootstrap on " + Thread.currentThread().getName());
+            return "entityManagerFactory";
+        });
+        shardStartup.awaitBootstrap("tdr2023");
+
+        assertEquals("entityManagerFactory", bootstrap.get());
+        assertEquals(List.of("migrate", "bootstrap on tdr-bootstrap-tdr2023"), steps);
+        shardStartup.awaitBootstrap("tdr2024");
+    }
+
+    @Test
+    void failedMigrationFailsBootstrapAndWaiters() {
+        ShardStartup shardStartup = new ShardStartup(true, 2024);
+        AsyncTaskExecutor executor = shardStartup.bootstrapExecutor("tdr2023", () -> {
+            throw new IllegalStateException("migration failed");
+        });
+
+        Future<String> bootstrap = executor.submit(() -> "entityManagerFactory");
+
+        assertEquals("migration failed", assertThrows(CompletionException.class,
+                () -> shardStartup.awaitBootstrap("tdr2023")).getCause().getMessage());
+        assertEquals("migration failed", assertThrows(ExecutionException.class, bootstrap::get).getCause().getMessage());
+    }
+}
@@ -0,0 +1,66 @@
+package tdr.solutions.controller;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.service.TdrService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = "tdr.security.key-file=classpath:api-keys-quota.txt")
+@AutoConfigureMockMvc
+@DirtiesContext
+class AuthenticationITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @SpyBean
+    private TdrService tdrService;
+
+    @Test
+    void rejectedRequestsStopAtTheFilter() throws Exception, TdrException {
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/tdr/session3"))
+                .andExpect(status().isUnauthorized())
+                .andExpect(jsonPath("$.message").value("Invalid API Key"));
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/tdr/session3").header("X-API-KEY", "WRONG"))
+                .andExpect(status().isUnauthorized());
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/tdr/api-docs").header("X-API-KEY", "WRONG"))
+                .andExpect(status().isUnauthorized());
+
+        // The limited key allows a burst of two requests, then one per 100 seconds
+        for (int i = 0; i < 2; i++) {
+            this.mockMvc.perform(MockMvcRequestBuilders.get("/tdr/unknown-session").header("X-API-KEY", "LIMITED"))
+                    .andExpect(status().isNotFound());
+        }
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/tdr/session3").header("X-API-KEY", "LIMITED"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+
+        // Only the two accepted requests reached the service
+        verify(tdrService, times(2)).getTdrBySessionId("unknown-session");
+        verifyNoMoreInteractions(tdrService);
+        assertEquals(3, meterRegistry.get("tdr.api-keys.rejected").tag("reason", "unauthorized").counter().count());
+        assertEquals(1, meterRegistry.get("tdr.api-keys.rejected").tag("reason", "rate").counter().count());
+    }
+
+    @Test
+    void acceptsTheDefaultKey() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/session3"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sessionId").value("session3"));
+    }
+}
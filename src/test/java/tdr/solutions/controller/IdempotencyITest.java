@@ -0,0 +1,80 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import tdr.solutions.idempotency.IdempotencyStore;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_idempotency;DB_CLOSE_ON_EXIT=FALSE;"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class IdempotencyITest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2024-07-01T08:00:00");
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void retriedCreatesReturnTheFirstResponse() throws Exception {
+        TripDetailRecord tdr = new TripDetailRecord("idempotent-session1", "idempotent-vehicle1", START, START.plusHours(1), 5.0);
+
+        create(tdr, "retry-1").andExpect(status().isOk())
+                .andExpect(jsonPath("$.sessionId").value("idempotent-session1"));
+        create(tdr, "retry-1").andExpect(status().isOk())
+                .andExpect(jsonPath("$.sessionId").value("idempotent-session1"));
+        assertEquals(1, meterRegistry.counter("tdr.idempotency.requests", "outcome", "replayed").count());
+
+        // Without a key the retry is a duplicate
+        create(tdr, null).andExpect(status().isNotFound());
+        create(new TripDetailRecord("idempotent-session2", "idempotent-vehicle1", START.plusHours(2), START.plusHours(3), 5.0), "retry-1")
+                .andExpect(status().isUnprocessableEntity());
+    }
+
+    @Test
+    void retriedBatchesReturnTheFirstResponse() throws Exception {
+        List<TripDetailRecord> tdrs = List.of(
+                new TripDetailRecord("idempotent-session3", "idempotent-vehicle2", START, START.plusHours(1), 5.0));
+        for (int i = 0; i < 2; i++) {
+            this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/batch").accept(MediaType.APPLICATION_JSON)
+                            .header(IdempotencyStore.IDEMPOTENCY_KEY_HEADER_NAME, "batch-1")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(tdrs)))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.created[0].sessionId").value("idempotent-session3"))
+                    .andExpect(jsonPath("$.rejected").isEmpty());
+        }
+    }
+
+    private ResultActions create(TripDetailRecord tdr, String idempotencyKey) throws Exception {
+        var request = RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(tdr));
+        if (idempotencyKey != null) {
+            request.header(IdempotencyStore.IDEMPOTENCY_KEY_HEADER_NAME, idempotencyKey);
+        }
+        return this.mockMvc.perform(request);
+    }
+}
@@ -0,0 +1,52 @@
+package tdr.solutions.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "tdr.startup.lazy-shards=true",
+        "tdr.sharding.current-year=2024",
+        "spring.datasource.tdr2023.url=jdbc:h2:mem:tdr_2023_lazy;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_lazy;DB_CLOSE_ON_EXIT=FALSE;"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class LazyShardStartupITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private TdrShardingService tdrShardingService;
+
+    @Test
+    void servesPastYearOnceInitializedInTheBackground() throws Exception {
+        assertEquals(2024, tdrShardingService.getCurrentYear());
+        assertTrue(tdrShardingService.getYears().contains(2023));
+
+        // Waits for the 2023 shard if it is still being migrated
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle3/range")
+                        .param("from", "2023-01-01T00:00:00")
+                        .param("to", "2025-01-01T00:00:00")
+                        .param("size", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(4))
+                .andExpect(jsonPath("$[0].startTime").value("2023-11-20T16:00:00"))
+                .andExpect(jsonPath("$[2].startTime").value("2024-11-20T16:00:00"));
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> tdrShardingService.getPendingYears().isEmpty());
+        assertEquals(1, tdrShardingService.getShards(2023).size());
+        assertTrue(tdrShardingService.whenRegistered(2023).isDone());
+    }
+}
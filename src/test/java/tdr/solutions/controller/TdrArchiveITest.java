@@ -0,0 +1,82 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.model.TripDetailRecordEntity;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrArchiveITest {
+
+    @TempDir
+    private static Path archiveDirectory;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @DynamicPropertySource
+    static void archiveProperties(DynamicPropertyRegistry registry) {
+        registry.add("tdr.archive.directory", archiveDirectory::toString);
+    }
+
+    @Test
+    void archivedShardKeepsServingQueriesAndRejectsWrites() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/archive/2024"))
+                .andExpect(status().isNotFound());
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/archive/2023"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.year").value(2023));
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/session3"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.vehicleId").value("vehicle3"))
+                .andExpect(jsonPath("$.startTime").value("2023-11-20T16:00:00"))
+                .andExpect(jsonPath("$.totalCost").value(20.75));
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10")
+                        .param("page", "0")
+                        .param("size", "3")
+                        .param("sortBy", "startTime")
+                        .param("sortOrder", "asc"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].sessionId").value("session8"))
+                .andExpect(jsonPath("$[0].startTime").value("2023-11-23T10:00:00"))
+                .andExpect(jsonPath("$[2].startTime").value("2023-11-26T13:00:00"));
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/archive"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].year").value(2023));
+
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setVehicleId("vehicle-archived");
+        tripDetailRecordEntity.setTotalCost(20.0);
+        tripDetailRecordEntity.setStartTime(LocalDateTime.parse("2023-12-24T14:15:00"));
+        tripDetailRecordEntity.setEndTime(LocalDateTime.parse("2023-12-24T15:15:00"));
+        tripDetailRecordEntity.setSessionId("archived-session1");
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(tripDetailRecordEntity)))
+                .andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,92 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.config.EpochMicrosModule;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TdrLookupResult;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrBinaryEncodingITest {
+
+    private static final MediaType SMILE = MediaType.parseMediaType("application/x-jackson-smile");
+
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory()).registerModule(new EpochMicrosModule());
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory()).registerModule(new EpochMicrosModule());
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Test
+    void createsAndReadsTdrInCbor() throws Exception {
+        TripDetailRecord tdr = new TripDetailRecord("cbor-session1", "cbor-vehicle1",
+                LocalDateTime.parse("2023-10-01T08:00:00.123456"), LocalDateTime.parse("2023-10-01T09:30:00"), 12.5);
+
+        byte[] created = this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr")
+                        .accept(MediaType.APPLICATION_CBOR)
+                        .contentType(MediaType.APPLICATION_CBOR)
+                        .content(cborMapper.writeValueAsBytes(tdr)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+        assertEquals(tdr, cborMapper.readValue(created, TripDetailRecord.class));
+
+        byte[] read = this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/cbor-session1")
+                        .accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode node = cborMapper.readTree(read);
+        assertTrue(node.get("startTime").isIntegralNumber());
+        assertEquals(EpochMicros.of(tdr.startTime()), node.get("startTime").longValue());
+
+        byte[] sparse = this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/cbor-vehicle1")
+                        .param("fields", "sessionId,startTime")
+                        .accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode first = cborMapper.readTree(sparse).get(0);
+        assertEquals(2, first.size());
+        assertEquals("cbor-session1", first.get("sessionId").textValue());
+        assertEquals(EpochMicros.of(tdr.startTime()), first.get("startTime").longValue());
+    }
+
+    @Test
+    void negotiatesSmileAndKeepsJsonAsDefault() throws Exception {
+        TripDetailRecord tdr = new TripDetailRecord("smile-session1", "smile-vehicle1",
+                LocalDateTime.parse("2023-10-02T08:00:00"), LocalDateTime.parse("2023-10-02T09:00:00"), 7.0);
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr")
+                        .contentType(SMILE)
+                        .content(smileMapper.writeValueAsBytes(tdr)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.startTime").value("2023-10-02T08:00:00"));
+
+        byte[] lookup = this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/lookup")
+                        .accept(SMILE)
+                        .contentType(SMILE)
+                        .content(smileMapper.writeValueAsBytes(List.of("smile-session1", "smile-missing"))))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(SMILE))
+                .andReturn().getResponse().getContentAsByteArray();
+        assertEquals(new TdrLookupResult(List.of(tdr), List.of("smile-missing")),
+                smileMapper.readValue(lookup, TdrLookupResult.class));
+    }
+}
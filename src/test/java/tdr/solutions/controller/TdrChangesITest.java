@@ -0,0 +1,110 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "tdr.changes.poll-interval=PT0.05S",
+        "spring.datasource.tdr2023.url=jdbc:h2:mem:tdr_2023_changes;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_changes;DB_CLOSE_ON_EXIT=FALSE;"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrChangesITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void longPollDeliversCreatedTripsOnceAndResumes() throws Exception {
+        String offset = changes("", 0).get("offset").asText();
+
+        // The poll waits for the trip created while it is open
+        CompletableFuture<JsonNode> poll = CompletableFuture.supplyAsync(() -> {
+            try {
+                return changes(offset, 10);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        create(new TripDetailRecord("changes-session1", "changes-vehicle1",
+                LocalDateTime.parse("2024-03-01T08:00:00"), LocalDateTime.parse("2024-03-01T09:00:00"), 9.5));
+        JsonNode page = poll.get();
+        assertEquals(1, page.get("changes").size());
+        assertEquals("changes-session1", page.get("changes").get(0).get("trip").get("sessionId").asText());
+        assertEquals("tdr2024", page.get("changes").get(0).get("shard").asText());
+
+        create(new TripDetailRecord("changes-session2", "changes-vehicle1",
+                LocalDateTime.parse("2023-03-01T08:00:00"), LocalDateTime.parse("2023-03-01T09:00:00"), 4.0));
+        JsonNode next = changes(page.get("offset").asText(), 5);
+        assertEquals(1, next.get("changes").size());
+        assertEquals("changes-session2", next.get("changes").get(0).get("trip").get("sessionId").asText());
+
+        // The whole feed is still there for a consumer starting from the beginning
+        assertEquals(2, changes("", 0).get("changes").size());
+        assertEquals(0, changes(next.get("offset").asText(), 0).get("changes").size());
+    }
+
+    @Test
+    void streamsCreatedTripsAsServerSentEvents() throws Exception {
+        MockHttpServletResponse response = this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/changes")
+                        .param("after", changes("", 0).get("offset").asText())
+                        .accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(request().asyncStarted())
+                .andReturn().getResponse();
+
+        create(new TripDetailRecord("changes-stream1", "changes-vehicle2",
+                LocalDateTime.parse("2024-04-01T08:00:00"), LocalDateTime.parse("2024-04-01T09:00:00"), 3.0));
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> response.getContentAsString().contains("changes-stream1"));
+        assertTrue(response.getContentAsString().contains("event:trip"));
+        assertTrue(response.getContentAsString().contains("id:"));
+    }
+
+    @Test
+    void rejectsMalformedOffset() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/changes").param("after", "not-an-offset"))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/changes").param("limit", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private JsonNode changes(String after, int wait) throws Exception {
+        String body = this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/changes")
+                        .param("after", after)
+                        .param("wait", String.valueOf(wait)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andReturn().getResponse().getContentAsString();
+        return objectMapper.readTree(body);
+    }
+
+    private void create(TripDetailRecord tdr) throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(tdr)))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(tdr.sessionId())));
+    }
+}
@@ -1,7 +1,10 @@
 package tdr.solutions.controller;
 
+import tdr.solutions.model.TripDetailRecord;
 import tdr.solutions.model.TripDetailRecordEntity;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
@@ -15,8 +18,13 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -71,6 +79,51 @@ class TdrControllerITest {
 
     }
 
+    @Test
+    void createInvalidTdrReturnsViolations() throws Exception {
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setVehicleId("veh");
+        tripDetailRecordEntity.setTotalCost(20.0);
+        tripDetailRecordEntity.setStartTime(LocalDateTime.parse("2023-11-24T14:15:00"));
+        tripDetailRecordEntity.setEndTime(LocalDateTime.parse("2023-11-24T14:15:00").minusHours(3));
+        tripDetailRecordEntity.setSessionId("invalid-session1");
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(tripDetailRecordEntity)))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.violations.length()").value(2))
+                .andExpect(jsonPath("$.violations[0].field").value("vehicleId"))
+                .andExpect(jsonPath("$.violations[1].field").value("endTime"))
+                .andExpect(jsonPath("$.violations[1].message").value("must not be before startTime"));
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/invalid-session1"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void createTdrsReportsRejectedTdrs() throws Exception {
+        String batch = """
+                [
+                  {"sessionId": "batch-session1", "vehicleId": "batch-vehicle1", "startTime": "2023-11-24T14:15:00", "endTime": "2023-11-24T15:15:00", "totalCost": 5.0},
+                  {"sessionId": "batch-session2", "vehicleId": "batch-vehicle1", "startTime": "2023-11-24T14:15:00", "endTime": "2023-11-24T13:15:00", "totalCost": 5.0},
+                  {"sessionId": "session3", "vehicleId": "batch-vehicle1", "startTime": "2024-11-24T14:15:00", "endTime": "2024-11-24T15:15:00", "totalCost": 5.0}
+                ]""";
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/batch").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(batch))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created.length()").value(1))
+                .andExpect(jsonPath("$.created[0].sessionId").value("batch-session1"))
+                .andExpect(jsonPath("$.rejected.length()").value(2))
+                .andExpect(jsonPath("$.rejected[0].index").value(1))
+                .andExpect(jsonPath("$.rejected[0].violations[0].field").value("endTime"))
+                .andExpect(jsonPath("$.rejected[1].index").value(2))
+                .andExpect(jsonPath("$.rejected[1].sessionId").value("session3"))
+                .andExpect(jsonPath("$.retryable.length()").value(0));
+    }
+
     @Test
     void getTdrBySessionId() throws Exception {
         TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
@@ -208,7 +261,7 @@ class TdrControllerITest {
                 .andExpect(jsonPath("$[0].sessionId").value("session11"))
                 .andExpect(jsonPath("$[1].sessionId").value("session8"))
                 .andExpect(jsonPath("$[0].startTime").value("2024-11-24T14:15:00"))
-                .andExpect(jsonPath("$[2].startTime").value("2023-11-24T14:15:00"))
+                .andExpect(jsonPath("$[2].startTime").value("2023-11-29T08:30:00"))
                 .andExpect(jsonPath("$[2].vehicleId").value("vehicle10"));
     }
 
@@ -226,8 +279,237 @@ class TdrControllerITest {
                 .andExpect(jsonPath("$[0].sessionId").value("session11"))
                 .andExpect(jsonPath("$[1].sessionId").value("session8"))
                 .andExpect(jsonPath("$[0].endTime").value("2024-11-24T16:00:00"))
-                .andExpect(jsonPath("$[2].endTime").value("2023-11-24T16:00:00"))
+                .andExpect(jsonPath("$[2].endTime").value("2023-11-29T10:00:00"))
                 .andExpect(jsonPath("$[2].vehicleId").value("vehicle10"));
     }
 
-}
\ No newline at end of file
+    @Test
+    void getTdrPageByVehicleIdCountsAllShards() throws Exception {
+        String next = JsonPath.read(this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                    .param("size", "3")
+                    .param("sortBy", "startTime")
+                    .param("sortOrder", "desc"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].sessionId").value("session20"))
+                .andReturn().getResponse().getContentAsString(), "$.next");
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                    .param("cursor", next)
+                    .param("size", "3")
+                    .param("sortBy", "startTime")
+                    .param("sortOrder", "desc"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content.length()").value(3))
+                .andExpect(jsonPath("$.content[0].sessionId").value("session11"))
+                .andExpect(jsonPath("$.content[2].startTime").value("2023-11-29T08:30:00"))
+                .andExpect(jsonPath("$.size").value(3))
+                .andExpect(jsonPath("$.totalElements").value(10))
+                .andExpect(jsonPath("$.totalPages").value(4))
+                .andExpect(jsonPath("$.next").isString());
+    }
+
+    @Test
+    void getTdrPageByVehicleIdWalksEveryTripByCursor() throws Exception {
+        for (String sortBy : List.of("startTime", "endTime")) {
+            List<String> starts = new ArrayList<>();
+            String next = null;
+            do {
+                var request = RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                        .param("size", "4")
+                        .param("sortBy", sortBy)
+                        .param("sortOrder", "asc");
+                String body = this.mockMvc.perform(next == null ? request : request.param("cursor", next))
+                        .andExpect(status().isOk())
+                        .andReturn().getResponse().getContentAsString();
+                starts.addAll(JsonPath.read(body, "$.content[*].startTime"));
+                next = JsonPath.read(body, "$.next");
+            } while (next != null);
+
+            assertEquals(10, starts.size());
+            assertEquals(starts.stream().sorted().toList(), starts);
+        }
+    }
+
+    @Test
+    void getTdrPageByVehicleIdRejectsBadCursorsAndSizes() throws Exception {
+        String next = JsonPath.read(this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString(), "$.next");
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                    .param("cursor", next)
+                    .param("sortOrder", "desc"))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                    .param("cursor", "not a cursor"))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                    .param("size", "0"))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10")
+                    .param("size", "100000"))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10")
+                    .param("page", "1000000")
+                    .param("size", "1000"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void getTdrPageByVehicleIdCountsCreatedTdrs() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/page-vehicle1/page"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content.length()").value(0))
+                .andExpect(jsonPath("$.totalElements").value(0))
+                .andExpect(jsonPath("$.totalPages").value(0))
+                .andExpect(jsonPath("$.next").doesNotExist());
+
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setVehicleId("page-vehicle1");
+        tripDetailRecordEntity.setTotalCost(12.5);
+        tripDetailRecordEntity.setStartTime(LocalDateTime.parse("2024-12-01T08:00:00"));
+        tripDetailRecordEntity.setEndTime(LocalDateTime.parse("2024-12-01T09:00:00"));
+        tripDetailRecordEntity.setSessionId("page-session1");
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(tripDetailRecordEntity))).andExpect(status().isOk());
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/page-vehicle1/page"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].sessionId").value("page-session1"))
+                .andExpect(jsonPath("$.totalElements").value(1))
+                .andExpect(jsonPath("$.totalPages").value(1))
+                .andExpect(jsonPath("$.next").doesNotExist());
+    }
+
+    @Test
+    void getTdrsByVehicleIdWithSparseFields() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10")
+                    .param("sortOrder", "desc")
+                    .param("fields", "sessionId,startTime,totalCost"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].sessionId").value("session20"))
+                .andExpect(jsonPath("$[0].startTime").value("2024-11-29T08:30:00"))
+                .andExpect(jsonPath("$[0].totalCost").value(27.8))
+                .andExpect(jsonPath("$[0].vehicleId").doesNotExist())
+                .andExpect(jsonPath("$[0].endTime").doesNotExist());
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/page")
+                    .param("fields", "sessionId"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].sessionId").value("session8"))
+                .andExpect(jsonPath("$.content[0].startTime").doesNotExist())
+                .andExpect(jsonPath("$.totalElements").value(10));
+    }
+
+    @Test
+    void writesEveryFieldWithoutFilterProvider() throws Exception {
+        TripDetailRecord tdr = new TripDetailRecord("session-all-fields", "vehicle-all-fields",
+                LocalDateTime.parse("2024-12-01T08:00:00"), LocalDateTime.parse("2024-12-01T09:00:00"), 12.5);
+
+        String written = objectMapper.writer((FilterProvider) null).writeValueAsString(tdr);
+
+        assertEquals(Set.of("sessionId", "vehicleId", "startTime", "endTime", "totalCost"),
+                Set.copyOf(objectMapper.readValue(written, Map.class).keySet()));
+    }
+
+    @Test
+    void getTdrsByVehicleIdWithUnknownFieldIsRejected() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/range")
+                    .param("from", "2023-11-26T00:00:00")
+                    .param("to", "2024-11-25T00:00:00")
+                    .param("fields", "sessionId,id"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void testGetTdrsByVehicleIdInRangeAcrossShards() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/range")
+                    .param("from", "2023-11-26T00:00:00")
+                    .param("to", "2024-11-25T00:00:00")
+                    .param("page", "1")
+                    .param("size", "3")
+                    .param("sortBy", "startTime")
+                    .param("sortOrder", "asc"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].sessionId").value("session8"))
+                .andExpect(jsonPath("$[0].startTime").value("2024-11-23T10:00:00"))
+                .andExpect(jsonPath("$[1].sessionId").value("session11"))
+                .andExpect(jsonPath("$[1].startTime").value("2024-11-24T14:15:00"));
+    }
+
+    @Test
+    void testGetTdrsByVehicleIdInRangeDescOrderByEndTime() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/vehicle10/range")
+                    .param("from", "2023-11-26T00:00:00")
+                    .param("to", "2024-11-25T00:00:00")
+                    .param("size", "4")
+                    .param("sortBy", "endTime")
+                    .param("sortOrder", "desc"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(4))
+                .andExpect(jsonPath("$[0].endTime").value("2024-11-24T16:00:00"))
+                .andExpect(jsonPath("$[1].endTime").value("2024-11-23T11:15:00"))
+                .andExpect(jsonPath("$[2].endTime").value("2023-11-29T10:00:00"))
+                .andExpect(jsonPath("$[3].endTime").value("2023-11-28T11:45:00"));
+    }
+
+    @Test
+    void lookupTdrsReturnsFoundAndMissingSessionIds() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/lookup").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[\"session3\", \"unknown-session\", \"session20\", \"session3\"]"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.found.length()").value(2))
+                .andExpect(jsonPath("$.found[0].sessionId").value("session3"))
+                .andExpect(jsonPath("$.found[1].sessionId").value("session20"))
+                .andExpect(jsonPath("$.missing.length()").value(1))
+                .andExpect(jsonPath("$.missing[0]").value("unknown-session"));
+    }
+
+
+    @Test
+    void getLatestTripsReturnsTheLastTripOfEachVehicle() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/vehicle/latest").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[\"vehicle10\", \"unknown-vehicle\", \"vehicle10\"]"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.found.length()").value(1))
+                .andExpect(jsonPath("$.found[0].sessionId").value("session20"))
+                .andExpect(jsonPath("$.found[0].vehicleId").value("vehicle10"))
+                .andExpect(jsonPath("$.found[0].endTime").value("2024-11-29T10:00:00"))
+                .andExpect(jsonPath("$.missing.length()").value(1))
+                .andExpect(jsonPath("$.missing[0]").value("unknown-vehicle"));
+    }
+
+    @Test
+    void getLatestTripsFollowsCreatedTdrs() throws Exception {
+        for (String day : new String[]{"01", "02"}) {
+            TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+            tripDetailRecordEntity.setVehicleId("latest-vehicle1");
+            tripDetailRecordEntity.setTotalCost(12.5);
+            tripDetailRecordEntity.setStartTime(LocalDateTime.parse("2024-12-" + day + "T08:00:00"));
+            tripDetailRecordEntity.setEndTime(LocalDateTime.parse("2024-12-" + day + "T09:00:00"));
+            tripDetailRecordEntity.setSessionId("latest-session" + day);
+            this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(tripDetailRecordEntity))).andExpect(status().isOk());
+
+            this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/vehicle/latest").accept(MediaType.APPLICATION_JSON)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("[\"latest-vehicle1\"]"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.found.length()").value(1))
+                    .andExpect(jsonPath("$.found[0].sessionId").value("latest-session" + day))
+                    .andExpect(jsonPath("$.missing.length()").value(0));
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import tdr.solutions.session.SessionEvent;
+import tdr.solutions.session.SessionizationService;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "tdr.sessions.flush-interval=PT0.05S",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_events;DB_CLOSE_ON_EXIT=FALSE;"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrEventsITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private SessionizationService sessionizationService;
+
+    @Test
+    void stoppedSessionsBecomeTdrs() throws Exception {
+        LocalDateTime start = LocalDateTime.parse("2024-06-01T08:00:00");
+        send(List.of(
+                        new SessionEvent(SessionEvent.Type.START, "events-session1", "events-vehicle1", start, null),
+                        new SessionEvent(SessionEvent.Type.START, "events-session2", "events-vehicle2", start, null),
+                        new SessionEvent(SessionEvent.Type.METER, "events-session1", null, start.plusMinutes(30), 3.5),
+                        new SessionEvent(SessionEvent.Type.METER, "events-unknown", null, start.plusMinutes(30), 1.0),
+                        new SessionEvent(SessionEvent.Type.STOP, "events-session1", null, start.plusHours(1), null)))
+                .andExpect(jsonPath("$.accepted").value(4))
+                .andExpect(jsonPath("$.rejected[0].index").value(3))
+                .andExpect(jsonPath("$.rejected[0].violations[0].message").value("no open session events-unknown"));
+        assertEquals(1, sessionizationService.getOpenSessions());
+
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() ->
+                this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/events-session1"))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.vehicleId").value("events-vehicle1"))
+                        .andExpect(jsonPath("$.endTime").value("2024-06-01T09:00:00"))
+                        .andExpect(jsonPath("$.totalCost").value(3.5)));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/events-session2"))
+                .andExpect(status().isNotFound());
+
+        send(List.of(new SessionEvent(SessionEvent.Type.STOP, "events-session2", null, start.plusHours(2), 8.0)))
+                .andExpect(jsonPath("$.accepted").value(1));
+        assertEquals(0, sessionizationService.getOpenSessions());
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() ->
+                this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/events-session2"))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.totalCost").value(8.0)));
+    }
+
+    @Test
+    void rejectsIncompleteEvents() throws Exception {
+        send(List.of(
+                        new SessionEvent(SessionEvent.Type.START, "events-session3", null, LocalDateTime.parse("2024-06-01T08:00:00"), null),
+                        new SessionEvent(SessionEvent.Type.STOP, "events-session3", null, null, null)))
+                .andExpect(jsonPath("$.accepted").value(0))
+                .andExpect(jsonPath("$.rejected[0].violations[0].message").value("sessionId and vehicleId size must be between 5 and 50"))
+                .andExpect(jsonPath("$.rejected[1].violations[0].message").value("timestamp must not be null"));
+    }
+
+    private ResultActions send(List<SessionEvent> events) throws Exception {
+        return this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/events").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(events)))
+                .andExpect(status().isOk());
+    }
+}
@@ -0,0 +1,161 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.migration.MigrationProgress;
+import tdr.solutions.migration.MigrationRequest;
+import tdr.solutions.migration.ShardMigrationService;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.ShardRoutingStore;
+import tdr.solutions.service.TdrShardingService;
+import tdr.solutions.service.VehicleShardRouter;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "tdr.sharding.sub-shards.2024=tdr2024-1",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_migration;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024-1.url=jdbc:h2:mem:tdr_2024_migration_1;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024-1.username=sa",
+        "spring.datasource.tdr2024-1.password=",
+        "spring.datasource.tdr2024-1.driver-class-name=org.h2.Driver",
+        "spring.datasource.tdr2024-1.jpa.location=db/migration/test/2024/structure",
+        "tdr.migration.chunk-size=4",
+        "tdr.migration.routing-refresh-interval=PT0.1S"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrMigrationITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TdrShardingService tdrShardingService;
+
+    @Autowired
+    private ShardMigrationService shardMigrationService;
+
+    @Autowired
+    private ShardRoutingStore shardRoutingStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void movesBucketToOtherDatabaseWhileServingIt() throws Exception {
+        List<Shard> shards = tdrShardingService.getShards(2024);
+        String vehicleId = "mig-vehicle0";
+        for (int i = 1; tdrShardingService.getRouter(2024).shardOf(vehicleId) != 0; i++) {
+            vehicleId = "mig-vehicle" + i;
+        }
+        int bucket = VehicleShardRouter.bucketOf(vehicleId);
+        for (int i = 0; i < 5; i++) {
+            create("mig-session" + i, vehicleId, LocalDateTime.parse("2024-12-01T10:00:00").plusDays(i));
+        }
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/migration/2024").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new MigrationRequest("tdr2024-1", List.of(bucket)))))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.buckets[0]").value(bucket));
+        await().atMost(Duration.ofSeconds(30)).until(() -> migrationState() == MigrationProgress.MigrationState.DONE);
+
+        MigrationProgress progress = shardMigrationService.getMigrations().get(0);
+        assertEquals(5, progress.copiedRows());
+        assertEquals(5, progress.deletedRows());
+        assertEquals(1.0, progress.progress());
+        assertEquals(1, tdrShardingService.getRouter(2024).shardOf(vehicleId));
+        assertEquals("tdr2024-1", shardRoutingStore.load(shards.get(0).dataSource()).get(bucket).owner());
+        assertTrue(shards.get(0).repository().findAllBySessionIdIn(List.of("mig-session0", "mig-session4")).isEmpty());
+        assertEquals(5, shards.get(1).repository().findAllBySessionIdIn(
+                List.of("mig-session0", "mig-session1", "mig-session2", "mig-session3", "mig-session4")).size());
+        assertEquals(5.0, meterRegistry.get("tdr.migration.rows").tag("year", "2024").tag("operation", "copied").counter().count());
+
+        create("mig-session5", vehicleId, LocalDateTime.parse("2024-12-10T10:00:00"));
+        assertNotNull(shards.get(1).repository().findBySessionId("mig-session5"));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/" + vehicleId)
+                        .param("page", "0")
+                        .param("size", "10")
+                        .param("sortBy", "startTime")
+                        .param("sortOrder", "asc"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(6))
+                .andExpect(jsonPath("$[0].sessionId").value("mig-session0"))
+                .andExpect(jsonPath("$[5].sessionId").value("mig-session5"));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/mig-session2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.vehicleId").value(vehicleId));
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/migration/2024").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new MigrationRequest("tdr2024-1", List.of(bucket)))))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void replacesCopiesChangedOrDeletedInTheSource() throws Throwable {
+        List<Shard> shards = tdrShardingService.getShards(2024);
+        String vehicleId = "mig-stale-vehicle0";
+        for (int i = 1; tdrShardingService.getRouter(2024).shardOf(vehicleId) != 0; i++) {
+            vehicleId = "mig-stale-vehicle" + i;
+        }
+        int bucket = VehicleShardRouter.bucketOf(vehicleId);
+        create("mig-stale-session1", vehicleId, LocalDateTime.parse("2024-11-02T10:00:00"));
+        // Copies left by a failed migration: one of a trip deleted since, one of a trip whose cost was recalculated since
+        shards.get(1).repository().save(entity("mig-stale-session0", vehicleId, LocalDateTime.parse("2024-11-01T10:00:00"), 20.0));
+        shards.get(1).repository().save(entity("mig-stale-session1", vehicleId, LocalDateTime.parse("2024-11-02T10:00:00"), 15.0));
+
+        shardMigrationService.start(2024, new MigrationRequest("tdr2024-1", List.of(bucket)));
+        await().atMost(Duration.ofSeconds(30)).until(() -> migrationState() == MigrationProgress.MigrationState.DONE);
+
+        assertNull(shards.get(1).repository().findBySessionId("mig-stale-session0"));
+        assertEquals(20.0, shards.get(1).repository().findBySessionId("mig-stale-session1").getTotalCost());
+        assertNull(shards.get(0).repository().findBySessionId("mig-stale-session1"));
+        assertEquals(2, shardMigrationService.getMigration(2024).repairedRows());
+    }
+
+    private MigrationProgress.MigrationState migrationState() {
+        try {
+            return shardMigrationService.getMigration(2024).state();
+        } catch (TdrException e) {
+            return null;
+        }
+    }
+
+    private void create(String sessionId, String vehicleId, LocalDateTime startTime) throws Exception {
+        TripDetailRecordEntity tripDetailRecordEntity = entity(sessionId, vehicleId, startTime, 20.0);
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(tripDetailRecordEntity)))
+                .andExpect(status().isOk());
+    }
+
+    private static TripDetailRecordEntity entity(String sessionId, String vehicleId, LocalDateTime startTime, double totalCost) {
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setSessionId(sessionId);
+        tripDetailRecordEntity.setVehicleId(vehicleId);
+        tripDetailRecordEntity.setTotalCost(totalCost);
+        tripDetailRecordEntity.setStartTime(startTime);
+        tripDetailRecordEntity.setEndTime(startTime.plusHours(1));
+        return tripDetailRecordEntity;
+    }
+}
@@ -0,0 +1,102 @@
+package tdr.solutions.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import tdr.solutions.reactive.ReactiveShards;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "spring.datasource.tdr2023.url=jdbc:h2:mem:tdr_2023_reactive;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_reactive;DB_CLOSE_ON_EXIT=FALSE;"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrReactiveITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private TdrShardingService tdrShardingService;
+
+    @Autowired
+    private ReactiveShards reactiveShards;
+
+    @Test
+    void readsEveryShardWithoutBlocking() {
+        for (Shard shard : tdrShardingService.getShards()) {
+            assertTrue(reactiveShards.clientOf(shard).isPresent(), shard.name());
+        }
+    }
+
+    @Test
+    void getTdrBySessionIdAsksTheOldestYearFirst() throws Exception {
+        perform(RequestFactoryTest.myFactoryRequestGet("/tdr/reactive/session3"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.vehicleId").value("vehicle3"))
+                .andExpect(jsonPath("$.startTime").value("2023-11-20T16:00:00"));
+
+        perform(RequestFactoryTest.myFactoryRequestGet("/tdr/reactive/reactive-missing"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void getTdrsByVehicleIdMergesTheShards() throws Exception {
+        perform(RequestFactoryTest.myFactoryRequestGet("/tdr/reactive/vehicle/vehicle10")
+                    .accept(MediaType.APPLICATION_JSON)
+                    .param("page", "1")
+                    .param("size", "3")
+                    .param("sortBy", "startTime")
+                    .param("sortOrder", "desc"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].sessionId").value("session11"))
+                .andExpect(jsonPath("$[0].startTime").value("2024-11-24T14:15:00"))
+                .andExpect(jsonPath("$[1].sessionId").value("session8"))
+                .andExpect(jsonPath("$[2].startTime").value("2023-11-29T08:30:00"));
+    }
+
+    @Test
+    void getTdrsByVehicleIdStreamsNewlineDelimitedJson() throws Exception {
+        String body = perform(RequestFactoryTest.myFactoryRequestGet("/tdr/reactive/vehicle/vehicle10")
+                    .accept(MediaType.APPLICATION_NDJSON)
+                    .param("size", "4")
+                    .param("sortBy", "endTime"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = body.strip().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].contains("\"endTime\":\"2023-11-23T11:15:00\""), lines[0]);
+        assertTrue(lines[3].contains("\"endTime\":\"2023-11-28T11:45:00\""), lines[3]);
+    }
+
+    @Test
+    void getTdrsByVehicleIdRejectsUnsupportedSortFields() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/reactive/vehicle/vehicle10")
+                    .param("sortBy", "totalCost"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private ResultActions perform(MockHttpServletRequestBuilder builder) throws Exception {
+        MvcResult started = this.mockMvc.perform(builder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return this.mockMvc.perform(asyncDispatch(started));
+    }
+}
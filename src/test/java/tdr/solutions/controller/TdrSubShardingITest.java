@@ -0,0 +1,151 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.service.SessionRouteStore;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "tdr.sharding.sub-shards.2024=tdr2024-1",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_sub;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024-1.url=jdbc:h2:mem:tdr_2024_1;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024-1.username=sa",
+        "spring.datasource.tdr2024-1.password=",
+        "spring.datasource.tdr2024-1.driver-class-name=org.h2.Driver",
+        "spring.datasource.tdr2024-1.jpa.location=db/migration/test/2024/structure"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrSubShardingITest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TdrShardingService tdrShardingService;
+
+    @Autowired
+    private SessionRouteStore sessionRouteStore;
+
+    @Test
+    void routesEveryVehicleToOneSubShardOfTheYear() throws Exception {
+        List<Shard> shards = tdrShardingService.getShards(2024);
+        assertEquals(List.of("tdr2024", "tdr2024-1"), shards.stream().map(Shard::name).toList());
+        long before0 = shards.get(0).repository().count();
+        long before1 = shards.get(1).repository().count();
+
+        for (int i = 0; i < 20; i++) {
+            create("sub-session" + i, "sub-vehicle" + i, "2024-12-24T14:15:00");
+        }
+
+        long added0 = shards.get(0).repository().count() - before0;
+        long added1 = shards.get(1).repository().count() - before1;
+        assertEquals(20, added0 + added1);
+        assertTrue(added0 > 0 && added1 > 0);
+        for (int i = 0; i < 20; i++) {
+            String vehicleId = "sub-vehicle" + i;
+            int owner = tdrShardingService.getRouter(2024).shardOf(vehicleId);
+            assertNotNull(shards.get(owner).repository().findBySessionId("sub-session" + i));
+            assertNull(shards.get(1 - owner).repository().findBySessionId("sub-session" + i));
+            assertEquals(vehicleId, sessionRouteStore.find(shards.get(0).dataSource(), "sub-session" + i).vehicleId());
+
+            this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/sub-session" + i))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.vehicleId").value(vehicleId));
+            this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/" + vehicleId)
+                            .param("page", "0")
+                            .param("size", "3")
+                            .param("sortBy", "startTime")
+                            .param("sortOrder", "asc"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[0].sessionId").value("sub-session" + i));
+        }
+    }
+
+    @Test
+    void rejectsSessionIdStoredInAnotherSubShard() throws Exception {
+        String first = "dup-vehicle0";
+        String second = "dup-vehicle1";
+        for (int i = 2; tdrShardingService.getRouter(2024).shardOf(second) == tdrShardingService.getRouter(2024).shardOf(first); i++) {
+            second = "dup-vehicle" + i;
+        }
+
+        create("dup-session", first, "2024-12-25T14:15:00");
+
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(entity("dup-session", second, "2024-12-25T14:15:00"))))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void takesOverOnlyStaleClaimsOfUnwrittenTrips() throws Exception {
+        DataSource directory = tdrShardingService.getShards(2024).get(0).dataSource();
+        sessionRouteStore.claim(directory, "stale-session", "stale-vehicle0", Instant.now().minus(Duration.ofHours(1)));
+        sessionRouteStore.claim(directory, "fresh-session", "stale-vehicle0", Instant.now());
+
+        create("stale-session", "stale-vehicle1", "2024-12-26T14:15:00");
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(entity("fresh-session", "stale-vehicle2", "2024-12-26T14:15:00"))))
+                .andExpect(status().isNotFound());
+
+        assertEquals("stale-vehicle1", sessionRouteStore.find(directory, "stale-session").vehicleId());
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/stale-session"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.vehicleId").value("stale-vehicle1"));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/fresh-session"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void backfillsSessionIdsWrittenBeforeTheDirectory() throws Exception {
+        List<Shard> shards = tdrShardingService.getShards(2024);
+        TripDetailRecordEntity legacy = entity("legacy-session", "legacy-vehicle", "2024-12-27T14:15:00");
+        shards.get(1).repository().save(legacy);
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/legacy-session"))
+                .andExpect(status().isNotFound());
+
+        sessionRouteStore.backfill(shards.get(0).dataSource(), "legacy-shard", shards.get(1).dataSource(), Instant.now());
+        sessionRouteStore.backfill(shards.get(0).dataSource(), "legacy-shard", shards.get(1).dataSource(), Instant.now());
+
+        assertEquals("legacy-vehicle", sessionRouteStore.find(shards.get(0).dataSource(), "legacy-session").vehicleId());
+    }
+
+    private void create(String sessionId, String vehicleId, String startTime) throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(entity(sessionId, vehicleId, startTime))))
+                .andExpect(status().isOk());
+    }
+
+    private static TripDetailRecordEntity entity(String sessionId, String vehicleId, String startTime) {
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setSessionId(sessionId);
+        tripDetailRecordEntity.setVehicleId(vehicleId);
+        tripDetailRecordEntity.setTotalCost(20.0);
+        tripDetailRecordEntity.setStartTime(LocalDateTime.parse(startTime));
+        tripDetailRecordEntity.setEndTime(LocalDateTime.parse(startTime).plusHours(1));
+        return tripDetailRecordEntity;
+    }
+}
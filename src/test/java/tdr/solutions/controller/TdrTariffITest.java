@@ -0,0 +1,145 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+import tdr.solutions.tariff.PricingFunction;
+import tdr.solutions.tariff.RecalculationProgress;
+import tdr.solutions.tariff.RecalculationRequest;
+import tdr.solutions.tariff.TariffRecalculationService;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_tariff;DB_CLOSE_ON_EXIT=FALSE;",
+        "tdr.tariff.chunk-size=2"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TdrTariffITest {
+
+    @TestConfiguration
+    static class SurchargeConfiguration {
+
+        /** Doubles the cost of the trips of this test and keeps all others. */
+        @Bean
+        PricingFunction surcharge() {
+            return trip -> trip.sessionId().startsWith("tariff-") ? trip.totalCost() * 2 : trip.totalCost();
+        }
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TdrShardingService tdrShardingService;
+
+    @Autowired
+    private TariffRecalculationService tariffRecalculationService;
+
+    @Test
+    void reportsDryRunsAndResumesAfterTheCheckpoint() throws Exception, TdrException {
+        Shard shard = tdrShardingService.getShards(2024).get(0);
+        TripDetailRecordRepository repository = shard.repository();
+        for (int i = 0; i < 5; i++) {
+            create("tariff-session" + i, LocalDateTime.parse("2024-10-01T10:00:00").plusDays(i));
+        }
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/tariff-session4"))
+                .andExpect(jsonPath("$.totalCost").value(15.0));
+
+        start(new RecalculationRequest("surcharge", true));
+        RecalculationProgress dryRun = awaitDone();
+        assertEquals(5, dryRun.changedRows());
+        assertEquals(75.0, dryRun.costDelta(), 1e-9);
+        assertEquals(5, dryRun.diffs().size());
+        assertEquals(30.0, dryRun.diffs().get(0).newCost());
+        assertEquals(15.0, repository.findBySessionId("tariff-session4").getTotalCost());
+
+        // A previous run stopped after the first three trips
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(shard.dataSource());
+        jdbcTemplate.update("INSERT INTO tariff_checkpoint (pricing, last_id) VALUES (?, ?)",
+                "surcharge", repository.findBySessionId("tariff-session2").getId());
+        start(new RecalculationRequest("surcharge", false));
+        RecalculationProgress applied = awaitDone();
+
+        assertEquals(2, applied.scannedRows());
+        assertEquals(2, applied.changedRows());
+        assertEquals(15.0, repository.findBySessionId("tariff-session2").getTotalCost());
+        assertEquals(30.0, repository.findBySessionId("tariff-session3").getTotalCost());
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT count(*) FROM tariff_checkpoint", Integer.class));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/tariff-session4"))
+                .andExpect(jsonPath("$.totalCost").value(30.0));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestGet("/tdr/vehicle/tariff-vehicle")
+                        .param("page", "0")
+                        .param("size", "1")
+                        .param("sortBy", "startTime")
+                        .param("sortOrder", "desc"))
+                .andExpect(jsonPath("$[0].totalCost").value(30.0));
+    }
+
+    @Test
+    void rejectsUnknownPricingFunctions() throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/tariff/2024").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new RecalculationRequest("unknown", true))))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message").value("no pricing function unknown"));
+    }
+
+    private void start(RecalculationRequest request) throws Exception {
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr/tariff/2024").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.pricing").value(request.pricing()));
+    }
+
+    private RecalculationProgress awaitDone() throws TdrException {
+        await().atMost(Duration.ofSeconds(30)).until(() -> recalculationState() != RecalculationProgress.RecalculationState.RUNNING);
+        RecalculationProgress progress = tariffRecalculationService.getRecalculation(2024);
+        assertEquals(RecalculationProgress.RecalculationState.DONE, progress.state(), progress.error());
+        return progress;
+    }
+
+    private RecalculationProgress.RecalculationState recalculationState() {
+        try {
+            return tariffRecalculationService.getRecalculation(2024).state();
+        } catch (TdrException e) {
+            return null;
+        }
+    }
+
+    private void create(String sessionId, LocalDateTime startTime) throws Exception {
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setSessionId(sessionId);
+        tripDetailRecordEntity.setVehicleId("tariff-vehicle");
+        tripDetailRecordEntity.setTotalCost(15.0);
+        tripDetailRecordEntity.setStartTime(startTime);
+        tripDetailRecordEntity.setEndTime(startTime.plusHours(1));
+        this.mockMvc.perform(RequestFactoryTest.myFactoryRequestPost("/tdr").accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(tripDetailRecordEntity)))
+                .andExpect(status().isOk());
+    }
+}
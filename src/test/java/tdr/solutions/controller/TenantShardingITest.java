@@ -0,0 +1,145 @@
+package tdr.solutions.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest(properties = {
+        "tdr.security.key-file=classpath:api-keys-tenants.txt",
+        "tdr.tenants.dedicated.2024=cpo-big:tdr2024-cpo-big",
+        "spring.datasource.tdr2023.url=jdbc:h2:mem:tdr_2023_tenants;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024.url=jdbc:h2:mem:tdr_2024_tenants;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024-cpo-big.url=jdbc:h2:mem:tdr_2024_cpo_big;DB_CLOSE_ON_EXIT=FALSE;",
+        "spring.datasource.tdr2024-cpo-big.username=sa",
+        "spring.datasource.tdr2024-cpo-big.password=",
+        "spring.datasource.tdr2024-cpo-big.driver-class-name=org.h2.Driver",
+        "spring.datasource.tdr2024-cpo-big.jpa.location=db/migration/test/2024/structure"
+})
+@AutoConfigureMockMvc
+@DirtiesContext
+class TenantShardingITest {
+
+    private static final String BIG_CPO_KEY = "BIGCPO";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TdrShardingService tdrShardingService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void placesTheTripsOfAnOperatorInItsDedicatedShard() throws Exception {
+        Shard dedicated = tdrShardingService.getTenantShards(2024).get("cpo-big");
+        TripDetailRecordRepository shared = tdrShardingService.getShards(2024).get(0).repository();
+        assertTrue(tdrShardingService.getShards().contains(dedicated));
+
+        create(BIG_CPO_KEY, "big-session1", "big-vehicle1", "2024-12-24T14:15:00");
+        create("AMIR", "shared-session1", "shared-vehicle1", "2024-12-24T14:15:00");
+        create(BIG_CPO_KEY, "big-session2023", "big-vehicle1", "2023-12-24T14:15:00");
+
+        assertNotNull(dedicated.repository().findBySessionId("big-session1"));
+        assertNull(shared.findBySessionId("big-session1"));
+        assertNotNull(shared.findBySessionId("shared-session1"));
+        assertNull(dedicated.repository().findBySessionId("shared-session1"));
+        // Without a dedicated shard in 2023, the operator shares the year with the others
+        assertNotNull(tdrShardingService.getShards(2023).get(0).repository().findBySessionId("big-session2023"));
+
+        this.mockMvc.perform(request(MockMvcRequestBuilders.get("/tdr/big-session1"), BIG_CPO_KEY))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.vehicleId").value("big-vehicle1"));
+        this.mockMvc.perform(request(MockMvcRequestBuilders.get("/tdr/vehicle/big-vehicle1"), BIG_CPO_KEY)
+                        .param("page", "0")
+                        .param("size", "5")
+                        .param("sortBy", "startTime")
+                        .param("sortOrder", "desc"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].sessionId").value("big-session1"))
+                .andExpect(jsonPath("$[1].sessionId").value("big-session2023"));
+    }
+
+    @Test
+    void keepsTheCachedTripsOfOperatorsSharingVehicleAndSessionIdsApart() throws Exception {
+        create("AMIR", "twin-session1", "twin-vehicle1", "2024-10-24T14:15:00");
+        create(BIG_CPO_KEY, "twin-session1", "twin-vehicle1", "2024-10-25T14:15:00");
+
+        // Each read is repeated so that the second one is answered from the caches filled by the first
+        for (int i = 0; i < 2; i++) {
+            for (String[] operator : new String[][]{{"AMIR", "2024-10-24T14:15:00"}, {BIG_CPO_KEY, "2024-10-25T14:15:00"}}) {
+                this.mockMvc.perform(request(MockMvcRequestBuilders.get("/tdr/twin-session1"), operator[0]))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.startTime").value(operator[1]));
+                this.mockMvc.perform(request(MockMvcRequestBuilders.post("/tdr/lookup"), operator[0])
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .content("[\"twin-session1\"]"))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.found[0].startTime").value(operator[1]));
+                this.mockMvc.perform(request(MockMvcRequestBuilders.get("/tdr/vehicle/twin-vehicle1/page"), operator[0])
+                                .param("size", "5")
+                                .param("sortBy", "startTime")
+                                .param("sortOrder", "desc"))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.content.length()").value(1))
+                        .andExpect(jsonPath("$.content[0].startTime").value(operator[1]))
+                        .andExpect(jsonPath("$.totalElements").value(1));
+            }
+        }
+    }
+
+    @Test
+    void measuresTheSharedShardsByOperator() throws Exception {
+        create("AMIR", "metered-session1", "metered-vehicle1", "2024-11-24T14:15:00");
+        create(BIG_CPO_KEY, "metered-session2", "metered-vehicle2", "2023-11-24T14:15:00");
+
+        assertTrue(meterRegistry.get("tdr.tenant.query").tag("shard", "tdr2024").tag("tenant", "default")
+                .tag("method", "saveWithEvent").timer().count() >= 1);
+        assertTrue(meterRegistry.get("tdr.tenant.query").tag("shard", "tdr2023").tag("tenant", "cpo-big")
+                .tag("method", "saveWithEvent").timer().count() >= 1);
+        // The dedicated shard has a pool of its own and is not shared
+        assertTrue(meterRegistry.find("tdr.tenant.query").tag("shard", "tdr2024-cpo-big").timers().isEmpty());
+    }
+
+    private void create(String apiKey, String sessionId, String vehicleId, String startTime) throws Exception {
+        this.mockMvc.perform(request(MockMvcRequestBuilders.post("/tdr"), apiKey).accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(entity(sessionId, vehicleId, startTime))))
+                .andExpect(status().isOk());
+    }
+
+    private static MockHttpServletRequestBuilder request(MockHttpServletRequestBuilder builder, String apiKey) {
+        return builder.header("X-API-KEY", apiKey);
+    }
+
+    private static TripDetailRecordEntity entity(String sessionId, String vehicleId, String startTime) {
+        TripDetailRecordEntity tripDetailRecordEntity = new TripDetailRecordEntity();
+        tripDetailRecordEntity.setSessionId(sessionId);
+        tripDetailRecordEntity.setVehicleId(vehicleId);
+        tripDetailRecordEntity.setTotalCost(20.0);
+        tripDetailRecordEntity.setStartTime(LocalDateTime.parse(startTime));
+        tripDetailRecordEntity.setEndTime(LocalDateTime.parse(startTime).plusHours(1));
+        return tripDetailRecordEntity;
+    }
+}
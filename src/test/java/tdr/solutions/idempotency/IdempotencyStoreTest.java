@@ -0,0 +1,121 @@
+package tdr.solutions.idempotency;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import tdr.solutions.exception.TdrException;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyStoreTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void replaysResultsAndRememberedFailures() throws TdrException {
+        IdempotencyStore store = new IdempotencyStore(meterRegistry, 10, Duration.ofHours(1), Duration.ofSeconds(1));
+        AtomicInteger runs = new AtomicInteger();
+
+        assertEquals("created", store.execute("create", "key1", "body", () -> {
+            runs.incrementAndGet();
+            return "created";
+        }));
+        assertEquals("created", store.execute("create", "key1", "body", () -> "again" + runs.incrementAndGet()));
+        TdrException failure = assertThrows(TdrException.class, () -> store.execute("create", "key2", "body", () -> {
+            runs.incrementAndGet();
+            throw new TdrException("sessionId exists");
+        }));
+        assertSame(failure, assertThrows(TdrException.class,
+                () -> store.execute("create", "key2", "body", () -> "again" + runs.incrementAndGet())));
+
+        assertEquals(2, runs.get());
+        assertEquals(2, meterRegistry.counter("tdr.idempotency.requests", "outcome", "replayed").count());
+    }
+
+    @Test
+    void doesNotRememberUncheckedFailuresOrRequestsWithoutKey() {
+        IdempotencyStore store = new IdempotencyStore(meterRegistry, 10, Duration.ofHours(1), Duration.ofSeconds(1));
+
+        assertThrows(IllegalStateException.class, () -> store.execute("create", "key1", "body", () -> {
+            throw new IllegalStateException("database unavailable");
+        }));
+
+        assertEquals("created", store.execute("create", "key1", "body", () -> "created"));
+        assertEquals("first", store.execute("create", null, "body", () -> "first"));
+        assertEquals("second", store.execute("create", null, "body", () -> "second"));
+    }
+
+    @Test
+    void rejectsKeysReusedForOtherRequests() {
+        IdempotencyStore store = new IdempotencyStore(meterRegistry, 10, Duration.ofHours(1), Duration.ofSeconds(1));
+        store.execute("create", "key1", "body", () -> "created");
+
+        ResponseStatusException mismatch = assertThrows(ResponseStatusException.class,
+                () -> store.execute("create", "key1", "other body", () -> "created"));
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, mismatch.getStatusCode());
+        // The same key of another operation is another key
+        assertEquals("batch", store.execute("batch", "key1", "other body", () -> "batch"));
+    }
+
+    @Test
+    void comparesBodiesByContentNotHashCode() {
+        IdempotencyStore store = new IdempotencyStore(meterRegistry, 10, Duration.ofHours(1), Duration.ofSeconds(1));
+        // Equal hash codes, different bodies
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        store.execute("create", "key1", List.of("Aa"), () -> "created");
+
+        assertThrows(ResponseStatusException.class, () -> store.execute("create", "key1", List.of("BB"), () -> "created"));
+        store.execute("create", "key2", new TreeMap<>(Map.of("a", 1, "b", 2)), () -> "created");
+        assertEquals("created", store.execute("create", "key2", new LinkedHashMap<>(Map.of("b", 2, "a", 1)), () -> "again"));
+    }
+
+    @Test
+    void concurrentRetriesWaitForTheFirstRequest() throws Exception {
+        IdempotencyStore store = new IdempotencyStore(meterRegistry, 10, Duration.ofHours(1), Duration.ofSeconds(5));
+        CountDownLatch running = new CountDownLatch(1);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        AtomicInteger runs = new AtomicInteger();
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> store.execute("create", "key1", "body", () -> {
+            runs.incrementAndGet();
+            running.countDown();
+            release.join();
+            return "created";
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> retry = CompletableFuture.supplyAsync(() -> store.execute("create", "key1", "body", () -> {
+            runs.incrementAndGet();
+            return "again";
+        }));
+        while (meterRegistry.counter("tdr.idempotency.requests", "outcome", "waited").count() == 0) {
+            Thread.onSpinWait();
+        }
+        release.complete(null);
+
+        assertEquals("created", first.get(5, TimeUnit.SECONDS));
+        assertEquals("created", retry.get(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void keepsTheNewestKeys() {
+        IdempotencyStore store = new IdempotencyStore(meterRegistry, 2, Duration.ofHours(1), Duration.ofSeconds(1));
+        store.execute("create", "key1", "body", () -> "first");
+        store.execute("create", "key2", "body", () -> "second");
+        store.execute("create", "key3", "body", () -> "third");
+
+        assertEquals("again", store.execute("create", "key1", "body", () -> "again"));
+        assertEquals("third", store.execute("create", "key3", "body", () -> "again"));
+    }
+}
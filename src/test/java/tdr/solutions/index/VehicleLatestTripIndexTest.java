@@ -0,0 +1,164 @@
+package tdr.solutions.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class VehicleLatestTripIndexTest {
+
+    @Mock
+    private TdrShardingService tdrShardingService;
+
+    @Mock
+    private TripDetailRecordRepository repository2023;
+
+    @Mock
+    private TripDetailRecordRepository repository2024;
+
+    @Mock
+    private TripDetailRecordRepository tenantRepository2024;
+
+    private Shard shard2023;
+    private Shard shard2024;
+    private VehicleLatestTripIndex index;
+
+    @BeforeEach
+    void setUp() {
+        shard2023 = new Shard(2023, "tdr2023", repository2023, null);
+        shard2024 = new Shard(2024, "tdr2024", repository2024, null);
+        lenient().when(tdrShardingService.getShards()).thenReturn(List.of(shard2023, shard2024));
+        lenient().when(tdrShardingService.getShards(2023)).thenReturn(List.of(shard2023));
+        lenient().when(tdrShardingService.getShards(2024)).thenReturn(List.of(shard2024));
+        lenient().when(tdrShardingService.getYears()).thenReturn(new TreeSet<>(List.of(2023, 2024)));
+        lenient().when(tdrShardingService.getReaderShards(null, 2023)).thenReturn(List.of(shard2023));
+        lenient().when(tdrShardingService.getReaderShards(null, 2024)).thenReturn(List.of(shard2024));
+        lenient().when(repository2023.findLatestTripsAfterVehicleId("", 2)).thenReturn(List.of(
+                entity("session1", "vehicle1", "2023-12-31T23:00:00", "2024-01-01T01:00:00"),
+                entity("session2", "vehicle2", "2023-06-01T10:00:00", "2023-06-01T11:00:00")));
+        lenient().when(repository2023.findLatestTripsAfterVehicleId("vehicle2", 2)).thenReturn(List.of());
+        lenient().when(repository2024.findLatestTripsAfterVehicleId("", 2)).thenReturn(List.of(
+                entity("session3", "vehicle1", "2024-01-01T00:10:00", "2024-01-01T00:40:00"),
+                entity("session4", "vehicle3", "2024-03-01T10:00:00", "2024-03-01T11:00:00")));
+        lenient().when(repository2024.findLatestTripsAfterVehicleId("vehicle3", 2)).thenReturn(List.of());
+
+        index = new VehicleLatestTripIndex(tdrShardingService, true, 2, 1000);
+    }
+
+    @Test
+    void keepsTheTripThatEndedLastAcrossShards() {
+        index.start();
+
+        Map<String, TripDetailRecord> latest = index.findLatestTrips(null, List.of("vehicle1", "vehicle2", "vehicle3", "unknown"));
+
+        assertTrue(index.isServing());
+        assertEquals(Set.of("vehicle1", "vehicle2", "vehicle3"), latest.keySet());
+        // The trip of the older shard ended after the first trip of the newer one
+        assertEquals("session1", latest.get("vehicle1").sessionId());
+        assertEquals(LocalDateTime.parse("2024-01-01T01:00:00"), latest.get("vehicle1").endTime());
+        verify(repository2024, never()).findLatestTripsOfVehicles(anyCollection());
+    }
+
+    @Test
+    void replacesTheLatestTripOnlyWithTripsEndingLater() {
+        index.start();
+
+        index.onInsert(null, record("session5", "vehicle3", "2024-02-01T10:00:00", "2024-02-01T11:00:00", 10.0));
+        index.onInsert(null, record("session6", "vehicle2", "2024-04-01T10:00:00", "2024-04-01T11:00:00", 10.0));
+        index.onInsert(null, record("session6", "vehicle2", "2024-04-01T10:00:00", "2024-04-01T11:00:00", 10.0));
+        index.upsert(2024, null, "session4", "vehicle3", EpochMicros.of(LocalDateTime.parse("2024-03-01T10:00:00")),
+                EpochMicros.of(LocalDateTime.parse("2024-03-01T11:00:00")), 42.0);
+
+        Map<String, TripDetailRecord> latest = index.findLatestTrips(null, List.of("vehicle2", "vehicle3"));
+
+        assertEquals("session6", latest.get("vehicle2").sessionId());
+        assertEquals("session4", latest.get("vehicle3").sessionId());
+        assertEquals(42.0, latest.get("vehicle3").totalCost());
+    }
+
+    @Test
+    void readsVehiclesAgainWhenTheirLatestTripIsRemoved() {
+        index.start();
+        when(repository2023.findLatestTripsOfVehicles(List.of("vehicle1"))).thenReturn(List.of());
+        when(repository2023.findLatestTripsOfVehicles(List.of("vehicle2"))).thenReturn(List.of());
+
+        index.remove(2023, null, "session1", "vehicle1");
+        index.remove(2023, null, "session2", "vehicle2");
+        index.remove(2024, null, "session-other", "vehicle3");
+
+        Map<String, TripDetailRecord> latest = index.findLatestTrips(null, List.of("vehicle1", "vehicle2", "vehicle3"));
+
+        // Only the shard the trip was removed from is read again
+        assertEquals("session3", latest.get("vehicle1").sessionId());
+        assertNull(latest.get("vehicle2"));
+        assertEquals("session4", latest.get("vehicle3").sessionId());
+        verify(repository2024, never()).findLatestTripsOfVehicles(anyCollection());
+    }
+
+    @Test
+    void servesOnlyTheTripsOfTheShardsTheOperatorReads() {
+        Shard dedicated2024 = new Shard(2024, "tdr2024-cpo-big", tenantRepository2024, null);
+        when(tdrShardingService.getShards()).thenReturn(List.of(shard2023, shard2024, dedicated2024));
+        lenient().when(tdrShardingService.getOwner(dedicated2024)).thenReturn("cpo-big");
+        lenient().when(tdrShardingService.getPlacement("cpo-big", 2024)).thenReturn("cpo-big");
+        when(tdrShardingService.getReaderShards("cpo-big", 2023)).thenReturn(List.of(shard2023));
+        when(tdrShardingService.getReaderShards("cpo-big", 2024)).thenReturn(List.of(dedicated2024));
+        when(tenantRepository2024.findLatestTripsAfterVehicleId("", 2)).thenReturn(List.of(
+                entity("session9", "vehicle3", "2024-01-10T10:00:00", "2024-01-10T11:00:00")));
+        index.start();
+
+        Map<String, TripDetailRecord> tenant = index.findLatestTrips("cpo-big", List.of("vehicle1", "vehicle3"));
+        Map<String, TripDetailRecord> shared = index.findLatestTrips(null, List.of("vehicle1", "vehicle3"));
+
+        // The operator reads the shared sub-shards of 2023 and its dedicated shard in 2024
+        assertEquals("session1", tenant.get("vehicle1").sessionId());
+        assertEquals("session9", tenant.get("vehicle3").sessionId());
+        assertEquals("session1", shared.get("vehicle1").sessionId());
+        assertEquals("session4", shared.get("vehicle3").sessionId());
+    }
+
+    @Test
+    void readsFromTheShardsUntilLoaded() {
+        when(repository2023.findLatestTripsOfVehicles(List.of("vehicle1", "unknown"))).thenReturn(List.of(
+                entity("session1", "vehicle1", "2023-12-31T23:00:00", "2024-01-01T01:00:00")));
+        when(repository2024.findLatestTripsOfVehicles(List.of("vehicle1", "unknown"))).thenReturn(List.of(
+                entity("session3", "vehicle1", "2024-01-01T00:10:00", "2024-01-01T00:40:00")));
+
+        Map<String, TripDetailRecord> latest = index.findLatestTrips(null, List.of("vehicle1", "unknown"));
+
+        assertFalse(index.isServing());
+        assertEquals(Set.of("vehicle1"), latest.keySet());
+        assertEquals("session1", latest.get("vehicle1").sessionId());
+    }
+
+    private static TripDetailRecord record(String sessionId, String vehicleId, String start, String end, double totalCost) {
+        return new TripDetailRecord(sessionId, vehicleId, LocalDateTime.parse(start), LocalDateTime.parse(end), totalCost);
+    }
+
+    private static TripDetailRecordEntity entity(String sessionId, String vehicleId, String start, String end) {
+        TripDetailRecordEntity entity = new TripDetailRecordEntity();
+        entity.setSessionId(sessionId);
+        entity.setVehicleId(vehicleId);
+        entity.setStartTime(LocalDateTime.parse(start));
+        entity.setEndTime(LocalDateTime.parse(end));
+        entity.setTotalCost(15.0);
+        return entity;
+    }
+}
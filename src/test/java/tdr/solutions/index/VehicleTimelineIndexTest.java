@@ -0,0 +1,200 @@
+package tdr.solutions.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import tdr.solutions.model.EpochMicros;
+import tdr.solutions.model.TdrCursor;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.model.TripDetailRecordEntity;
+import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.service.Shard;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class VehicleTimelineIndexTest {
+
+    @Mock
+    private TdrShardingService tdrShardingService;
+
+    @Mock
+    private TripDetailRecordRepository repository2023;
+
+    @Mock
+    private TripDetailRecordRepository repository2024;
+
+    private VehicleTimelineIndex index;
+
+    @BeforeEach
+    void setUp() {
+        when(tdrShardingService.getShards(2024)).thenReturn(List.of(new Shard(2024, "tdr2024", repository2024, null)));
+        when(tdrShardingService.getYears()).thenReturn(new TreeSet<>(List.of(2023, 2024)));
+        when(tdrShardingService.getCurrentYear()).thenReturn(2024);
+        when(repository2024.findByIdGreaterThanOrderByIdAsc(0L, Limit.of(2))).thenReturn(List.of(
+                entity(1L, "session1", "vehicle1", "2024-03-01T10:00:00", "2024-03-01T11:00:00"),
+                entity(2L, "session2", "vehicle2", "2024-03-02T10:00:00", "2024-03-02T11:00:00")));
+        when(repository2024.findByIdGreaterThanOrderByIdAsc(2L, Limit.of(2))).thenReturn(List.of(
+                entity(3L, "session3", "vehicle1", "2024-02-01T10:00:00", "2024-02-01T12:30:00")));
+
+        index = new VehicleTimelineIndex(tdrShardingService, true, 2, Duration.ofHours(24), 100000);
+        index.start();
+    }
+
+    @Test
+    void loadsCurrentShardInBatches() {
+        assertTrue(index.isServing(2024));
+        assertFalse(index.isServing(2023));
+
+        List<TripDetailRecord> page = index.findAllByVehicleId(null, "vehicle1", PageRequest.of(0, 3, Sort.by("startTime").ascending()));
+
+        assertEquals(List.of("session3", "session1"), page.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(LocalDateTime.parse("2024-02-01T12:30:00"), page.get(0).endTime());
+    }
+
+    @Test
+    void keepsBothSortOrdersUpToDateOnInsert() {
+        index.onInsert(null, record("session4", "vehicle1", "2024-03-05T08:00:00.123456", "2024-03-05T09:00:00"));
+        index.onInsert(null, record("session5", "vehicle1", "2024-02-15T08:00:00", "2024-02-15T09:00:00"));
+        index.onInsert(null, record("session6", "vehicle1", "2023-12-01T08:00:00", "2023-12-01T09:00:00"));
+
+        var byStartDesc = index.findAllByVehicleId(null, "vehicle1", PageRequest.of(0, 10, Sort.by("startTime").descending()));
+        var byEndAsc = index.findAllByVehicleId(null, "vehicle1", PageRequest.of(0, 10, Sort.by("endTime").ascending()));
+
+        assertEquals(List.of("session4", "session1", "session5", "session3"), byStartDesc.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(List.of("session3", "session5", "session1", "session4"), byEndAsc.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(LocalDateTime.parse("2024-03-05T08:00:00.123456"), byStartDesc.get(0).startTime());
+    }
+
+    @Test
+    void pagesAndRangeSeeks() {
+        for (int day = 10; day < 20; day++) {
+            index.onInsert(null, record("s-" + day, "vehicle9", "2024-05-" + day + "T10:00:00", "2024-05-" + day + "T11:00:00"));
+        }
+
+        var secondPage = index.findAllByVehicleId(null, "vehicle9", PageRequest.of(1, 3, Sort.by("startTime").descending()));
+        var range = index.findAllByVehicleIdAndStartTimeBetween(null, "vehicle9",
+                LocalDateTime.parse("2024-05-12T10:00:00"), LocalDateTime.parse("2024-05-15T10:00:00"),
+                PageRequest.of(0, 10, Sort.by("endTime").descending()));
+
+        assertEquals(List.of("s-16", "s-15", "s-14"), secondPage.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(List.of("s-14", "s-13", "s-12"), range.stream().map(TripDetailRecord::sessionId).toList());
+        assertTrue(index.findAllByVehicleId(null, "unknown", PageRequest.of(0, 3, Sort.by("startTime"))).isEmpty());
+    }
+
+    @Test
+    void seeksPastTheCursorAndBreaksTiesBySessionId() {
+        for (String sessionId : List.of("tie-c", "tie-a", "tie-b")) {
+            index.onInsert(null, record(sessionId, "vehicle8", "2024-06-01T10:00:00", "2024-06-01T11:00:00"));
+        }
+        index.onInsert(null, record("later", "vehicle8", "2024-06-02T10:00:00", "2024-06-02T11:00:00"));
+        TdrCursor first = TdrCursor.first(TdrCursor.START_TIME, false);
+
+        var firstPage = index.findAllByVehicleIdAfter(null, "vehicle8", first, 2);
+        var secondPage = index.findAllByVehicleIdAfter(null, "vehicle8", first.after(firstPage.get(1)), 2);
+        var descending = index.findAllByVehicleIdAfter(null, "vehicle8",
+                TdrCursor.first(TdrCursor.END_TIME, true).after(secondPage.get(1)), 10);
+
+        assertEquals(List.of("tie-a", "tie-b"), firstPage.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(List.of("tie-c", "later"), secondPage.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(List.of("tie-c", "tie-b", "tie-a"), descending.stream().map(TripDetailRecord::sessionId).toList());
+    }
+
+    @Test
+    void supersedesOlderShardsOnlyForFullDescendingPages() {
+        var descending = PageRequest.of(0, 2, Sort.by("startTime").descending());
+        var ascending = PageRequest.of(0, 2, Sort.by("startTime").ascending());
+        var endTimeDescending = PageRequest.of(0, 2, Sort.by("endTime").descending());
+
+        assertTrue(index.supersedesOlderShards(index.findAllByVehicleId(null, "vehicle1", descending), descending));
+        assertFalse(index.supersedesOlderShards(index.findAllByVehicleId(null, "vehicle1", ascending), ascending));
+        assertFalse(index.supersedesOlderShards(index.findAllByVehicleId(null, "vehicle2", descending), descending));
+        assertTrue(index.supersedesOlderShards(index.findAllByVehicleId(null, "vehicle1", endTimeDescending), endTimeDescending));
+
+        index.onInsert(null, record("early1", "vehicle3", "2024-01-01T00:10:00", "2024-01-01T00:20:00"));
+        index.onInsert(null, record("early2", "vehicle3", "2024-01-01T01:10:00", "2024-01-01T01:20:00"));
+        assertFalse(index.supersedesOlderShards(index.findAllByVehicleId(null, "vehicle3", endTimeDescending), endTimeDescending));
+    }
+
+    @Test
+    void upsertsAreIdempotentAndRemovalsDropTrips() {
+        var byStart = PageRequest.of(0, 10, Sort.by("startTime").ascending());
+        TripDetailRecord created = record("session4", "vehicle1", "2024-03-05T08:00:00", "2024-03-05T09:00:00");
+
+        index.onInsert(null, created);
+        index.onInsert(null, created);
+        index.upsert(2024, null, "session1", "vehicle1", EpochMicros.of(LocalDateTime.parse("2024-03-01T10:00:00")),
+                EpochMicros.of(LocalDateTime.parse("2024-03-01T11:30:00")), 42.0);
+        index.remove(2024, null, "session3", "vehicle1");
+        index.remove(2023, null, "session4", "vehicle1");
+
+        var page = index.findAllByVehicleId(null, "vehicle1", byStart);
+        assertEquals(List.of("session1", "session4"), page.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(42.0, page.get(0).totalCost());
+        assertEquals(LocalDateTime.parse("2024-03-01T11:30:00"), page.get(0).endTime());
+
+        index.remove(2024, null, "session2", "vehicle2");
+        assertTrue(index.findAllByVehicleId(null, "vehicle2", byStart).isEmpty());
+    }
+
+    @Test
+    void compactsTheRowsOfReplacedTrips() {
+        VehicleTimelineIndex compacting = new VehicleTimelineIndex(tdrShardingService, true, 2, Duration.ofHours(24), 2);
+        compacting.start();
+        long start = EpochMicros.of(LocalDateTime.parse("2024-03-01T10:00:00"));
+        long end = EpochMicros.of(LocalDateTime.parse("2024-03-01T11:00:00"));
+
+        for (int cost = 1; cost <= 3; cost++) {
+            compacting.upsert(2024, null, "session1", "vehicle1", start, end, cost);
+        }
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> compacting.storedRows() == 3);
+        var page = compacting.findAllByVehicleId(null, "vehicle1", PageRequest.of(0, 10, Sort.by("startTime").ascending()));
+        assertEquals(List.of("session3", "session1"), page.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(3.0, page.get(1).totalCost());
+    }
+
+    @Test
+    void keepsTheTripsOfDedicatedShardsApart() {
+        var byStart = PageRequest.of(0, 10, Sort.by("startTime").ascending());
+
+        index.onInsert("cpo-big", new TripDetailRecord("session1", "vehicle1", LocalDateTime.parse("2024-04-01T10:00:00"),
+                LocalDateTime.parse("2024-04-01T11:00:00"), 99.0));
+        index.remove(2024, "cpo-big", "session3", "vehicle1");
+
+        var dedicated = index.findAllByVehicleId("cpo-big", "vehicle1", byStart);
+        var shared = index.findAllByVehicleId(null, "vehicle1", byStart);
+        assertEquals(List.of("session1"), dedicated.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(99.0, dedicated.get(0).totalCost());
+        assertEquals(List.of("session3", "session1"), shared.stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(10.0, shared.get(1).totalCost());
+    }
+
+    private static TripDetailRecord record(String sessionId, String vehicleId, String startTime, String endTime) {
+        return new TripDetailRecord(sessionId, vehicleId, LocalDateTime.parse(startTime), LocalDateTime.parse(endTime), 10.0);
+    }
+
+    private static TripDetailRecordEntity entity(Long id, String sessionId, String vehicleId, String startTime, String endTime) {
+        TripDetailRecordEntity entity = new TripDetailRecordEntity();
+        entity.setId(id);
+        entity.setSessionId(sessionId);
+        entity.setVehicleId(vehicleId);
+        entity.setStartTime(LocalDateTime.parse(startTime));
+        entity.setEndTime(LocalDateTime.parse(endTime));
+        entity.setTotalCost(10.0);
+        return entity;
+    }
+}
@@ -0,0 +1,22 @@
+package tdr.solutions.reactive;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReactiveShardsTest {
+
+    @Test
+    void translatesPostgresUrlsWithoutParameters() {
+        assertEquals("r2dbc:postgresql://localhost:5432/tdr_2024",
+                ReactiveShards.r2dbcUrl("jdbc:postgresql://localhost:5432/tdr_2024?reWriteBatchedInserts=true"));
+        assertEquals("r2dbc:postgresql://db:5433/tdr_2023",
+                ReactiveShards.r2dbcUrl("jdbc:postgresql://db:5433/tdr_2023"));
+    }
+
+    @Test
+    void translatesInMemoryH2UrlsWithoutOptions() {
+        assertEquals("r2dbc:h2:mem:///tdr_2024", ReactiveShards.r2dbcUrl("jdbc:h2:mem:tdr_2024;DB_CLOSE_ON_EXIT=FALSE;"));
+        assertEquals("r2dbc:h2:mem:///tdr_2023", ReactiveShards.r2dbcUrl("jdbc:h2:mem:tdr_2023"));
+    }
+}
@@ -0,0 +1,169 @@
+package tdr.solutions.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.jpa.repository.Modifying;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that no query of {@link TripDetailRecordRepository} reads a whole table. The 2024 migrations
+ * are applied to an empty PostgreSQL database, which is filled with a year of trips, and every query is
+ * explained; a plan with a sequential scan of a partition holding trips fails the test (the planner
+ * rightly scans empty partitions, such as the default one, sequentially). Adding a query to the
+ * repository without adding it here fails the test as well.
+ *
+ * <p>The explained SQL is written by hand after the SQL Hibernate logs for each query (see
+ * {@code spring.jpa.show-sql}), with literals in place of the bind parameters, so the planner may
+ * choose differently than for a generic plan of the prepared statement. It is not captured from
+ * Hibernate, so a changed query has to be changed here as well.</p>
+ *
+ * <p>Run with {@code mvn test -Pquery-plans}. The database is wiped; it is set with
+ * {@code -Dtdr.plans.url} (default {@code jdbc:postgresql://localhost:5434/tdr_plans}),
+ * {@code -Dtdr.plans.username} and {@code -Dtdr.plans.password}.</p>
+ */
+@Tag("postgres")
+class QueryPlanTest {
+
+    private static final String URL = System.getProperty("tdr.plans.url", "jdbc:postgresql://localhost:5434/tdr_plans");
+    private static final String USERNAME = System.getProperty("tdr.plans.username", "postgres");
+    private static final String PASSWORD = System.getProperty("tdr.plans.password", "yourpassword");
+
+    private static final String COLUMNS = "SELECT id, endtime, sessionid, starttime, totalcost, vehicleid FROM trip_detail_record ";
+    private static final String LATEST_COLUMNS = "SELECT id, endtime, sessionid, starttime, totalcost, vehicleid FROM vehicle_latest_trip ";
+
+    /** The SQL of every read query of the repository, by method, written like Hibernate's with the parameters filled in. */
+    private static final Map<String, List<String>> QUERIES = Map.of(
+            "findAllByVehicleId", List.of(
+                    COLUMNS + "WHERE vehicleid = 'plan-vehicle-42' ORDER BY starttime ASC OFFSET 20 ROWS FETCH FIRST 20 ROWS ONLY",
+                    COLUMNS + "WHERE vehicleid = 'plan-vehicle-42' ORDER BY starttime DESC OFFSET 20 ROWS FETCH FIRST 20 ROWS ONLY",
+                    COLUMNS + "WHERE vehicleid = 'plan-vehicle-42' ORDER BY endtime ASC OFFSET 20 ROWS FETCH FIRST 20 ROWS ONLY",
+                    COLUMNS + "WHERE vehicleid = 'plan-vehicle-42' ORDER BY endtime DESC OFFSET 20 ROWS FETCH FIRST 20 ROWS ONLY"),
+            "findBySessionId", List.of(
+                    COLUMNS + "WHERE sessionid = 'plan-session-4242'"),
+            "findAllBySessionIdIn", List.of(
+                    COLUMNS + "WHERE sessionid IN ('plan-session-1', 'plan-session-4242', 'plan-session-99999')"),
+            "findAllByVehicleIdAndStartTimeGreaterThanEqualAndStartTimeLessThan", List.of(
+                    COLUMNS + "WHERE vehicleid = 'plan-vehicle-42' AND starttime >= '2024-03-01' AND starttime < '2024-04-01'"
+                            + " ORDER BY starttime ASC FETCH FIRST 20 ROWS ONLY",
+                    COLUMNS + "WHERE vehicleid = 'plan-vehicle-42' AND starttime >= '2024-03-01' AND starttime < '2024-04-01'"
+                            + " ORDER BY starttime DESC FETCH FIRST 20 ROWS ONLY"),
+            "findByIdGreaterThanOrderByIdAsc", List.of(
+                    COLUMNS + "WHERE id > 100000 ORDER BY id FETCH FIRST 1000 ROWS ONLY"),
+            "findNextByVehicleIdAndStartTime", List.of(
+                    COLUMNS + "WHERE vehicleid > 'plan-vehicle-42'"
+                            + " OR (vehicleid = 'plan-vehicle-42' AND (starttime > '2024-06-01' OR (starttime = '2024-06-01' AND id > 4242)))"
+                            + " ORDER BY vehicleid, starttime, id FETCH FIRST 1000 ROWS ONLY"),
+            "findAllByOrderByStartTimeDesc", List.of(
+                    COLUMNS + "ORDER BY starttime DESC FETCH FIRST 1000 ROWS ONLY"),
+            "countTripsOfVehicle", List.of(
+                    "SELECT coalesce((SELECT trips FROM vehicle_trip_counter WHERE vehicleid = 'plan-vehicle-42'), 0)"),
+            "findLatestTripsAfterVehicleId", List.of(
+                    LATEST_COLUMNS + "WHERE vehicleid > 'plan-vehicle-42' ORDER BY vehicleid LIMIT 1000"),
+            "findLatestTripsOfVehicles", List.of(
+                    LATEST_COLUMNS + "WHERE vehicleid IN ('plan-vehicle-1', 'plan-vehicle-42', 'plan-vehicle-99999')"));
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @BeforeAll
+    static void createSchema() throws SQLException {
+        Flyway flyway = Flyway.configure()
+                .dataSource(URL, USERNAME, PASSWORD)
+                .locations("db/migration/2024")
+                .cleanDisabled(false)
+                .load();
+        flyway.clean();
+        flyway.migrate();
+        try (Connection connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+             Statement statement = connection.createStatement()) {
+            // A trip every 150 seconds of 2024, spread over 2000 vehicles, without the per-row checks
+            statement.execute("SET tdr.migration = 'on'");
+            statement.execute("""
+                    INSERT INTO trip_detail_record (sessionid, vehicleid, starttime, endtime, totalcost)
+                    SELECT 'plan-session-' || n, 'plan-vehicle-' || n % 2000,
+                           timestamp '2024-01-01' + n * interval '150 seconds',
+                           timestamp '2024-01-01' + n * interval '150 seconds' + interval '1 hour', n % 50
+                    FROM generate_series(1, 200000) n""");
+            statement.execute("VACUUM ANALYZE trip_detail_record, vehicle_trip_counter, vehicle_latest_trip");
+        }
+    }
+
+    @Test
+    void everyQueryOfTheRepositoryIsExplained() {
+        Set<String> declared = Arrays.stream(TripDetailRecordRepository.class.getMethods())
+                .filter(method -> method.getDeclaringClass() == TripDetailRecordRepository.class
+                        || method.getDeclaringClass() == TripDetailRecordReader.class)
+                .filter(method -> !method.isDefault() && !method.isAnnotationPresent(Modifying.class))
+                .map(Method::getName)
+                .collect(Collectors.toCollection(TreeSet::new));
+
+        assertEquals(declared, new TreeSet<>(QUERIES.keySet()));
+    }
+
+    @Test
+    void noQueryScansAWholeTable() throws SQLException {
+        List<String> sequentialScans = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+             Statement statement = connection.createStatement()) {
+            Map<String, Long> tuples = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT relname, reltuples::bigint FROM pg_class"
+                            + " WHERE relname LIKE 'trip_detail_record%' OR relname IN ('vehicle_trip_counter', 'vehicle_latest_trip')")) {
+                while (resultSet.next()) {
+                    tuples.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+            }
+            for (Map.Entry<String, List<String>> query : QUERIES.entrySet()) {
+                for (String sql : query.getValue()) {
+                    try (ResultSet resultSet = statement.executeQuery("EXPLAIN (FORMAT JSON) " + sql)) {
+                        resultSet.next();
+                        JsonNode plan = readPlan(resultSet.getString(1));
+                        collectSequentialScans(plan, query.getKey(), tuples, sequentialScans);
+                    }
+                }
+            }
+        }
+
+        assertTrue(sequentialScans.isEmpty(), "Sequential scans: " + sequentialScans);
+    }
+
+    private static JsonNode readPlan(String json) {
+        try {
+            return OBJECT_MAPPER.readTree(json).get(0).get("Plan");
+        } catch (IOException e) {
+            throw new IllegalStateException("Unreadable plan " + json, e);
+        }
+    }
+
+    private static void collectSequentialScans(JsonNode node, String query, Map<String, Long> tuples,
+                                               List<String> sequentialScans) {
+        String relation = node.path("Relation Name").asText();
+        if ("Seq Scan".equals(node.path("Node Type").asText()) && tuples.getOrDefault(relation, 0L) > 0) {
+            sequentialScans.add(query + " on " + relation);
+        }
+        for (JsonNode child : node.path("Plans")) {
+            collectSequentialScans(child, query, tuples, sequentialScans);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package tdr.solutions.retention;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import tdr.solutions.TripSolutionsApplication;
+import tdr.solutions.exception.TdrException;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.service.TdrShardingService;
+
+import java.time.LocalDateTime;
+import java.util.Objects;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs retention against a partitioned PostgreSQL shard. Needs two empty PostgreSQL databases, given
+ * by {@code TDR_IT_POSTGRES_2023_URL} and {@code TDR_IT_POSTGRES_2024_URL} (and optionally
+ * {@code TDR_IT_POSTGRES_USERNAME} and {@code TDR_IT_POSTGRES_PASSWORD}).
+ */
+@EnabledIfEnvironmentVariable(named = "TDR_IT_POSTGRES_2023_URL", matches = ".+")
+@EnabledIfEnvironmentVariable(named = "TDR_IT_POSTGRES_2024_URL", matches = ".+")
+class RetentionITest {
+
+    private static ConfigurableApplicationContext node;
+
+    @BeforeAll
+    static void startNode() {
+        String username = Objects.requireNonNullElse(System.getenv("TDR_IT_POSTGRES_USERNAME"), "postgres");
+        String password = Objects.requireNonNullElse(System.getenv("TDR_IT_POSTGRES_PASSWORD"), "yourpassword");
+        node = new SpringApplicationBuilder(TripSolutionsApplication.class).run(
+                "--server.port=0",
+                "--spring.jpa.generate-ddl=false",
+                "--spring.jpa.hibernate.ddl-auto=validate",
+                "--tdr.retention.delete-batch-size=2",
+                "--spring.datasource.tdr2023.url=" + System.getenv("TDR_IT_POSTGRES_2023_URL"),
+                "--spring.datasource.tdr2023.username=" + username,
+                "--spring.datasource.tdr2023.password=" + password,
+                "--spring.datasource.tdr2023.driver-class-name=org.postgresql.Driver",
+                "--spring.datasource.tdr2023.jpa.location=db/migration/2023",
+                "--spring.datasource.tdr2024.url=" + System.getenv("TDR_IT_POSTGRES_2024_URL"),
+                "--spring.datasource.tdr2024.username=" + username,
+                "--spring.datasource.tdr2024.password=" + password,
+                "--spring.datasource.tdr2024.driver-class-name=org.postgresql.Driver",
+                "--spring.datasource.tdr2024.jpa.location=db/migration/2024");
+    }
+
+    @AfterAll
+    static void stopNode() {
+        if (node != null) {
+            node.close();
+        }
+    }
+
+    @Test
+    void dropsExpiredMonthsAndTrimsDefaultPartition() throws TdrException {
+        String vehicleId = "vehicle-" + UUID.randomUUID();
+        JdbcTemplate shard2023 = new JdbcTemplate(node.getBean(TdrShardingService.class).getShards(2023).get(0).dataSource());
+        // Trips of another year end up in the default partition
+        for (int i = 0; i < 5; i++) {
+            shard2023.update("INSERT INTO trip_detail_record (sessionid, vehicleid, starttime, endtime, totalcost) VALUES (?, ?, ?, ?, 1)",
+                    UUID.randomUUID().toString(), vehicleId, LocalDateTime.of(2022, 12, 1 + i, 10, 0), LocalDateTime.of(2022, 12, 1 + i, 11, 0));
+        }
+        TdrService tdrService = node.getBean(TdrService.class);
+        tdrService.createTdr(trip(vehicleId, "2023-01-10T10:00:00"));
+        tdrService.createTdr(trip(vehicleId, "2023-01-20T10:00:00"));
+        tdrService.createTdr(trip(vehicleId, "2023-02-10T10:00:00"));
+
+        node.getBean(RetentionService.class).purge(LocalDateTime.parse("2023-02-01T00:00:00"));
+
+        assertEquals(0, shard2023.queryForObject(
+                "SELECT count(*) FROM pg_class WHERE relname = 'trip_detail_record_2023_01'", Integer.class));
+        assertEquals(1, shard2023.queryForObject(
+                "SELECT count(*) FROM trip_detail_record WHERE vehicleid = ?", Integer.class, vehicleId));
+    }
+
+    private static TripDetailRecord trip(String vehicleId, String startTime) {
+        LocalDateTime start = LocalDateTime.parse(startTime);
+        return new TripDetailRecord(UUID.randomUUID().toString(), vehicleId, start, start.plusHours(1), 20.0);
+    }
+}
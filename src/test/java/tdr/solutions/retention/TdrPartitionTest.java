@@ -0,0 +1,57 @@
+package tdr.solutions.retention;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TdrPartitionTest {
+
+    private static final LocalDateTime CUTOFF = LocalDateTime.parse("2023-03-15T00:00:00");
+
+    @Test
+    void parsesRangeBounds() {
+        TdrPartition partition = TdrPartition.parse("trip_detail_record_2023_01",
+                "FOR VALUES FROM ('2023-01-01 00:00:00') TO ('2023-02-01 00:00:00')");
+
+        assertEquals(new TdrPartition("trip_detail_record_2023_01",
+                LocalDateTime.parse("2023-01-01T00:00:00"), LocalDateTime.parse("2023-02-01T00:00:00")), partition);
+    }
+
+    @Test
+    void parsesDefaultAndUnboundedPartitions() {
+        assertEquals(new TdrPartition("trip_detail_record_default", null, null),
+                TdrPartition.parse("trip_detail_record_default", "DEFAULT"));
+        assertEquals(new TdrPartition("trip_detail_record_old", null, LocalDateTime.parse("2023-01-01T00:00:00")),
+                TdrPartition.parse("trip_detail_record_old", "FOR VALUES FROM (MINVALUE) TO ('2023-01-01 00:00:00')"));
+    }
+
+    @Test
+    void dropsOnlyPartitionsEndingBeforeCutoff() {
+        TdrPartition february = month(2);
+        TdrPartition march = month(3);
+        TdrPartition april = month(4);
+
+        assertTrue(february.expiredBefore(CUTOFF));
+        assertFalse(february.expiresPartlyBefore(CUTOFF));
+        assertFalse(march.expiredBefore(CUTOFF));
+        assertTrue(march.expiresPartlyBefore(CUTOFF));
+        assertFalse(april.expiredBefore(CUTOFF));
+        assertFalse(april.expiresPartlyBefore(CUTOFF));
+        assertTrue(month(2).expiredBefore(LocalDateTime.parse("2023-03-01T00:00:00")));
+    }
+
+    @Test
+    void trimsDefaultPartition() {
+        TdrPartition defaultPartition = new TdrPartition("trip_detail_record_default", null, null);
+
+        assertFalse(defaultPartition.expiredBefore(CUTOFF));
+        assertTrue(defaultPartition.expiresPartlyBefore(CUTOFF));
+    }
+
+    private static TdrPartition month(int month) {
+        LocalDateTime from = LocalDateTime.of(2023, month, 1, 0, 0);
+        return new TdrPartition("trip_detail_record_2023_0" + month, from, from.plusMonths(1));
+    }
+}
@@ -0,0 +1,130 @@
+package tdr.solutions.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import tdr.solutions.exception.TdrException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofSeconds(10), meterRegistry);
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 20; i++) {
+                results.add(executor.submit(() -> flight.execute("session1", () -> {
+                    executions.incrementAndGet();
+                    release.await();
+                    return "trip";
+                })));
+            }
+            await().atMost(Duration.ofSeconds(5)).until(() -> calls("follower") == 19);
+            release.countDown();
+        }
+
+        for (Future<String> result : results) {
+            assertEquals("trip", result.get());
+        }
+        assertEquals(1, executions.get());
+        assertEquals(1, calls("leader"));
+        assertEquals(20.0, meterRegistry.get("tdr.single-flight.shared").summary().totalAmount());
+        assertEquals("next", flight.execute("session1", () -> "next"));
+    }
+
+    @Test
+    void followersReceiveTheFailureOfTheLeader() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofSeconds(10), meterRegistry);
+        CountDownLatch release = new CountDownLatch(1);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> leader = executor.submit(() -> notFound(flight, () -> {
+                release.await();
+                return "unexpected";
+            }));
+            await().atMost(Duration.ofSeconds(5)).until(() -> calls("leader") == 1);
+            Future<String> follower = executor.submit(() -> notFound(flight, () -> "unexpected"));
+            await().atMost(Duration.ofSeconds(5)).until(() -> calls("follower") == 1);
+            release.countDown();
+
+            assertEquals("sessionId session1 not found", assertThrows(ExecutionException.class, leader::get).getCause().getMessage());
+            assertEquals("sessionId session1 not found", assertThrows(ExecutionException.class, follower::get).getCause().getMessage());
+        }
+    }
+
+    /**
+     * Looks up session1, which the leader does not find, and reports the {@link TdrException} as its message.
+     */
+    private static String notFound(SingleFlight<String, String> flight, Callable<String> beforeFailing) {
+        try {
+            return flight.execute("session1", () -> {
+                try {
+                    beforeFailing.call();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                throw new TdrException("sessionId session1 not found");
+            });
+        } catch (TdrException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    @Test
+    void followerRunsItselfAfterWaitingTooLong() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofMillis(50), meterRegistry);
+        CountDownLatch release = new CountDownLatch(1);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> leader = executor.submit(() -> flight.execute("vehicle1", () -> {
+                release.await();
+                return "slow";
+            }));
+            await().atMost(Duration.ofSeconds(5)).until(() -> calls("leader") == 1);
+
+            assertEquals("fast", flight.execute("vehicle1", () -> "fast"));
+            assertEquals(1, calls("timeout"));
+            release.countDown();
+            assertEquals("slow", leader.get());
+        }
+    }
+
+    @Test
+    void forgottenKeyStartsNewExecution() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test", Duration.ofSeconds(10), meterRegistry);
+        CountDownLatch release = new CountDownLatch(1);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> leader = executor.submit(() -> flight.execute("vehicle1", () -> {
+                release.await();
+                return "before write";
+            }));
+            await().atMost(Duration.ofSeconds(5)).until(() -> calls("leader") == 1);
+
+            flight.forgetIf(key -> key.startsWith("vehicle"));
+
+            assertEquals("after write", flight.execute("vehicle1", () -> "after write"));
+            release.countDown();
+            assertEquals("before write", leader.get());
+        }
+        assertEquals(2, calls("leader"));
+        assertEquals(0, calls("follower"));
+    }
+
+    private double calls(String role) {
+        return meterRegistry.get("tdr.single-flight.calls").tag("name", "test").tag("role", role).counter().count();
+    }
+}
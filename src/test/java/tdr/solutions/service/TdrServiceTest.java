@@ -1,18 +1,37 @@
 package tdr.solutions.service;
 
+import tdr.solutions.cache.VehicleHistoryCache;
 import tdr.solutions.exception.TdrException;
+import tdr.solutions.index.VehicleLatestTripIndex;
+import tdr.solutions.index.VehicleTimelineIndex;
+import tdr.solutions.model.TdrBatchResult;
+import tdr.solutions.model.TdrLookupResult;
 import tdr.solutions.model.TripDetailRecord;
 import tdr.solutions.model.TripDetailRecordEntity;
 import tdr.solutions.repository.TripDetailRecordRepository;
+import tdr.solutions.validation.TdrRejection;
+import tdr.solutions.validation.TdrValidationException;
+import tdr.solutions.validation.TdrValidator;
+import tdr.solutions.validation.TdrViolation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -27,13 +46,27 @@ class TdrServiceTest {
     @Mock
     private TripDetailRecordRepository tripDetailRecordRepository;
 
-    @InjectMocks
+    @Mock
+    private VehicleTimelineIndex vehicleTimelineIndex;
+
+    @Mock
+    private VehicleLatestTripIndex vehicleLatestTripIndex;
+
+    @Mock
+    private VehicleHistoryCache vehicleHistoryCache;
+
+    @Mock
+    private CacheManager cacheManager;
+
     private TdrService tdrService;
 
     @BeforeEach
     void setUp() {
+        tdrService = new TdrService(tdrShardingService, vehicleTimelineIndex, vehicleLatestTripIndex, vehicleHistoryCache, cacheManager,
+                new TdrValidator(), 1000, new SimpleMeterRegistry(), Duration.ofSeconds(2));
         // Mock behavior for the sharding service
-        when(tdrShardingService.determineShard(any(LocalDateTime.class))).thenReturn(tripDetailRecordRepository);
+        lenient().when(tdrShardingService.determineShard(isNull(), any(LocalDateTime.class), anyString())).thenReturn(tripDetailRecordRepository);
+        lenient().when(tdrShardingService.claimSession(isNull(), anyInt(), anyString(), anyString())).thenReturn(true);
     }
 
     @Test
@@ -48,13 +81,31 @@ class TdrServiceTest {
         savedEntity.setEndTime(tdr.endTime());
         savedEntity.setTotalCost(tdr.totalCost());
 
-        when(tripDetailRecordRepository.save(any(TripDetailRecordEntity.class))).thenReturn(savedEntity);
+        when(tripDetailRecordRepository.saveWithEvent(any(TripDetailRecordEntity.class))).thenReturn(savedEntity);
 
         TripDetailRecord result = tdrService.createTdr(tdr);
 
         assertNotNull(result);
         assertEquals(tdr.sessionId(), result.sessionId());
-        verify(tripDetailRecordRepository, times(1)).save(any(TripDetailRecordEntity.class));
+        verify(tripDetailRecordRepository, times(1)).saveWithEvent(any(TripDetailRecordEntity.class));
+        verify(vehicleTimelineIndex, times(1)).onInsert(null, result);
+        verify(vehicleHistoryCache, times(1)).invalidate("vehicleId123");
+    }
+
+    @Test
+    void testCreateTdr_DualWritesWhileBucketMigrates() throws TdrException {
+        TripDetailRecord tdr = new TripDetailRecord("sessionId123", "vehicleId123",
+                LocalDateTime.parse("2023-11-24T14:15:00"), LocalDateTime.parse("2023-11-24T14:15:00").plusHours(1), 15.0);
+        TripDetailRecordRepository migrationTarget = mock(TripDetailRecordRepository.class);
+        when(tdrShardingService.determineDualWriteShard(null, tdr.startTime(), tdr.vehicleId())).thenReturn(migrationTarget);
+        when(tripDetailRecordRepository.saveWithEvent(any(TripDetailRecordEntity.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(migrationTarget.save(any(TripDetailRecordEntity.class))).thenThrow(new DataIntegrityViolationException("copied already"));
+
+        TripDetailRecord result = tdrService.createTdr(tdr);
+
+        assertEquals(tdr, result);
+        verify(migrationTarget, times(1)).save(argThat(entity -> entity.getSessionId().equals("sessionId123")));
+        verify(vehicleTimelineIndex, times(1)).onInsert(null, result);
     }
 
     @Test
@@ -62,12 +113,150 @@ class TdrServiceTest {
         TripDetailRecord tdr = new TripDetailRecord("sessionId123", "vehicleId123",
                 LocalDateTime.parse("2023-11-24T14:15:00"), LocalDateTime.parse("2023-11-24T14:15:00").plusHours(1), 15.0);
 
-        when(tripDetailRecordRepository.save(any(TripDetailRecordEntity.class)))
+        when(tripDetailRecordRepository.saveWithEvent(any(TripDetailRecordEntity.class)))
                 .thenThrow(new DataIntegrityViolationException("Data integrity violation"));
 
         TdrException exception = assertThrows(TdrException.class, () -> tdrService.createTdr(tdr));
 
         assertEquals("Data integrity violation", exception.getMessage());
-        verify(tripDetailRecordRepository, times(1)).save(any(TripDetailRecordEntity.class));
+        verify(tripDetailRecordRepository, times(1)).saveWithEvent(any(TripDetailRecordEntity.class));
+        verifyNoInteractions(vehicleTimelineIndex, vehicleHistoryCache);
+    }
+
+    @Test
+    void testCreateTdr_SessionIdClaimedInAnotherSubShardIsNotStored() {
+        TripDetailRecord tdr = new TripDetailRecord("sessionId123", "vehicleId123",
+                LocalDateTime.parse("2023-11-24T14:15:00"), LocalDateTime.parse("2023-11-24T14:15:00").plusHours(1), 15.0);
+        when(tdrShardingService.claimSession(null, 2023, "sessionId123", "vehicleId123")).thenReturn(false);
+
+        TdrException exception = assertThrows(TdrException.class, () -> tdrService.createTdr(tdr));
+
+        assertEquals("sessionId sessionId123 already exists", exception.getMessage());
+        verify(tripDetailRecordRepository, never()).saveWithEvent(any(TripDetailRecordEntity.class));
+    }
+
+    @Test
+    void testCreateTdr_InvalidTdrIsNotStored() {
+        TripDetailRecord tdr = new TripDetailRecord("sessionId123", "vehicleId123",
+                LocalDateTime.parse("2023-11-24T14:15:00"), LocalDateTime.parse("2023-11-24T14:15:00").minusHours(1), -1.0);
+
+        TdrValidationException exception = assertThrows(TdrValidationException.class, () -> tdrService.createTdr(tdr));
+
+        assertEquals(List.of(new TdrViolation("endTime", "must not be before startTime"),
+                new TdrViolation("totalCost", "must be greater than or equal to 0")), exception.getViolations());
+        verifyNoInteractions(tdrShardingService, tripDetailRecordRepository);
+    }
+
+    @Test
+    void testCreateTdrs_ReportsRejectedTdrsInBatchOrder() {
+        LocalDateTime start = LocalDateTime.parse("2023-11-24T14:15:00");
+        TripDetailRecord valid = new TripDetailRecord("sessionId1", "vehicleId123", start, start.plusHours(1), 15.0);
+        TripDetailRecord duplicate = new TripDetailRecord("sessionId2", "vehicleId123", start, start.plusHours(1), 15.0);
+        TripDetailRecord invalid = new TripDetailRecord("s3", null, start, start.minusHours(1), 15.0);
+        when(tripDetailRecordRepository.saveWithEvent(any(TripDetailRecordEntity.class))).thenAnswer(invocation -> {
+            TripDetailRecordEntity entity = invocation.getArgument(0);
+            if (entity.getSessionId().equals("sessionId2")) {
+                throw new DataIntegrityViolationException("duplicate");
+            }
+            return entity;
+        });
+
+        TdrBatchResult result = tdrService.createTdrs(Arrays.asList(duplicate, invalid, valid));
+
+        assertEquals(List.of(valid), result.created());
+        assertEquals(List.of(
+                new TdrRejection(0, "sessionId2", List.of(new TdrViolation(null, "duplicate"))),
+                new TdrRejection(1, "s3", List.of(new TdrViolation("sessionId", "size must be between 5 and 50")))),
+                result.rejected());
+        verify(tripDetailRecordRepository, times(2)).saveWithEvent(any(TripDetailRecordEntity.class));
+    }
+
+    @Test
+    void testCreateTdrs_ReportsTdrsOfAnUnavailableShardAsRetryable() {
+        LocalDateTime start = LocalDateTime.parse("2023-11-24T14:15:00");
+        TripDetailRecord failing = new TripDetailRecord("sessionId1", "vehicleId123", start, start.plusHours(1), 15.0);
+        TripDetailRecord valid = new TripDetailRecord("sessionId2", "vehicleId123", start, start.plusHours(1), 15.0);
+        when(tripDetailRecordRepository.saveWithEvent(any(TripDetailRecordEntity.class))).thenAnswer(invocation -> {
+            TripDetailRecordEntity entity = invocation.getArgument(0);
+            if (entity.getSessionId().equals("sessionId1")) {
+                throw new DataAccessResourceFailureException("connection is closed");
+            }
+            return entity;
+        });
+
+        TdrBatchResult result = tdrService.createTdrs(Arrays.asList(failing, valid));
+
+        assertEquals(List.of(valid), result.created());
+        assertEquals(List.of(), result.rejected());
+        assertEquals(List.of(new TdrRejection(0, "sessionId1", List.of(new TdrViolation(null, "temporarily unavailable")))),
+                result.retryable());
+    }
+
+    @Test
+    void testLookupTdrs_CacheFirstThenTheirShards() {
+        Cache sessionIds = new ConcurrentMapCache(TdrService.SESSION_IDS_CACHE);
+        TripDetailRecord cached = new TripDetailRecord("cached1", "vehicleId123",
+                LocalDateTime.parse("2023-11-24T14:15:00"), LocalDateTime.parse("2023-11-24T15:15:00"), 15.0);
+        sessionIds.put(new TdrService.SessionKey(null, "cached1"), cached);
+        TripDetailRecordRepository otherShard = mock(TripDetailRecordRepository.class);
+        TripDetailRecordEntity stored = new TripDetailRecordEntity();
+        stored.setSessionId("stored1");
+        stored.setVehicleId("vehicleId123");
+        stored.setStartTime(LocalDateTime.parse("2024-11-24T14:15:00"));
+        stored.setEndTime(LocalDateTime.parse("2024-11-24T15:15:00"));
+        when(cacheManager.getCache(TdrService.SESSION_IDS_CACHE)).thenReturn(sessionIds);
+        when(tdrShardingService.getYears()).thenReturn(new TreeSet<>(List.of(2023, 2024)));
+        when(tdrShardingService.getSessionReaders(null, 2023, List.of("stored1", "missing1")))
+                .thenReturn(Map.of(tripDetailRecordRepository, List.of("stored1", "missing1")));
+        when(tdrShardingService.getSessionReaders(null, 2024, List.of("stored1", "missing1")))
+                .thenReturn(Map.of(otherShard, List.of("stored1", "missing1")));
+        when(tripDetailRecordRepository.findAllBySessionIdIn(List.of("stored1", "missing1"))).thenReturn(List.of());
+        when(otherShard.findAllBySessionIdIn(List.of("stored1", "missing1"))).thenReturn(List.of(stored));
+
+        TdrLookupResult result = tdrService.lookupTdrs(List.of("stored1", "cached1", "missing1", "stored1"));
+
+        assertEquals(List.of("stored1", "cached1"), result.found().stream().map(TripDetailRecord::sessionId).toList());
+        assertEquals(List.of("missing1"), result.missing());
+        assertNotNull(sessionIds.get(new TdrService.SessionKey(null, "stored1")));
+    }
+
+    @Test
+    void testCacheRecentTdrs_KeepsOldestShardOnConflict() {
+        Cache sessionIds = new ConcurrentMapCache(TdrService.SESSION_IDS_CACHE);
+        TripDetailRecordRepository otherShard = mock(TripDetailRecordRepository.class);
+        TripDetailRecordEntity older = new TripDetailRecordEntity();
+        older.setSessionId("session1");
+        older.setVehicleId("vehicleId123");
+        older.setStartTime(LocalDateTime.parse("2023-11-24T14:15:00"));
+        older.setEndTime(LocalDateTime.parse("2023-11-24T15:15:00"));
+        TripDetailRecordEntity newer = new TripDetailRecordEntity();
+        newer.setSessionId("session1");
+        newer.setVehicleId("vehicleId456");
+        newer.setStartTime(LocalDateTime.parse("2024-11-24T14:15:00"));
+        newer.setEndTime(LocalDateTime.parse("2024-11-24T15:15:00"));
+        TripDetailRecordRepository dedicatedShard = mock(TripDetailRecordRepository.class);
+        TripDetailRecordEntity dedicated = new TripDetailRecordEntity();
+        dedicated.setSessionId("session2");
+        dedicated.setVehicleId("vehicleId123");
+        dedicated.setStartTime(LocalDateTime.parse("2024-11-25T14:15:00"));
+        dedicated.setEndTime(LocalDateTime.parse("2024-11-25T15:15:00"));
+        Shard shared2023 = new Shard(2023, "tdr2023", tripDetailRecordRepository, null);
+        when(cacheManager.getCache(TdrService.SESSION_IDS_CACHE)).thenReturn(sessionIds);
+        when(tdrShardingService.getPlacements()).thenReturn(Arrays.asList(null, "cpo-big"));
+        when(tdrShardingService.getShards((String) null)).thenReturn(List.of(shared2023, new Shard(2024, "tdr2024", otherShard, null)));
+        when(tdrShardingService.getShards("cpo-big")).thenReturn(List.of(shared2023,
+                new Shard(2024, "tdr2024-cpo-big", dedicatedShard, null)));
+        when(tripDetailRecordRepository.findAllByOrderByStartTimeDesc(Limit.of(5))).thenReturn(List.of(older));
+        when(otherShard.findAllByOrderByStartTimeDesc(Limit.of(5))).thenReturn(List.of(newer));
+        when(dedicatedShard.findAllByOrderByStartTimeDesc(Limit.of(5))).thenReturn(List.of(dedicated));
+
+        List<TripDetailRecord> loaded = tdrService.cacheRecentTdrs(5);
+
+        assertEquals(3, loaded.size());
+        verify(tripDetailRecordRepository, times(1)).findAllByOrderByStartTimeDesc(Limit.of(5));
+        assertEquals("vehicleId123", sessionIds.get(new TdrService.SessionKey(null, "session1"), TripDetailRecord.class).vehicleId());
+        assertEquals("vehicleId123", sessionIds.get(new TdrService.SessionKey("cpo-big", "session1"), TripDetailRecord.class).vehicleId());
+        assertNotNull(sessionIds.get(new TdrService.SessionKey("cpo-big", "session2")));
+        assertNull(sessionIds.get(new TdrService.SessionKey(null, "session2")));
     }
- }
+}
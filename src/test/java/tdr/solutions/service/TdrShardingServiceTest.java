@@ -0,0 +1,86 @@
+package tdr.solutions.service;
+
+import tdr.solutions.concurrency.ShardBulkheads;
+import tdr.solutions.config.ShardStartup;
+import tdr.solutions.config.SubShardFactory;
+import tdr.solutions.exception.ShardUnavailableException;
+import tdr.solutions.repository._2023.TripDetailRecordRepository2023;
+import tdr.solutions.repository._2024.TripDetailRecordRepository2024;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class TdrShardingServiceTest {
+
+    @Mock
+    private TripDetailRecordRepository2023 tdrRepository2023;
+
+    @Mock
+    private TripDetailRecordRepository2024 tdrRepository2024;
+
+    @Mock
+    private SubShardFactory subShardFactory;
+
+    @Mock
+    private ShardRoutingStore shardRoutingStore;
+
+    @Mock
+    private SessionRouteStore sessionRouteStore;
+
+    @Mock
+    private ShardBulkheads shardBulkheads;
+
+    @Mock
+    private ShardStartup shardStartup;
+
+    @Test
+    void retriesAFailedBackgroundRegistrationAndAnswersOtherYearsMeanwhile() throws Exception {
+        CountDownLatch retry = new CountDownLatch(1);
+        when(shardStartup.isEager(2023)).thenReturn(false);
+        when(shardStartup.isEager(2024)).thenReturn(true);
+        when(shardBulkheads.guard(any(Shard.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(shardBulkheads.forTenant(any(Shard.class), isNull()))
+                .thenAnswer(invocation -> invocation.<Shard>getArgument(0).repository());
+        when(subShardFactory.createSubShards(2024)).thenReturn(List.of());
+        when(subShardFactory.createTenantShards(anyInt())).thenReturn(Map.of());
+        when(subShardFactory.getDedicatedOperators(2023)).thenReturn(Set.of("cpo-big"));
+        when(subShardFactory.createSubShards(2023))
+                .thenThrow(new IllegalStateException("No data source properties"))
+                .thenAnswer(invocation -> {
+                    retry.await();
+                    return List.of();
+                });
+        TdrShardingService tdrShardingService = new TdrShardingService(tdrRepository2023, tdrRepository2024, null, null,
+                subShardFactory, shardRoutingStore, sessionRouteStore, shardBulkheads, shardStartup, 2024,
+                Duration.ofMinutes(1), Duration.ofMillis(10));
+
+        tdrShardingService.init();
+
+        ShardUnavailableException exception = assertThrows(ShardUnavailableException.class,
+                () -> tdrShardingService.getReaders(2023));
+        assertEquals(Duration.ofMillis(10), exception.getRetryAfter());
+        assertFalse(tdrShardingService.whenRegistered(2023).isDone());
+        assertEquals(List.of(tdrRepository2024), tdrShardingService.getReaders(2024));
+        assertNull(tdrShardingService.getPlacement("cpo-small"));
+        assertEquals("cpo-big", tdrShardingService.getPlacement("cpo-big"));
+
+        retry.countDown();
+
+        await().atMost(Duration.ofSeconds(10)).until(() -> tdrShardingService.getPendingYears().isEmpty());
+        assertTrue(tdrShardingService.whenRegistered(2023).isDone());
+        assertEquals(List.of(tdrRepository2023), tdrShardingService.getReaders(2023));
+    }
+}
@@ -0,0 +1,78 @@
+package tdr.solutions.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VehicleShardRouterTest {
+
+    @Test
+    void singleShardOwnsEveryBucket() {
+        VehicleShardRouter router = new VehicleShardRouter(List.of("tdr2024"));
+
+        for (int bucket = 0; bucket < VehicleShardRouter.BUCKETS; bucket++) {
+            assertEquals(0, router.ownerOf(bucket));
+        }
+        assertEquals(0, router.shardOf("vehicle1"));
+    }
+
+    @Test
+    void spreadsBucketsEvenlyAndIndependentOfShardOrder() {
+        VehicleShardRouter router = new VehicleShardRouter(List.of("tdr2024", "tdr2024-1", "tdr2024-2", "tdr2024-3"));
+        VehicleShardRouter reordered = new VehicleShardRouter(List.of("tdr2024-3", "tdr2024-2", "tdr2024-1", "tdr2024"));
+
+        int[] buckets = new int[4];
+        for (int bucket = 0; bucket < VehicleShardRouter.BUCKETS; bucket++) {
+            buckets[router.ownerOf(bucket)]++;
+            assertEquals(router.getShardNames().get(router.ownerOf(bucket)),
+                    reordered.getShardNames().get(reordered.ownerOf(bucket)));
+        }
+        for (int count : buckets) {
+            assertTrue(count > VehicleShardRouter.BUCKETS / 4 * 0.7 && count < VehicleShardRouter.BUCKETS / 4 * 1.3,
+                    "unbalanced buckets " + count);
+        }
+    }
+
+    @Test
+    void addingShardOnlyMovesBucketsToIt() {
+        VehicleShardRouter before = new VehicleShardRouter(List.of("tdr2024", "tdr2024-1"));
+        VehicleShardRouter after = new VehicleShardRouter(List.of("tdr2024", "tdr2024-1", "tdr2024-2"));
+
+        int moved = 0;
+        for (int bucket = 0; bucket < VehicleShardRouter.BUCKETS; bucket++) {
+            if (before.ownerOf(bucket) != after.ownerOf(bucket)) {
+                assertEquals(2, after.ownerOf(bucket));
+                moved++;
+            }
+        }
+        assertTrue(moved > VehicleShardRouter.BUCKETS / 3 * 0.7 && moved < VehicleShardRouter.BUCKETS / 3 * 1.3,
+                "moved buckets " + moved);
+    }
+
+    @Test
+    void changesBucketsWithoutTouchingTheOriginal() {
+        VehicleShardRouter router = new VehicleShardRouter(List.of("tdr2024", "tdr2024-1"));
+        int bucket = VehicleShardRouter.bucketOf("vehicle10");
+        int owner = router.ownerOf(bucket);
+
+        VehicleShardRouter migrating = router.withBuckets(List.of(bucket), owner, 1 - owner);
+        VehicleShardRouter moved = migrating.withBuckets(List.of(bucket), 1 - owner, VehicleShardRouter.NO_SHARD);
+
+        assertEquals(VehicleShardRouter.NO_SHARD, router.migrationTargetOf("vehicle10"));
+        assertEquals(owner, migrating.shardOf("vehicle10"));
+        assertEquals(1 - owner, migrating.migrationTargetOf("vehicle10"));
+        assertEquals(1 - owner, moved.shardOf("vehicle10"));
+        assertEquals(VehicleShardRouter.NO_SHARD, moved.migrationTargetOf(bucket));
+        assertEquals(owner, router.shardOf("vehicle10"));
+    }
+
+    @Test
+    void bucketsAreStableAcrossVersions() {
+        // Stored trips are found by these values, so the hash must never change
+        assertEquals(908, VehicleShardRouter.bucketOf("vehicle10"));
+        assertEquals(522, VehicleShardRouter.bucketOf("vehicle11"));
+        assertEquals(959, VehicleShardRouter.bucketOf(""));
+    }
+}
@@ -0,0 +1,84 @@
+package tdr.solutions.session;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionStoreTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2024-05-01T10:00:00.123456");
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void stopBuildsTheTdrFromTheHighestMeteredCost() {
+        SessionStore store = new SessionStore(4, 10);
+        store.start("session1", new OpenSession("cpo", "vehicle1", START, 0, 1));
+        store.meter("session1", 4.0, 2);
+        store.meter("session1", 3.0, 3);
+
+        assertThrows(IllegalArgumentException.class, () -> store.stop("session1", START.minusMinutes(1), null));
+        FinishedSession finished = store.stop("session1", START.plusHours(1), null);
+
+        assertEquals(new FinishedSession("cpo", new TripDetailRecord("session1", "vehicle1", START, START.plusHours(1), 4.0)), finished);
+        assertEquals(0, store.size());
+        assertThrows(IllegalArgumentException.class, () -> store.meter("session1", 5.0, 4));
+    }
+
+    @Test
+    void refusesSessionsBeyondTheCapAndDuplicates() {
+        SessionStore store = new SessionStore(1, 2);
+        store.start("session1", new OpenSession(null, "vehicle1", START, 0, 1));
+
+        IllegalArgumentException duplicate = assertThrows(IllegalArgumentException.class,
+                () -> store.start("session1", new OpenSession(null, "vehicle1", START, 0, 1)));
+        assertEquals("session session1 is open already", duplicate.getMessage());
+        store.start("session2", new OpenSession(null, "vehicle2", START, 0, 1));
+        IllegalArgumentException full = assertThrows(IllegalArgumentException.class,
+                () -> store.start("session3", new OpenSession(null, "vehicle3", START, 0, 1)));
+        assertEquals("too many open sessions", full.getMessage());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    void expiresSessionsWithoutRecentEvents() {
+        SessionStore store = new SessionStore(8, 10);
+        store.start("session1", new OpenSession(null, "vehicle1", START, 0, 100));
+        store.start("session2", new OpenSession(null, "vehicle2", START, 0, 100));
+        store.meter("session2", null, 300);
+
+        assertEquals(1, store.expire(200));
+
+        assertEquals(1, store.size());
+        assertThrows(IllegalArgumentException.class, () -> store.meter("session1", null, 400));
+        store.meter("session2", null, 400);
+    }
+
+    @Test
+    void snapshotRestoresOpenAndStoppedSessions() throws IOException {
+        SessionStore store = new SessionStore(4, 10);
+        store.start("session1", new OpenSession("cpo", "vehicle1", START, 2.5, 100));
+        store.start("session2", new OpenSession(null, "vehicle2", START, 0, 100));
+        FinishedSession stopped = new FinishedSession(null,
+                new TripDetailRecord("session0", "vehicle0", START.minusDays(1), START.minusHours(20), 7.0));
+        Path file = directory.resolve(SessionizationService.SNAPSHOT_FILE);
+
+        assertEquals(2, store.writeSnapshot(file, List.of(stopped)));
+        SessionStore restored = new SessionStore(16, 10);
+        List<FinishedSession> finished = restored.readSnapshot(file);
+
+        assertEquals(List.of(stopped), finished);
+        assertEquals(2, restored.size());
+        assertEquals(new FinishedSession("cpo", new TripDetailRecord("session1", "vehicle1", START, START.plusHours(1), 2.5)),
+                restored.stop("session1", START.plusHours(1), null));
+        assertEquals(1, restored.expire(101));
+    }
+}
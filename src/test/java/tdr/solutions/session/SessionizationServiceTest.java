@@ -0,0 +1,81 @@
+package tdr.solutions.session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataAccessResourceFailureException;
+import tdr.solutions.model.TdrBatchResult;
+import tdr.solutions.model.TripDetailRecord;
+import tdr.solutions.service.TdrService;
+import tdr.solutions.validation.TdrRejection;
+import tdr.solutions.validation.TdrViolation;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class SessionizationServiceTest {
+
+    private static final LocalDateTime START = LocalDateTime.parse("2024-05-01T10:00:00");
+
+    @Mock
+    private TdrService tdrService;
+
+    private SimpleMeterRegistry meterRegistry;
+    private SessionizationService service;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        service = new SessionizationService(tdrService, meterRegistry, 4, 10, 10, Duration.ofHours(1), 10,
+                Duration.ofSeconds(1), Duration.ofMinutes(1), "", Duration.ofSeconds(30));
+        for (String sessionId : List.of("session1", "session2")) {
+            service.accept(List.of(
+                    new SessionEvent(SessionEvent.Type.START, sessionId, "vehicle1", START, 0.0),
+                    new SessionEvent(SessionEvent.Type.STOP, sessionId, null, START.plusHours(1), 5.0)));
+        }
+    }
+
+    @Test
+    void keepsTheSessionsOfAFailingShardForTheNextFlush() {
+        when(tdrService.createTdrs(isNull(), anyList()))
+                .thenThrow(new DataAccessResourceFailureException("shard is down"))
+                .thenAnswer(invocation -> new TdrBatchResult(invocation.getArgument(1), List.of(), List.of()));
+
+        service.flush();
+        service.flush();
+
+        verify(tdrService, times(2)).createTdrs(null, List.of(tdr("session1"), tdr("session2")));
+        assertEquals(2, meterRegistry.counter("tdr.sessions.finalized", "outcome", "created").count());
+        assertEquals(0, meterRegistry.counter("tdr.sessions.finalized", "outcome", "rejected").count());
+    }
+
+    @Test
+    void keepsTheRetryableSessionsForTheNextFlush() {
+        when(tdrService.createTdrs(isNull(), anyList()))
+                .thenReturn(new TdrBatchResult(List.of(tdr("session1")), List.of(),
+                        List.of(new TdrRejection(1, "session2", List.of(new TdrViolation(null, "temporarily unavailable"))))))
+                .thenReturn(new TdrBatchResult(List.of(tdr("session2")), List.of(), List.of()));
+
+        service.flush();
+        service.flush();
+
+        verify(tdrService).createTdrs(null, List.of(tdr("session1"), tdr("session2")));
+        verify(tdrService).createTdrs(null, List.of(tdr("session2")));
+        assertEquals(2, meterRegistry.counter("tdr.sessions.finalized", "outcome", "created").count());
+        assertEquals(0, meterRegistry.counter("tdr.sessions.finalized", "outcome", "rejected").count());
+    }
+
+    private static TripDetailRecord tdr(String sessionId) {
+        return new TripDetailRecord(sessionId, "vehicle1", START, START.plusHours(1), 5.0);
+    }
+}
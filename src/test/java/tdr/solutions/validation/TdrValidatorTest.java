@@ -0,0 +1,66 @@
+package tdr.solutions.validation;
+
+import org.junit.jupiter.api.Test;
+import tdr.solutions.model.TripDetailRecord;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TdrValidatorTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.parse("2024-06-01T12:00:00");
+
+    private final TdrValidator validator = new TdrValidator();
+
+    @Test
+    void acceptsValidTdr() {
+        TripDetailRecord tdr = new TripDetailRecord("session1", "vehicle1", NOW.minusHours(1), NOW.minusHours(1), 0.0);
+
+        assertTrue(validator.validate(tdr, NOW, false).isEmpty());
+    }
+
+    @Test
+    void reportsEveryViolation() {
+        TripDetailRecord tdr = new TripDetailRecord("s1", null, NOW.plusMinutes(1), NOW, Double.NaN);
+
+        assertEquals(List.of(
+                new TdrViolation("sessionId", TdrValidator.ID_SIZE),
+                new TdrViolation("vehicleId", TdrValidator.NOT_NULL),
+                new TdrViolation("startTime", TdrValidator.PAST_OR_PRESENT),
+                new TdrViolation("endTime", TdrValidator.NOT_BEFORE_START),
+                new TdrViolation("totalCost", TdrValidator.NOT_NEGATIVE)), validator.validate(tdr, NOW, false));
+    }
+
+    @Test
+    void stopsAtFirstViolationWhenFailingFast() {
+        TripDetailRecord tdr = new TripDetailRecord("session1", "vehicle1", null, null, -1.0);
+
+        assertEquals(List.of(new TdrViolation("startTime", TdrValidator.NOT_NULL)), validator.validate(tdr, NOW, true));
+    }
+
+    @Test
+    void checkThrowsWithViolations() {
+        TripDetailRecord tdr = new TripDetailRecord("session1", "vehicle1", NOW.minusHours(1), NOW.minusHours(2), 1.0);
+
+        TdrValidationException exception = assertThrows(TdrValidationException.class, () -> validator.check(tdr));
+
+        assertEquals("invalid TDR: endTime must not be before startTime", exception.getMessage());
+        assertEquals(List.of(new TdrViolation("endTime", TdrValidator.NOT_BEFORE_START)), exception.getViolations());
+    }
+
+    @Test
+    void validatesEveryTdrOfBatch() {
+        LocalDateTime start = LocalDateTime.parse("2023-01-01T10:00:00");
+        TripDetailRecord valid = new TripDetailRecord("session1", "vehicle1", start, start.plusHours(1), 1.0);
+        TripDetailRecord invalid = new TripDetailRecord("session2", "v", start, start.minusHours(1), -1.0);
+
+        List<TdrRejection> rejections = validator.validateAll(Arrays.asList(valid, invalid, null, valid));
+
+        assertEquals(List.of(
+                new TdrRejection(1, "session2", List.of(new TdrViolation("vehicleId", TdrValidator.ID_SIZE))),
+                new TdrRejection(2, null, List.of(new TdrViolation(null, TdrValidator.NOT_NULL)))), rejections);
+    }
+}
@@ -0,0 +1,41 @@
+package tdr.solutions.warmup;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.test.annotation.DirtiesContext;
+import tdr.solutions.service.TdrService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "tdr.warmup.enabled=true",
+        "tdr.warmup.max-calls=600",
+        "tdr.warmup.budget=PT20S"
+})
+@DirtiesContext
+class WarmUpITest {
+
+    @Autowired
+    private ApplicationAvailability applicationAvailability;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void warmsUpBeforeAcceptingTraffic() {
+        assertEquals(ReadinessState.ACCEPTING_TRAFFIC, applicationAvailability.getReadinessState());
+        assertNotNull(cacheManager.getCache(TdrService.SESSION_IDS_CACHE).get(new TdrService.SessionKey(null, "session3")));
+        assertTrue(meterRegistry.get("tdr.warmup.cached-sessions").gauge().value() > 0);
+        assertEquals(1, meterRegistry.get("tdr.warmup").tag("phase", "replay").timer().count());
+        assertEquals(600, meterRegistry.get("tdr.warmup.calls").tag("outcome", "ok").counter().count());
+        assertEquals(0, meterRegistry.get("tdr.warmup.calls").tag("outcome", "failed").counter().count());
+    }
+}